@@ -0,0 +1,301 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import taller.Orden;
+import taller.PoliticaCache;
+import taller.Sede;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide la caché de las búsquedas por matrícula (ver Taller.configurarCache())
+ * con búsquedas sesgadas, como las de un taller en el que unos pocos
+ * vehículos se consultan mucho más que el resto: la probabilidad de buscar
+ * el vehículo k-ésimo más popular es proporcional a 1 / k^s (distribución
+ * de Zipf). Los más populares se reparten al azar entre las matrículas.
+ *
+ * Los vehículos se registran en una sede con diario y se compacta, y la
+ * sede que se mide abre ese diario, así que todos se leen de la instantánea
+ * proyectada en memoria. Con --almacen se registran en cambio fuera del
+ * montículo (ver AlmacenDirecto), sin disco.
+ *
+ * Para cada política, y sin caché ("ninguna"), se hace una pasada de calentamiento y
+ * otra medida con búsquedas distintas pero de la misma distribución, y se
+ * muestran la tasa de aciertos de la pasada medida, las búsquedas por
+ * segundo y los percentiles de la duración de cada búsqueda, que incluye
+ * leer el reloj.
+ *
+ * Se ejecuta con "ant benchmark -Dbench.class=benchmark.CacheBenchmark".
+ *
+ * Uso: CacheBenchmark [--vehiculos=200000] [--cache=10000]
+ * [--busquedas=2000000] [--zipf=0.99] [--hilos=1] [--almacen]
+ * [--politicas=ninguna,lru,lfu,w_tiny_lfu]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class CacheBenchmark {
+
+    private static final int VEHICULOS = 200_000;
+    private static final int CACHE = Taller.VEHICULOS_EN_CACHE;
+    /**
+     * Búsquedas de cada hilo en cada pasada.
+     */
+    private static final int BUSQUEDAS = 2_000_000;
+    /**
+     * Exponente de la distribución de Zipf. Con valores cercanos a 1 unos
+     * pocos vehículos se llevan buena parte de las búsquedas.
+     */
+    private static final double ZIPF = 0.99;
+    private static final int HILOS = 1;
+    /**
+     * Nombre de la prueba sin caché en --politicas.
+     */
+    private static final String NINGUNA = "NINGUNA";
+    /**
+     * Separación entre las claves de los vehículos, para que no sean
+     * consecutivas.
+     */
+    private static final int SALTO = 7;
+    private static final String[] REPARACIONES = {"Cambio de aceite",
+        "Frenos", "Neumáticos", "Batería", "Embrague"};
+
+    /**
+     * @param args vehículos, caché, búsquedas, exponente, hilos y almacén.
+     * @throws Exception si falla el diario o se interrumpe la espera.
+     */
+    public static void main(String[] args) throws Exception {
+        int vehiculos = VEHICULOS;
+        int cache = CACHE;
+        int busquedas = BUSQUEDAS;
+        double zipf = ZIPF;
+        int hilos = HILOS;
+        boolean directo = false;
+        List<PoliticaCache> politicas = new ArrayList<>();
+        politicas.add(null);
+        politicas.addAll(Arrays.asList(PoliticaCache.values()));
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--cache=")) {
+                cache = Integer.parseInt(valor);
+            } else if (arg.startsWith("--busquedas=")) {
+                busquedas = Integer.parseInt(valor);
+            } else if (arg.startsWith("--zipf=")) {
+                zipf = Double.parseDouble(valor);
+            } else if (arg.startsWith("--hilos=")) {
+                hilos = Integer.parseInt(valor);
+            } else if (arg.equals("--almacen")) {
+                directo = true;
+            } else if (arg.startsWith("--politicas=")) {
+                politicas.clear();
+                for (String nombre : valor.split(",")) {
+                    nombre = nombre.strip().toUpperCase();
+                    politicas.add(nombre.equals(NINGUNA) ? null : PoliticaCache.valueOf(nombre));
+                }
+            }
+        }
+        Path carpeta = Files.createTempDirectory("taller-cache");
+        Sede sede = new Sede("medida");
+        try {
+            if (directo) {
+                configurar(sede);
+                sede.configurarAlmacen(true);
+                cargar(sede, vehiculos);
+            } else {
+                Path diario = carpeta.resolve("taller.diario");
+                Sede carga = new Sede("carga");
+                configurar(carga);
+                carga.abrirDiario(diario);
+                cargar(carga, vehiculos);
+                carga.compactar();
+                // La compactación se hace en otro hilo; cerrar el diario la espera
+                carga.cerrarDiario();
+                configurar(sede);
+                sede.abrirDiario(diario);
+            }
+            System.out.printf(Locale.ROOT, "%,d vehículos en %s, caché de %,d, %,d búsquedas"
+                    + " por hilo, Zipf %.2f, %d hilos%n", vehiculos,
+                    directo ? "el almacén" : "la instantánea", cache, busquedas, zipf, hilos);
+            System.out.printf(Locale.ROOT, "%-11s %9s %14s %9s %9s %10s%n", "Política",
+                    "Aciertos", "Búsquedas/s", "p50 µs", "p99 µs", "p99,9 µs");
+            Matricula[] porPopularidad = popularidad(vehiculos);
+            double[] acumulada = acumulada(vehiculos, zipf);
+            for (PoliticaCache politica : politicas) {
+                sede.configurarCache(politica == null ? 0 : cache,
+                        politica == null ? PoliticaCache.LRU : politica);
+                medir(sede, hilos, busquedas, porPopularidad, acumulada, 1);
+                Taller.EstadisticasCache antes = sede.getEstadisticasCache();
+                long[] duraciones = new long[hilos * busquedas];
+                double porSegundo = medir(sede, hilos, busquedas, porPopularidad,
+                        acumulada, 2, duraciones);
+                Taller.EstadisticasCache despues = sede.getEstadisticasCache();
+                Arrays.sort(duraciones);
+                String aciertos = "-";
+                if (despues != null) {
+                    long nuevos = despues.aciertos() - antes.aciertos();
+                    long total = nuevos + despues.fallos() - antes.fallos();
+                    aciertos = String.format(Locale.ROOT, "%.1f %%", 100.0 * nuevos / total);
+                }
+                System.out.printf(Locale.ROOT, "%-11s %9s %,14.0f %9.2f %9.2f %10.2f%n",
+                        politica == null ? "Sin caché" : politica, aciertos, porSegundo,
+                        percentil(duraciones, 0.50), percentil(duraciones, 0.99),
+                        percentil(duraciones, 0.999));
+            }
+        } finally {
+            sede.cerrarDiario();
+            try (var ficheros = Files.list(carpeta)) {
+                for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                    Files.delete(fichero);
+                }
+            }
+            Files.delete(carpeta);
+        }
+    }
+
+    private static void configurar(Sede sede) {
+        sede.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        sede.configurarCompactacion(0);
+    }
+
+    /**
+     * Registra los vehículos, cada uno con entre 0 y 2 reparaciones.
+     */
+    private static void cargar(Sede sede, int vehiculos) {
+        List<Orden> ordenes = new ArrayList<>();
+        for (int v = 0; v < vehiculos; v++) {
+            Matricula matricula = Matricula.fromKey(v * SALTO);
+            ordenes.add(Orden.alta(matricula, "Seat", "Modelo " + v % 100, "Rojo"));
+            for (int r = 0; r < v % 3; r++) {
+                ordenes.add(Orden.reparacion(matricula,
+                        REPARACIONES[(v + r) % REPARACIONES.length], 5_000));
+            }
+            if (ordenes.size() >= 1000 || v == vehiculos - 1) {
+                sede.ejecutar(ordenes);
+                ordenes.clear();
+            }
+        }
+    }
+
+    /**
+     * Matrículas de los vehículos ordenadas de más a menos populares, al
+     * azar.
+     */
+    private static Matricula[] popularidad(int vehiculos) {
+        Matricula[] matriculas = new Matricula[vehiculos];
+        for (int v = 0; v < vehiculos; v++) {
+            matriculas[v] = Matricula.fromKey(v * SALTO);
+        }
+        SplittableRandom azar = new SplittableRandom(1);
+        for (int i = vehiculos - 1; i > 0; i--) {
+            int j = azar.nextInt(i + 1);
+            Matricula otra = matriculas[i];
+            matriculas[i] = matriculas[j];
+            matriculas[j] = otra;
+        }
+        return matriculas;
+    }
+
+    /**
+     * Probabilidad acumulada de la distribución de Zipf para cada posición
+     * de popularidad.
+     */
+    private static double[] acumulada(int vehiculos, double exponente) {
+        double[] acumulada = new double[vehiculos];
+        double suma = 0;
+        for (int k = 0; k < vehiculos; k++) {
+            suma += 1 / Math.pow(k + 1, exponente);
+            acumulada[k] = suma;
+        }
+        for (int k = 0; k < vehiculos; k++) {
+            acumulada[k] /= suma;
+        }
+        return acumulada;
+    }
+
+    /**
+     * Hace una pasada de búsquedas sin anotar sus duraciones.
+     */
+    private static void medir(Sede sede, int hilos, int busquedas,
+            Matricula[] porPopularidad, double[] acumulada, long semilla)
+            throws InterruptedException {
+        medir(sede, hilos, busquedas, porPopularidad, acumulada, semilla, null);
+    }
+
+    /**
+     * Hace una pasada de búsquedas desde varios hilos. Cada hilo prepara
+     * antes sus búsquedas, para no medir cómo se eligen.
+     *
+     * @param duraciones Donde se deja la duración de cada búsqueda, en
+     * nanosegundos, o "null".
+     * @return Búsquedas por segundo.
+     */
+    private static double medir(Sede sede, int hilos, int busquedas,
+            Matricula[] porPopularidad, double[] acumulada, long semilla,
+            long[] duraciones) throws InterruptedException {
+        Matricula[][] buscadas = new Matricula[hilos][busquedas];
+        for (int h = 0; h < hilos; h++) {
+            SplittableRandom azar = new SplittableRandom(semilla * 1000 + h);
+            for (int i = 0; i < busquedas; i++) {
+                int k = Arrays.binarySearch(acumulada, azar.nextDouble());
+                buscadas[h][i] = porPopularidad[Math.min(k < 0 ? -k - 1 : k,
+                        porPopularidad.length - 1)];
+            }
+        }
+        CountDownLatch salida = new CountDownLatch(1);
+        CountDownLatch fin = new CountDownLatch(hilos);
+        // Se comprueba que se encuentran todos, y así el compilador no puede
+        // eliminar las búsquedas
+        long[] encontrados = new long[hilos];
+        for (int h = 0; h < hilos; h++) {
+            int numero = h;
+            new Thread(() -> {
+                try {
+                    salida.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long propios = 0;
+                for (int i = 0; i < busquedas; i++) {
+                    long antes = System.nanoTime();
+                    Taller taller = sede.buscarEnRegistroPorMatricula(buscadas[numero][i]);
+                    if (duraciones != null) {
+                        duraciones[numero * busquedas + i] = System.nanoTime() - antes;
+                    }
+                    if (taller != null) {
+                        propios++;
+                    }
+                }
+                encontrados[numero] = propios;
+                fin.countDown();
+            }, "busquedas-" + h).start();
+        }
+        long inicio = System.nanoTime();
+        salida.countDown();
+        fin.await();
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        for (long n : encontrados) {
+            if (n != busquedas) {
+                throw new IllegalStateException("Faltan vehículos: " + n);
+            }
+        }
+        return hilos * busquedas / segundos;
+    }
+
+    /**
+     * Percentil de unas duraciones ordenadas, en microsegundos.
+     */
+    private static double percentil(long[] ordenadas, double fraccion) {
+        int i = (int) Math.min(ordenadas.length - 1, Math.ceil(fraccion * ordenadas.length) - 1);
+        return ordenadas[Math.max(0, i)] / 1e3;
+    }
+}
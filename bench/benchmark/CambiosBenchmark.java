@@ -0,0 +1,205 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import taller.Orden;
+import taller.Sede;
+import taller.Suscripcion;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide si las suscripciones a los cambios del registro (ver
+ * Sede.suscribir()) frenan a las modificaciones. Varios hilos escritores
+ * mandan durante un tiempo lotes que dan de alta un vehículo, le agregan una
+ * reparación y dan de baja otro, así que cada lote son tres cambios. A la
+ * vez, unas cuantas suscripciones rápidas cuentan los cambios que reciben y
+ * comprueban que les llegan todos y en orden, y opcionalmente una lenta
+ * tarda un tiempo fijo en cada lote, como un programa que escribe en otro
+ * servidor.
+ *
+ * Para cada combinación se muestran las órdenes por segundo, el percentil
+ * 99 de la duración de cada lote, los cambios recibidos por las
+ * suscripciones rápidas, cuántos han perdido y el tamaño medio de sus lotes,
+ * y lo mismo de la lenta. Las rápidas no deben perder ninguno; la lenta
+ * pierde los que no le da tiempo a leer, sin que las órdenes por segundo
+ * bajen.
+ *
+ * Se ejecuta con "ant benchmark -Dbench.class=benchmark.CambiosBenchmark".
+ *
+ * Uso: CambiosBenchmark [--escritores=4] [--rapidas=0,1,4] [--lenta=1]
+ * [--segundos=5]
+ *
+ * Con --lenta=0 no hay suscripción lenta; si no, es el tiempo en
+ * milisegundos que tarda en cada lote.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class CambiosBenchmark {
+
+    private static final int ESCRITORES = 4;
+    private static final int[] RAPIDAS = {0, 1, 4};
+    private static final int LENTA = 1;
+    private static final int SEGUNDOS = 5;
+    /**
+     * Clave de la siguiente matrícula nueva que se da de alta.
+     */
+    private static final AtomicInteger NUEVA = new AtomicInteger();
+
+    /**
+     * @param args escritores, suscripciones rápidas, lenta y duración.
+     * @throws InterruptedException si se interrumpe la espera de los hilos.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int escritores = ESCRITORES;
+        int[] rapidas = RAPIDAS;
+        int lenta = LENTA;
+        int segundos = SEGUNDOS;
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--escritores=")) {
+                escritores = Integer.parseInt(valor);
+            } else if (arg.startsWith("--rapidas=")) {
+                rapidas = Arrays.stream(valor.split(","))
+                        .mapToInt(r -> Integer.parseInt(r.strip())).toArray();
+            } else if (arg.startsWith("--lenta=")) {
+                lenta = Integer.parseInt(valor);
+            } else if (arg.startsWith("--segundos=")) {
+                segundos = Integer.parseInt(valor);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d escritores, %d procesadores, lenta de %d ms por lote%n",
+                escritores, Runtime.getRuntime().availableProcessors(), lenta);
+        System.out.printf(Locale.ROOT, "%7s %6s %12s %8s %12s %9s %7s %11s %11s%n", "Rápidas",
+                "Lenta", "Órdenes/s", "p99 µs", "Recibidos", "Perdidos", "Lote",
+                "Lenta rec.", "Lenta perd.");
+        // Calentamiento, sin mostrar el resultado
+        probar(1, 0, escritores, 1, false);
+        for (int n : rapidas) {
+            probar(n, 0, escritores, segundos, true);
+            if (lenta > 0) {
+                probar(n, lenta, escritores, segundos, true);
+            }
+        }
+    }
+
+    /**
+     * Cuenta los cambios y lotes que recibe una suscripción y comprueba que
+     * los números de los cambios van seguidos.
+     */
+    private static final class Contador {
+
+        private long lotes;
+        private long ultimo = -1;
+        private boolean huecos;
+    }
+
+    /**
+     * Hace la prueba con un número de suscripciones rápidas y, si el tiempo
+     * no es 0, una lenta, y si se pide muestra el resultado.
+     */
+    private static void probar(int rapidas, int lenta, int escritores,
+            int segundos, boolean mostrar) throws InterruptedException {
+        Sede sede = new Sede("cambios");
+        sede.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        List<Suscripcion> suscripciones = new ArrayList<>();
+        List<Contador> contadores = new ArrayList<>();
+        for (int r = 0; r < rapidas; r++) {
+            Contador contador = new Contador();
+            contadores.add(contador);
+            suscripciones.add(sede.suscribir(lote -> {
+                contador.lotes++;
+                for (Taller.Cambio cambio : lote) {
+                    contador.huecos |= contador.ultimo >= 0
+                            && cambio.numero() != contador.ultimo + 1;
+                    contador.ultimo = cambio.numero();
+                }
+            }));
+        }
+        Suscripcion lentaSuscrita = null;
+        if (lenta > 0) {
+            lentaSuscrita = sede.suscribir(lote -> {
+                try {
+                    Thread.sleep(lenta);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        AtomicLong ordenes = new AtomicLong();
+        long[][] duraciones = new long[escritores][];
+        CountDownLatch fin = new CountDownLatch(escritores);
+        long inicio = System.nanoTime();
+        long limite = inicio + segundos * 1_000_000_000L;
+        for (int h = 0; h < escritores; h++) {
+            int numero = h;
+            new Thread(() -> {
+                long[] propias = new long[1 << 16];
+                int hechas = 0;
+                int anterior = -1;
+                while (System.nanoTime() < limite) {
+                    Matricula nueva = Matricula.fromKey(NUEVA.getAndIncrement());
+                    List<Orden> lote = new ArrayList<>(3);
+                    lote.add(Orden.alta(nueva, "Seat", "Leon", "Azul"));
+                    lote.add(Orden.reparacion(nueva, "Frenos", 5_000));
+                    if (anterior >= 0) {
+                        lote.add(Orden.baja(Matricula.fromKey(anterior)));
+                    }
+                    long antes = System.nanoTime();
+                    sede.ejecutar(lote);
+                    if (hechas == propias.length) {
+                        propias = Arrays.copyOf(propias, hechas * 2);
+                    }
+                    propias[hechas++] = System.nanoTime() - antes;
+                    anterior = nueva.toKey();
+                    ordenes.addAndGet(lote.size());
+                }
+                duraciones[numero] = Arrays.copyOf(propias, hechas);
+                fin.countDown();
+            }, "escritor-" + h).start();
+        }
+        fin.await();
+        double transcurridos = (System.nanoTime() - inicio) / 1e9;
+        // Se da tiempo a las rápidas para leer lo último publicado
+        for (Suscripcion suscripcion : suscripciones) {
+            while (suscripcion.getPendientes() > 0) {
+                Thread.sleep(1);
+            }
+        }
+        for (Suscripcion suscripcion : suscripciones) {
+            suscripcion.close();
+        }
+        if (lentaSuscrita != null) {
+            lentaSuscrita.close();
+        }
+        if (!mostrar) {
+            return;
+        }
+        long recibidos = 0;
+        long perdidos = 0;
+        long lotes = 0;
+        boolean huecos = false;
+        for (int r = 0; r < rapidas; r++) {
+            recibidos += suscripciones.get(r).getRecibidos();
+            perdidos += suscripciones.get(r).getPerdidos();
+            lotes += contadores.get(r).lotes;
+            huecos |= contadores.get(r).huecos;
+        }
+        long[] todas = Arrays.stream(duraciones).flatMapToLong(Arrays::stream).sorted().toArray();
+        double p99 = todas.length == 0 ? 0
+                : todas[Math.max(0, (int) Math.ceil(0.99 * todas.length) - 1)] / 1e3;
+        System.out.printf(Locale.ROOT, "%7d %6s %,12.0f %,8.1f %,12d %9s %,7.1f %11s %11s%n",
+                rapidas, lenta > 0 ? "sí" : "no", ordenes.get() / transcurridos, p99,
+                recibidos, perdidos + (huecos ? "!" : ""),
+                lotes == 0 ? 0.0 : (double) recibidos / lotes,
+                lentaSuscrita == null ? "-" : String.format(Locale.ROOT, "%,d",
+                lentaSuscrita.getRecibidos()),
+                lentaSuscrita == null ? "-" : String.format(Locale.ROOT, "%,d",
+                lentaSuscrita.getPerdidos()));
+    }
+}
@@ -0,0 +1,108 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide las dos cifras importantes del diario del taller:
+ * <ul>
+ * <li>Latencia de escritura por operación (percentiles 50, 99 y 99,9) con
+ * varios hilos modificando el registro a la vez, que es donde la confirmación
+ * en grupo reparte cada fsync entre muchas operaciones.</li>
+ * <li>Tiempo de arranque: lo que tarda una JVM nueva en reproducir el diario
+ * resultante.</li>
+ * </ul>
+ *
+ * Uso: DiarioBenchmark [hilos] [operaciones por hilo] [fichero]. La
+ * reproducción se lanza en otro proceso para partir de un registro vacío.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class DiarioBenchmark {
+
+    /**
+     * @param args hilos, operaciones por hilo y fichero del diario.
+     * @throws Exception si falla la escritura o el proceso de reproducción.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--reproducir")) {
+            reproducir(Path.of(args[1]));
+            return;
+        }
+        int hilos = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operaciones = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        Path fichero = args.length > 2
+                ? Path.of(args[2])
+                : Files.createTempFile("taller", ".diario");
+        Files.deleteIfExists(fichero);
+
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.SIN_LIMITE);
+        Taller.abrirDiario(fichero);
+        long[][] latencias = new long[hilos][operaciones];
+        CountDownLatch fin = new CountDownLatch(hilos);
+        long inicio = System.nanoTime();
+        for (int h = 0; h < hilos; h++) {
+            int hilo = h;
+            new Thread(() -> {
+                for (int i = 0; i < operaciones; i++) {
+                    Matricula m = Matricula.fromKey(hilo * operaciones + i / 4);
+                    long t0 = System.nanoTime();
+                    // Tres de cada cuatro operaciones son reparaciones
+                    if (i % 4 == 0) {
+                        Taller.addIfAbsent(m, "Seat", "Ibiza", "Rojo");
+                    } else {
+                        Taller.appendRepairIfRoom(m, "Cambio de aceite");
+                    }
+                    latencias[hilo][i] = System.nanoTime() - t0;
+                }
+                fin.countDown();
+            }).start();
+        }
+        fin.await();
+        long nanos = System.nanoTime() - inicio;
+        Taller.cerrarDiario();
+
+        long[] todas = Arrays.stream(latencias).flatMapToLong(Arrays::stream)
+                .sorted().toArray();
+        int total = todas.length;
+        System.out.printf("Escritura: %,d operaciones con %d hilos en %.2f s (%,.0f op/s)%n",
+                total, hilos, nanos / 1e9, total / (nanos / 1e9));
+        System.out.printf("Latencia por operación: p50=%.1f us p99=%.1f us p99.9=%.1f us%n",
+                todas[total / 2] / 1e3, todas[(int) (total * 0.99)] / 1e3,
+                todas[(int) (total * 0.999)] / 1e3);
+        System.out.printf("Tamaño del diario: %,d bytes%n", Files.size(fichero));
+
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        Process proceso = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                DiarioBenchmark.class.getName(), "--reproducir", fichero.toString())
+                .inheritIO().start();
+        proceso.waitFor();
+        if (args.length <= 2) {
+            Files.deleteIfExists(fichero);
+        }
+    }
+
+    /**
+     * Reproduce un diario en un registro vacío y mide el tiempo.
+     *
+     * @param fichero Ruta del diario.
+     * @throws IOException si no se puede leer.
+     */
+    private static void reproducir(Path fichero) throws IOException {
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.SIN_LIMITE);
+        long inicio = System.nanoTime();
+        long eventos = Taller.abrirDiario(fichero);
+        long nanos = System.nanoTime() - inicio;
+        Taller.cerrarDiario();
+        System.out.printf("Arranque: %,d eventos reproducidos en %.2f s (%,.0f eventos/s)%n",
+                eventos, nanos / 1e9, eventos / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,277 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import taller.Resultado;
+import taller.Taller;
+import taller.Urgencia;
+import vehiculo.Matricula;
+
+/**
+ * Simulación de la cola de espera del taller (ver Taller.addOrEnqueue()).
+ * Reproduce una traza de llegadas de vehículos con el registro real, con un
+ * reloj simulado: cada vehículo llega en su minuto, entra en el taller o en
+ * la cola, y se da de baja cuando termina su estancia, lo que deja entrar al
+ * primero de la cola. La misma traza se reproduce con cada capacidad y se
+ * muestran los vehículos atendidos por día, la ocupación del taller, la cola
+ * más larga y la espera de los vehículos de cada urgencia.
+ *
+ * La traza se genera al azar: llegadas de Poisson con --tasa vehículos por
+ * hora, estancias exponenciales de --estancia horas de media y una fracción
+ * --urgentes de vehículos urgentes (y otra igual de preferentes). Con
+ * --traza=fichero se lee de un CSV con una fila por vehículo
+ * (minuto de llegada,minutos de estancia,urgencia), y con --guardar=fichero
+ * se guarda la generada en ese formato.
+ *
+ * Se ejecuta con "ant benchmark -Dbench.class=benchmark.EsperaSimulacion".
+ *
+ * Uso: EsperaSimulacion [--llegadas=100000] [--tasa=1] [--estancia=8]
+ * [--urgentes=0.05] [--capacidades=6,8,9,10,12,16] [--semilla=1]
+ * [--traza=fichero] [--guardar=fichero]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class EsperaSimulacion {
+
+    private static final int LLEGADAS = 100_000;
+    /**
+     * Vehículos que llegan por hora, de media.
+     */
+    private static final double TASA = 1;
+    /**
+     * Horas que pasa cada vehículo en el taller, de media.
+     */
+    private static final double ESTANCIA = 8;
+    private static final double URGENTES = 0.05;
+    private static final int[] CAPACIDADES = {6, 8, 9, 10, 12, 16};
+    private static final int MINUTOS_POR_DIA = 24 * 60;
+
+    /**
+     * Traza: minuto de llegada, minutos de estancia y urgencia de cada
+     * vehículo, por orden de llegada. El número de vehículo es también la
+     * clave de su matrícula.
+     */
+    private static long[] llegadas;
+    private static long[] estancias;
+    private static Urgencia[] urgencias;
+
+    /**
+     * Estado de la simulación en curso: minuto actual, bajas previstas
+     * (minuto de la baja y número de vehículo en un solo long), minutos de
+     * espera de cada vehículo, minutos de taller ocupados por los que ya se
+     * han ido y órdenes hechas al registro.
+     */
+    private static long ahora;
+    private static final PriorityQueue<Long> BAJAS = new PriorityQueue<>();
+    private static long[] esperas;
+    private static long ocupado;
+    private static long ordenes;
+
+    /**
+     * @param args parámetros de la traza y capacidades.
+     * @throws IOException si no se puede leer o guardar la traza.
+     */
+    public static void main(String[] args) throws IOException {
+        int n = LLEGADAS;
+        double tasa = TASA;
+        double estancia = ESTANCIA;
+        double urgentes = URGENTES;
+        int[] capacidades = CAPACIDADES;
+        long semilla = 1;
+        Path traza = null;
+        Path guardar = null;
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--llegadas=")) {
+                n = Integer.parseInt(valor);
+            } else if (arg.startsWith("--tasa=")) {
+                tasa = Double.parseDouble(valor);
+            } else if (arg.startsWith("--estancia=")) {
+                estancia = Double.parseDouble(valor);
+            } else if (arg.startsWith("--urgentes=")) {
+                urgentes = Double.parseDouble(valor);
+            } else if (arg.startsWith("--capacidades=")) {
+                capacidades = Arrays.stream(valor.split(","))
+                        .mapToInt(c -> Integer.parseInt(c.strip())).toArray();
+            } else if (arg.startsWith("--semilla=")) {
+                semilla = Long.parseLong(valor);
+            } else if (arg.startsWith("--traza=")) {
+                traza = Path.of(valor);
+            } else if (arg.startsWith("--guardar=")) {
+                guardar = Path.of(valor);
+            }
+        }
+        if (traza != null) {
+            leerTraza(traza);
+        } else {
+            generarTraza(n, tasa, estancia, urgentes, semilla);
+        }
+        if (guardar != null) {
+            guardarTraza(guardar);
+        }
+        long minutos = llegadas[llegadas.length - 1] - llegadas[0];
+        double carga = Arrays.stream(estancias).sum() / (double) Math.max(1, minutos);
+        System.out.printf(Locale.ROOT, "%,d vehículos en %,.1f días; carga ofrecida"
+                + " %.2f vehículos en el taller a la vez%n",
+                llegadas.length, minutos / (double) MINUTOS_POR_DIA, carga);
+
+        Taller.alPromover(espera -> {
+            int vehiculo = espera.matricula().toKey();
+            esperas[vehiculo] = ahora - espera.llegada().getEpochSecond() / 60;
+            BAJAS.add(baja(ahora + estancias[vehiculo], vehiculo));
+        });
+        System.out.printf(Locale.ROOT, "%9s %11s %9s %10s %14s %14s %14s %10s%n",
+                "Capacidad", "Atendidos/d", "Ocupación", "Cola máx.",
+                "Normal h (p95)", "Pref. h (p95)", "Urgente h (p95)", "Órdenes/s");
+        for (int capacidad : capacidades) {
+            simular(capacidad);
+        }
+    }
+
+    /**
+     * Reproduce la traza con una capacidad y muestra los resultados.
+     */
+    private static void simular(int capacidad) {
+        Taller.configurarCapacidad(capacidad, Taller.REPARACIONES_MAXIMAS);
+        int n = llegadas.length;
+        esperas = new long[n];
+        Arrays.fill(esperas, -1);
+        BAJAS.clear();
+        ocupado = 0;
+        ordenes = 0;
+        int colaMaxima = 0;
+        long inicio = System.nanoTime();
+        for (int v = 0; v < n; v++) {
+            bajasHasta(llegadas[v]);
+            ahora = llegadas[v];
+            Resultado resultado = Taller.addOrEnqueue(Matricula.fromKey(v), "Seat",
+                    "Ibiza", "Rojo", urgencias[v], Instant.ofEpochSecond(ahora * 60));
+            ordenes++;
+            if (resultado == Resultado.REALIZADO) {
+                esperas[v] = 0;
+                BAJAS.add(baja(ahora + estancias[v], v));
+            } else {
+                colaMaxima = Math.max(colaMaxima, Taller.getVehiculosEnEspera());
+            }
+        }
+        bajasHasta(Long.MAX_VALUE);
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        long fin = ahora;
+        double dias = (fin - llegadas[0]) / (double) MINUTOS_POR_DIA;
+        System.out.printf(Locale.ROOT, "%9d %11.1f %8.1f%% %10d %14s %14s %14s %,10.0f%n",
+                capacidad, n / dias,
+                100.0 * ocupado / ((double) capacidad * (fin - llegadas[0])),
+                colaMaxima, espera(Urgencia.NORMAL), espera(Urgencia.PREFERENTE),
+                espera(Urgencia.URGENTE), ordenes / segundos);
+    }
+
+    /**
+     * Da de baja, por orden, los vehículos que terminan antes de un minuto.
+     * Cada baja puede hacer entrar a uno de la cola, cuya baja se prevé en
+     * la acción de alPromover().
+     */
+    private static void bajasHasta(long minuto) {
+        while (!BAJAS.isEmpty() && minutoDe(BAJAS.peek()) <= minuto) {
+            long baja = BAJAS.poll();
+            int vehiculo = vehiculoDe(baja);
+            ahora = minutoDe(baja);
+            Taller.removeVehiculo(Matricula.fromKey(vehiculo));
+            ordenes++;
+            ocupado += estancias[vehiculo];
+        }
+    }
+
+    /**
+     * Espera media y percentil 95 de los vehículos de una urgencia, en
+     * horas.
+     */
+    private static String espera(Urgencia urgencia) {
+        long[] propias = new long[esperas.length];
+        int m = 0;
+        for (int v = 0; v < esperas.length; v++) {
+            if (urgencias[v] == urgencia) {
+                propias[m++] = esperas[v];
+            }
+        }
+        if (m == 0) {
+            return "-";
+        }
+        propias = Arrays.copyOf(propias, m);
+        Arrays.sort(propias);
+        double media = Arrays.stream(propias).average().orElse(0) / 60;
+        return String.format(Locale.ROOT, "%.1f (%.1f)", media,
+                propias[(int) (m * 0.95)] / 60.0);
+    }
+
+    /* ----------------- */
+ /* TRAZA DE LLEGADAS */
+ /* ----------------- */
+    private static void generarTraza(int n, double tasa, double estancia,
+            double urgentes, long semilla) {
+        Random azar = new Random(semilla);
+        llegadas = new long[n];
+        estancias = new long[n];
+        urgencias = new Urgencia[n];
+        double minuto = 0;
+        for (int v = 0; v < n; v++) {
+            minuto += -Math.log(1 - azar.nextDouble()) * 60 / tasa;
+            llegadas[v] = (long) minuto;
+            estancias[v] = Math.max(1, (long) (-Math.log(1 - azar.nextDouble()) * estancia * 60));
+            double u = azar.nextDouble();
+            urgencias[v] = u < urgentes ? Urgencia.URGENTE
+                    : u < 2 * urgentes ? Urgencia.PREFERENTE : Urgencia.NORMAL;
+        }
+    }
+
+    private static void leerTraza(Path fichero) throws IOException {
+        try (BufferedReader lector = Files.newBufferedReader(fichero, StandardCharsets.UTF_8)) {
+            String[] lineas = lector.lines().filter(l -> !l.isBlank()).toArray(String[]::new);
+            llegadas = new long[lineas.length];
+            estancias = new long[lineas.length];
+            urgencias = new Urgencia[lineas.length];
+            for (int v = 0; v < lineas.length; v++) {
+                String[] campos = lineas[v].split(",");
+                llegadas[v] = Long.parseLong(campos[0].strip());
+                estancias[v] = Long.parseLong(campos[1].strip());
+                urgencias[v] = Urgencia.valueOf(campos[2].strip().toUpperCase(Locale.ROOT));
+                if (v > 0 && llegadas[v] < llegadas[v - 1]) {
+                    throw new IOException("Las llegadas no están en orden en la línea " + (v + 1));
+                }
+            }
+        }
+    }
+
+    private static void guardarTraza(Path fichero) throws IOException {
+        try (Writer escritor = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+            for (int v = 0; v < llegadas.length; v++) {
+                escritor.write(llegadas[v] + "," + estancias[v] + "," + urgencias[v] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Una baja prevista en un long: el minuto en los bits altos, para que
+     * se ordenen por minuto, y el número de vehículo en los 24 bajos.
+     */
+    private static long baja(long minuto, int vehiculo) {
+        return minuto << 24 | vehiculo;
+    }
+
+    private static long minutoDe(long baja) {
+        return baja >>> 24;
+    }
+
+    private static int vehiculoDe(long baja) {
+        return (int) (baja & ((1 << 24) - 1));
+    }
+}
@@ -0,0 +1,225 @@
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import taller.Informe;
+import taller.Intercambio;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide el informe del taller (ver Informe.generar()) con grupos de 1, 2,
+ * 4... hilos hasta el número de procesadores, y la mejora respecto a un hilo.
+ * Con un solo procesador solo se prueba un hilo y no dice nada de la
+ * mejora: para eso hay que ejecutarlo en una máquina con varios.
+ * Se ejecuta con "ant benchmark -Dbench.class=benchmark.InformeBenchmark".
+ *
+ * Los vehículos se cargan en otro proceso desde un fichero CSV con el diario
+ * abierto y se compacta, de forma que al abrir el diario casi todos quedan
+ * en la instantánea, como en un taller que lleva tiempo funcionando; un 1 %
+ * más se carga después y queda en memoria. Mientras se genera cada informe, otro hilo sigue agregando
+ * reparaciones, y se muestra la mayor espera de esas escrituras junto a la
+ * mayor durante el mismo tiempo sin informe.
+ *
+ * Con los 10 millones de vehículos por defecto hace falta un montículo
+ * grande, por ejemplo -Dbench.jvmargs="-Xmx4g".
+ *
+ * Uso: InformeBenchmark [--vehiculos=10000000] [--repeticiones=5]
+ * [--almacen]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class InformeBenchmark {
+
+    /**
+     * Vehículos que se registran por defecto.
+     */
+    private static final int VEHICULOS = 10_000_000;
+    /**
+     * Informes que se generan con cada grupo de hilos. Se toma el mejor.
+     */
+    private static final int REPETICIONES = 5;
+    /**
+     * Separación entre las claves de los vehículos, para que no sean
+     * consecutivas.
+     */
+    private static final int SALTO = 7;
+    /**
+     * Marcas de los vehículos y textos de sus reparaciones.
+     */
+    private static final String[] MARCAS = {"Seat", "Renault", "Peugeot",
+        "Citroën", "Ford", "Opel", "Toyota", "Kia", "Hyundai", "Dacia"};
+    private static final String[] REPARACIONES = {"Cambio de aceite",
+        "Frenos", "Neumáticos", "Batería", "Embrague", "Correa de distribución",
+        "Amortiguadores", "Filtro de aire", "Revisión", "Luces"};
+
+    /**
+     * Acumula los resultados para que el compilador no los elimine.
+     */
+    private static long sumidero;
+
+    /**
+     * @param args número de vehículos, repeticiones y almacén.
+     * @throws Exception si falla la escritura del diario o de la carga.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("--preparar")) {
+            preparar(Path.of(args[1]), Integer.parseInt(args[2]),
+                    Boolean.parseBoolean(args[3]));
+            return;
+        }
+        int vehiculos = VEHICULOS;
+        int repeticiones = REPETICIONES;
+        boolean directo = false;
+        for (String arg : args) {
+            if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(arg.substring("--vehiculos=".length()).strip());
+            } else if (arg.startsWith("--repeticiones=")) {
+                repeticiones = Integer.parseInt(arg.substring("--repeticiones=".length()).strip());
+            } else if (arg.equals("--almacen")) {
+                directo = true;
+            }
+        }
+        Path carpeta = Files.createTempDirectory("taller-informe");
+        try {
+            String java = System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "java";
+            long inicio = System.nanoTime();
+            int salida = new ProcessBuilder(java, "-cp",
+                    System.getProperty("java.class.path"),
+                    InformeBenchmark.class.getName(), "--preparar",
+                    carpeta.toString(), String.valueOf(vehiculos - vehiculos / 100),
+                    String.valueOf(directo))
+                    .inheritIO().start().waitFor();
+            if (salida != 0) {
+                throw new IOException("La carga ha terminado con el código " + salida);
+            }
+            Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+            Taller.configurarAlmacen(directo);
+            Taller.configurarCompactacion(0);
+            Taller.abrirDiario(carpeta.resolve("taller.diario"));
+            cargar(carpeta.resolve("memoria.csv"), vehiculos - vehiculos / 100, vehiculos);
+            System.out.printf(Locale.ROOT, "Carga: %,d vehículos en %.1f s%n",
+                    vehiculos, (System.nanoTime() - inicio) / 1e9);
+            medir(vehiculos, repeticiones);
+            Taller.cerrarDiario();
+        } finally {
+            try (var ficheros = Files.list(carpeta)) {
+                for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                    Files.delete(fichero);
+                }
+            }
+            Files.delete(carpeta);
+        }
+    }
+
+    /**
+     * Carga los primeros vehículos y compacta el diario. Se ejecuta en otro
+     * proceso, para que la medida parta de un registro vacío.
+     */
+    private static void preparar(Path carpeta, int vehiculos, boolean directo)
+            throws IOException {
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        Taller.configurarAlmacen(directo);
+        Taller.configurarCompactacion(0);
+        Taller.abrirDiario(carpeta.resolve("taller.diario"));
+        cargar(carpeta.resolve("instantanea.csv"), 0, vehiculos);
+        Taller.compactar();
+        // La compactación se hace en otro hilo; cerrar el diario la espera
+        Taller.cerrarDiario();
+    }
+
+    /**
+     * Escribe un fichero CSV con los vehículos [desde, hasta) y lo importa.
+     */
+    private static void cargar(Path fichero, int desde, int hasta) throws IOException {
+        try (BufferedWriter escritor = Files.newBufferedWriter(fichero)) {
+            for (int i = desde; i < hasta; i++) {
+                escritor.write(Matricula.fromKey(i * SALTO).getNumero());
+                escritor.write(',');
+                escritor.write(MARCAS[i % MARCAS.length]);
+                escritor.write(",Modelo " + i % 100 + ",Rojo");
+                // Entre 0 y REPARACIONES_MAXIMAS reparaciones por vehículo
+                int numero = i % (Taller.REPARACIONES_MAXIMAS + 1);
+                for (int r = 0; r < numero; r++) {
+                    escritor.write(',');
+                    escritor.write(REPARACIONES[(i + r * 3) % REPARACIONES.length]);
+                }
+                escritor.newLine();
+            }
+        }
+        Intercambio.importar(fichero, Intercambio.Formato.CSV, error -> {
+        });
+        Files.delete(fichero);
+    }
+
+    /**
+     * Genera los informes con cada grupo de hilos.
+     */
+    private static void medir(int vehiculos, int repeticiones) throws InterruptedException {
+        AtomicBoolean informando = new AtomicBoolean();
+        AtomicBoolean terminado = new AtomicBoolean();
+        // Mayor espera de escritura con y sin un informe en curso
+        long[] mayorEspera = new long[2];
+        Thread escritor = new Thread(() -> {
+            int i = 0;
+            while (!terminado.get()) {
+                Matricula matricula = Matricula.fromKey((i++ % vehiculos) * SALTO);
+                long antes = System.nanoTime();
+                Taller.appendRepairIfRoom(matricula, "Revisión");
+                long espera = System.nanoTime() - antes;
+                int cual = informando.get() ? 0 : 1;
+                synchronized (mayorEspera) {
+                    mayorEspera[cual] = Math.max(mayorEspera[cual], espera);
+                }
+            }
+        }, "escritor");
+        escritor.setDaemon(true);
+        escritor.start();
+
+        double base = 0;
+        int procesadores = Runtime.getRuntime().availableProcessors();
+        for (int hilos = 1; hilos <= procesadores; hilos = hilos == procesadores
+                ? hilos + 1 : Math.min(hilos * 2, procesadores)) {
+            ForkJoinPool grupo = new ForkJoinPool(hilos);
+            // La primera vuelta calienta el código
+            long antes = System.nanoTime();
+            sumidero += Informe.generar(10, grupo).getReparaciones();
+            long informeMs = (System.nanoTime() - antes) / 1_000_000;
+            long mejor = Long.MAX_VALUE;
+            synchronized (mayorEspera) {
+                mayorEspera[0] = 0;
+                mayorEspera[1] = 0;
+            }
+            // El mismo tiempo sin informe, para comparar las esperas
+            Thread.sleep(1 + informeMs);
+            informando.set(true);
+            for (int r = 0; r < repeticiones; r++) {
+                antes = System.nanoTime();
+                Informe informe = Informe.generar(10, grupo);
+                mejor = Math.min(mejor, System.nanoTime() - antes);
+                sumidero += informe.getVehiculosConReparacionesLlenas();
+            }
+            informando.set(false);
+            grupo.shutdown();
+            if (hilos == 1) {
+                base = mejor;
+            }
+            synchronized (mayorEspera) {
+                System.out.printf(Locale.ROOT,
+                        "%2d hilos: %8.1f ms (%5.2fx), %6.1f Mvehículos/s,"
+                        + " mayor espera de escritura %.2f ms (sin informe %.2f ms) (%d)%n",
+                        hilos, mejor / 1e6, base / mejor, vehiculos / (mejor / 1e3),
+                        mayorEspera[0] / 1e6, mayorEspera[1] / 1e6, sumidero % 10);
+            }
+        }
+        terminado.set(true);
+        escritor.join();
+    }
+}
@@ -0,0 +1,163 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import taller.Orden;
+import taller.Resultado;
+import taller.Sede;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide si los listados del registro frenan a las modificaciones. Varios
+ * hilos escritores mandan durante un tiempo lotes que dan de alta un
+ * vehículo nuevo y de baja uno de los suyos; a la vez, varios hilos lectores
+ * escriben listados completos del registro por páginas (ver Sede.Listado).
+ * Que los listados salen coherentes se comprueba en
+ * test/taller/RegistroConcurrentePrueba.
+ *
+ * Para cada número de lectores se muestran las órdenes por segundo, la
+ * orden más lenta de los escritores y los listados por segundo.
+ *
+ * Se ejecuta con
+ * "ant benchmark -Dbench.class=benchmark.ListadoConcurrenteBenchmark".
+ *
+ * Uso: ListadoConcurrenteBenchmark [--vehiculos=100000] [--escritores=4]
+ * [--lectores=0,1,4] [--segundos=5]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class ListadoConcurrenteBenchmark {
+
+    private static final int VEHICULOS = 100_000;
+    private static final int ESCRITORES = 4;
+    private static final int[] LECTORES = {0, 1, 4};
+    private static final int SEGUNDOS = 5;
+    /**
+     * Vehículos de cada página de los listados, como en el menú.
+     */
+    private static final int PAGINA = 1_000;
+    /**
+     * Clave de la siguiente matrícula nueva que se da de alta.
+     */
+    private static final AtomicInteger NUEVA = new AtomicInteger();
+
+    /**
+     * @param args vehículos, escritores, lectores y duración.
+     * @throws InterruptedException si se interrumpe la espera de los hilos.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int vehiculos = VEHICULOS;
+        int escritores = ESCRITORES;
+        int[] lectores = LECTORES;
+        int segundos = SEGUNDOS;
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--escritores=")) {
+                escritores = Integer.parseInt(valor);
+            } else if (arg.startsWith("--lectores=")) {
+                lectores = Arrays.stream(valor.split(","))
+                        .mapToInt(l -> Integer.parseInt(l.strip())).toArray();
+            } else if (arg.startsWith("--segundos=")) {
+                segundos = Integer.parseInt(valor);
+            }
+        }
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        // Cada escritor da de baja los suyos por orden de alta
+        List<ArrayDeque<Integer>> propios = new ArrayList<>();
+        for (int h = 0; h < escritores; h++) {
+            propios.add(new ArrayDeque<>());
+        }
+        List<Orden> altas = new ArrayList<>();
+        for (int v = 0; v < vehiculos; v++) {
+            altas.add(Orden.alta(Matricula.fromKey(v), "Seat", "Ibiza", "Rojo"));
+            propios.get(v % escritores).add(v);
+            if (altas.size() == 1000 || v == vehiculos - 1) {
+                Taller.ejecutar(altas);
+                altas.clear();
+            }
+        }
+        System.out.printf(Locale.ROOT, "%,d vehículos, %d escritores, %d procesadores%n",
+                vehiculos, escritores, Runtime.getRuntime().availableProcessors());
+        System.out.printf(Locale.ROOT, "%8s %12s %14s %12s%n", "Lectores",
+                "Órdenes/s", "Orden máx. ms", "Listados/s");
+        NUEVA.set(vehiculos);
+        for (int n : lectores) {
+            probar(n, escritores, segundos, propios);
+        }
+    }
+
+    /**
+     * Hace la prueba con un número de lectores y muestra el resultado.
+     */
+    private static void probar(int lectores, int escritores, int segundos,
+            List<ArrayDeque<Integer>> propios)
+            throws InterruptedException {
+        AtomicLong ordenes = new AtomicLong();
+        AtomicLong maximo = new AtomicLong();
+        AtomicLong listados = new AtomicLong();
+        CountDownLatch fin = new CountDownLatch(escritores + lectores);
+        long inicio = System.nanoTime();
+        long limite = inicio + segundos * 1_000_000_000L;
+        for (int h = 0; h < escritores; h++) {
+            ArrayDeque<Integer> suyos = propios.get(h);
+            new Thread(() -> {
+                long hechas = 0;
+                long peor = 0;
+                while (System.nanoTime() < limite) {
+                    int nueva = NUEVA.getAndIncrement();
+                    int vieja = suyos.poll();
+                    long antes = System.nanoTime();
+                    Resultado[] resultados = Taller.ejecutar(List.of(
+                            Orden.alta(Matricula.fromKey(nueva), "Seat", "Leon", "Azul"),
+                            Orden.baja(Matricula.fromKey(vieja))));
+                    peor = Math.max(peor, System.nanoTime() - antes);
+                    if (resultados[0] != Resultado.REALIZADO
+                            || resultados[1] != Resultado.REALIZADO) {
+                        throw new IllegalStateException("Resultado inesperado: "
+                                + Arrays.toString(resultados));
+                    }
+                    suyos.add(nueva);
+                    hechas += 2;
+                }
+                ordenes.addAndGet(hechas);
+                maximo.accumulateAndGet(peor, Math::max);
+                fin.countDown();
+            }, "escritor-" + h).start();
+        }
+        for (int l = 0; l < lectores; l++) {
+            new Thread(() -> {
+                StringBuilder pagina = new StringBuilder();
+                while (System.nanoTime() < limite) {
+                    Sede.Listado listado = Taller.listar();
+                    boolean quedan = true;
+                    try {
+                        while (quedan) {
+                            pagina.setLength(0);
+                            quedan = listado.escribirPagina(pagina, PAGINA);
+                        }
+                    } catch (IOException e) {
+                        // Un StringBuilder no lanza IOException
+                        throw new IllegalStateException(e);
+                    }
+                    listados.incrementAndGet();
+                }
+                fin.countDown();
+            }, "lector-" + l).start();
+        }
+        fin.await();
+        double transcurridos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf(Locale.ROOT, "%8d %,12.0f %,14.2f %,12.1f%n", lectores,
+                ordenes.get() / transcurridos, maximo.get() / 1e6,
+                listados.get() / transcurridos);
+    }
+}
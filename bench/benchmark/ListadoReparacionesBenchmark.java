@@ -0,0 +1,77 @@
+package benchmark;
+
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Prueba de regresión del coste de mostrar un vehículo con sus reparaciones.
+ * Se mide Taller.toString() sobre el mismo vehículo mientras el registro
+ * crece: el tiempo por operación debe mantenerse estable, ya que el recuento
+ * de reparaciones ya no recorre el registro.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class ListadoReparacionesBenchmark {
+
+    /**
+     * Tamaños del registro en los que se mide.
+     */
+    private static final int[] TAMANOS = {5, 1_000, 100_000, 1_000_000};
+    /**
+     * Repeticiones de la operación en cada medida.
+     */
+    private static final int REPETICIONES = 200_000;
+
+    /**
+     * @param args no se usan.
+     */
+    public static void main(String[] args) {
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        Taller medido = registrar(0);
+        for (int i = 0; i < Taller.REPARACIONES_MAXIMAS; i++) {
+            medido.setReparacion("Reparación " + i);
+        }
+        int registrados = 1;
+        for (int tamano : TAMANOS) {
+            while (registrados < tamano) {
+                registrar(registrados++);
+            }
+            // Calentamiento y medida
+            consumir(medido, REPETICIONES);
+            long inicio = System.nanoTime();
+            long basura = consumir(medido, REPETICIONES);
+            long nanos = System.nanoTime() - inicio;
+            System.out.printf("registro=%,d vehículos: %.1f ns/op (%d)%n",
+                    tamano, (double) nanos / REPETICIONES, basura);
+        }
+    }
+
+    /**
+     * Agrega al registro un vehículo con una matrícula distinta para cada
+     * número.
+     *
+     * @param n Número del vehículo.
+     * @return El objeto Taller registrado.
+     */
+    private static Taller registrar(int n) {
+        Taller taller = new Taller();
+        taller.setVehiculo(Matricula.fromKey(n), "Seat", "Ibiza", "Rojo");
+        taller.addRegistro();
+        return taller;
+    }
+
+    /**
+     * Repite la operación medida.
+     *
+     * @param taller Vehículo a mostrar.
+     * @param veces Número de repeticiones.
+     * @return Suma de longitudes, para que el compilador no elimine el bucle.
+     */
+    private static long consumir(Taller taller, int veces) {
+        long total = 0;
+        for (int i = 0; i < veces; i++) {
+            total += taller.toString().length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,142 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import taller.Taller;
+import vehiculo.Diccionario;
+import vehiculo.Matricula;
+import vehiculo.Vehiculo;
+
+/**
+ * Mide cuánta memoria ocupa cada vehículo. Se ejecuta con
+ * "ant benchmark -Dbench.class=benchmark.MemoriaBenchmark".
+ *
+ * Se crean muchos vehículos con unos pocos cientos de marcas, modelos y
+ * colores distintos, cada uno con sus propias cadenas como si se hubieran
+ * leído de la consola, y se compara el montículo ocupado antes y después:
+ * <ul>
+ * <li>cadenas: un vehículo que guarda la matrícula y sus textos, como se
+ * hacía antes de usar Diccionario.</li>
+ * <li>diccionario: Vehiculo, que guarda solo la clave y los códigos.</li>
+ * <li>registro: el vehículo completo dentro del registro del taller, con su
+ * objeto Taller, una reparación y los índices. No se lista el registro, así
+ * que no se cuenta la foto para los listados (ver Registro), que solo se
+ * mantiene mientras se listan.</li>
+ * </ul>
+ *
+ * Uso: MemoriaBenchmark [--vehiculos=1000000]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class MemoriaBenchmark {
+
+    /**
+     * Vehículos que se crean por defecto.
+     */
+    private static final int VEHICULOS = 1_000_000;
+    /**
+     * Separación entre las claves de los vehículos, para que no sean
+     * consecutivas.
+     */
+    private static final int SALTO = 37;
+    /**
+     * Marcas, modelos y colores distintos.
+     */
+    private static final int MARCAS = 40;
+    private static final int MODELOS = 300;
+    private static final int COLORES = 12;
+
+    /**
+     * El vehículo tal como se guardaba antes: la matrícula y una cadena por
+     * atributo.
+     */
+    private record VehiculoConCadenas(Matricula matricula, String marca,
+            String modelo, String color) {
+    }
+
+    /**
+     * @param args número de vehículos.
+     */
+    public static void main(String[] args) {
+        int n = VEHICULOS;
+        for (String arg : args) {
+            if (arg.startsWith("--vehiculos=")) {
+                n = Integer.parseInt(arg.substring("--vehiculos=".length()).strip());
+            }
+        }
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        // Los diccionarios se llenan antes, como en un taller que ya lleva
+        // tiempo funcionando
+        for (int i = 0; i < MODELOS; i++) {
+            new Vehiculo(Matricula.fromKey(0), marca(i), modelo(i), color(i));
+        }
+
+        Object[] vehiculos = new Object[n];
+        long inicio = ocupado();
+        for (int i = 0; i < n; i++) {
+            vehiculos[i] = new VehiculoConCadenas(Matricula.fromKey(i * SALTO),
+                    marca(i), modelo(i), color(i));
+        }
+        double cadenas = (double) (ocupado() - inicio) / n;
+
+        vehiculos = new Object[n];
+        inicio = ocupado();
+        for (int i = 0; i < n; i++) {
+            vehiculos[i] = new Vehiculo(Matricula.fromKey(i * SALTO),
+                    marca(i), modelo(i), color(i));
+        }
+        double diccionario = (double) (ocupado() - inicio) / n;
+        vehiculos = null;
+
+        inicio = ocupado();
+        for (int i = 0; i < n; i++) {
+            Taller taller = new Taller();
+            taller.setVehiculo(Matricula.fromKey(i * SALTO),
+                    marca(i), modelo(i), color(i));
+            taller.setReparacion("Cambio de aceite");
+            taller.addRegistro();
+        }
+        double registro = (double) (ocupado() - inicio) / n;
+
+        System.out.printf(Locale.ROOT, "%-14s %,12d vehículos%n", "", n);
+        System.out.printf(Locale.ROOT, "%-14s %12.1f bytes/vehículo%n", "cadenas", cadenas);
+        System.out.printf(Locale.ROOT, "%-14s %12.1f bytes/vehículo%n", "diccionario", diccionario);
+        System.out.printf(Locale.ROOT, "%-14s %12.1f bytes/vehículo%n", "registro", registro);
+        System.out.printf(Locale.ROOT, "Textos distintos: %d marcas, %d modelos, %d colores%n",
+                Diccionario.MARCAS.tamano(), Diccionario.MODELOS.tamano(),
+                Diccionario.COLORES.tamano());
+    }
+
+    /**
+     * Montículo ocupado después de recoger la basura.
+     */
+    private static long ocupado() {
+        MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+        long anterior = Long.MAX_VALUE;
+        long actual = memoria.getHeapMemoryUsage().getUsed();
+        // Se repite hasta que una recolección ya no libera nada
+        for (int i = 0; i < 10 && actual < anterior; i++) {
+            System.gc();
+            anterior = actual;
+            actual = memoria.getHeapMemoryUsage().getUsed();
+        }
+        return actual;
+    }
+
+    /**
+     * Textos de un vehículo. Se crea una cadena nueva cada vez, como al
+     * leerla de la consola o de un fichero.
+     */
+    private static String marca(int i) {
+        return "Marca " + i % MARCAS;
+    }
+
+    private static String modelo(int i) {
+        return "Modelo " + i % MODELOS;
+    }
+
+    private static String color(int i) {
+        return "Color " + i % COLORES;
+    }
+}
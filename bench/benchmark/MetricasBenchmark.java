@@ -0,0 +1,177 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import taller.Metricas;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide lo que cuestan las métricas del taller (ver Metricas) en las
+ * operaciones del registro. Ejecuta una mezcla de operaciones parecida a la
+ * de un puesto del taller (validación de matrículas, búsquedas, reparaciones,
+ * altas y bajas) en rondas que alternan tres modos: sin métricas, contando
+ * las operaciones (lo que se hace por defecto) y midiendo además sus
+ * duraciones (ver Metricas.medirDuraciones()). Muestra el tiempo por
+ * operación de cada modo y lo que añaden los dos últimos.
+ *
+ * Con --hilos=N la mezcla se ejecuta desde N hilos a la vez. Se ejecuta con
+ * "ant benchmark -Dbench.class=benchmark.MetricasBenchmark".
+ *
+ * Uso: MetricasBenchmark [--vehiculos=100000] [--rondas=10] [--hilos=1]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class MetricasBenchmark {
+
+    /**
+     * Vehículos que se registran antes de empezar.
+     */
+    private static final int VEHICULOS = 100_000;
+    /**
+     * Rondas de cada modo. La primera de cada uno es de calentamiento.
+     */
+    private static final int RONDAS = 10;
+    /**
+     * Duración mínima de cada ronda.
+     */
+    private static final long NANOS_POR_RONDA = 500_000_000L;
+    /**
+     * Operaciones de cada pasada de la mezcla: 7 validaciones de matrícula,
+     * 6 búsquedas, 1 reparación, 1 alta y 1 baja.
+     */
+    private static final int OPERACIONES_POR_PASADA = 16;
+
+    /**
+     * Acumula los resultados de las operaciones para que el compilador no
+     * las elimine.
+     */
+    private static final AtomicLong SUMIDERO = new AtomicLong();
+
+    /**
+     * @param args vehículos, rondas e hilos.
+     * @throws InterruptedException si se interrumpe la espera de los hilos.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int vehiculos = VEHICULOS;
+        int rondas = RONDAS;
+        int hilos = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(arg.substring("--vehiculos=".length()).strip());
+            } else if (arg.startsWith("--rondas=")) {
+                rondas = Integer.parseInt(arg.substring("--rondas=".length()).strip());
+            } else if (arg.startsWith("--hilos=")) {
+                hilos = Integer.parseInt(arg.substring("--hilos=".length()).strip());
+            }
+        }
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        for (int i = 0; i < vehiculos; i++) {
+            Taller.addIfAbsent(Matricula.fromKey(i), "Seat", "Ibiza", "Rojo");
+        }
+        String[] textos = new String[1024];
+        for (int i = 0; i < textos.length; i++) {
+            textos[i] = Matricula.fromKey(i * 90_437 % vehiculos).getNumero();
+        }
+
+        // Por modo y ronda. El orden de los modos cambia en cada ronda, para
+        // que no favorezca a ninguno
+        double[][] tiempos = new double[3][rondas];
+        for (int r = -1; r < rondas; r++) {
+            for (int k = 0; k < 3; k++) {
+                int modo = Math.floorMod(r + k, 3);
+                Metricas.activar(modo > 0);
+                Metricas.medirDuraciones(modo == 2);
+                double tiempo = ronda(hilos, textos, vehiculos);
+                if (r >= 0) {
+                    tiempos[modo][r] = tiempo;
+                }
+            }
+            if (r >= 0) {
+                System.out.printf(Locale.ROOT, "Ronda %2d: sin métricas %,8.1f ns/op,"
+                        + " contando %,8.1f ns/op, midiendo duraciones %,8.1f ns/op%n",
+                        r + 1, tiempos[0][r], tiempos[1][r], tiempos[2][r]);
+            }
+        }
+        Metricas.activar(true);
+        Metricas.medirDuraciones(false);
+        double medianaSin = mediana(tiempos[0]);
+        double medianaContando = mediana(tiempos[1]);
+        double medianaMidiendo = mediana(tiempos[2]);
+        System.out.printf(Locale.ROOT, "%d hilos, %,d vehículos (mediana): sin métricas"
+                + " %,.1f ns/op, contando %,.1f ns/op (%+.1f %%), midiendo duraciones"
+                + " %,.1f ns/op (%+.1f %%)%n",
+                hilos, vehiculos, medianaSin,
+                medianaContando, (medianaContando - medianaSin) / medianaSin * 100,
+                medianaMidiendo, (medianaMidiendo - medianaSin) / medianaSin * 100);
+        System.out.println("(" + SUMIDERO.get() + ")");
+    }
+
+    /**
+     * Ejecuta la mezcla desde varios hilos durante NANOS_POR_RONDA.
+     *
+     * @return Nanosegundos por operación.
+     */
+    private static double ronda(int hilos, String[] textos, int vehiculos)
+            throws InterruptedException {
+        AtomicLong pasadas = new AtomicLong();
+        CountDownLatch fin = new CountDownLatch(hilos);
+        long inicio = System.nanoTime();
+        long limite = inicio + NANOS_POR_RONDA;
+        for (int h = 0; h < hilos; h++) {
+            int numero = h;
+            new Thread(() -> {
+                long propias = 0;
+                long acumulado = 0;
+                // Cada hilo da de alta y de baja sus propias matrículas,
+                // fuera de las registradas al principio
+                int nueva = vehiculos + numero;
+                int i = numero;
+                while (System.nanoTime() < limite) {
+                    for (int k = 0; k < 64; k++, i++) {
+                        acumulado += pasada(textos, i, Matricula.fromKey(nueva));
+                    }
+                    propias += 64;
+                }
+                pasadas.addAndGet(propias);
+                SUMIDERO.addAndGet(acumulado);
+                fin.countDown();
+            }, "mezcla-" + h).start();
+        }
+        fin.await();
+        long nanos = System.nanoTime() - inicio;
+        return (double) nanos * hilos / (pasadas.get() * OPERACIONES_POR_PASADA);
+    }
+
+    /**
+     * Una pasada de la mezcla de operaciones.
+     */
+    private static long pasada(String[] textos, int i, Matricula nueva) {
+        long acumulado = 0;
+        for (int k = 0; k < 6; k++) {
+            Matricula matricula = Metricas.matricula(textos[(i * 6 + k) & (textos.length - 1)]);
+            Taller taller = Taller.buscarEnRegistroPorMatricula(matricula);
+            acumulado += taller == null ? 0 : 1;
+        }
+        Matricula reparado = Metricas.matricula(textos[i & (textos.length - 1)]);
+        acumulado += Taller.appendRepairIfRoom(reparado, "Revisión").ordinal();
+        acumulado += Taller.addIfAbsent(nueva, "Seat", "Ibiza", "Rojo").ordinal();
+        acumulado += Taller.removeVehiculo(nueva) ? 1 : 0;
+        return acumulado;
+    }
+
+    /**
+     * Mediana de las rondas, que no se deja llevar por una ronda con una
+     * recolección de basura o una recompilación.
+     */
+    private static double mediana(double[] valores) {
+        double[] ordenados = valores.clone();
+        Arrays.sort(ordenados);
+        int n = ordenados.length;
+        return n % 2 == 1
+                ? ordenados[n / 2]
+                : (ordenados[n / 2 - 1] + ordenados[n / 2]) / 2;
+    }
+}
@@ -0,0 +1,206 @@
+package benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide las pausas del recolector de basura con el registro en el montículo y
+ * con el almacén fuera de él (ver Taller.configurarAlmacen()). Se ejecuta
+ * con "ant benchmark -Dbench.class=benchmark.PausasBenchmark".
+ *
+ * Sin la opción --almacen se lanza una JVM para cada almacén, con las mismas
+ * opciones que esta, y se muestran los dos resultados. En cada una se
+ * registran los vehículos y después, durante un tiempo, se hace una mezcla de
+ * consultas, reparaciones, altas y bajas que genera basura, anotando cada
+ * pausa del recolector. Al final se mide también una recolección completa.
+ *
+ * Las pausas dependen mucho del tamaño del montículo y de su generación
+ * joven, así que conviene fijarlos, por ejemplo con
+ * -Dbench.jvmargs="-Xmx1g -Xmn64m".
+ *
+ * Uso: PausasBenchmark [--vehiculos=2000000] [--segundos=10]
+ * [--almacen=monticulo|directo]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class PausasBenchmark {
+
+    /**
+     * Vehículos que se registran por defecto.
+     */
+    private static final int VEHICULOS = 2_000_000;
+    /**
+     * Duración por defecto de la fase con carga.
+     */
+    private static final int SEGUNDOS = 10;
+    /**
+     * Separación entre las claves de los vehículos, para que no sean
+     * consecutivas.
+     */
+    private static final int SALTO = 37;
+    /**
+     * Marcas, modelos y colores de los vehículos.
+     */
+    private static final String[] MARCAS = {"Seat", "Renault", "Peugeot",
+        "Citroën", "Ford", "Opel", "Toyota", "Kia", "Hyundai", "Dacia"};
+    private static final String[] COLORES = {"Rojo", "Azul", "Negro",
+        "Blanco", "Gris", "Plata", "Verde", "Amarillo", "Granate", "Naranja"};
+
+    /**
+     * Duración en milisegundos de cada pausa anotada.
+     */
+    private static final List<Long> PAUSAS = new ArrayList<>();
+    /**
+     * Acumula los resultados de las operaciones para que el compilador no
+     * las elimine.
+     */
+    private static long sumidero;
+
+    /**
+     * @param args número de vehículos, duración y almacén.
+     * @throws IOException si no se puede lanzar una de las JVM.
+     * @throws InterruptedException si se interrumpe la espera.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int vehiculos = VEHICULOS;
+        int segundos = SEGUNDOS;
+        String almacen = null;
+        for (String arg : args) {
+            if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(arg.substring("--vehiculos=".length()).strip());
+            } else if (arg.startsWith("--segundos=")) {
+                segundos = Integer.parseInt(arg.substring("--segundos=".length()).strip());
+            } else if (arg.startsWith("--almacen=")) {
+                almacen = arg.substring("--almacen=".length()).strip();
+            }
+        }
+        if (almacen == null) {
+            for (String cada : new String[]{"monticulo", "directo"}) {
+                lanzar(cada, args);
+            }
+        } else {
+            medir(almacen.equals("directo"), vehiculos, segundos);
+        }
+    }
+
+    /**
+     * Repite la prueba en otra JVM con un almacén concreto.
+     */
+    private static void lanzar(String almacen, String[] args)
+            throws IOException, InterruptedException {
+        List<String> orden = new ArrayList<>();
+        orden.add(ProcessHandle.current().info().command().orElse("java"));
+        orden.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        orden.add("-cp");
+        orden.add(System.getProperty("java.class.path"));
+        orden.add(PausasBenchmark.class.getName());
+        orden.addAll(Arrays.asList(args));
+        orden.add("--almacen=" + almacen);
+        int salida = new ProcessBuilder(orden).inheritIO().start().waitFor();
+        if (salida != 0) {
+            System.out.println("La prueba con almacén " + almacen
+                    + " ha terminado con el código " + salida);
+        }
+    }
+
+    /**
+     * Hace la prueba con un almacén.
+     */
+    private static void medir(boolean directo, int vehiculos, int segundos) {
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        Taller.configurarAlmacen(directo);
+        for (int i = 0; i < vehiculos; i++) {
+            Taller.addIfAbsent(Matricula.fromKey(i * SALTO), MARCAS[i % MARCAS.length],
+                    "Modelo " + i % 100, COLORES[i % COLORES.length]);
+            Taller.appendRepairIfRoom(Matricula.fromKey(i * SALTO), "Cambio de aceite");
+        }
+        System.gc();
+        escucharPausas();
+
+        SplittableRandom azar = new SplittableRandom(42);
+        long fin = System.nanoTime() + segundos * 1_000_000_000L;
+        long operaciones = 0;
+        while (System.nanoTime() < fin) {
+            for (int i = 0; i < 1000; i++, operaciones++) {
+                Matricula matricula = Matricula.fromKey(azar.nextInt(vehiculos) * SALTO);
+                switch (azar.nextInt(4)) {
+                    case 0, 1 -> {
+                        Taller taller = Taller.buscarEnRegistroPorMatricula(matricula);
+                        sumidero += taller == null ? 0 : taller.getNumeroDeReparaciones();
+                    }
+                    case 2 ->
+                        sumidero += Taller.appendRepairIfRoom(matricula, "Revisión").ordinal();
+                    default -> {
+                        // Se da de baja y se vuelve a dar de alta
+                        Taller.removeVehiculo(matricula);
+                        Taller.addIfAbsent(matricula, "Seat", "Ibiza", "Rojo");
+                    }
+                }
+            }
+        }
+        List<Long> conCarga;
+        synchronized (PAUSAS) {
+            conCarga = new ArrayList<>(PAUSAS);
+        }
+        long antes = System.nanoTime();
+        System.gc();
+        long completa = (System.nanoTime() - antes) / 1_000_000;
+
+        long total = 0;
+        long maxima = 0;
+        for (long pausa : conCarga) {
+            total += pausa;
+            maxima = Math.max(maxima, pausa);
+        }
+        long directos = 0;
+        for (BufferPoolMXBean buffer
+                : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (buffer.getName().equals("direct")) {
+                directos = buffer.getMemoryUsed();
+            }
+        }
+        long monticulo = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf(Locale.ROOT, """
+                Almacén %s: %,d vehículos, %,d operaciones en %d s (%d)
+                  Pausas con carga: %d, en total %d ms, la mayor %d ms
+                  Recolección completa: %d ms
+                  Montículo ocupado: %,d MB; fuera del montículo: %,d MB
+                """, directo ? "directo" : "monticulo", vehiculos, operaciones,
+                segundos, sumidero % 10, conCarga.size(), total, maxima, completa,
+                monticulo >> 20, directos >> 20);
+    }
+
+    /**
+     * Anota la duración de cada recolección que se haga a partir de ahora.
+     */
+    private static void escucharPausas() {
+        for (GarbageCollectorMXBean recolector
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) recolector).addNotificationListener((aviso, contexto) -> {
+                if (aviso.getType().equals(
+                        GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                            .from((CompositeData) aviso.getUserData());
+                    // Los ciclos concurrentes no detienen la aplicación
+                    if (!info.getGcName().contains("Concurrent")) {
+                        synchronized (PAUSAS) {
+                            PAUSAS.add(info.getGcInfo().getDuration());
+                        }
+                    }
+                }
+            }, null, null);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import taller.Filtro;
+import taller.Taller;
+import vehiculo.Matricula;
+import vehiculo.PatronMatricula;
+
+/**
+ * Conjunto de pruebas de rendimiento de las operaciones del registro, para
+ * detectar regresiones entre versiones. Se ejecuta con "ant benchmark".
+ *
+ * Cada prueba se mide a varios tamaños del registro (por defecto 5, 1.000,
+ * 100.000 y 1.000.000 vehículos): unas iteraciones de calentamiento y después
+ * varias iteraciones medidas de al menos medio segundo cada una. Se informa
+ * del tiempo medio por operación con su error al 99,9 %, y los resultados se
+ * guardan en un fichero JSON con la misma estructura que los de JMH, de
+ * forma que se pueden comparar con las mismas herramientas.
+ *
+ * Uso: RegistroBenchmark [fichero.json] [--tamanos=5,1000,...]
+ * [--filtro=texto]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class RegistroBenchmark {
+
+    /**
+     * Tamaños del registro por defecto.
+     */
+    private static final int[] TAMANOS = {5, 1_000, 100_000, 1_000_000};
+    /**
+     * Iteraciones de calentamiento de cada prueba.
+     */
+    private static final int CALENTAMIENTO = 3;
+    /**
+     * Iteraciones medidas de cada prueba.
+     */
+    private static final int ITERACIONES = 5;
+    /**
+     * Duración mínima de cada iteración.
+     */
+    private static final long NANOS_POR_ITERACION = 500_000_000L;
+    /**
+     * Operaciones por iteración de las pruebas que cambian el tamaño del
+     * registro, que se deshacen entre iteraciones.
+     */
+    private static final int OPERACIONES_CON_CAMBIOS = 10_000;
+    /**
+     * Separación entre las claves de los vehículos registrados, para que no
+     * sean consecutivas.
+     */
+    private static final int SALTO = 37;
+    /**
+     * Valor del 99,95 % de la normal, para el error al 99,9 %.
+     */
+    private static final double Z = 3.29;
+    /**
+     * Marcas y colores de los vehículos registrados. Los modelos son "Modelo
+     * 0" a "Modelo 99", de forma que cada combinación de marca, modelo y
+     * color tiene una milésima parte del registro.
+     */
+    private static final String[] MARCAS = {"Seat", "Renault", "Peugeot",
+        "Citroën", "Ford", "Opel", "Toyota", "Kia", "Hyundai", "Dacia"};
+    private static final String[] COLORES = {"Rojo", "Azul", "Negro",
+        "Blanco", "Gris", "Plata", "Verde", "Amarillo", "Granate", "Naranja"};
+    /**
+     * Tipos de las reparaciones que se anotan en el historial.
+     */
+    private static final String[] TIPOS = {"Cambio de aceite", "Frenos",
+        "Neumáticos", "Embrague", "Revisión", "Batería", "Escape", "Luces"};
+
+    /**
+     * Acumula los resultados de las operaciones para que el compilador no
+     * las elimine.
+     */
+    private static long sumidero;
+    /**
+     * Destino que descarta lo que se escribe, para medir el listado sin
+     * contar el coste de la consola o del disco.
+     */
+    private static final Writer NULO = Writer.nullWriter();
+
+    /**
+     * Una operación medida.
+     */
+    private interface Operacion {
+
+        /**
+         * Ejecuta la operación una vez.
+         *
+         * @param i Número de la operación dentro de la iteración.
+         * @return Un valor que depende del resultado.
+         */
+        long ejecutar(int i);
+    }
+
+    /**
+     * Algo que se hace antes o después de cada iteración, sin medirlo.
+     */
+    private interface Preparacion {
+
+        /**
+         * Hace la preparación.
+         */
+        void hacer();
+    }
+
+    /**
+     * Resultado de una prueba.
+     */
+    private record Medida(String prueba, int tamano, double[] nanosPorOperacion) {
+
+        double media() {
+            double suma = 0;
+            for (double v : nanosPorOperacion) {
+                suma += v;
+            }
+            return suma / nanosPorOperacion.length;
+        }
+
+        double error() {
+            double media = media();
+            double suma = 0;
+            for (double v : nanosPorOperacion) {
+                suma += (v - media) * (v - media);
+            }
+            int n = nanosPorOperacion.length;
+            return n < 2
+                    ? Double.NaN
+                    : Z * Math.sqrt(suma / (n - 1)) / Math.sqrt(n);
+        }
+    }
+
+    /**
+     * @param args fichero de resultados, tamaños y filtro de pruebas.
+     * @throws IOException si no se pueden escribir los resultados.
+     */
+    public static void main(String[] args) throws IOException {
+        Path resultados = Path.of("resultados.json");
+        int[] tamanos = TAMANOS;
+        String filtro = "";
+        for (String arg : args) {
+            if (arg.startsWith("--tamanos=")) {
+                String[] partes = arg.substring("--tamanos=".length()).split(",");
+                tamanos = new int[partes.length];
+                for (int i = 0; i < partes.length; i++) {
+                    tamanos[i] = Integer.parseInt(partes[i].strip());
+                }
+            } else if (arg.startsWith("--filtro=")) {
+                filtro = arg.substring("--filtro=".length());
+            } else {
+                resultados = Path.of(arg);
+            }
+        }
+
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        List<Medida> medidas = new ArrayList<>();
+
+        // Las matrículas no dependen del tamaño del registro
+        String[] textos = new String[1024];
+        for (int i = 0; i < textos.length; i++) {
+            textos[i] = Matricula.fromKey(i * 90_437 % Matricula.CLAVES_POSIBLES)
+                    .getNumero();
+        }
+        String[] erroneas = {"1234ABC", "12345BC", "1234BC", "ABCD123", "1234bcd"};
+        medir(medidas, filtro, "matricula.valida", 0, null, null, 0,
+                i -> new Matricula(textos[i & (textos.length - 1)]).toKey());
+        medir(medidas, filtro, "matricula.noValida", 0, null, null, 0, i -> {
+            try {
+                return new Matricula(erroneas[i % erroneas.length]).toKey();
+            } catch (IllegalArgumentException e) {
+                return 1;
+            }
+        });
+        medir(medidas, filtro, "matricula.fromKey", 0, null, null, 0,
+                i -> Matricula.fromKey(Math.floorMod(i * SALTO, Matricula.CLAVES_POSIBLES))
+                        .getNumero().length());
+
+        int registrados = 0;
+        for (int tamano : tamanos) {
+            while (registrados < tamano) {
+                registrar(registrados++);
+            }
+            int n = tamano;
+            Taller medido = Taller.buscarEnRegistroPorMatricula(Matricula.fromKey(0));
+            Matricula[] presentes = new Matricula[Math.min(n, 1 << 16)];
+            for (int i = 0; i < presentes.length; i++) {
+                int registrado = (int) ((long) i * n / presentes.length);
+                presentes[i] = Matricula.fromKey(registrado * SALTO);
+            }
+            // Matrículas que no están en el registro, para las pruebas que
+            // agregan y quitan vehículos
+            Matricula[] nuevas = new Matricula[OPERACIONES_CON_CAMBIOS];
+            for (int i = 0; i < nuevas.length; i++) {
+                nuevas[i] = Matricula.fromKey((n + i) * SALTO);
+            }
+
+            medir(medidas, filtro, "buscarEnRegistroPorMatricula", n,
+                    null, null, 0,
+                    i -> Taller.buscarEnRegistroPorMatricula(presentes[
+                            i % presentes.length]).getNumeroDeReparaciones());
+            medir(medidas, filtro, "buscarEnRegistroPorMatricula.ausente", n,
+                    null, null, 0,
+                    i -> Taller.buscarEnRegistroPorMatricula(
+                            nuevas[i % nuevas.length]) == null ? 1 : 0);
+            medir(medidas, filtro, "addRegistro", n,
+                    null,
+                    () -> quitar(nuevas),
+                    OPERACIONES_CON_CAMBIOS, i -> {
+                        Taller taller = new Taller();
+                        taller.setVehiculo(nuevas[i], "Seat", "Ibiza", "Rojo");
+                        return taller.addRegistro() ? 1 : 0;
+                    });
+            medir(medidas, filtro, "removeVehiculo", n,
+                    () -> agregar(nuevas),
+                    null,
+                    OPERACIONES_CON_CAMBIOS,
+                    i -> Taller.removeVehiculo(nuevas[i]) ? 1 : 0);
+            // El historial no se puede vaciar entre iteraciones, así que se
+            // hace un número fijo de operaciones para que no crezca sin fin
+            medir(medidas, filtro, "registrarReparacion", n, null, null,
+                    OPERACIONES_CON_CAMBIOS,
+                    i -> Taller.registrarReparacion(presentes[i % presentes.length],
+                            TIPOS[i % TIPOS.length], 4990).ordinal());
+            medir(medidas, filtro, "totalesPorTipo", n, null, null, 0,
+                    i -> Taller.totalesPorTipo().size());
+            medir(medidas, filtro, "historialDe", n, null, null, 0,
+                    i -> Taller.historialDe(presentes[i % presentes.length]).size());
+            medir(medidas, filtro, "toString", n, null, null, 0,
+                    i -> medido.toString().length());
+            medir(medidas, filtro, "registroTallerToString", n, null, null, 0,
+                    i -> medido.registroTallerToString().length());
+            // Vehículos número 7, 107, 207...: marca Toyota, modelo 7 y color
+            // Verde, o modelo 8 y color Granate
+            Filtro consulta = Filtro.marca("Toyota").y(Filtro.modelo("Modelo 7")
+                    .y(Filtro.color("Verde")).o(Filtro.color("Granate")));
+            medir(medidas, filtro, "contarEnRegistro", n, null, null, 0,
+                    i -> Taller.contarEnRegistro(consulta));
+            medir(medidas, filtro, "buscarEnRegistroPorFiltro", n, null, null, 0,
+                    i -> Taller.buscarEnRegistroPorFiltro(consulta).size());
+            // Por el principio, por el final y con huecos, hasta 1.000
+            // vehículos como en el menú
+            PatronMatricula[] patrones = {new PatronMatricula("01*"),
+                new PatronMatricula("*BCD"), new PatronMatricula("0??1B?D")};
+            for (PatronMatricula patron : patrones) {
+                medir(medidas, filtro, "buscarEnRegistroPorPatron." + patron, n,
+                        null, null, 0,
+                        i -> Taller.buscarEnRegistroPorPatron(patron, 1_000).size());
+            }
+            medir(medidas, filtro, "escribirRegistro", n, null, null, 0, i -> {
+                try {
+                    Taller.escribirRegistro(NULO);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return 1;
+            });
+        }
+
+        escribirJson(resultados, medidas);
+        System.out.println("Resultados en " + resultados.toAbsolutePath()
+                + " (" + sumidero + ")");
+    }
+
+    /**
+     * Mide una operación e imprime el resultado.
+     *
+     * @param medidas Lista donde se guarda el resultado.
+     * @param filtro Solo se mide si el nombre contiene este texto.
+     * @param prueba Nombre de la prueba.
+     * @param tamano Tamaño del registro, o 0 si no influye.
+     * @param antes Se hace antes de cada iteración sin medirlo, o "null".
+     * @param despues Se hace después de cada iteración sin medirlo, o "null".
+     * @param operaciones Operaciones por iteración, o 0 para repetir la
+     * operación hasta que pase NANOS_POR_ITERACION.
+     * @param operacion La operación.
+     */
+    private static void medir(List<Medida> medidas, String filtro, String prueba,
+            int tamano, Preparacion antes, Preparacion despues, int operaciones,
+            Operacion operacion) {
+        if (!prueba.contains(filtro)) {
+            return;
+        }
+        double[] resultados = new double[ITERACIONES];
+        for (int it = -CALENTAMIENTO; it < ITERACIONES; it++) {
+            if (antes != null) {
+                antes.hacer();
+            }
+            long acumulado = 0;
+            long hechas = 0;
+            long inicio = System.nanoTime();
+            long nanos;
+            if (operaciones > 0) {
+                for (int i = 0; i < operaciones; i++) {
+                    acumulado += operacion.ejecutar(i);
+                }
+                hechas = operaciones;
+                nanos = System.nanoTime() - inicio;
+            } else {
+                // Se comprueba el reloj cada cierto número de operaciones,
+                // que se duplica mientras la tanda dure menos de 1 ms
+                int tanda = 1;
+                do {
+                    long inicioTanda = System.nanoTime();
+                    for (int i = 0; i < tanda; i++) {
+                        acumulado += operacion.ejecutar((int) (hechas + i) & Integer.MAX_VALUE);
+                    }
+                    hechas += tanda;
+                    if (System.nanoTime() - inicioTanda < 1_000_000
+                            && tanda < (1 << 20)) {
+                        tanda *= 2;
+                    }
+                    nanos = System.nanoTime() - inicio;
+                } while (nanos < NANOS_POR_ITERACION);
+            }
+            sumidero += acumulado;
+            if (despues != null) {
+                despues.hacer();
+            }
+            if (it >= 0) {
+                resultados[it] = (double) nanos / hechas;
+            }
+        }
+        Medida medida = new Medida(prueba, tamano, resultados);
+        medidas.add(medida);
+        System.out.printf(Locale.ROOT, "%-40s %10s %,16.1f ± %,.1f ns/op%n",
+                prueba, tamano == 0 ? "-" : String.format("%,d", tamano),
+                medida.media(), medida.error());
+    }
+
+    /**
+     * Guarda los resultados en formato JSON de JMH (modo "avgt").
+     *
+     * @param fichero Ruta del fichero.
+     * @param medidas Resultados.
+     * @throws IOException si no se puede escribir.
+     */
+    private static void escribirJson(Path fichero, List<Medida> medidas)
+            throws IOException {
+        Path carpeta = fichero.toAbsolutePath().getParent();
+        if (carpeta != null) {
+            Files.createDirectories(carpeta);
+        }
+        try (Writer w = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+            w.write("[\n");
+            for (int m = 0; m < medidas.size(); m++) {
+                Medida medida = medidas.get(m);
+                w.write("  {\n");
+                w.write("    \"benchmark\": \"benchmark.RegistroBenchmark."
+                        + medida.prueba() + "\",\n");
+                w.write("    \"mode\": \"avgt\",\n");
+                w.write("    \"warmupIterations\": " + CALENTAMIENTO + ",\n");
+                w.write("    \"measurementIterations\": " + ITERACIONES + ",\n");
+                w.write("    \"params\": {\"tamano\": \"" + medida.tamano() + "\"},\n");
+                w.write("    \"primaryMetric\": {\n");
+                w.write("      \"score\": " + numero(medida.media()) + ",\n");
+                w.write("      \"scoreError\": " + numero(medida.error()) + ",\n");
+                w.write("      \"scoreUnit\": \"ns/op\",\n");
+                w.write("      \"rawData\": [[");
+                double[] datos = medida.nanosPorOperacion();
+                for (int i = 0; i < datos.length; i++) {
+                    w.write((i > 0 ? ", " : "") + numero(datos[i]));
+                }
+                w.write("]]\n");
+                w.write("    }\n");
+                w.write(m < medidas.size() - 1 ? "  },\n" : "  }\n");
+            }
+            w.write("]\n");
+        }
+    }
+
+    /**
+     * Formatea un número para JSON, que no admite NaN.
+     */
+    private static String numero(double valor) {
+        return Double.isNaN(valor)
+                ? "\"NaN\""
+                : String.format(Locale.ROOT, "%.3f", valor);
+    }
+
+    /**
+     * Agrega al registro el vehículo de número n, con una reparación.
+     *
+     * @param n Número del vehículo.
+     */
+    private static void registrar(int n) {
+        Taller taller = new Taller();
+        taller.setVehiculo(Matricula.fromKey(n * SALTO), MARCAS[n % MARCAS.length],
+                "Modelo " + n % 100, COLORES[n % COLORES.length]);
+        taller.setReparacion("Cambio de aceite");
+        taller.addRegistro();
+    }
+
+    /**
+     * Agrega vehículos al registro.
+     */
+    private static void agregar(Matricula[] matriculas) {
+        for (Matricula m : matriculas) {
+            Taller.addIfAbsent(m, "Seat", "Ibiza", "Rojo");
+        }
+    }
+
+    /**
+     * Quita vehículos del registro.
+     */
+    private static void quitar(Matricula[] matriculas) {
+        for (Matricula m : matriculas) {
+            Taller.removeVehiculo(m);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.util.Locale;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide el registro con muchos hilos a la vez. Cada hilo intenta registrar
+ * las mismas matrículas y agregarles reparaciones y, después, dar de baja la
+ * mitad. Se muestran las operaciones por segundo de cada fase.
+ *
+ * Que no se pierda ninguna actualización lo comprueba
+ * test/taller/RegistroConcurrentePrueba, con "ant pruebas".
+ *
+ * Se ejecuta con
+ * "ant benchmark -Dbench.class=benchmark.RegistroConcurrenteBenchmark".
+ *
+ * Uso: RegistroConcurrenteBenchmark [--hilos=16] [--matriculas=50000]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class RegistroConcurrenteBenchmark {
+
+    private static final int HILOS = 16;
+    private static final int MATRICULAS = 50_000;
+    /**
+     * Reparaciones que admite cada vehículo en la prueba.
+     */
+    private static final int REPARACIONES = 3;
+
+    /**
+     * @param args hilos y matrículas.
+     * @throws InterruptedException si se interrumpe la espera de los hilos.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int hilos = HILOS;
+        int matriculas = MATRICULAS;
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--hilos=")) {
+                hilos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--matriculas=")) {
+                matriculas = Integer.parseInt(valor);
+            }
+        }
+        Taller.configurarCapacidad(Taller.SIN_LIMITE, REPARACIONES);
+        int total = matriculas;
+        long[] marcas = new long[3];
+        CountDownLatch salida = new CountDownLatch(1);
+        // La acción de la barrera anota el instante en que todos han
+        // terminado las altas
+        CyclicBarrier cambioDeFase = new CyclicBarrier(hilos,
+                () -> marcas[1] = System.nanoTime());
+        CountDownLatch fin = new CountDownLatch(hilos);
+        for (int h = 0; h < hilos; h++) {
+            int desplazamiento = h * 7919;
+            new Thread(() -> {
+                try {
+                    salida.await();
+                    for (int i = 0; i < total; i++) {
+                        Matricula m = Matricula.fromKey((i + desplazamiento) % total);
+                        Taller.addIfAbsent(m, "Seat", "Ibiza", "Rojo");
+                        Taller.appendRepairIfRoom(m, "Frenos");
+                    }
+                    cambioDeFase.await();
+                    for (int i = 0; i < total; i += 2) {
+                        Matricula m = Matricula.fromKey(i);
+                        Taller.buscarEnRegistroPorMatricula(m);
+                        Taller.removeVehiculo(m);
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    fin.countDown();
+                }
+            }).start();
+        }
+        marcas[0] = System.nanoTime();
+        salida.countDown();
+        fin.await();
+        marcas[2] = System.nanoTime();
+
+        System.out.printf(Locale.ROOT, "%d hilos, %,d matrículas, %d procesadores%n",
+                hilos, matriculas, Runtime.getRuntime().availableProcessors());
+        System.out.printf(Locale.ROOT, "Altas y reparaciones: %,.0f operaciones/s%n",
+                2.0 * hilos * matriculas / ((marcas[1] - marcas[0]) / 1e9));
+        System.out.printf(Locale.ROOT, "Búsquedas y bajas:    %,.0f operaciones/s%n",
+                2.0 * hilos * ((matriculas + 1) / 2) / ((marcas[2] - marcas[1]) / 1e9));
+    }
+}
@@ -0,0 +1,187 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import taller.Orden;
+import taller.Reparto;
+import taller.Resultado;
+import taller.Sede;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Mide cuántas modificaciones por segundo admite el taller repartido entre
+ * varias sedes (ver Reparto). Con cada número de sedes, varios hilos
+ * clientes mandan durante un tiempo lotes de órdenes (alta, reparación y
+ * baja de sus propias matrículas) y se muestran las órdenes por segundo.
+ * Con una sola sede todas las escrituras pasan por el mismo cerrojo; con
+ * más, cada sede aplica las suyas en su hilo a la vez que las demás.
+ *
+ * Con --diario=carpeta cada sede guarda sus cambios en su propio diario en
+ * esa carpeta, y cada sede confirma sus lotes con sus propias escrituras en
+ * el disco. Al terminar cada prueba se agrega una sede más y se muestra
+ * cuántos vehículos se han trasladado y cuánto ha tardado.
+ *
+ * Se ejecuta con "ant benchmark -Dbench.class=benchmark.RepartoBenchmark".
+ *
+ * Uso: RepartoBenchmark [--sedes=1,2,4,8] [--hilos=16] [--lote=15]
+ * [--vehiculos=100000] [--segundos=5] [--diario=carpeta]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class RepartoBenchmark {
+
+    private static final int[] SEDES = {1, 2, 4, 8};
+    private static final int HILOS = 16;
+    /**
+     * Órdenes de cada lote. Es múltiplo de 3: alta, reparación y baja.
+     */
+    private static final int LOTE = 15;
+    /**
+     * Vehículos que se registran antes de empezar y que se quedan.
+     */
+    private static final int VEHICULOS = 100_000;
+    private static final int SEGUNDOS = 5;
+
+    /**
+     * @param args sedes, hilos, lote, vehículos, duración y carpeta.
+     * @throws Exception si falla algún diario o se interrumpe la espera.
+     */
+    public static void main(String[] args) throws Exception {
+        int[] sedes = SEDES;
+        int hilos = HILOS;
+        int lote = LOTE;
+        int vehiculos = VEHICULOS;
+        int segundos = SEGUNDOS;
+        Path carpeta = null;
+        for (String arg : args) {
+            String valor = arg.substring(arg.indexOf('=') + 1).strip();
+            if (arg.startsWith("--sedes=")) {
+                sedes = Arrays.stream(valor.split(","))
+                        .mapToInt(s -> Integer.parseInt(s.strip())).toArray();
+            } else if (arg.startsWith("--hilos=")) {
+                hilos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--lote=")) {
+                lote = Math.max(3, Integer.parseInt(valor) / 3 * 3);
+            } else if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--segundos=")) {
+                segundos = Integer.parseInt(valor);
+            } else if (arg.startsWith("--diario=")) {
+                carpeta = Path.of(valor);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d hilos, lotes de %d órdenes, %,d vehículos,"
+                + " %d procesadores%s%n", hilos, lote, vehiculos,
+                Runtime.getRuntime().availableProcessors(),
+                carpeta == null ? "" : ", con diario");
+        System.out.printf(Locale.ROOT, "%5s %12s %16s %20s%n", "Sedes", "Órdenes/s",
+                "Vehículos/sede", "Al agregar una sede");
+        for (int n : sedes) {
+            probar(n, hilos, lote, vehiculos, segundos, carpeta);
+        }
+    }
+
+    /**
+     * Hace la prueba con un número de sedes y muestra el resultado.
+     */
+    private static void probar(int n, int hilos, int lote, int vehiculos,
+            int segundos, Path carpeta) throws IOException, InterruptedException {
+        List<Sede> sedes = new ArrayList<>();
+        for (int i = 0; i <= n; i++) {
+            sedes.add(crear("s" + n + "-" + i, carpeta));
+        }
+        try (Reparto reparto = new Reparto(sedes.subList(0, n))) {
+            List<Orden> altas = new ArrayList<>();
+            for (int v = 0; v < vehiculos; v++) {
+                altas.add(Orden.alta(Matricula.fromKey(v), "Seat", "Ibiza", "Rojo"));
+                if (altas.size() == 1000 || v == vehiculos - 1) {
+                    reparto.ejecutar(altas);
+                    altas.clear();
+                }
+            }
+            // Una pasada corta para que el compilador optimice antes de medir
+            medir(reparto, hilos, lote, vehiculos, 1);
+            double porSegundo = medir(reparto, hilos, lote, vehiculos, segundos);
+            int[] porSede = reparto.getVehiculosPorSede();
+            String equilibrio = Arrays.stream(porSede).min().getAsInt() + "-"
+                    + Arrays.stream(porSede).max().getAsInt();
+
+            long inicio = System.nanoTime();
+            int trasladados = reparto.agregarSede(sedes.get(n));
+            double milisegundos = (System.nanoTime() - inicio) / 1e6;
+            System.out.printf(Locale.ROOT, "%5d %,12.0f %16s %,9d en %,.0f ms%n",
+                    n, porSegundo, equilibrio, trasladados, milisegundos);
+        } finally {
+            for (Sede sede : sedes) {
+                sede.cerrarDiario();
+            }
+        }
+    }
+
+    /**
+     * Crea una sede sin límite de vehículos y, si hay carpeta, con un diario
+     * vacío.
+     */
+    private static Sede crear(String nombre, Path carpeta) throws IOException {
+        Sede sede = new Sede(nombre);
+        sede.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+        if (carpeta != null) {
+            Files.createDirectories(carpeta);
+            Path diario = carpeta.resolve(nombre + ".diario");
+            Files.deleteIfExists(diario);
+            Files.deleteIfExists(diario.resolveSibling(nombre + ".diario.instantanea"));
+            sede.configurarCompactacion(0);
+            sede.abrirDiario(diario);
+        }
+        return sede;
+    }
+
+    /**
+     * Manda lotes desde varios hilos durante un tiempo.
+     *
+     * @return Órdenes por segundo.
+     */
+    private static double medir(Reparto reparto, int hilos, int lote,
+            int vehiculos, int segundos) throws InterruptedException {
+        AtomicLong ordenes = new AtomicLong();
+        CountDownLatch fin = new CountDownLatch(hilos);
+        long inicio = System.nanoTime();
+        long limite = inicio + segundos * 1_000_000_000L;
+        for (int h = 0; h < hilos; h++) {
+            int numero = h;
+            new Thread(() -> {
+                long propias = 0;
+                // Matrículas nuevas de este hilo, fuera de las registradas
+                int siguiente = vehiculos + numero;
+                List<Orden> ordenesDelLote = new ArrayList<>(lote);
+                while (System.nanoTime() < limite) {
+                    ordenesDelLote.clear();
+                    for (int i = 0; i < lote / 3; i++, siguiente += hilos) {
+                        Matricula matricula = Matricula.fromKey(siguiente);
+                        ordenesDelLote.add(Orden.alta(matricula, "Seat", "Leon", "Azul"));
+                        ordenesDelLote.add(Orden.reparacion(matricula, "Revisión", 5_000));
+                        ordenesDelLote.add(Orden.baja(matricula));
+                    }
+                    Resultado[] resultados = reparto.ejecutar(ordenesDelLote);
+                    if (resultados[resultados.length - 1] != Resultado.REALIZADO) {
+                        throw new IllegalStateException("Resultado inesperado: "
+                                + Arrays.toString(resultados));
+                    }
+                    propias += resultados.length;
+                }
+                ordenes.addAndGet(propias);
+                fin.countDown();
+            }, "cliente-" + h).start();
+        }
+        fin.await();
+        return ordenes.get() / ((System.nanoTime() - inicio) / 1e9);
+    }
+}
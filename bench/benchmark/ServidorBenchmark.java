@@ -0,0 +1,265 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import taller.Servidor;
+import taller.Taller;
+import vehiculo.Matricula;
+
+/**
+ * Generador de carga para el servidor del taller (ver Servidor). Abre varias
+ * conexiones a la vez y, durante un tiempo, cada una manda órdenes de una en
+ * una esperando la respuesta, como haría un puesto del taller: búsquedas,
+ * reparaciones, altas y bajas. Al final muestra las órdenes por segundo y la
+ * latencia de cada petición (percentiles 50, 99 y 99,9).
+ *
+ * Con --lote=N cada petición es un lote (ver Servidor) de N modificaciones,
+ * sin búsquedas, que el servidor ejecuta con un solo cerrojo y una sola
+ * escritura en el diario. Con --diario el servidor de esta JVM guarda los
+ * cambios en ese fichero, que es donde más se nota la diferencia.
+ *
+ * Si no se indica otra dirección, abre el servidor en esta misma JVM en un
+ * puerto libre de la interfaz de bucle local. Se ejecuta con
+ * "ant benchmark -Dbench.class=benchmark.ServidorBenchmark".
+ *
+ * Uso: ServidorBenchmark [--conexiones=64] [--segundos=10]
+ * [--vehiculos=100000] [--lote=1] [--diario=fichero]
+ * [--direccion=maquina:puerto]
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class ServidorBenchmark {
+
+    /**
+     * Conexiones abiertas a la vez por defecto.
+     */
+    private static final int CONEXIONES = 64;
+    /**
+     * Duración por defecto de la prueba.
+     */
+    private static final int SEGUNDOS = 10;
+    /**
+     * Vehículos que se registran antes de empezar.
+     */
+    private static final int VEHICULOS = 100_000;
+
+    /**
+     * @param args conexiones, duración, vehículos y dirección del servidor.
+     * @throws Exception si falla alguna conexión.
+     */
+    public static void main(String[] args) throws Exception {
+        int conexiones = CONEXIONES;
+        int segundos = SEGUNDOS;
+        int vehiculos = VEHICULOS;
+        int lote = 1;
+        Path diario = null;
+        String direccion = null;
+        for (String arg : args) {
+            if (arg.startsWith("--conexiones=")) {
+                conexiones = Integer.parseInt(arg.substring("--conexiones=".length()).strip());
+            } else if (arg.startsWith("--segundos=")) {
+                segundos = Integer.parseInt(arg.substring("--segundos=".length()).strip());
+            } else if (arg.startsWith("--vehiculos=")) {
+                vehiculos = Integer.parseInt(arg.substring("--vehiculos=".length()).strip());
+            } else if (arg.startsWith("--lote=")) {
+                lote = Integer.parseInt(arg.substring("--lote=".length()).strip());
+            } else if (arg.startsWith("--diario=")) {
+                diario = Path.of(arg.substring("--diario=".length()).strip());
+            } else if (arg.startsWith("--direccion=")) {
+                direccion = arg.substring("--direccion=".length()).strip();
+            }
+        }
+        Servidor servidor = null;
+        InetSocketAddress destino;
+        if (direccion == null) {
+            Taller.configurarCapacidad(Taller.SIN_LIMITE, Taller.REPARACIONES_MAXIMAS);
+            if (diario != null) {
+                Files.deleteIfExists(diario);
+                Taller.abrirDiario(diario);
+            }
+            servidor = new Servidor(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            destino = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    servidor.getPuerto());
+        } else {
+            int dosPuntos = direccion.lastIndexOf(':');
+            destino = new InetSocketAddress(direccion.substring(0, dosPuntos),
+                    Integer.parseInt(direccion.substring(dosPuntos + 1)));
+        }
+        try {
+            cargar(destino, vehiculos);
+            medir(destino, conexiones, segundos, vehiculos, lote);
+        } finally {
+            if (servidor != null) {
+                servidor.close();
+                Taller.cerrarDiario();
+            }
+        }
+    }
+
+    /**
+     * Registra los vehículos por una sola conexión, en lotes de 1000 altas.
+     */
+    private static void cargar(InetSocketAddress destino, int vehiculos)
+            throws IOException {
+        try (Cliente cliente = new Cliente(destino)) {
+            long inicio = System.nanoTime();
+            for (int i = 0; i < vehiculos; i += 1000) {
+                int fin = Math.min(vehiculos, i + 1000);
+                cliente.escribir("LOTE," + (fin - i));
+                for (int v = i; v < fin; v++) {
+                    cliente.escribir("ALTA," + Matricula.fromKey(v).getNumero()
+                            + ",Seat,Ibiza,Rojo");
+                }
+                cliente.salida.flush();
+                cliente.leerRespuesta(true);
+            }
+            System.out.printf(Locale.ROOT, "Carga: %,d altas en %.2f s%n",
+                    vehiculos, (System.nanoTime() - inicio) / 1e9);
+        }
+    }
+
+    /**
+     * Lanza las conexiones y muestra los resultados.
+     */
+    private static void medir(InetSocketAddress destino, int conexiones,
+            int segundos, int vehiculos, int lote) throws InterruptedException {
+        long[][] latencias = new long[conexiones][];
+        long[] ordenes = new long[conexiones];
+        CountDownLatch fin = new CountDownLatch(conexiones);
+        long limite = System.nanoTime() + segundos * 1_000_000_000L;
+        for (int c = 0; c < conexiones; c++) {
+            int numero = c;
+            new Thread(() -> {
+                SplittableRandom azar = new SplittableRandom(numero);
+                long[] propias = new long[4096];
+                int n = 0;
+                try (Cliente cliente = new Cliente(destino)) {
+                    while (System.nanoTime() < limite) {
+                        long antes = System.nanoTime();
+                        if (lote == 1) {
+                            int tipo = azar.nextInt(8);
+                            escribirOrden(cliente, azar, vehiculos, tipo);
+                            cliente.salida.flush();
+                            cliente.leerRespuesta(tipo < 4);
+                        } else {
+                            cliente.escribir("LOTE," + lote);
+                            for (int i = 0; i < lote; i++) {
+                                escribirOrden(cliente, azar, vehiculos, 4 + azar.nextInt(4));
+                            }
+                            cliente.salida.flush();
+                            cliente.leerRespuesta(true);
+                        }
+                        ordenes[numero] += lote;
+                        if (n == propias.length) {
+                            propias = Arrays.copyOf(propias, n * 2);
+                        }
+                        propias[n++] = System.nanoTime() - antes;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    latencias[numero] = Arrays.copyOf(propias, n);
+                    fin.countDown();
+                }
+            }, "cliente-" + c).start();
+        }
+        fin.await();
+        long[] todas = Arrays.stream(latencias).flatMapToLong(Arrays::stream)
+                .sorted().toArray();
+        int n = todas.length;
+        long total = Arrays.stream(ordenes).sum();
+        System.out.printf(Locale.ROOT, "%d conexiones, lotes de %d: %,d órdenes en %d s"
+                + " (%,.0f órdenes/s)%n",
+                conexiones, lote, total, segundos, total / (double) segundos);
+        System.out.printf(Locale.ROOT, "Latencia por petición: p50=%.1f us p99=%.1f us p99.9=%.1f us%n",
+                todas[n / 2] / 1e3, todas[(int) (n * 0.99)] / 1e3,
+                todas[(int) (n * 0.999)] / 1e3);
+    }
+
+    /**
+     * Escribe una orden sobre una matrícula al azar. Del tipo 0 al 3 son
+     * búsquedas, el 4 y el 5 reparaciones, el 6 bajas y el 7 altas.
+     */
+    private static void escribirOrden(Cliente cliente, SplittableRandom azar,
+            int vehiculos, int tipo) throws IOException {
+        String matricula = Matricula.fromKey(azar.nextInt(vehiculos)).getNumero();
+        if (tipo < 4) {
+            cliente.escribir("BUSCAR," + matricula);
+        } else if (tipo < 6) {
+            cliente.escribir("REPARACION," + matricula + ",Revisión,30");
+        } else if (tipo == 6) {
+            cliente.escribir("BAJA," + matricula);
+        } else {
+            cliente.escribir("ALTA," + matricula + ",Seat,Ibiza,Rojo");
+        }
+    }
+
+    /**
+     * Una conexión con el servidor.
+     */
+    private static final class Cliente implements AutoCloseable {
+
+        private final Socket socket;
+        private final BufferedReader entrada;
+        private final Writer salida;
+
+        Cliente(InetSocketAddress destino) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(destino);
+            entrada = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            salida = new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Escribe una orden sin enviarla todavía.
+         */
+        void escribir(String orden) throws IOException {
+            salida.write(orden);
+            salida.write('\n');
+        }
+
+        /**
+         * Lee la respuesta a una orden, con sus datos si los tiene.
+         *
+         * @param conDatos Si la orden devuelve datos cuando se realiza.
+         */
+        void leerRespuesta(boolean conDatos) throws IOException {
+            String estado = entrada.readLine();
+            if (estado == null) {
+                throw new IOException("El servidor ha cerrado la conexión");
+            }
+            if (estado.startsWith("ERROR")) {
+                throw new IOException("Respuesta inesperada: " + estado);
+            }
+            if (conDatos && estado.equals("REALIZADO")) {
+                String linea;
+                while ((linea = entrada.readLine()) != null && !linea.equals(".")) {
+                    // Se descartan los datos
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
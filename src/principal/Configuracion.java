@@ -0,0 +1,273 @@
+package principal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import taller.Metricas;
+import taller.PoliticaCache;
+import taller.Servidor;
+import taller.Taller;
+
+/**
+ * Lee la configuración del taller al arrancar el programa. Cada opción se
+ * puede indicar como propiedad del sistema (-Dtaller.vehiculos=500) o como
+ * argumento de la línea de comandos (--vehiculos=500). Si aparece en los dos
+ * sitios, manda el argumento.
+ *
+ * Opciones reconocidas:
+ * <ul>
+ * <li>vehiculos: capacidad del taller.</li>
+ * <li>reparaciones: reparaciones que admite cada vehículo.</li>
+ * <li>diario: fichero donde se guardan los cambios del taller para
+ * recuperarlos al volver a arrancar. Si no se indica, el taller solo vive en
+ * memoria.</li>
+ * <li>almacen: dónde se guardan los vehículos, "monticulo" (objetos de Java,
+ * por defecto) o "directo" (por columnas fuera del montículo, para talleres
+ * muy grandes).</li>
+ * <li>cache: cuántos vehículos guarda la caché de las búsquedas por
+ * matrícula de los vehículos de la instantánea o de fuera del montículo (0
+ * para no usarla).</li>
+ * <li>expulsion: cómo elige la caché el vehículo que sale cuando está llena:
+ * "lru", "lfu" o "w_tiny_lfu" (por defecto).</li>
+ * <li>compactar: cada cuántos cambios en el diario se escribe una
+ * instantánea del taller en segundo plano (0 para no hacerlo nunca).</li>
+ * <li>metricas: "si" (por defecto) para medir las operaciones del registro
+ * (ver la opción "Métricas del taller" del menú), "jmx" para publicarlas
+ * además por JMX, o "no" para no medirlas.</li>
+ * <li>duraciones: "si" para medir también cuánto tarda cada operación, o
+ * "no" (por defecto) para solo contarlas, que es más barato.</li>
+ * <li>puerto: puerto TCP en el que se atienden las órdenes de otros puestos
+ * (ver la clase Servidor). Si se indica, el programa solo hace de servidor,
+ * sin menú, hasta que se detiene con Ctrl+C.</li>
+ * <li>guion: fichero del que se leen las opciones del menú y los datos, una
+ * por línea, sin mostrar los mensajes que los piden. Con "-" se leen de la
+ * entrada estándar, por ejemplo desde una tubería.</li>
+ * </ul>
+ * Las capacidades aceptan un número positivo o la palabra "ilimitado".
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Configuracion {
+
+    /**
+     * Prefijo de las propiedades del sistema.
+     */
+    private static final String PREFIJO_PROPIEDAD = "taller.";
+    /**
+     * Prefijo de los argumentos de la línea de comandos.
+     */
+    private static final String PREFIJO_ARGUMENTO = "--";
+    /**
+     * Valor que indica capacidad ilimitada.
+     */
+    private static final String ILIMITADO = "ilimitado";
+    /**
+     * Valor del guion que indica la entrada estándar.
+     */
+    private static final String ENTRADA_ESTANDAR = "-";
+    /**
+     * Valores de la opción "almacen".
+     */
+    private static final String MONTICULO = "monticulo";
+    private static final String DIRECTO = "directo";
+    /**
+     * Valores de las opciones "metricas" y "duraciones".
+     */
+    private static final String SI = "si";
+    private static final String NO = "no";
+    private static final String JMX = "jmx";
+
+    /**
+     * Lee la configuración y la aplica al taller.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @throws IllegalArgumentException Si algún valor no es válido.
+     */
+    static void aplicar(String[] args) {
+        int vehiculos = leerCapacidad(args, "vehiculos", Taller.VEHICULOS_MAXIMOS);
+        int reparaciones = leerCapacidad(
+                args, "reparaciones", Taller.REPARACIONES_MAXIMAS);
+        Taller.configurarCapacidad(vehiculos, reparaciones);
+        String almacen = leerOpcion(args, "almacen");
+        if (almacen != null) {
+            switch (almacen.strip().toLowerCase()) {
+                case MONTICULO ->
+                    Taller.configurarAlmacen(false);
+                case DIRECTO ->
+                    Taller.configurarAlmacen(true);
+                default ->
+                    throw new IllegalArgumentException("El valor de \"almacen\" debe ser \""
+                            + MONTICULO + "\" o \"" + DIRECTO + "\": " + almacen);
+            }
+        }
+        String cache = leerOpcion(args, "cache");
+        String expulsion = leerOpcion(args, "expulsion");
+        if (cache != null || expulsion != null) {
+            int enCache = Taller.VEHICULOS_EN_CACHE;
+            PoliticaCache politica = PoliticaCache.W_TINY_LFU;
+            if (cache != null) {
+                try {
+                    enCache = Integer.parseInt(cache.strip());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "El valor de \"cache\" no es un número: " + cache);
+                }
+            }
+            if (expulsion != null) {
+                try {
+                    politica = PoliticaCache.valueOf(expulsion.strip().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("El valor de \"expulsion\" debe ser"
+                            + " \"lru\", \"lfu\" o \"w_tiny_lfu\": " + expulsion);
+                }
+            }
+            Taller.configurarCache(enCache, politica);
+        }
+        String compactar = leerOpcion(args, "compactar");
+        if (compactar != null) {
+            try {
+                Taller.configurarCompactacion(Long.parseLong(compactar.strip()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        "El valor de \"compactar\" no es un número: " + compactar);
+            }
+        }
+        String metricas = leerOpcion(args, "metricas");
+        if (metricas != null) {
+            switch (metricas.strip().toLowerCase()) {
+                case SI ->
+                    Metricas.activar(true);
+                case NO ->
+                    Metricas.activar(false);
+                case JMX -> {
+                    Metricas.activar(true);
+                    Metricas.registrarEnJmx();
+                }
+                default ->
+                    throw new IllegalArgumentException("El valor de \"metricas\" debe ser \""
+                            + SI + "\", \"" + NO + "\" o \"" + JMX + "\": " + metricas);
+            }
+        }
+        String duraciones = leerOpcion(args, "duraciones");
+        if (duraciones != null) {
+            switch (duraciones.strip().toLowerCase()) {
+                case SI ->
+                    Metricas.medirDuraciones(true);
+                case NO ->
+                    Metricas.medirDuraciones(false);
+                default ->
+                    throw new IllegalArgumentException("El valor de \"duraciones\" debe ser \""
+                            + SI + "\" o \"" + NO + "\": " + duraciones);
+            }
+        }
+    }
+
+    /**
+     * Abre el diario del taller si se ha configurado y recupera su contenido.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @throws IOException Si no se puede abrir el diario.
+     */
+    static void abrirDiario(String[] args) throws IOException {
+        String fichero = leerOpcion(args, "diario");
+        if (fichero != null) {
+            long eventos = Taller.abrirDiario(Path.of(fichero));
+            System.out.println("Recuperados " + eventos
+                    + " cambios del diario " + fichero);
+        }
+    }
+
+    /**
+     * Abre el servidor del taller si se ha configurado su puerto.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @return El servidor, o "null" si no se ha configurado.
+     * @throws IllegalArgumentException Si el puerto no es válido.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    static Servidor abrirServidor(String[] args) throws IOException {
+        String valor = leerOpcion(args, "puerto");
+        if (valor == null) {
+            return null;
+        }
+        int puerto;
+        try {
+            puerto = Integer.parseInt(valor.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "El valor de \"puerto\" no es un número: " + valor);
+        }
+        if (puerto < 0 || puerto > 65535) {
+            throw new IllegalArgumentException(
+                    "El valor de \"puerto\" debe estar entre 0 y 65535");
+        }
+        return new Servidor(new InetSocketAddress(puerto));
+    }
+
+    /**
+     * Pasa la interacción a modo guion si se ha configurado.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @throws IOException Si no se puede abrir el fichero del guion.
+     */
+    static void abrirGuion(String[] args) throws IOException {
+        String fichero = leerOpcion(args, "guion");
+        if (fichero != null) {
+            Interaccion.usarGuion(fichero.equals(ENTRADA_ESTANDAR)
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : Files.newBufferedReader(Path.of(fichero)));
+        }
+    }
+
+    /**
+     * Busca el valor de una opción, primero en los argumentos y después en las
+     * propiedades del sistema.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @param nombre Nombre de la opción.
+     * @return El valor, o "null" si no se ha indicado.
+     */
+    static String leerOpcion(String[] args, String nombre) {
+        String prefijo = PREFIJO_ARGUMENTO + nombre + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefijo)) {
+                return arg.substring(prefijo.length());
+            }
+        }
+        return System.getProperty(PREFIJO_PROPIEDAD + nombre);
+    }
+
+    /**
+     * Lee una opción de capacidad.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @param nombre Nombre de la opción.
+     * @param porDefecto Valor si no se ha indicado la opción.
+     * @return La capacidad, o Taller.SIN_LIMITE si es ilimitada.
+     * @throws IllegalArgumentException Si el valor no es válido.
+     */
+    private static int leerCapacidad(String[] args, String nombre, int porDefecto) {
+        String valor = leerOpcion(args, nombre);
+        if (valor == null) {
+            return porDefecto;
+        }
+        valor = valor.strip();
+        if (valor.equalsIgnoreCase(ILIMITADO)) {
+            return Taller.SIN_LIMITE;
+        }
+        try {
+            int capacidad = Integer.parseInt(valor);
+            if (capacidad < 1) {
+                throw new IllegalArgumentException(
+                        "El valor de \"" + nombre + "\" debe ser positivo");
+            }
+            return capacidad;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "El valor de \"" + nombre + "\" no es un número: " + valor);
+        }
+    }
+}
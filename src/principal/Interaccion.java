@@ -1,42 +1,125 @@
 package principal;
 
-import java.util.Scanner;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+import taller.Metricas;
 import vehiculo.Matricula;
 
 /**
+ * Lectura de los datos que introduce el usuario. Toda la entrada pasa por un
+ * único BufferedReader compartido, de forma que nada de lo que ya se ha
+ * leído se pierde entre una petición y la siguiente.
+ *
+ * En modo guion (ver usarGuion()) la entrada viene de un fichero o de una
+ * tubería: no se muestran los mensajes que piden los datos y la salida se
+ * escribe con un búfer grande, así que un guion se ejecuta a toda velocidad
+ * pasando por el mismo flujo que el menú interactivo. Los datos no válidos
+ * se tratan igual que en modo interactivo: se informa y se lee la línea
+ * siguiente.
+ *
+ * Al terminar la entrada, los métodos que piden datos lanzan
+ * NoSuchElementException.
  *
  * @author Gabriel Cubillos Rodríguez
  */
 class Interaccion {
 
+    /**
+     * Entrada compartida por todas las peticiones.
+     */
+    private static BufferedReader entrada
+            = new BufferedReader(new InputStreamReader(System.in));
+    /**
+     * Indica si se está ejecutando un guion.
+     */
+    private static boolean guion;
+
+    /**
+     * Pasa a modo guion: los datos se leen de otra entrada sin mostrar los
+     * mensajes que los piden. La salida estándar pasa a tener un búfer que se
+     * vacía con terminar().
+     *
+     * @param lector Entrada del guion. Puede ser la entrada estándar.
+     */
+    static void usarGuion(BufferedReader lector) {
+        entrada = lector;
+        guion = true;
+        System.setOut(new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, Charset.defaultCharset()));
+    }
+
+    /**
+     * Informa si se está ejecutando un guion.
+     *
+     * @return "true" en modo guion.
+     */
+    static boolean esGuion() {
+        return guion;
+    }
+
+    /**
+     * Vacía la salida pendiente y cierra la entrada del guion, si lo hay.
+     */
+    static void terminar() {
+        System.out.flush();
+        if (guion) {
+            try {
+                entrada.close();
+            } catch (IOException e) {
+                // Ya no se va a leer nada más
+            }
+        }
+    }
+
+    /**
+     * Solicita un texto al usuario y lo devuelve tras validar que no está en
+     * blanco.
+     *
+     * @param mensaje Mensaje que se muestra al usuario al momento de solicitar
+     * el dato.
+     * @return El texto que introduce el usuario.
+     * @throws NoSuchElementException Si se ha terminado la entrada.
+     */
     static String pedirUnTexto(String mensaje) {
         String texto = "";
         boolean hayValidacion = false;
-        Scanner sc;
         while (!hayValidacion) {
-            System.out.println(mensaje);
-            sc = new Scanner(System.in);
-            if (sc.hasNextLine()) {
-                texto = sc.nextLine();
-                if (texto.isBlank() || texto.isEmpty()) {
-                    System.out.println("Esto no puede quedar en blanco");
-                } else {
-                    hayValidacion = true;
-                }
+            preguntar(mensaje);
+            texto = leerLinea();
+            if (texto.isBlank() || texto.isEmpty()) {
+                System.out.println("Esto no puede quedar en blanco");
+            } else {
+                hayValidacion = true;
             }
         }
         return texto;
     }
 
+    /**
+     * Solicita una matrícula al usuario y la devuelve tras validar su formato.
+     *
+     * @return La matrícula.
+     * @throws NoSuchElementException Si se ha terminado la entrada.
+     */
     static Matricula pedirMatricula() {
         boolean hayValidacion = false;
         Matricula matricula = null;
         while (!hayValidacion) {
             String texto = pedirUnTexto(
                     "Introduce la matrícula del vehículo (ej. 1234BCD):"
-            ).toUpperCase();
+            ).strip().toUpperCase();
             try {
-                matricula = new Matricula(texto);
+                matricula = Metricas.matricula(texto);
                 hayValidacion = true;
             } catch (IllegalArgumentException e) {
                 System.out.println("""
@@ -48,7 +131,7 @@ class Interaccion {
         }
         return matricula;
     }
-    
+
      /**
      * Solicita un número al usuario dentro de un rango y lo devuelve tras
      * validar que es correcto.
@@ -61,6 +144,7 @@ class Interaccion {
      * @param minimo Límite inferior del rango.
      * @param maximo Límite superior del rango.
      * @return El número que introduce el usuario.
+     * @throws NoSuchElementException Si se ha terminado la entrada.
      */
     static int pedirUnNumero(String mensaje, int minimo, int maximo) {
         boolean hayValidacion = false;
@@ -69,26 +153,54 @@ class Interaccion {
                                 \nNo has introducido un número dentro de
                                 los márgenes. Repetimos.
                                 """;
-        Scanner sc;
         do {
-            System.out.println(mensaje);
-            sc = new Scanner(System.in);
+            preguntar(mensaje);
             //System.out.println("[" + minimo + "-" + maximo + "]:");
-            if (sc.hasNextInt()) {
-                input = sc.nextInt();
+            try {
+                input = Integer.parseInt(leerLinea().strip());
                 // Validamos que el número está en los márgenes del rango
                 if (input < minimo || input > maximo) {
                     System.out.println(mensajeDeError);
                 } else {
                     hayValidacion = true;
                 }
-            } else {
+            } catch (NumberFormatException e) {
                 System.out.println(mensajeDeError);
             }
         } while (!hayValidacion);
         return input;
     }
-    
+
+    /**
+     * Solicita un importe en euros al usuario, con dos decimales como mucho
+     * (ej. 49,90 o 49.90), y lo devuelve en céntimos tras validar que no es
+     * negativo.
+     *
+     * @param mensaje Mensaje que se muestra al usuario al momento de solicitar
+     * el dato.
+     * @return El importe en céntimos.
+     * @throws NoSuchElementException Si se ha terminado la entrada.
+     */
+    static long pedirUnImporte(String mensaje) {
+        String mensajeDeError = """
+                                \nNo has introducido un importe válido en
+                                euros (ej. 49,90). Repetimos.
+                                """;
+        while (true) {
+            preguntar(mensaje);
+            try {
+                BigDecimal euros = new BigDecimal(
+                        leerLinea().strip().replace(',', '.'));
+                if (euros.signum() >= 0 && euros.scale() <= 2) {
+                    return euros.movePointRight(2).longValueExact();
+                }
+            } catch (NumberFormatException | ArithmeticException e) {
+                // Se vuelve a pedir más abajo
+            }
+            System.out.println(mensajeDeError);
+        }
+    }
+
      /**
      * Imprime un mensaje debajo de una línea punteada
      *
@@ -98,4 +210,37 @@ class Interaccion {
         System.out.println("-".repeat(100));
         System.out.println(mensaje);
     }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Muestra el mensaje que pide un dato, salvo en modo guion.
+     *
+     * @param mensaje Mensaje a mostrar.
+     */
+    private static void preguntar(String mensaje) {
+        if (!guion) {
+            System.out.println(mensaje);
+        }
+    }
+
+    /**
+     * Lee la siguiente línea de la entrada compartida.
+     *
+     * @return La línea, sin el salto de línea.
+     * @throws NoSuchElementException Si se ha terminado la entrada.
+     * @throws UncheckedIOException Si falla la lectura.
+     */
+    private static String leerLinea() {
+        try {
+            String linea = entrada.readLine();
+            if (linea == null) {
+                throw new NoSuchElementException("Fin de la entrada");
+            }
+            return linea;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
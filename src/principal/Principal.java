@@ -1,7 +1,23 @@
 package principal;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import taller.Informe;
+import taller.Intercambio;
+import taller.Metricas;
+import taller.Sede;
+import taller.Servidor;
 import taller.Taller;
+import taller.Urgencia;
 import vehiculo.Matricula;
+import vehiculo.PatronMatricula;
 
 /**
  * Clase principal con el método main. En esta clase se implementa la
@@ -13,117 +29,431 @@ import vehiculo.Matricula;
 public class Principal {
 
     /**
-     * @param args the command line arguments
+     * Vehículos que se escriben de una vez en el listado.
+     */
+    private static final int PAGINA = 1000;
+    /**
+     * Días que se muestran en los totales por día del historial.
+     */
+    private static final int DIAS_TOTALES = 7;
+    /**
+     * Reparaciones más frecuentes que se muestran en el informe.
+     */
+    private static final int MAS_FRECUENTES = 10;
+    /**
+     * Urgencias de la cola de espera, por el número con el que se eligen
+     * menos 1.
+     */
+    private static final Urgencia[] URGENCIAS = Urgencia.values();
+    /**
+     * Formato de la fecha de las reparaciones del historial.
+     */
+    private static final DateTimeFormatter FORMATO_FECHA
+            = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+
+    /**
+     * @param args the command line arguments. Ver la clase Configuracion para
+     * las opciones que se admiten.
      */
     public static void main(String[] args) {
+        try {
+            Configuracion.aplicar(args);
+            Configuracion.abrirDiario(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Configuración no válida: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.out.println("No se puede abrir el diario: " + e.getMessage());
+            return;
+        }
+        Servidor servidor;
+        try {
+            servidor = Configuracion.abrirServidor(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Configuración no válida: " + e.getMessage());
+            salir();
+            return;
+        } catch (IOException e) {
+            System.out.println("No se puede abrir el servidor: " + e.getMessage());
+            salir();
+            return;
+        }
+        if (servidor != null) {
+            servir(servidor);
+            return;
+        }
+        try {
+            Configuracion.abrirGuion(args);
+        } catch (IOException e) {
+            System.out.println("No se puede abrir el guion: " + e.getMessage());
+            salir();
+            return;
+        }
+        Taller.alPromover(espera -> System.out.println("El vehículo "
+                + espera.matricula().getNumero()
+                + " pasa de la cola de espera al taller."));
         boolean continua = true;
-        while (continua) {
-            System.out.println("*".repeat(20));
-            String textoMenu = """
-                           \nBienvenido a mi taller. Elige tu opción.
-                           1.- Nuevo vehículo
-                           2.- Listado de vehículos
-                           3.- Buscar vehículo
-                           4.- Nueva reparación
-                           5.- Listado de reparaciones
-                           6.- Eliminar vehículo
-                           0.- Salir
-                           """;
+        try {
+            while (continua) {
+                if (!Interaccion.esGuion()) {
+                    System.out.println("*".repeat(20));
+                }
+                String textoMenu = """
+                               \nBienvenido a mi taller. Elige tu opción.
+                               1.- Nuevo vehículo
+                               2.- Listado de vehículos
+                               3.- Buscar vehículo
+                               4.- Nueva reparación
+                               5.- Listado de reparaciones
+                               6.- Eliminar vehículo
+                               7.- Importar vehículos de un fichero
+                               8.- Exportar vehículos a un fichero
+                               9.- Buscar vehículos por parte de la matrícula
+                               10.- Historial de reparaciones de un vehículo
+                               11.- Totales de reparaciones por tipo y por día
+                               12.- Informe de reparaciones de todos los vehículos
+                               13.- Métricas del taller
+                               14.- Cola de espera
+                               0.- Salir
+                               """;
 
-            int opcion = Interaccion.pedirUnNumero(textoMenu, 0, 6);
-            Taller taller = new Taller();
+                int opcion = Interaccion.pedirUnNumero(textoMenu, 0, 14);
 
-            switch (opcion) {
-                // SALIR DEL PROGRAMA
-                case 0 -> {
-                    System.out.println("Has elegido salir. ¡Adiós!");
-                    continua = false;
-                }
-                // NUEVO VEHICULO
-                case 1 -> {
-                    // Primera validación: ¿está el taller lleno?
-                    if (Taller.estaTallerLleno()) {
-                        System.out.println("El taller está lleno, no cabe un coche más.");
-                    } else {
+                switch (opcion) {
+                    // SALIR DEL PROGRAMA
+                    case 0 -> {
+                        System.out.println("Has elegido salir. ¡Adiós!");
+                        continua = false;
+                        salir();
+                    }
+                    // NUEVO VEHICULO
+                    case 1 -> {
+                        // Si el taller está lleno, el vehículo quedará en la
+                        // cola de espera con la urgencia que se indique
+                        boolean lleno = Taller.estaTallerLleno();
+                        if (lleno) {
+                            System.out.println("El taller está lleno: el vehículo"
+                                    + " quedará en la cola de espera.");
+                        }
                         Interaccion.imprimirMensaje("Nuevo vehículo");
                         Matricula matricula = Interaccion.pedirMatricula();
-                        // Segunda validación: ¿Está este coche en el taller?
+                        // ¿Está este coche en el taller o esperando?
                         if (Taller.existeVehiculo(matricula)) {
                             System.out.println("Este coche ya está en el taller.");
+                        } else if (Taller.estaEnEspera(matricula)) {
+                            System.out.println("Este coche ya está en la cola de espera.");
                         } else {
                             String marca = Interaccion.pedirUnTexto("Marca del vehículo:");
                             String modelo = Interaccion.pedirUnTexto("Modelo del vehículo:");
                             String color = Interaccion.pedirUnTexto("Color del vehículo:");
-                            taller.setVehiculo(matricula, marca, modelo, color);
-                            // Aprovechamos que addRegistro() devuelve un booleano si hay éxito
-                            System.out.println(taller.addRegistro()
-                                    ? "Vehículo añadido al taller"
-                                    : "Ha ocurrido un error y no se ha añadido");
+                            Urgencia urgencia = lleno
+                                    ? URGENCIAS[Interaccion.pedirUnNumero(
+                                            "Urgencia (1 normal, 2 preferente, 3 urgente):",
+                                            1, URGENCIAS.length) - 1]
+                                    : Urgencia.NORMAL;
+                            // Otro puesto puede haber registrado la matrícula
+                            // o cambiado la ocupación mientras tanto, así que
+                            // la inserción vuelve a comprobarlo de forma atómica
+                            switch (Taller.addOrEnqueue(matricula, marca, modelo, color, urgencia)) {
+                                case REALIZADO ->
+                                    System.out.println("Vehículo añadido al taller");
+                                case EN_ESPERA ->
+                                    System.out.println("Vehículo en la cola de espera ("
+                                            + Taller.getVehiculosEnEspera()
+                                            + " esperando). Entrará en cuanto quede sitio.");
+                                case YA_EXISTE ->
+                                    System.out.println("Este coche ya está en el taller"
+                                            + " o en la cola de espera.");
+                                default ->
+                                    System.out.println("Ha ocurrido un error y no se ha añadido");
+                            }
                         }
                     }
-                }
-                // LISTADO DE VEHÍCULOS
-                case 2 ->
-                    System.out.println(taller.registroTallerToString());
-                // BUSCAR VEHÍCULO
-                case 3 -> {
-                    System.out.println("Búsqueda de vehículo");
-                    Matricula matricula = Interaccion.pedirMatricula();
-                    taller = Taller.buscarEnRegistroPorMatricula(matricula);
-                    if (taller != null) {
-                        System.out.println("\nResultado:");
-                        System.out.println(taller.toString());
-                    } else {
-                        System.out.println("No se encuentra el vehículo");
+                    // LISTADO DE VEHÍCULOS
+                    // Se escribe por páginas directamente en la consola, sin
+                    // construir una cadena con todo el registro
+                    case 2 -> {
+                        Sede.Listado listado = Taller.listar();
+                        try {
+                            while (listado.escribirPagina(System.out, PAGINA)) {
+                                System.out.flush();
+                            }
+                            System.out.println();
+                        } catch (IOException e) {
+                            System.out.println("No se ha podido escribir el listado: "
+                                    + e.getMessage());
+                        }
                     }
-                }
-                // NUEVA REPARACIÓN
-                /*
-                La actualización del vehículo en el REGISTRO se realiza así:
-                - Buscamos el objeto taller con la matrícula indicada en el 
-                array REGISTRO y lo copiamos a la variable "taller".
-                - Agregamos a la propiedad reparaciones[] de "taller" una
-                nueva reparación.
-                - Actualizamos el objeto en el array REGISTRO: buscamos el lugar
-                que ocupaba originalmente y sobreescribimos la posición con el
-                objeto "taller" que acabamos de modificar.
-                 */
-                case 4 -> {
-                    Matricula matricula = Interaccion.pedirMatricula();
-                    taller = Taller.buscarEnRegistroPorMatricula(matricula);
-                    // Primera validación: ¿Está el vehículo en el taller?
-                    if (taller == null) {
-                        System.out.println("\nEse vehículo no está en el taller");
-                        // Segunda validación: ¿Hay lugar para una reparación más?
-                    } else if (taller.estanReparacionesLlenas()) {
-                        System.out.println("Este coche ya tiene el máximo de reparaciones");
-                    } else {
-                        String reparacion = Interaccion.pedirUnTexto(
-                                "Introduce el nombre de la reparación a añadir:");
-                        taller.setReparacion(reparacion);
-                        taller.updateTallerToRegistro();
-                        System.out.println("Reparación añadida");
+                    // BUSCAR VEHÍCULO
+                    case 3 -> {
+                        System.out.println("Búsqueda de vehículo");
+                        Matricula matricula = Interaccion.pedirMatricula();
+                        Taller taller = Taller.buscarEnRegistroPorMatricula(matricula);
+                        if (taller != null) {
+                            System.out.println("\nResultado:");
+                            System.out.println(taller.toString());
+                        } else {
+                            System.out.println("No se encuentra el vehículo");
+                        }
+                    }
+                    // NUEVA REPARACIÓN
+                    /*
+                    La actualización del vehículo en el REGISTRO se realiza así:
+                    - Buscamos la matrícula indicada en el REGISTRO para avisar
+                    cuanto antes si no existe.
+                    - Pedimos el nombre de la reparación y su coste.
+                    - Anotamos la reparación con registrarReparacion(), que vuelve
+                    a comprobar que el vehículo existe, la anota en el historial y
+                    la agrega a sus reparaciones si le queda sitio, todo de forma
+                    atómica, por si otro puesto ha modificado el vehículo mientras
+                    tanto. Aunque el vehículo tenga el máximo de reparaciones, la
+                    reparación queda en el historial.
+                     */
+                    case 4 -> {
+                        Matricula matricula = Interaccion.pedirMatricula();
+                        // Primera validación: ¿Está el vehículo en el taller?
+                        if (!Taller.existeVehiculo(matricula)) {
+                            System.out.println("\nEse vehículo no está en el taller");
+                        } else {
+                            String reparacion = Interaccion.pedirUnTexto(
+                                    "Introduce el nombre de la reparación a añadir:");
+                            long coste = Interaccion.pedirUnImporte(
+                                    "Coste de la reparación en euros (ej. 49,90):");
+                            switch (Taller.registrarReparacion(matricula, reparacion, coste)) {
+                                case REALIZADO ->
+                                    System.out.println("Reparación añadida");
+                                case NO_EXISTE ->
+                                    System.out.println("\nEse vehículo no está en el taller");
+                                case LLENO ->
+                                    System.out.println("""
+                                            Este coche ya tiene el máximo de reparaciones,
+                                            así que solo se ha anotado en el historial""");
+                                default ->
+                                    System.out.println("Ha ocurrido un error y no se ha añadido");
+                            }
+                        }
+                    }
+                    // LISTADO DE REPARACIONES
+                    case 5 -> {
+                        Matricula matricula = Interaccion.pedirMatricula();
+                        Taller taller = Taller.buscarEnRegistroPorMatricula(matricula);
+                        // Validamos que devolvió la búsqueda
+                        System.out.println(taller == null
+                                ? "\nEse vehículo no está en el taller"
+                                : taller.toString());
+                    }
+                    // ELIMINAR VEHÍCULO
+                    case 6 -> {
+                        Matricula matricula = Interaccion.pedirMatricula();
+                        // Usamos el booleano que devuelve el método para informar
+                        // sobre el resultado
+                        if (Taller.removeVehiculo(matricula)) {
+                            System.out.println("Vehículo eliminado");
+                        } else if (Taller.cancelarEspera(matricula)) {
+                            System.out.println("Vehículo quitado de la cola de espera");
+                        } else {
+                            System.out.println("Este vehículo no existe");
+                        }
+                    }
+                    // IMPORTAR VEHÍCULOS
+                    // El formato se deduce de la extensión: .jsonl o .json para
+                    // JSONL y cualquier otra para CSV
+                    case 7 -> {
+                        Path fichero = Path.of(Interaccion.pedirUnTexto(
+                                "Fichero CSV o JSONL a importar:").strip());
+                        try {
+                            Intercambio.Resumen resumen = Intercambio.importar(
+                                    fichero, Intercambio.Formato.deFichero(fichero),
+                                    System.out::println);
+                            System.out.printf("""
+                                              Filas leídas: %d
+                                              Vehículos añadidos: %d
+                                              Ya estaban en el taller: %d
+                                              Sin sitio en el taller: %d
+                                              Filas con errores: %d
+                                              """, resumen.leidas(),
+                                    resumen.agregadas(), resumen.repetidas(),
+                                    resumen.sinSitio(), resumen.erroneas());
+                        } catch (IOException e) {
+                            System.out.println("No se puede leer el fichero: "
+                                    + e.getMessage());
+                        }
+                    }
+                    // EXPORTAR VEHÍCULOS
+                    case 8 -> {
+                        Path fichero = Path.of(Interaccion.pedirUnTexto(
+                                "Fichero CSV o JSONL donde exportar:").strip());
+                        try {
+                            long escritos = Intercambio.exportar(
+                                    fichero, Intercambio.Formato.deFichero(fichero));
+                            System.out.println("Exportados " + escritos + " vehículos");
+                        } catch (IOException e) {
+                            System.out.println("No se puede escribir el fichero: "
+                                    + e.getMessage());
+                        }
+                    }
+                    // BUSCAR POR PARTE DE LA MATRÍCULA
+                    // Se pide uno más de los que se muestran para saber si
+                    // quedan más
+                    case 9 -> {
+                        String texto = Interaccion.pedirUnTexto("""
+                                Parte conocida de la matrícula (? = un carácter,
+                                * = el resto; por ejemplo 12??B?D, 12* o *BCD):""");
+                        try {
+                            List<Taller> encontrados = Taller.buscarEnRegistroPorPatron(
+                                    new PatronMatricula(texto), PAGINA + 1);
+                            if (encontrados.isEmpty()) {
+                                System.out.println("No se encuentra ningún vehículo");
+                            }
+                            for (Taller t : encontrados.subList(0,
+                                    Math.min(PAGINA, encontrados.size()))) {
+                                System.out.println(t.toString());
+                            }
+                            if (encontrados.size() > PAGINA) {
+                                System.out.println("Se muestran solo los " + PAGINA
+                                        + " primeros vehículos");
+                            }
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Esa no es una parte válida de una matrícula");
+                        }
+                    }
+                    // HISTORIAL DE REPARACIONES
+                    // Incluye las que no caben entre las reparaciones del
+                    // vehículo y las de vehículos que ya se han eliminado
+                    case 10 -> {
+                        Matricula matricula = Interaccion.pedirMatricula();
+                        List<Taller.Intervencion> historial = Taller.historialDe(matricula);
+                        long total = 0;
+                        for (Taller.Intervencion intervencion : historial) {
+                            System.out.println(FORMATO_FECHA.format(intervencion
+                                    .instante().atZone(ZoneId.systemDefault()))
+                                    + "  " + intervencion.tipo()
+                                    + "  " + euros(intervencion.coste()));
+                            total += intervencion.coste();
+                        }
+                        System.out.println(historial.isEmpty()
+                                ? "Este vehículo no tiene reparaciones en el historial"
+                                : historial.size() + " reparaciones, "
+                                + euros(total) + " en total");
+                    }
+                    // TOTALES DE REPARACIONES
+                    // Se llevan al día con cada reparación, así que no hace
+                    // falta recorrer el historial
+                    case 11 -> {
+                        System.out.println("Reparaciones por tipo:");
+                        escribirTotales(Taller.totalesPorTipo());
+                        LocalDate hoy = LocalDate.now();
+                        System.out.println("\nReparaciones de los últimos "
+                                + DIAS_TOTALES + " días:");
+                        escribirTotales(Taller.totalesPorDia(
+                                hoy.minusDays(DIAS_TOTALES - 1), hoy));
+                    }
+                    // INFORME DE REPARACIONES
+                    // Se calcula en paralelo sobre una captura del registro,
+                    // sin bloquear las modificaciones mientras se recorre
+                    case 12 -> {
+                        Informe informe = Informe.generar(MAS_FRECUENTES);
+                        System.out.println(informe.getVehiculos() + " vehículos, "
+                                + informe.getReparaciones() + " reparaciones, "
+                                + informe.getVehiculosConReparacionesLlenas()
+                                + " sin huecos para más reparaciones");
+                        System.out.println("\nReparaciones por marca:");
+                        informe.getReparacionesPorMarca().forEach((marca, numero)
+                                -> System.out.println(marca + ": " + numero));
+                        System.out.println("\nReparaciones más frecuentes:");
+                        informe.getReparacionesMasFrecuentes().forEach((texto, numero)
+                                -> System.out.println(texto + ": " + numero));
+                    }
+                    // METRICAS DEL TALLER
+                    // Número y duración de las operaciones sobre el registro
+                    // desde que arrancó el programa, y ocupación del taller
+                    case 13 -> {
+                        try {
+                            Metricas.escribir(System.out);
+                        } catch (IOException e) {
+                            System.out.println("No se pueden mostrar las métricas: "
+                                    + e.getMessage());
+                        }
+                    }
+                    // COLA DE ESPERA
+                    // En el orden en que entrarán los vehículos en el taller
+                    case 14 -> {
+                        List<Taller.Espera> esperas = Taller.listarEspera();
+                        if (esperas.isEmpty()) {
+                            System.out.println("No hay vehículos esperando");
+                        }
+                        int posicion = 0;
+                        for (Taller.Espera espera : esperas) {
+                            System.out.println(++posicion + ". "
+                                    + espera.matricula().getNumero() + " ("
+                                    + espera.marca() + " " + espera.modelo() + ", "
+                                    + espera.color() + "), " + espera.urgencia()
+                                    + ", llegó el " + FORMATO_FECHA.format(
+                                            espera.llegada().atZone(ZoneId.systemDefault())));
+                        }
                     }
-                }
-                // LISTADO DE REPARACIONES
-                case 5 -> {
-                    Matricula matricula = Interaccion.pedirMatricula();
-                    taller = Taller.buscarEnRegistroPorMatricula(matricula);
-                    // Validamos que devolvió la búsqueda
-                    System.out.println(taller == null
-                            ? "\nEse vehículo no está en el taller"
-                            : taller.toString());
-                }
-                // ELIMINAR VEHÍCULO
-                case 6 -> {
-                    Matricula matricula = Interaccion.pedirMatricula();
-                    // Usamos el booleano que devuelve el método para informar
-                    // sobre el resultado
-                    System.out.println(Taller.removeVehiculo(matricula)
-                            ? "Vehículo eliminado"
-                            : "Este vehículo no existe");
                 }
             }
+        } catch (NoSuchElementException e) {
+            // Se ha terminado la entrada (fin del guion o Ctrl+D)
+            salir();
+        }
+    }
+
+    /**
+     * Escribe una línea por cada grupo de unos totales del historial.
+     *
+     * @param totales Los totales de cada grupo.
+     */
+    private static void escribirTotales(Map<?, Taller.Totales> totales) {
+        if (totales.isEmpty()) {
+            System.out.println("No hay reparaciones");
+        }
+        totales.forEach((grupo, total) -> System.out.println(grupo + ": "
+                + total.reparaciones() + " reparaciones, " + euros(total.coste())));
+    }
+
+    /**
+     * Convierte un importe en céntimos en un texto en euros (ej. 49,90 €).
+     *
+     * @param centimos El importe en céntimos.
+     * @return El texto.
+     */
+    private static String euros(long centimos) {
+        return String.format("%d,%02d €", centimos / 100, centimos % 100);
+    }
+
+    /**
+     * Atiende las órdenes del servidor hasta que se detiene el programa. Al
+     * detenerlo se cierran el servidor y el diario.
+     *
+     * @param servidor El servidor ya abierto.
+     */
+    private static void servir(Servidor servidor) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            servidor.close();
+            salir();
+        }, "parada-taller"));
+        System.out.println("Servidor del taller escuchando en el puerto "
+                + servidor.getPuerto() + ". Ctrl+C para terminar.");
+        System.out.flush();
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Cierra el diario y vacía la salida antes de terminar el programa.
+     */
+    private static void salir() {
+        try {
+            Taller.cerrarDiario();
+        } catch (IOException e) {
+            System.out.println("No se ha podido cerrar el diario: "
+                    + e.getMessage());
         }
+        Interaccion.terminar();
     }
 }
@@ -0,0 +1,415 @@
+package taller;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import vehiculo.Diccionario;
+
+/**
+ * Almacén de los vehículos del registro fuera del montículo de Java, para
+ * talleres con millones de vehículos. En vez de un objeto Taller, un
+ * Vehiculo y un array de reparaciones por vehículo, los datos se guardan por
+ * columnas en buffers directos de enteros, que el recolector de basura no
+ * tiene que recorrer:
+ * <ul>
+ * <li>La clave de la matrícula.</li>
+ * <li>Los códigos de la marca, el modelo y el color (ver Diccionario).</li>
+ * <li>El número de reparaciones y dónde está su bloque.</li>
+ * </ul>
+ * Las reparaciones de cada vehículo se guardan en bloques de 1, 2, 4, 8...
+ * enteros de un área aparte. Cuando un bloque se llena se pasa a uno del
+ * doble, y los bloques que se sueltan se encadenan en una lista libre por
+ * tamaño para reutilizarlos. Cada entero de un bloque es la posición del
+ * texto de la reparación en otra área de bytes, en UTF-8 y con su longitud
+ * delante, en trozos de 16, 32, 64... bytes que también se reutilizan con
+ * una lista libre por tamaño. Los textos de las reparaciones son libres y
+ * casi todos distintos, así que no se guardan en un Diccionario, que no
+ * suelta nunca nada: al dar de baja un vehículo se suelta su espacio.
+ *
+ * Cada vehículo ocupa una "fila". Registro usa como fila el número de entrada
+ * del vehículo en su MapaMatriculas, así que las filas que deja libres
+ * removeVehiculo() se reutilizan con la lista de entradas libres del mapa.
+ *
+ * Como Registro, esta clase no se protege sola frente a accesos
+ * concurrentes.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class AlmacenDirecto {
+
+    /**
+     * Columnas de cada fila.
+     */
+    private static final int CLAVE = 0;
+    private static final int MARCA = 1;
+    private static final int MODELO = 2;
+    private static final int COLOR = 3;
+    private static final int NUMERO = 4;
+    private static final int BLOQUE = 5;
+    private static final int TAMANO_BLOQUE = 6;
+    private static final int COLUMNAS = 7;
+    /**
+     * Filas que se reservan al crear el almacén.
+     */
+    private static final int FILAS_INICIALES = 1024;
+    /**
+     * Posición de bloque que indica que no hay ninguno.
+     */
+    private static final int SIN_BLOQUE = -1;
+    /**
+     * Número máximo de enteros de un buffer directo.
+     */
+    private static final int MAXIMO_ENTEROS = (Integer.MAX_VALUE - 8) / 4;
+    /**
+     * Número máximo de bytes de un buffer directo.
+     */
+    private static final int MAXIMO_BYTES = Integer.MAX_VALUE - 8;
+    /**
+     * Tamaño del trozo más pequeño del área de textos, 1 &lt;&lt; 4 = 16
+     * bytes.
+     */
+    private static final int TROZO_MINIMO = 4;
+
+    /**
+     * Columnas, cada una en su buffer directo.
+     */
+    private final IntBuffer[] columnas = new IntBuffer[COLUMNAS];
+    /**
+     * Filas que caben en las columnas.
+     */
+    private int filas;
+    /**
+     * Área de los bloques de reparaciones.
+     */
+    private IntBuffer bloques;
+    /**
+     * Enteros del área de bloques usados alguna vez.
+     */
+    private int usados;
+    /**
+     * Primer bloque libre de cada tamaño (1 &lt;&lt; i enteros), o SIN_BLOQUE.
+     * El primer entero de un bloque libre guarda el siguiente de la lista.
+     */
+    private final int[] libres = new int[Integer.SIZE];
+    /**
+     * Área de los textos de las reparaciones.
+     */
+    private ByteBuffer textos;
+    /**
+     * Bytes del área de textos usados alguna vez.
+     */
+    private int bytesUsados;
+    /**
+     * Primer trozo libre de cada tamaño (1 &lt;&lt; i bytes), o SIN_BLOQUE.
+     * Los primeros cuatro bytes de un trozo libre guardan el siguiente de la
+     * lista.
+     */
+    private final int[] trozosLibres = new int[Integer.SIZE];
+
+    /**
+     * Constructor de la clase.
+     */
+    AlmacenDirecto() {
+        for (int c = 0; c < COLUMNAS; c++) {
+            columnas[c] = nuevoBuffer(0);
+        }
+        ampliarFilas(FILAS_INICIALES);
+        bloques = nuevoBuffer(FILAS_INICIALES);
+        Arrays.fill(libres, SIN_BLOQUE);
+        textos = nuevoBufferDeBytes(FILAS_INICIALES << TROZO_MINIMO);
+        Arrays.fill(trozosLibres, SIN_BLOQUE);
+    }
+
+    /**
+     * Guarda un vehículo en una fila, sustituyendo lo que hubiera.
+     *
+     * @param fila Número de fila.
+     * @param copia Datos del vehículo.
+     */
+    void escribir(int fila, Taller.Copia copia) {
+        if (fila >= filas) {
+            ampliarFilas(fila + 1);
+        } else {
+            liberar(fila);
+        }
+        columnas[CLAVE].put(fila, copia.clave());
+        columnas[MARCA].put(fila, Diccionario.MARCAS.codigo(copia.marca()));
+        columnas[MODELO].put(fila, Diccionario.MODELOS.codigo(copia.modelo()));
+        columnas[COLOR].put(fila, Diccionario.COLORES.codigo(copia.color()));
+        columnas[NUMERO].put(fila, 0);
+        columnas[BLOQUE].put(fila, SIN_BLOQUE);
+        for (int i = 0; i < copia.numero(); i++) {
+            agregarReparacion(fila, copia.reparaciones()[i]);
+        }
+    }
+
+    /**
+     * Suelta el bloque de reparaciones de una fila que ya no se usa, y los
+     * textos de sus reparaciones.
+     *
+     * @param fila Número de fila.
+     */
+    void liberar(int fila) {
+        int bloque = columnas[BLOQUE].get(fila);
+        if (bloque != SIN_BLOQUE) {
+            int numero = columnas[NUMERO].get(fila);
+            for (int i = 0; i < numero; i++) {
+                soltarTexto(bloques.get(bloque + i));
+            }
+            int tamano = columnas[TAMANO_BLOQUE].get(fila);
+            bloques.put(bloque, libres[tamano]);
+            libres[tamano] = bloque;
+        }
+        columnas[NUMERO].put(fila, 0);
+        columnas[BLOQUE].put(fila, SIN_BLOQUE);
+    }
+
+    /**
+     * Clave de la matrícula de una fila.
+     *
+     * @param fila Número de fila.
+     * @return La clave.
+     */
+    int clave(int fila) {
+        return columnas[CLAVE].get(fila);
+    }
+
+    /**
+     * Código de la marca de una fila.
+     *
+     * @param fila Número de fila.
+     * @return El código, o -1 si no tiene marca.
+     */
+    int marca(int fila) {
+        return columnas[MARCA].get(fila);
+    }
+
+    /**
+     * Código del modelo de una fila.
+     *
+     * @param fila Número de fila.
+     * @return El código, o -1 si no tiene modelo.
+     */
+    int modelo(int fila) {
+        return columnas[MODELO].get(fila);
+    }
+
+    /**
+     * Código del color de una fila.
+     *
+     * @param fila Número de fila.
+     * @return El código, o -1 si no tiene color.
+     */
+    int color(int fila) {
+        return columnas[COLOR].get(fila);
+    }
+
+    /**
+     * Número de reparaciones de una fila.
+     *
+     * @param fila Número de fila.
+     * @return El número de reparaciones.
+     */
+    int numeroDeReparaciones(int fila) {
+        return columnas[NUMERO].get(fila);
+    }
+
+    /**
+     * Agrega una reparación a una fila, sin comprobar ningún límite.
+     *
+     * @param fila Número de fila.
+     * @param reparacion Texto de la reparación.
+     */
+    void agregarReparacion(int fila, String reparacion) {
+        int numero = columnas[NUMERO].get(fila);
+        int bloque = columnas[BLOQUE].get(fila);
+        int tamano = columnas[TAMANO_BLOQUE].get(fila);
+        if (bloque == SIN_BLOQUE || numero == 1 << tamano) {
+            int nuevoTamano = bloque == SIN_BLOQUE ? 0 : tamano + 1;
+            int nuevo = reservarBloque(nuevoTamano);
+            for (int i = 0; i < numero; i++) {
+                bloques.put(nuevo + i, bloques.get(bloque + i));
+            }
+            if (bloque != SIN_BLOQUE) {
+                bloques.put(bloque, libres[tamano]);
+                libres[tamano] = bloque;
+            }
+            bloque = nuevo;
+            columnas[BLOQUE].put(fila, bloque);
+            columnas[TAMANO_BLOQUE].put(fila, nuevoTamano);
+        }
+        bloques.put(bloque + numero, guardarTexto(reparacion));
+        columnas[NUMERO].put(fila, numero + 1);
+    }
+
+    /**
+     * Crea un objeto Taller independiente con los datos de una fila.
+     *
+     * @param fila Número de fila.
+     * @return El objeto Taller.
+     */
+    Taller leer(int fila) {
+        int numero = columnas[NUMERO].get(fila);
+        int bloque = columnas[BLOQUE].get(fila);
+        String[] reparaciones = new String[numero];
+        for (int i = 0; i < numero; i++) {
+            reparaciones[i] = leerTexto(bloques.get(bloque + i));
+        }
+        return Taller.restaurar(clave(fila),
+                Diccionario.MARCAS.texto(marca(fila)),
+                Diccionario.MODELOS.texto(modelo(fila)),
+                Diccionario.COLORES.texto(color(fila)), reparaciones);
+    }
+
+    /**
+     * Crea un objeto Taller que no copia los datos de una fila sino que los
+     * lee y modifica directamente en el almacén. Solo es válido mientras la
+     * fila no se libere, así que se debe usar con el cerrojo de escritura
+     * tomado y no dejar que salga del registro.
+     *
+     * @param fila Número de fila.
+     * @return La vista.
+     */
+    Taller vista(int fila) {
+        return Taller.vista(this, fila);
+    }
+
+    /**
+     * Bytes que ocupa el almacén fuera del montículo.
+     *
+     * @return El número de bytes reservados.
+     */
+    long bytesReservados() {
+        return 4L * filas * COLUMNAS + 4L * bloques.capacity() + textos.capacity();
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Reserva un bloque de 1 &lt;&lt; tamano enteros, reutilizando uno libre si
+     * lo hay.
+     */
+    private int reservarBloque(int tamano) {
+        int bloque = libres[tamano];
+        if (bloque != SIN_BLOQUE) {
+            libres[tamano] = bloques.get(bloque);
+            return bloque;
+        }
+        int enteros = 1 << tamano;
+        if (usados + enteros > bloques.capacity()) {
+            if (usados + enteros > MAXIMO_ENTEROS) {
+                throw new IllegalStateException("No caben más reparaciones");
+            }
+            bloques = copiar(bloques, Math.max(usados + enteros,
+                    (int) Math.min(MAXIMO_ENTEROS, 2L * bloques.capacity())));
+        }
+        bloque = usados;
+        usados += enteros;
+        return bloque;
+    }
+
+    /**
+     * Guarda el texto de una reparación en un trozo del área de textos.
+     *
+     * @return La posición del trozo.
+     */
+    private int guardarTexto(String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        int trozo = reservarTrozo(tamanoTrozo(bytes.length));
+        textos.putInt(trozo, bytes.length);
+        textos.put(trozo + 4, bytes);
+        return trozo;
+    }
+
+    /**
+     * Lee el texto de una reparación de su trozo.
+     */
+    private String leerTexto(int trozo) {
+        byte[] bytes = new byte[textos.getInt(trozo)];
+        textos.get(trozo + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Suelta el trozo del texto de una reparación para reutilizarlo.
+     */
+    private void soltarTexto(int trozo) {
+        int tamano = tamanoTrozo(textos.getInt(trozo));
+        textos.putInt(trozo, trozosLibres[tamano]);
+        trozosLibres[tamano] = trozo;
+    }
+
+    /**
+     * Tamaño del trozo en el que cabe un texto con su longitud delante: el
+     * i del menor trozo de 1 &lt;&lt; i bytes.
+     */
+    private static int tamanoTrozo(int longitud) {
+        return Math.max(TROZO_MINIMO, Integer.SIZE - Integer.numberOfLeadingZeros(longitud + 3));
+    }
+
+    /**
+     * Reserva un trozo de 1 &lt;&lt; tamano bytes, reutilizando uno libre si
+     * lo hay.
+     */
+    private int reservarTrozo(int tamano) {
+        int trozo = trozosLibres[tamano];
+        if (trozo != SIN_BLOQUE) {
+            trozosLibres[tamano] = textos.getInt(trozo);
+            return trozo;
+        }
+        long bytes = 1L << tamano;
+        if (bytesUsados + bytes > textos.capacity()) {
+            if (bytesUsados + bytes > MAXIMO_BYTES) {
+                throw new IllegalStateException("No caben más reparaciones");
+            }
+            ByteBuffer ampliado = nuevoBufferDeBytes((int) Math.max(bytesUsados + bytes,
+                    Math.min(MAXIMO_BYTES, 2L * textos.capacity())));
+            ampliado.put(textos.duplicate().clear());
+            textos = ampliado.clear();
+        }
+        trozo = bytesUsados;
+        bytesUsados += (int) bytes;
+        return trozo;
+    }
+
+    /**
+     * Amplía las columnas para que quepan al menos unas filas.
+     */
+    private void ampliarFilas(int minimo) {
+        int nuevas = (int) Math.min(MAXIMO_ENTEROS, Math.max(minimo, 2L * filas));
+        for (int c = 0; c < COLUMNAS; c++) {
+            columnas[c] = copiar(columnas[c], nuevas);
+        }
+        for (int fila = filas; fila < nuevas; fila++) {
+            columnas[BLOQUE].put(fila, SIN_BLOQUE);
+        }
+        filas = nuevas;
+    }
+
+    /**
+     * Crea un buffer directo de enteros en el orden de bytes de la máquina.
+     */
+    private static IntBuffer nuevoBuffer(int enteros) {
+        return nuevoBufferDeBytes(enteros * 4).asIntBuffer();
+    }
+
+    /**
+     * Crea un buffer directo de bytes en el orden de bytes de la máquina.
+     */
+    private static ByteBuffer nuevoBufferDeBytes(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copia un buffer en otro más grande. El anterior se libera cuando el
+     * recolector recoge su objeto.
+     */
+    private static IntBuffer copiar(IntBuffer origen, int enteros) {
+        IntBuffer destino = nuevoBuffer(enteros);
+        destino.put(origen.duplicate().clear());
+        return destino.clear();
+    }
+}
@@ -0,0 +1,266 @@
+package taller;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import taller.Taller.Cambio;
+import vehiculo.Vehiculo;
+
+/**
+ * Anillo por el que los cambios del registro de una sede llegan a sus
+ * suscripciones (ver Sede.suscribir()), al estilo del "disruptor" de LMAX:
+ * un array fijo de ranuras que se reutilizan en círculo, numeradas por un
+ * contador que solo crece, sin cerrojos ni objetos nuevos al escribir.
+ *
+ * Solo escribe quien tiene el cerrojo de escritura de la sede, así que hay un
+ * único escritor en cada momento. Cada cambio se escribe en su ranura al
+ * hacerse, y las suscripciones lo ven cuando se publica, después de soltar el
+ * cerrojo y de confirmar el diario (ver Sede.modificar()): un suscriptor
+ * nunca recibe un cambio que se pueda perder al caerse el programa. Cada
+ * suscripción lee a su ritmo desde su propio hilo, todo lo que encuentra
+ * publicado de una vez (ver Suscripcion).
+ *
+ * El escritor nunca espera a las suscripciones: si una se queda tan atrás
+ * que el escritor vuelve a su ranura, esos cambios se pierden para ella, que
+ * lo sabe porque los números de los cambios que recibe dejan de ir seguidos.
+ * Para saber si una ranura que ha leído se ha sobrescrito mientras tanto,
+ * el escritor anuncia cada número antes de escribir su ranura, y la
+ * suscripción compara el último anunciado después de leerla, como en un
+ * "seqlock".
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+final class AnilloDeCambios {
+
+    /**
+     * Cambios que caben en el anillo. Una suscripción que se queda más
+     * atrás empieza a perderlos.
+     */
+    static final int CAMBIOS = 1 << 16;
+
+    private static final VarHandle ESCRITOS;
+    private static final VarHandle PUBLICADOS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ESCRITOS = lookup.findVarHandle(AnilloDeCambios.class, "escritos", long.class);
+            PUBLICADOS = lookup.findVarHandle(AnilloDeCambios.class, "publicados", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Ranura del anillo con los datos de un cambio. Los datos del vehículo
+     * y las reparaciones se guardan por referencia: el vehículo no cambia
+     * nunca y las posiciones ocupadas de las reparaciones tampoco.
+     */
+    static final class Ranura {
+
+        Cambio.Tipo tipo;
+        int clave;
+        /**
+         * Datos del vehículo de un alta o una actualización, o "null".
+         */
+        Vehiculo vehiculo;
+        /**
+         * Reparaciones de un alta o una actualización y cuántas están
+         * ocupadas, o "null".
+         */
+        String[] reparaciones;
+        int numero;
+        /**
+         * Reparación nueva de un cambio REPARACION, o "null".
+         */
+        String reparacion;
+    }
+
+    private final Ranura[] ranuras = new Ranura[CAMBIOS];
+    /**
+     * Número de cambios anunciados: el siguiente se escribe en la ranura
+     * escritos % CAMBIOS. Solo lo modifica el escritor.
+     */
+    private long escritos;
+    /**
+     * Número de cambios publicados, que las suscripciones ya pueden leer.
+     */
+    private long publicados;
+    private final List<Suscripcion> suscripciones = new CopyOnWriteArrayList<>();
+
+    AnilloDeCambios() {
+        for (int i = 0; i < CAMBIOS; i++) {
+            ranuras[i] = new Ranura();
+        }
+    }
+
+    /* ------------------------------------ */
+ /* ESCRITURA, CON EL CERROJO DE LA SEDE */
+ /* ------------------------------------ */
+    /**
+     * Anota el alta o la actualización de un vehículo.
+     *
+     * @param tipo ALTA o ACTUALIZACION.
+     * @param vehiculo Datos del vehículo.
+     * @param reparaciones Reparaciones del vehículo.
+     * @param numero Cuántas reparaciones están ocupadas.
+     */
+    void vehiculo(Cambio.Tipo tipo, Vehiculo vehiculo, String[] reparaciones,
+            int numero) {
+        Ranura ranura = anunciar();
+        if (ranura != null) {
+            ranura.tipo = tipo;
+            ranura.clave = vehiculo.getClaveMatricula();
+            ranura.vehiculo = vehiculo;
+            ranura.reparaciones = reparaciones;
+            ranura.numero = numero;
+            ranura.reparacion = null;
+        }
+    }
+
+    /**
+     * Anota una reparación nueva de un vehículo del registro.
+     *
+     * @param clave Clave de la matrícula.
+     * @param reparacion Nombre de la reparación.
+     */
+    void reparacion(int clave, String reparacion) {
+        Ranura ranura = anunciar();
+        if (ranura != null) {
+            ranura.tipo = Cambio.Tipo.REPARACION;
+            ranura.clave = clave;
+            ranura.vehiculo = null;
+            ranura.reparaciones = null;
+            ranura.reparacion = reparacion;
+        }
+    }
+
+    /**
+     * Anota la baja de un vehículo.
+     *
+     * @param clave Clave de la matrícula.
+     */
+    void baja(int clave) {
+        Ranura ranura = anunciar();
+        if (ranura != null) {
+            ranura.tipo = Cambio.Tipo.BAJA;
+            ranura.clave = clave;
+            ranura.vehiculo = null;
+            ranura.reparaciones = null;
+            ranura.reparacion = null;
+        }
+    }
+
+    /**
+     * Número de cambios anotados hasta ahora, para publicarlos después con
+     * publicar().
+     *
+     * @return El número.
+     */
+    long getEscritos() {
+        return escritos;
+    }
+
+    /* -------------------------------- */
+ /* PUBLICACION, SIN CERROJO DE SEDE */
+ /* -------------------------------- */
+    /**
+     * Publica los cambios anotados hasta un número y despierta a las
+     * suscripciones que estén esperando. Varios hilos pueden publicar a la
+     * vez y en cualquier orden: el número publicado solo crece.
+     *
+     * @param hasta Resultado de getEscritos() al terminar de anotarlos.
+     */
+    void publicar(long hasta) {
+        long anterior = (long) PUBLICADOS.getVolatile(this);
+        while (anterior < hasta) {
+            long visto = (long) PUBLICADOS.compareAndExchange(this, anterior, hasta);
+            if (visto == anterior) {
+                break;
+            }
+            anterior = visto;
+        }
+        if (anterior >= hasta) {
+            return;
+        }
+        for (Suscripcion suscripcion : suscripciones) {
+            suscripcion.despertar();
+        }
+    }
+
+    /* -------------------------------- */
+ /* LECTURA, DESDE LAS SUSCRIPCIONES */
+ /* -------------------------------- */
+    /**
+     * Crea una suscripción que empieza a recibir los cambios que se publiquen
+     * a partir de ahora, y arranca su hilo.
+     *
+     * @param nombre Nombre del hilo.
+     * @param accion Lo que se hace con cada lote de cambios.
+     * @return La suscripción.
+     */
+    Suscripcion suscribir(String nombre, Consumer<List<Cambio>> accion) {
+        Suscripcion suscripcion = new Suscripcion(this, nombre, accion, getPublicados());
+        suscripciones.add(suscripcion);
+        suscripcion.arrancar();
+        return suscripcion;
+    }
+
+    void quitar(Suscripcion suscripcion) {
+        suscripciones.remove(suscripcion);
+    }
+
+    /**
+     * Número de cambios publicados.
+     *
+     * @return El número.
+     */
+    long getPublicados() {
+        return (long) PUBLICADOS.getVolatile(this);
+    }
+
+    /**
+     * Ranura en la que se escribió un cambio. Sus datos solo valen si, después
+     * de leerlos, valido() dice que no se ha vuelto a escribir.
+     *
+     * @param numero Número del cambio, menor que getPublicados().
+     * @return La ranura.
+     */
+    Ranura ranura(long numero) {
+        return ranuras[(int) numero & (CAMBIOS - 1)];
+    }
+
+    /**
+     * Primer cambio cuya ranura sigue intacta. Se debe llamar después de
+     * leer las ranuras que se quieren comprobar.
+     *
+     * @return Número del cambio: los anteriores se han sobrescrito o se
+     * pueden estar sobrescribiendo.
+     */
+    long primeroIntacto() {
+        VarHandle.loadLoadFence();
+        return (long) ESCRITOS.getOpaque(this) - CAMBIOS;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Anuncia el siguiente cambio antes de escribirlo en su ranura, para que
+     * quien la esté leyendo sepa que se sobrescribe.
+     *
+     * @return La ranura del cambio, o "null" si no hay suscripciones y no
+     * hace falta anotarlo.
+     */
+    private Ranura anunciar() {
+        if (suscripciones.isEmpty()) {
+            return null;
+        }
+        long numero = escritos;
+        ESCRITOS.setOpaque(this, numero + 1);
+        VarHandle.storeStoreFence();
+        return ranuras[(int) numero & (CAMBIOS - 1)];
+    }
+}
@@ -0,0 +1,540 @@
+package taller;
+
+import java.util.Arrays;
+
+/**
+ * Caché de tamaño limitado de los vehículos que el registro lee de la
+ * instantánea o del AlmacenDirecto, indexada por la clave entera de la
+ * matrícula. Leer un vehículo de ahí obliga a buscarlo y a decodificar sus
+ * textos en objetos nuevos; con la caché, las búsquedas repetidas de los
+ * vehículos más consultados solo copian el objeto ya leído (ver
+ * Taller.clonar()), y quien lo recibe lo puede modificar sin afectar a la
+ * caché.
+ *
+ * Cuando está llena, el vehículo que sale se elige según la PoliticaCache:
+ * <ul>
+ * <li>LRU: una lista por orden de uso; sale el último.</li>
+ * <li>LFU: cada vehículo cuenta sus búsquedas, y sale el que menos tiene de
+ * unos pocos elegidos al azar, como aproximación barata del que menos tiene
+ * de todos. Cada 10 búsquedas por vehículo que cabe, las cuentas se reducen
+ * a la mitad.</li>
+ * <li>W_TINY_LFU: una ventana LRU con el 1 % de la caché y el resto en dos
+ * listas por orden de uso: "en prueba", adonde llegan los que salen de la
+ * ventana, y "protegida" (el 80 %), adonde pasan los de prueba que se vuelven
+ * a buscar. El que sale de la ventana solo entra en prueba, desalojando al
+ * último de ella, si se ha buscado más veces que él. Las veces se cuentan
+ * aproximadamente en una tabla pequeña (ver Frecuencias) que también cuenta
+ * los vehículos que no están en la caché.</li>
+ * </ul>
+ *
+ * Las búsquedas del registro se hacen con el cerrojo de lectura, que
+ * comparten varios hilos, y hasta un acierto cambia el orden de las listas,
+ * así que la caché se divide por la clave en segmentos, cada uno con su
+ * propio monitor y su parte de la capacidad. En cambio invalidar() y vaciar()
+ * se llaman con el cerrojo de escritura del registro tomado, justo antes de
+ * modificar el vehículo: ninguna búsqueda puede volver a guardar el dato
+ * viejo entre la invalidación y el cambio.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+final class CacheDeVehiculos {
+
+    /**
+     * Vehículos que debe admitir como mínimo cada segmento.
+     */
+    private static final int MINIMO_POR_SEGMENTO = 1024;
+
+    private final PoliticaCache politica;
+    private final int capacidad;
+    private final Segmento[] segmentos;
+    /**
+     * Desplazamiento y máscara que eligen el segmento con los bits altos de
+     * la clave dispersa. Los bajos son los que usa la tabla hash de cada
+     * segmento.
+     */
+    private final int desplazamiento;
+    private final int mascara;
+
+    /**
+     * Constructor de la clase.
+     *
+     * @param capacidad Número máximo de vehículos, positivo.
+     * @param politica Cómo se elige el que sale cuando está llena.
+     */
+    CacheDeVehiculos(int capacidad, PoliticaCache politica) {
+        this.politica = politica;
+        this.capacidad = capacidad;
+        int numero = 1;
+        int maximo = 4 * Runtime.getRuntime().availableProcessors();
+        while (numero < maximo && capacidad / (numero * 2) >= MINIMO_POR_SEGMENTO) {
+            numero *= 2;
+        }
+        this.segmentos = new Segmento[numero];
+        for (int i = 0; i < numero; i++) {
+            segmentos[i] = new Segmento(capacidad / numero
+                    + (i < capacidad % numero ? 1 : 0), politica);
+        }
+        this.mascara = numero - 1;
+        this.desplazamiento = Integer.SIZE - Integer.numberOfTrailingZeros(numero);
+    }
+
+    /**
+     * Busca un vehículo en la caché.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Una copia del vehículo guardado, o "null" si no está.
+     */
+    Taller obtener(int clave) {
+        Taller guardado = segmento(clave).obtener(clave);
+        return guardado == null ? null : guardado.clonar();
+    }
+
+    /**
+     * Guarda un vehículo recién leído. Si ya estaba (otra búsqueda lo ha
+     * leído a la vez), se sustituye.
+     *
+     * @param clave Clave de la matrícula.
+     * @param taller El vehículo, que ya no se debe modificar ni entregar a
+     * nadie: las búsquedas entregan copias de él.
+     */
+    void poner(int clave, Taller taller) {
+        segmento(clave).poner(clave, taller);
+    }
+
+    /**
+     * Quita un vehículo que se va a modificar o eliminar. Se debe llamar con
+     * el cerrojo de escritura del registro tomado.
+     *
+     * @param clave Clave de la matrícula.
+     */
+    void invalidar(int clave) {
+        segmento(clave).invalidar(clave);
+    }
+
+    /**
+     * Quita todos los vehículos, conservando las estadísticas. Se debe
+     * llamar con el cerrojo de escritura del registro tomado.
+     */
+    void vaciar() {
+        for (Segmento segmento : segmentos) {
+            segmento.vaciar();
+        }
+    }
+
+    /**
+     * Suma las estadísticas de todos los segmentos.
+     *
+     * @return Las estadísticas.
+     */
+    Taller.EstadisticasCache estadisticas() {
+        int vehiculos = 0;
+        long aciertos = 0;
+        long fallos = 0;
+        long desalojos = 0;
+        long invalidaciones = 0;
+        for (Segmento segmento : segmentos) {
+            synchronized (segmento) {
+                vehiculos += segmento.mapa.tamano();
+                aciertos += segmento.aciertos;
+                fallos += segmento.fallos;
+                desalojos += segmento.desalojos;
+                invalidaciones += segmento.invalidaciones;
+            }
+        }
+        return new Taller.EstadisticasCache(politica, capacidad, vehiculos,
+                aciertos, fallos, desalojos, invalidaciones);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    private Segmento segmento(int clave) {
+        int h = clave * 0x85EBCA6B;
+        return segmentos[(h >>> desplazamiento) & mascara];
+    }
+
+    /**
+     * Parte de la caché con su propio monitor. Los vehículos se guardan en
+     * un MapaMatriculas, cuyos números de entrada, que se reutilizan al
+     * borrar, sirven de índice en los arrays de las listas. Como nunca hay
+     * más de capacidad + 1 vehículos (el nuevo entra antes de que salga
+     * otro), las entradas no pasan de ese número.
+     */
+    private static final class Segmento {
+
+        /**
+         * Listas de la caché. Con LRU y LFU solo se usa VENTANA, y con LFU
+         * su orden no importa.
+         */
+        private static final byte VENTANA = 0;
+        private static final byte PRUEBA = 1;
+        private static final byte PROTEGIDA = 2;
+        /**
+         * Vehículos que se comparan para elegir el que sale con LFU.
+         */
+        private static final int MUESTRA_LFU = 8;
+
+        private final PoliticaCache politica;
+        private final int capacidad;
+        /**
+         * Tamaño máximo de la ventana y de la lista protegida con
+         * W_TINY_LFU.
+         */
+        private final int maximoVentana;
+        private final int maximoProtegida;
+        private final MapaMatriculas<Taller> mapa = new MapaMatriculas<>();
+        /**
+         * Por entrada: la lista en la que está, las entradas vecinas en ella
+         * y, con LFU, sus búsquedas. Crecen con el número de entradas, hasta
+         * capacidad + 1.
+         */
+        private byte[] lista = new byte[0];
+        private int[] anterior = new int[0];
+        private int[] siguiente = new int[0];
+        private int[] usos;
+        /**
+         * Primera y última entrada, y tamaño, de cada lista.
+         */
+        private final int[] primera = new int[3];
+        private final int[] ultima = new int[3];
+        private final int[] tamano = new int[3];
+        /**
+         * Búsquedas contadas con LFU desde la última reducción.
+         */
+        private int accesos;
+        /**
+         * Estado del generador de números al azar de LFU.
+         */
+        private int azar = 0x2545F491;
+        /**
+         * Frecuencias de W_TINY_LFU, que se crean con la primera búsqueda.
+         */
+        private Frecuencias frecuencias;
+
+        private long aciertos;
+        private long fallos;
+        private long desalojos;
+        private long invalidaciones;
+
+        private Segmento(int capacidad, PoliticaCache politica) {
+            this.capacidad = capacidad;
+            this.politica = politica;
+            this.maximoVentana = Math.max(1, capacidad / 100);
+            this.maximoProtegida = (capacidad - maximoVentana) * 8 / 10;
+            Arrays.fill(primera, MapaMatriculas.NINGUNA);
+            Arrays.fill(ultima, MapaMatriculas.NINGUNA);
+            if (politica == PoliticaCache.LFU) {
+                usos = new int[0];
+            }
+        }
+
+        private synchronized Taller obtener(int clave) {
+            if (politica == PoliticaCache.W_TINY_LFU) {
+                if (frecuencias == null) {
+                    frecuencias = new Frecuencias(capacidad);
+                }
+                frecuencias.contar(clave);
+            }
+            int entrada = mapa.entrada(clave);
+            if (entrada == MapaMatriculas.NINGUNA) {
+                fallos++;
+                return null;
+            }
+            aciertos++;
+            switch (politica) {
+                case LRU ->
+                    alPrincipio(VENTANA, desenlazar(entrada));
+                case LFU ->
+                    usar(entrada);
+                case W_TINY_LFU -> {
+                    byte donde = lista[entrada];
+                    desenlazar(entrada);
+                    if (donde == VENTANA) {
+                        alPrincipio(VENTANA, entrada);
+                    } else {
+                        alPrincipio(PROTEGIDA, entrada);
+                        if (tamano[PROTEGIDA] > maximoProtegida) {
+                            alPrincipio(PRUEBA, desenlazar(ultima[PROTEGIDA]));
+                        }
+                    }
+                }
+            }
+            return mapa.valor(entrada);
+        }
+
+        private synchronized void poner(int clave, Taller taller) {
+            if (mapa.poner(clave, taller) != null) {
+                return;
+            }
+            int entrada = mapa.entrada(clave);
+            if (entrada >= lista.length) {
+                ampliar(entrada + 1);
+            }
+            alPrincipio(VENTANA, entrada);
+            switch (politica) {
+                case LRU -> {
+                    if (mapa.tamano() > capacidad) {
+                        desalojar(ultima[VENTANA]);
+                    }
+                }
+                case LFU -> {
+                    usos[entrada] = 0;
+                    usar(entrada);
+                    if (mapa.tamano() > capacidad) {
+                        desalojar(menosUsada(entrada));
+                    }
+                }
+                case W_TINY_LFU -> {
+                    if (tamano[VENTANA] > maximoVentana) {
+                        admitir(desenlazar(ultima[VENTANA]));
+                    }
+                }
+            }
+        }
+
+        private void invalidar(int clave) {
+            // Con el cerrojo de escritura del registro nadie más usa la
+            // caché, así que se puede ver sin el monitor si está vacía, que
+            // es lo normal cuando el registro no tiene instantánea
+            if (mapa.tamano() == 0) {
+                return;
+            }
+            synchronized (this) {
+                int entrada = mapa.entrada(clave);
+                if (entrada != MapaMatriculas.NINGUNA) {
+                    desenlazar(entrada);
+                    mapa.quitar(clave);
+                    invalidaciones++;
+                }
+            }
+        }
+
+        private synchronized void vaciar() {
+            for (int l = VENTANA; l <= PROTEGIDA; l++) {
+                while (primera[l] != MapaMatriculas.NINGUNA) {
+                    mapa.quitar(mapa.clave(desenlazar(primera[l])));
+                }
+            }
+        }
+
+        /**
+         * Decide con W_TINY_LFU si el que ha salido de la ventana entra en
+         * la lista de prueba o sale de la caché.
+         *
+         * @param candidata Entrada que ha salido de la ventana, ya
+         * desenlazada.
+         */
+        private void admitir(int candidata) {
+            if (tamano[PRUEBA] + tamano[PROTEGIDA] < capacidad - maximoVentana) {
+                alPrincipio(PRUEBA, candidata);
+                return;
+            }
+            int victima = ultima[PRUEBA] != MapaMatriculas.NINGUNA
+                    ? ultima[PRUEBA]
+                    : ultima[PROTEGIDA];
+            if (victima != MapaMatriculas.NINGUNA
+                    && frecuencias.frecuencia(mapa.clave(candidata))
+                    > frecuencias.frecuencia(mapa.clave(victima))) {
+                desalojar(victima);
+                alPrincipio(PRUEBA, candidata);
+            } else {
+                desalojar(candidata);
+            }
+        }
+
+        /**
+         * Cuenta una búsqueda de una entrada con LFU y, cada 10 por vehículo
+         * que cabe, reduce todas las cuentas a la mitad.
+         */
+        private void usar(int entrada) {
+            if (usos[entrada] < Integer.MAX_VALUE) {
+                usos[entrada]++;
+            }
+            if (++accesos >= 10L * capacidad) {
+                for (int i = 0; i < usos.length; i++) {
+                    usos[i] >>>= 1;
+                }
+                accesos = 0;
+            }
+        }
+
+        /**
+         * Elige con LFU la entrada que sale: la menos usada de unas cuantas
+         * elegidas al azar. Solo se llama con la caché llena, cuando todas
+         * las entradas de 0 a capacidad están ocupadas.
+         *
+         * @param nueva Entrada recién guardada, que no puede salir.
+         */
+        private int menosUsada(int nueva) {
+            int elegida = MapaMatriculas.NINGUNA;
+            for (int i = 0; i < MUESTRA_LFU; i++) {
+                // xorshift de 32 bits
+                azar ^= azar << 13;
+                azar ^= azar >>> 17;
+                azar ^= azar << 5;
+                int entrada = (int) ((azar & 0xFFFFFFFFL) * capacidad >>> Integer.SIZE);
+                if (entrada >= nueva) {
+                    entrada++;
+                }
+                if (elegida == MapaMatriculas.NINGUNA || usos[entrada] < usos[elegida]) {
+                    elegida = entrada;
+                }
+            }
+            return elegida;
+        }
+
+        /**
+         * Saca una entrada de su lista, si está en alguna, y de la caché.
+         */
+        private void desalojar(int entrada) {
+            desenlazar(entrada);
+            mapa.quitar(mapa.clave(entrada));
+            desalojos++;
+        }
+
+        /**
+         * Saca una entrada de su lista. No hace nada si no está en ninguna.
+         *
+         * @return La entrada.
+         */
+        private int desenlazar(int entrada) {
+            int l = lista[entrada];
+            if (l < 0) {
+                return entrada;
+            }
+            int previa = anterior[entrada];
+            int proxima = siguiente[entrada];
+            if (previa == MapaMatriculas.NINGUNA) {
+                primera[l] = proxima;
+            } else {
+                siguiente[previa] = proxima;
+            }
+            if (proxima == MapaMatriculas.NINGUNA) {
+                ultima[l] = previa;
+            } else {
+                anterior[proxima] = previa;
+            }
+            tamano[l]--;
+            lista[entrada] = -1;
+            return entrada;
+        }
+
+        /**
+         * Pone al principio de una lista una entrada que no está en ninguna.
+         */
+        private void alPrincipio(byte l, int entrada) {
+            lista[entrada] = l;
+            anterior[entrada] = MapaMatriculas.NINGUNA;
+            siguiente[entrada] = primera[l];
+            if (primera[l] == MapaMatriculas.NINGUNA) {
+                ultima[l] = entrada;
+            } else {
+                anterior[primera[l]] = entrada;
+            }
+            primera[l] = entrada;
+            tamano[l]++;
+        }
+
+        /**
+         * Amplía los arrays por entrada para que quepa un número de
+         * entradas, duplicándolos sin pasar de capacidad + 1.
+         */
+        private void ampliar(int entradas) {
+            int nuevo = Math.min(capacidad + 1, Math.max(entradas, 2 * lista.length));
+            int usadas = lista.length;
+            lista = Arrays.copyOf(lista, nuevo);
+            Arrays.fill(lista, usadas, nuevo, (byte) -1);
+            anterior = Arrays.copyOf(anterior, nuevo);
+            siguiente = Arrays.copyOf(siguiente, nuevo);
+            if (usos != null) {
+                usos = Arrays.copyOf(usos, nuevo);
+            }
+        }
+    }
+
+    /**
+     * Cuenta aproximada de las búsquedas de cada clave, en poco espacio: un
+     * "count-min sketch" de cuatro filas con contadores de 4 bits, 16 por
+     * long. Cada clave suma en un contador de cada fila, elegido con bits
+     * distintos de su dispersión, y su cuenta es el menor de los cuatro, que
+     * puede pasarse por las colisiones pero nunca quedarse corto. Los cuatro
+     * contadores de una clave están en el mismo bloque de 8 longs (64 bytes,
+     * una línea de la caché del procesador), así que contar y consultar solo
+     * tocan una línea. Cuando se han sumado 10 cuentas por vehículo que cabe
+     * en la caché, todos los contadores se reducen a la mitad, de forma que
+     * cuenta más lo reciente.
+     */
+    private static final class Frecuencias {
+
+        private static final int MAXIMO = 15;
+
+        private final long[] contadores;
+        /**
+         * Desplazamiento que deja, de una dispersión de 64 bits, los bits
+         * del número de bloque.
+         */
+        private final int desplazamiento;
+        private final int periodo;
+        private int sumas;
+
+        /**
+         * Crea una tabla con unos 16 contadores por vehículo que cabe.
+         *
+         * @param capacidad Vehículos que caben en la caché.
+         */
+        private Frecuencias(int capacidad) {
+            int longitud = Integer.highestOneBit(Math.max(8, capacidad - 1)) << 1;
+            this.contadores = new long[longitud];
+            this.desplazamiento = Long.SIZE + 3 - Integer.numberOfTrailingZeros(longitud);
+            this.periodo = (int) Math.min(Integer.MAX_VALUE, 10L * capacidad);
+        }
+
+        private int frecuencia(int clave) {
+            long x = mezclar(clave);
+            int bloque = bloque(x);
+            int minimo = MAXIMO;
+            for (int fila = 0; fila < 4; fila++) {
+                int bits = (int) (x >>> (fila << 3));
+                minimo = Math.min(minimo, (int) (contadores[bloque + (fila << 1) + (bits & 1)]
+                        >>> ((bits >>> 1 & 15) << 2)) & MAXIMO);
+            }
+            return minimo;
+        }
+
+        private void contar(int clave) {
+            long x = mezclar(clave);
+            int bloque = bloque(x);
+            boolean sumado = false;
+            for (int fila = 0; fila < 4; fila++) {
+                int bits = (int) (x >>> (fila << 3));
+                int i = bloque + (fila << 1) + (bits & 1);
+                int desplazado = (bits >>> 1 & 15) << 2;
+                if (((contadores[i] >>> desplazado) & MAXIMO) < MAXIMO) {
+                    contadores[i] += 1L << desplazado;
+                    sumado = true;
+                }
+            }
+            if (sumado && ++sumas >= periodo) {
+                for (int i = 0; i < contadores.length; i++) {
+                    contadores[i] = (contadores[i] >>> 1) & 0x7777777777777777L;
+                }
+                sumas /= 2;
+            }
+        }
+
+        /**
+         * Primer long del bloque de una clave, elegido con los bits altos
+         * de su dispersión; los bajos eligen los contadores dentro de él.
+         */
+        private int bloque(long x) {
+            return (int) (x >>> desplazamiento) << 3;
+        }
+
+        private static long mezclar(int clave) {
+            long x = clave * 0x9E3779B97F4A7C15L;
+            x ^= x >>> 32;
+            x *= 0xC2B2AE3D27D4EB4FL;
+            return x ^ (x >>> 29);
+        }
+    }
+}
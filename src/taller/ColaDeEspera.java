@@ -0,0 +1,251 @@
+package taller;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import vehiculo.Matricula;
+import vehiculo.Vehiculo;
+
+/**
+ * Cola de los vehículos que esperan sitio en el taller, ordenada por
+ * urgencia y, dentro de cada urgencia, por orden de llegada.
+ *
+ * Es un montículo binario guardado en arrays paralelos: agregar, sacar el
+ * primero y quitar cualquier vehículo cuestan O(log n). La prioridad de cada
+ * vehículo es un solo long, con la urgencia en los bits altos y un número de
+ * llegada que siempre crece en los bajos, así que comparar dos vehículos es
+ * comparar dos números y los de la misma urgencia nunca empatan. Un
+ * MapaMatriculas da la posición de cada vehículo en el montículo para
+ * saber si ya está en la cola o quitarlo sin buscarlo.
+ *
+ * Como Registro, esta clase no se protege sola frente a accesos
+ * concurrentes: Taller la usa con su cerrojo tomado.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class ColaDeEspera {
+
+    /**
+     * Bits de la prioridad que ocupa el número de llegada.
+     */
+    private static final int BITS_LLEGADA = 56;
+    private static final int TAMANO_INICIAL = 16;
+    private static final Urgencia[] URGENCIAS = Urgencia.values();
+
+    /**
+     * Montículo: prioridad, vehículo, instante de llegada (en milisegundos)
+     * y número de entrada en "posiciones" de cada hueco. El hueco 0 es el
+     * primero de la cola y los hijos del hueco i son 2i+1 y 2i+2.
+     */
+    private long[] prioridades = new long[TAMANO_INICIAL];
+    private Taller[] talleres = new Taller[TAMANO_INICIAL];
+    private long[] llegadas = new long[TAMANO_INICIAL];
+    private int[] entradas = new int[TAMANO_INICIAL];
+    private int tamano;
+    /**
+     * Vehículos en la cola. Su número de entrada en el mapa es la posición
+     * en "huecos" del hueco que ocupan en el montículo.
+     */
+    private final MapaMatriculas<Object> posiciones = new MapaMatriculas<>();
+    private int[] huecos = new int[TAMANO_INICIAL];
+    /**
+     * Número de la última llegada.
+     */
+    private long ultimaLlegada;
+
+    /**
+     * Número de vehículos en la cola.
+     *
+     * @return Cuántos esperan.
+     */
+    int tamano() {
+        return tamano;
+    }
+
+    /**
+     * Informa si un vehículo está en la cola.
+     *
+     * @param clave Clave de la matrícula.
+     * @return "true" si espera.
+     */
+    boolean contiene(int clave) {
+        return posiciones.contiene(clave);
+    }
+
+    /**
+     * Agrega un vehículo que no está en la cola.
+     *
+     * @param taller El vehículo.
+     * @param urgencia Su urgencia.
+     * @param llegada Instante de llegada, en milisegundos.
+     */
+    void agregar(Taller taller, Urgencia urgencia, long llegada) {
+        if (tamano == prioridades.length) {
+            int nuevo = tamano * 2;
+            prioridades = Arrays.copyOf(prioridades, nuevo);
+            talleres = Arrays.copyOf(talleres, nuevo);
+            llegadas = Arrays.copyOf(llegadas, nuevo);
+            entradas = Arrays.copyOf(entradas, nuevo);
+        }
+        posiciones.poner(taller.getVehiculo().getClaveMatricula(), null);
+        int entrada = posiciones.entrada(taller.getVehiculo().getClaveMatricula());
+        if (entrada >= huecos.length) {
+            huecos = Arrays.copyOf(huecos, Math.max(entrada + 1, huecos.length * 2));
+        }
+        // Cuanto más urgente, menor prioridad, para que salga antes
+        long prioridad = (long) (URGENCIAS.length - 1 - urgencia.ordinal()) << BITS_LLEGADA
+                | ++ultimaLlegada;
+        colocar(tamano, prioridad, taller, llegada, entrada);
+        subir(tamano++);
+    }
+
+    /**
+     * Datos de la espera del vehículo que saldrá el primero de la cola.
+     *
+     * @return Los datos, o "null" si la cola está vacía.
+     */
+    Taller.Espera primera() {
+        return tamano == 0 ? null : espera(0);
+    }
+
+    /**
+     * Saca de la cola el primer vehículo.
+     *
+     * @return El vehículo, o "null" si la cola está vacía.
+     */
+    Taller sacar() {
+        if (tamano == 0) {
+            return null;
+        }
+        Taller taller = talleres[0];
+        quitarHueco(0);
+        return taller;
+    }
+
+    /**
+     * Quita un vehículo de la cola, esté donde esté.
+     *
+     * @param clave Clave de la matrícula.
+     * @return "true" si estaba en la cola.
+     */
+    boolean quitar(int clave) {
+        int entrada = posiciones.entrada(clave);
+        if (entrada == MapaMatriculas.NINGUNA) {
+            return false;
+        }
+        quitarHueco(huecos[entrada]);
+        return true;
+    }
+
+    /**
+     * Lista los vehículos de la cola en el orden en que entrarán en el
+     * taller. Cuesta O(n log n).
+     *
+     * @return Los vehículos y los datos de su espera.
+     */
+    List<Taller.Espera> enOrden() {
+        Integer[] orden = new Integer[tamano];
+        for (int i = 0; i < tamano; i++) {
+            orden[i] = i;
+        }
+        Arrays.sort(orden, (a, b) -> Long.compare(prioridades[a], prioridades[b]));
+        Taller.Espera[] esperas = new Taller.Espera[tamano];
+        for (int i = 0; i < tamano; i++) {
+            esperas[i] = espera(orden[i]);
+        }
+        return List.of(esperas);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Datos de la espera del vehículo de un hueco.
+     */
+    private Taller.Espera espera(int hueco) {
+        Vehiculo vehiculo = talleres[hueco].getVehiculo();
+        return new Taller.Espera(Matricula.fromKey(vehiculo.getClaveMatricula()),
+                vehiculo.getMarca(), vehiculo.getModelo(), vehiculo.getColor(),
+                URGENCIAS[URGENCIAS.length - 1 - (int) (prioridades[hueco] >>> BITS_LLEGADA)],
+                Instant.ofEpochMilli(llegadas[hueco]));
+    }
+
+    /**
+     * Quita el vehículo de un hueco y pone en su lugar el del último hueco.
+     */
+    private void quitarHueco(int hueco) {
+        posiciones.quitar(posiciones.clave(entradas[hueco]));
+        int ultimo = --tamano;
+        if (hueco != ultimo) {
+            colocar(hueco, prioridades[ultimo], talleres[ultimo], llegadas[ultimo],
+                    entradas[ultimo]);
+            // El que se mueve puede tener que ir hacia arriba o hacia abajo
+            if (!subir(hueco)) {
+                bajar(hueco);
+            }
+        }
+        talleres[ultimo] = null;
+    }
+
+    /**
+     * Sube un vehículo mientras tenga más prioridad que su padre.
+     *
+     * @return "true" si se ha movido.
+     */
+    private boolean subir(int hueco) {
+        int inicial = hueco;
+        long prioridad = prioridades[hueco];
+        Taller taller = talleres[hueco];
+        long llegada = llegadas[hueco];
+        int entrada = entradas[hueco];
+        while (hueco > 0) {
+            int padre = (hueco - 1) >>> 1;
+            if (prioridades[padre] <= prioridad) {
+                break;
+            }
+            colocar(hueco, prioridades[padre], talleres[padre], llegadas[padre],
+                    entradas[padre]);
+            hueco = padre;
+        }
+        colocar(hueco, prioridad, taller, llegada, entrada);
+        return hueco != inicial;
+    }
+
+    /**
+     * Baja un vehículo mientras alguno de sus hijos tenga más prioridad.
+     */
+    private void bajar(int hueco) {
+        long prioridad = prioridades[hueco];
+        Taller taller = talleres[hueco];
+        long llegada = llegadas[hueco];
+        int entrada = entradas[hueco];
+        while (true) {
+            int hijo = 2 * hueco + 1;
+            if (hijo >= tamano) {
+                break;
+            }
+            if (hijo + 1 < tamano && prioridades[hijo + 1] < prioridades[hijo]) {
+                hijo++;
+            }
+            if (prioridad <= prioridades[hijo]) {
+                break;
+            }
+            colocar(hueco, prioridades[hijo], talleres[hijo], llegadas[hijo],
+                    entradas[hijo]);
+            hueco = hijo;
+        }
+        colocar(hueco, prioridad, taller, llegada, entrada);
+    }
+
+    /**
+     * Pone un vehículo en un hueco y anota el hueco en su entrada.
+     */
+    private void colocar(int hueco, long prioridad, Taller taller, long llegada,
+            int entrada) {
+        prioridades[hueco] = prioridad;
+        talleres[hueco] = taller;
+        llegadas[hueco] = llegada;
+        entradas[hueco] = entrada;
+        huecos[entrada] = hueco;
+    }
+}
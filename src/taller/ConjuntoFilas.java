@@ -0,0 +1,446 @@
+package taller;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Conjunto de números de fila (enteros no negativos) al estilo de los
+ * "roaring bitmaps": los números se reparten en bloques de 65.536 según sus
+ * 16 bits altos, y cada bloque se guarda de la forma que menos ocupa:
+ * <ul>
+ * <li>Disperso: lista ordenada de los 16 bits bajos (2 bytes por número),
+ * mientras tenga como mucho LIMITE_LISTA números.</li>
+ * <li>Denso: mapa de 65.536 bits (8 KB), a partir de ese límite.</li>
+ * </ul>
+ * Así un valor poco frecuente ocupa poco, y la intersección y la unión de
+ * dos conjuntos densos se hacen de 64 en 64 filas.
+ *
+ * Los conjuntos que devuelven y() y o() son nuevos; los operandos no se
+ * modifican.
+ *
+ * Como los números se guardan en orden, Registro usa también esta clase como
+ * índice ordenado de las claves de matrícula de los vehículos en memoria.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class ConjuntoFilas {
+
+    /**
+     * Número máximo de elementos de un bloque disperso. Con más, el mapa de
+     * bits ocupa menos que la lista.
+     */
+    private static final int LIMITE_LISTA = 4096;
+    /**
+     * Palabras de 64 bits de un bloque denso.
+     */
+    private static final int PALABRAS = 1 << 10;
+
+    /**
+     * Un bloque de 65.536 filas.
+     */
+    private static final class Bloque {
+
+        /**
+         * Bits bajos de las filas, ordenados, si el bloque es disperso.
+         */
+        char[] lista;
+        /**
+         * Mapa de bits, si el bloque es denso.
+         */
+        long[] bits;
+        /**
+         * Número de filas del bloque.
+         */
+        int cardinal;
+    }
+
+    /**
+     * Conjunto vacío compartido. No se debe modificar.
+     */
+    static final ConjuntoFilas VACIO = new ConjuntoFilas();
+
+    /**
+     * Bloques, indexados por los 16 bits altos de la fila. Un bloque sin
+     * filas es "null".
+     */
+    private Bloque[] bloques = new Bloque[0];
+
+    /**
+     * Agrega una fila.
+     *
+     * @param fila Número de fila.
+     */
+    void agregar(int fila) {
+        int alto = fila >>> 16;
+        char bajo = (char) fila;
+        if (alto >= bloques.length) {
+            bloques = Arrays.copyOf(bloques, Math.max(alto + 1, bloques.length * 2));
+        }
+        Bloque bloque = bloques[alto];
+        if (bloque == null) {
+            bloque = new Bloque();
+            bloque.lista = new char[4];
+            bloques[alto] = bloque;
+        }
+        if (bloque.bits != null) {
+            long mascara = 1L << bajo;
+            if ((bloque.bits[bajo >>> 6] & mascara) == 0) {
+                bloque.bits[bajo >>> 6] |= mascara;
+                bloque.cardinal++;
+            }
+            return;
+        }
+        int posicion = Arrays.binarySearch(bloque.lista, 0, bloque.cardinal, bajo);
+        if (posicion >= 0) {
+            return;
+        }
+        posicion = -posicion - 1;
+        if (bloque.cardinal == LIMITE_LISTA) {
+            aBits(bloque);
+            bloque.bits[bajo >>> 6] |= 1L << bajo;
+            bloque.cardinal++;
+            return;
+        }
+        if (bloque.cardinal == bloque.lista.length) {
+            bloque.lista = Arrays.copyOf(bloque.lista,
+                    Math.min(LIMITE_LISTA, bloque.lista.length * 2));
+        }
+        System.arraycopy(bloque.lista, posicion, bloque.lista, posicion + 1,
+                bloque.cardinal - posicion);
+        bloque.lista[posicion] = bajo;
+        bloque.cardinal++;
+    }
+
+    /**
+     * Quita una fila.
+     *
+     * @param fila Número de fila.
+     */
+    void quitar(int fila) {
+        int alto = fila >>> 16;
+        char bajo = (char) fila;
+        Bloque bloque = alto < bloques.length ? bloques[alto] : null;
+        if (bloque == null) {
+            return;
+        }
+        if (bloque.bits != null) {
+            long mascara = 1L << bajo;
+            if ((bloque.bits[bajo >>> 6] & mascara) == 0) {
+                return;
+            }
+            bloque.bits[bajo >>> 6] &= ~mascara;
+            bloque.cardinal--;
+            // Se vuelve a lista con margen, para no cambiar de forma en
+            // cada alta y baja alrededor del límite
+            if (bloque.cardinal <= LIMITE_LISTA / 2) {
+                aLista(bloque);
+            }
+        } else {
+            int posicion = Arrays.binarySearch(bloque.lista, 0, bloque.cardinal, bajo);
+            if (posicion < 0) {
+                return;
+            }
+            System.arraycopy(bloque.lista, posicion + 1, bloque.lista, posicion,
+                    bloque.cardinal - posicion - 1);
+            bloque.cardinal--;
+        }
+        if (bloque.cardinal == 0) {
+            bloques[alto] = null;
+        }
+    }
+
+    /**
+     * Informa si una fila está en el conjunto.
+     *
+     * @param fila Número de fila.
+     * @return "true" si está.
+     */
+    boolean contiene(int fila) {
+        int alto = fila >>> 16;
+        char bajo = (char) fila;
+        Bloque bloque = alto < bloques.length ? bloques[alto] : null;
+        if (bloque == null) {
+            return false;
+        }
+        return bloque.bits != null
+                ? (bloque.bits[bajo >>> 6] & (1L << bajo)) != 0
+                : Arrays.binarySearch(bloque.lista, 0, bloque.cardinal, bajo) >= 0;
+    }
+
+    /**
+     * Número de filas del conjunto.
+     *
+     * @return El número de filas.
+     */
+    int cardinal() {
+        int total = 0;
+        for (Bloque bloque : bloques) {
+            if (bloque != null) {
+                total += bloque.cardinal;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Busca la menor fila del conjunto a partir de una dada.
+     *
+     * @param desde Fila desde la que se busca (incluida).
+     * @return La fila encontrada, o -1 si no hay ninguna.
+     */
+    int siguiente(int desde) {
+        for (int alto = desde >>> 16; alto < bloques.length; alto++) {
+            Bloque bloque = bloques[alto];
+            if (bloque == null) {
+                continue;
+            }
+            int base = alto << 16;
+            int bajo = alto == desde >>> 16 ? desde & 0xFFFF : 0;
+            if (bloque.bits != null) {
+                int p = bajo >>> 6;
+                long palabra = bloque.bits[p] & (-1L << bajo);
+                while (true) {
+                    if (palabra != 0) {
+                        return base + (p << 6) + Long.numberOfTrailingZeros(palabra);
+                    }
+                    if (++p == PALABRAS) {
+                        break;
+                    }
+                    palabra = bloque.bits[p];
+                }
+            } else {
+                int i = Arrays.binarySearch(bloque.lista, 0, bloque.cardinal, (char) bajo);
+                i = i < 0 ? -i - 1 : i;
+                if (i < bloque.cardinal) {
+                    return base + bloque.lista[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Recorre las filas en orden creciente.
+     *
+     * @param accion Lo que se hace con cada fila.
+     */
+    void recorrer(IntConsumer accion) {
+        for (int alto = 0; alto < bloques.length; alto++) {
+            Bloque bloque = bloques[alto];
+            if (bloque == null) {
+                continue;
+            }
+            int base = alto << 16;
+            if (bloque.bits != null) {
+                for (int p = 0; p < PALABRAS; p++) {
+                    long palabra = bloque.bits[p];
+                    while (palabra != 0) {
+                        accion.accept(base + (p << 6) + Long.numberOfTrailingZeros(palabra));
+                        palabra &= palabra - 1;
+                    }
+                }
+            } else {
+                for (int i = 0; i < bloque.cardinal; i++) {
+                    accion.accept(base + bloque.lista[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Intersección con otro conjunto.
+     *
+     * @param otro El otro conjunto.
+     * @return Un conjunto nuevo con las filas que están en los dos.
+     */
+    ConjuntoFilas y(ConjuntoFilas otro) {
+        ConjuntoFilas resultado = new ConjuntoFilas();
+        int n = Math.min(bloques.length, otro.bloques.length);
+        resultado.bloques = new Bloque[n];
+        for (int alto = 0; alto < n; alto++) {
+            Bloque a = bloques[alto];
+            Bloque b = otro.bloques[alto];
+            if (a != null && b != null) {
+                Bloque c = interseccion(a, b);
+                resultado.bloques[alto] = c.cardinal == 0 ? null : c;
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Unión con otro conjunto.
+     *
+     * @param otro El otro conjunto.
+     * @return Un conjunto nuevo con las filas que están en alguno de los dos.
+     */
+    ConjuntoFilas o(ConjuntoFilas otro) {
+        ConjuntoFilas resultado = new ConjuntoFilas();
+        int n = Math.max(bloques.length, otro.bloques.length);
+        resultado.bloques = new Bloque[n];
+        for (int alto = 0; alto < n; alto++) {
+            Bloque a = alto < bloques.length ? bloques[alto] : null;
+            Bloque b = alto < otro.bloques.length ? otro.bloques[alto] : null;
+            if (a == null && b == null) {
+                continue;
+            }
+            resultado.bloques[alto] = a == null ? copia(b)
+                    : b == null ? copia(a)
+                    : union(a, b);
+        }
+        return resultado;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Intersección de dos bloques.
+     */
+    private static Bloque interseccion(Bloque a, Bloque b) {
+        Bloque c = new Bloque();
+        if (a.bits != null && b.bits != null) {
+            long[] bits = new long[PALABRAS];
+            int cardinal = 0;
+            for (int p = 0; p < PALABRAS; p++) {
+                bits[p] = a.bits[p] & b.bits[p];
+                cardinal += Long.bitCount(bits[p]);
+            }
+            c.bits = bits;
+            c.cardinal = cardinal;
+            if (cardinal <= LIMITE_LISTA) {
+                aLista(c);
+            }
+            return c;
+        }
+        if (a.bits != null) {
+            Bloque t = a;
+            a = b;
+            b = t;
+        }
+        // "a" es una lista: se comprueba cada elemento en "b"
+        char[] lista = new char[Math.min(a.cardinal,
+                b.bits != null ? a.cardinal : b.cardinal)];
+        int n = 0;
+        if (b.bits != null) {
+            for (int i = 0; i < a.cardinal; i++) {
+                char v = a.lista[i];
+                if ((b.bits[v >>> 6] & (1L << v)) != 0) {
+                    lista[n++] = v;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < a.cardinal && j < b.cardinal) {
+                char x = a.lista[i];
+                char y = b.lista[j];
+                if (x < y) {
+                    i++;
+                } else if (x > y) {
+                    j++;
+                } else {
+                    lista[n++] = x;
+                    i++;
+                    j++;
+                }
+            }
+        }
+        c.lista = lista;
+        c.cardinal = n;
+        return c;
+    }
+
+    /**
+     * Unión de dos bloques.
+     */
+    private static Bloque union(Bloque a, Bloque b) {
+        Bloque c = new Bloque();
+        if (a.bits == null && b.bits == null
+                && a.cardinal + b.cardinal <= LIMITE_LISTA) {
+            char[] lista = new char[a.cardinal + b.cardinal];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.cardinal || j < b.cardinal) {
+                if (j >= b.cardinal || (i < a.cardinal && a.lista[i] < b.lista[j])) {
+                    lista[n++] = a.lista[i++];
+                } else if (i >= a.cardinal || b.lista[j] < a.lista[i]) {
+                    lista[n++] = b.lista[j++];
+                } else {
+                    lista[n++] = a.lista[i++];
+                    j++;
+                }
+            }
+            c.lista = lista;
+            c.cardinal = n;
+            return c;
+        }
+        long[] bits = new long[PALABRAS];
+        for (Bloque x : new Bloque[]{a, b}) {
+            if (x.bits != null) {
+                for (int p = 0; p < PALABRAS; p++) {
+                    bits[p] |= x.bits[p];
+                }
+            } else {
+                for (int i = 0; i < x.cardinal; i++) {
+                    bits[x.lista[i] >>> 6] |= 1L << x.lista[i];
+                }
+            }
+        }
+        int cardinal = 0;
+        for (long palabra : bits) {
+            cardinal += Long.bitCount(palabra);
+        }
+        c.bits = bits;
+        c.cardinal = cardinal;
+        if (cardinal <= LIMITE_LISTA) {
+            aLista(c);
+        }
+        return c;
+    }
+
+    /**
+     * Copia un bloque.
+     */
+    private static Bloque copia(Bloque b) {
+        Bloque c = new Bloque();
+        c.cardinal = b.cardinal;
+        if (b.bits != null) {
+            c.bits = b.bits.clone();
+        } else {
+            c.lista = Arrays.copyOf(b.lista, b.cardinal);
+        }
+        return c;
+    }
+
+    /**
+     * Pasa un bloque disperso a mapa de bits.
+     */
+    private static void aBits(Bloque bloque) {
+        long[] bits = new long[PALABRAS];
+        for (int i = 0; i < bloque.cardinal; i++) {
+            char v = bloque.lista[i];
+            bits[v >>> 6] |= 1L << v;
+        }
+        bloque.bits = bits;
+        bloque.lista = null;
+    }
+
+    /**
+     * Pasa un bloque denso a lista ordenada.
+     */
+    private static void aLista(Bloque bloque) {
+        char[] lista = new char[Math.max(4, bloque.cardinal)];
+        int n = 0;
+        for (int p = 0; p < PALABRAS; p++) {
+            long palabra = bloque.bits[p];
+            while (palabra != 0) {
+                lista[n++] = (char) ((p << 6) + Long.numberOfTrailingZeros(palabra));
+                palabra &= palabra - 1;
+            }
+        }
+        bloque.lista = lista;
+        bloque.bits = null;
+    }
+}
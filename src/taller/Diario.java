@@ -0,0 +1,879 @@
+package taller;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Diario binario de solo escritura al final (write-ahead log) con los cambios
+ * del registro del taller: altas, reparaciones, actualizaciones y bajas de
+ * vehículos, y las intervenciones del historial de reparaciones. Al arrancar
+ * se vuelve a aplicar para recuperar el estado.
+ *
+ * Cada evento se guarda como un registro con este formato:
+ * <pre>
+ * int   longitud del cuerpo (tipo + datos)
+ * byte  tipo de evento
+ * ...   datos del evento
+ * int   CRC32 del cuerpo
+ * </pre>
+ * Si el programa se interrumpe a mitad de una escritura, el último registro
+ * queda incompleto o con un CRC incorrecto; al reproducir el diario se
+ * descarta y se trunca el fichero en ese punto. Solo se trunca así el final
+ * del último segmento: cualquier otro registro dañado, o un evento que no se
+ * puede aplicar, hace que falle la apertura sin tocar los ficheros, porque
+ * lo que viene detrás ya estaba confirmado.
+ *
+ * Las escrituras usan confirmación en grupo: los eventos se acumulan en
+ * memoria y el primer hilo que pide confirmar los suyos escribe y sincroniza
+ * con el disco todos los pendientes, incluidos los de otros hilos. Mientras
+ * tanto, los demás esperan o siguen acumulando eventos para la siguiente
+ * tanda, de forma que un solo fsync sirve para muchas operaciones.
+ *
+ * El diario se divide en segmentos numerados por generación: si la ruta
+ * configurada es "taller.diario", los segmentos son "taller.diario.1",
+ * "taller.diario.2", etc. Al compactar se empieza un segmento nuevo (ver
+ * rotar()) y, cuando la instantánea que incluye los anteriores ya está en el
+ * disco, estos se eliminan. Un fichero con la ruta exacta configurada, sin
+ * número, se trata como la generación 0 (el formato de antes de existir las
+ * instantáneas).
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Diario implements Closeable {
+
+    /**
+     * Evento de alta de un vehículo, con sus datos y reparaciones.
+     */
+    static final byte ALTA = 1;
+    /**
+     * Evento de una reparación nueva en un vehículo registrado.
+     */
+    static final byte REPARACION = 2;
+    /**
+     * Evento de sustitución de los datos de un vehículo registrado.
+     */
+    static final byte ACTUALIZACION = 3;
+    /**
+     * Evento de baja de un vehículo.
+     */
+    static final byte BAJA = 4;
+    /**
+     * Evento de una intervención anotada en el historial de reparaciones.
+     */
+    static final byte INTERVENCION = 5;
+
+    /**
+     * Tamaño inicial del búfer de eventos pendientes.
+     */
+    private static final int BUFER_INICIAL = 64 * 1024;
+    /**
+     * Tamaño inicial del búfer de lectura al reproducir el diario. Crece si
+     * algún registro no cabe.
+     */
+    private static final int BUFER_LECTURA = 1024 * 1024;
+    /**
+     * Tamaño máximo del cuerpo de un registro. Se comprueba al agregarlo,
+     * así que al reproducir un valor mayor solo puede deberse a un registro
+     * dañado.
+     */
+    static final int CUERPO_MAXIMO = 64 * 1024 * 1024;
+
+    /**
+     * Receptor de los eventos al reproducir el diario.
+     */
+    interface Receptor {
+
+        /**
+         * Se ha dado de alta un vehículo.
+         */
+        void alta(int clave, String marca, String modelo, String color,
+                String[] reparaciones);
+
+        /**
+         * Se ha agregado una reparación a un vehículo registrado.
+         */
+        void reparacion(int clave, String reparacion);
+
+        /**
+         * Se han sustituido los datos de un vehículo registrado.
+         */
+        void actualizacion(int clave, String marca, String modelo,
+                String color, String[] reparaciones);
+
+        /**
+         * Se ha dado de baja un vehículo.
+         */
+        void baja(int clave);
+
+        /**
+         * Se ha anotado una intervención en el historial de reparaciones.
+         */
+        void intervencion(int clave, long instante, String tipo, long coste);
+    }
+
+    /**
+     * Ruta configurada del diario, de la que cuelgan los segmentos.
+     */
+    private final Path base;
+    /**
+     * Segmento en el que se escribe ahora. Solo cambia al rotar, con el
+     * monitor tomado y sin ninguna tanda en escritura.
+     */
+    private FileChannel canal;
+    /**
+     * Generación del segmento en el que se escribe ahora.
+     */
+    private long generacion;
+    /**
+     * Valor de "agregados" al empezar el segmento actual.
+     */
+    private long agregadosAlRotar;
+    /**
+     * Monitor que protege los búferes y los contadores de secuencia.
+     */
+    private final Object monitor = new Object();
+    /**
+     * Eventos acumulados que todavía no se han escrito.
+     */
+    private ByteBuffer pendientes = ByteBuffer.allocate(BUFER_INICIAL);
+    /**
+     * Búfer que se está escribiendo en este momento. Se intercambia con
+     * "pendientes" en cada tanda.
+     */
+    private ByteBuffer enEscritura = ByteBuffer.allocate(BUFER_INICIAL);
+    /**
+     * Número de secuencia del último evento agregado.
+     */
+    private long agregados;
+    /**
+     * Número de secuencia del último evento sincronizado con el disco.
+     */
+    private long confirmados;
+    /**
+     * Indica si algún hilo está escribiendo una tanda.
+     */
+    private boolean escribiendo;
+    /**
+     * Error de la última escritura, que se comunica a los que esperaban.
+     */
+    private IOException error;
+    /**
+     * Número de tandas sincronizadas, para las estadísticas.
+     */
+    private long sincronizaciones;
+    /**
+     * Sirve para calcular el CRC de cada registro.
+     */
+    private final CRC32 crc = new CRC32();
+    /**
+     * Número de eventos leídos al abrir el diario.
+     */
+    private long reproducidos;
+
+    /**
+     * Abre el diario, reproduce los eventos de los segmentos posteriores a la
+     * instantánea y lo deja listo para agregar más al final del último.
+     *
+     * @param base Ruta configurada del diario.
+     * @param generacionInstantanea Generación incluida en la instantánea
+     * cargada, o -1 si no hay instantánea. Los segmentos de esa generación o
+     * anteriores se eliminan sin reproducirlos.
+     * @param receptor Destinatario de los eventos reproducidos.
+     * @throws IOException Si no se puede leer o abrir algún segmento.
+     */
+    Diario(Path base, long generacionInstantanea, Receptor receptor)
+            throws IOException {
+        this.base = base.toAbsolutePath();
+        long ultima = generacionInstantanea;
+        FileChannel abierto = null;
+        List<Long> encontradas = generaciones();
+        long mayor = encontradas.isEmpty() ? -1 : encontradas.get(encontradas.size() - 1);
+        for (long g : encontradas) {
+            Path segmento = segmento(g);
+            if (g <= generacionInstantanea) {
+                Files.delete(segmento);
+                continue;
+            }
+            if (abierto != null) {
+                abierto.close();
+                abierto = null;
+            }
+            FileChannel c = FileChannel.open(segmento,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long valido = reproducir(c, segmento, g == mayor, receptor);
+                if (valido < c.size()) {
+                    c.truncate(valido);
+                }
+                c.position(valido);
+            } catch (IOException | RuntimeException e) {
+                c.close();
+                throw e;
+            }
+            abierto = c;
+            ultima = g;
+        }
+        if (abierto == null || ultima == 0) {
+            // Sin segmentos, o solo el fichero sin número: se empieza uno
+            if (abierto != null) {
+                abierto.close();
+            }
+            ultima = Math.max(ultima, 0) + 1;
+            abierto = FileChannel.open(segmento(ultima), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                sincronizarCarpeta(this.base);
+            } catch (IOException e) {
+                abierto.close();
+                throw e;
+            }
+        }
+        this.canal = abierto;
+        this.generacion = ultima;
+    }
+
+    /**
+     * Ruta configurada del diario.
+     *
+     * @return La ruta, sin número de segmento.
+     */
+    Path getBase() {
+        return base;
+    }
+
+    /**
+     * Devuelve cuántos eventos se recuperaron al abrir el diario.
+     *
+     * @return Número de eventos reproducidos.
+     */
+    long getReproducidos() {
+        return reproducidos;
+    }
+
+    /**
+     * Devuelve cuántas sincronizaciones con el disco se han hecho.
+     *
+     * @return Número de tandas escritas.
+     */
+    long getSincronizaciones() {
+        synchronized (monitor) {
+            return sincronizaciones;
+        }
+    }
+
+    /* -------------------- */
+ /* ESCRITURA DE EVENTOS */
+ /* -------------------- */
+    /**
+     * Agrega un alta o una actualización de un vehículo completo.
+     *
+     * @param tipo ALTA o ACTUALIZACION.
+     * @param clave Clave de la matrícula.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param reparaciones Reparaciones que ya tiene.
+     * @param numero Cuántas posiciones de "reparaciones" son válidas.
+     * @return Número de secuencia del evento, para confirmarlo.
+     */
+    long agregarVehiculo(byte tipo, int clave, String marca, String modelo,
+            String color, String[] reparaciones, int numero) {
+        byte[][] textos = new byte[3 + numero][];
+        textos[0] = marca.getBytes(StandardCharsets.UTF_8);
+        textos[1] = modelo.getBytes(StandardCharsets.UTF_8);
+        textos[2] = color.getBytes(StandardCharsets.UTF_8);
+        int longitud = 1 + 4 + 4;
+        for (int i = 0; i < numero; i++) {
+            textos[3 + i] = reparaciones[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long total = longitud;
+        for (byte[] texto : textos) {
+            total += 4 + texto.length;
+        }
+        longitud = comprobarLongitud(total);
+        synchronized (monitor) {
+            ByteBuffer b = reservar(longitud);
+            b.put(tipo).putInt(clave);
+            for (int i = 0; i < 3; i++) {
+                b.putInt(textos[i].length).put(textos[i]);
+            }
+            b.putInt(numero);
+            for (int i = 3; i < textos.length; i++) {
+                b.putInt(textos[i].length).put(textos[i]);
+            }
+            return cerrarRegistro(longitud);
+        }
+    }
+
+    /**
+     * Agrega una reparación de un vehículo registrado.
+     *
+     * @param clave Clave de la matrícula.
+     * @param reparacion Nombre de la reparación.
+     * @return Número de secuencia del evento, para confirmarlo.
+     */
+    long agregarReparacion(int clave, String reparacion) {
+        byte[] texto = reparacion.getBytes(StandardCharsets.UTF_8);
+        int longitud = comprobarLongitud(1 + 4 + 4 + (long) texto.length);
+        synchronized (monitor) {
+            reservar(longitud).put(REPARACION).putInt(clave)
+                    .putInt(texto.length).put(texto);
+            return cerrarRegistro(longitud);
+        }
+    }
+
+    /**
+     * Agrega la baja de un vehículo.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Número de secuencia del evento, para confirmarlo.
+     */
+    long agregarBaja(int clave) {
+        synchronized (monitor) {
+            reservar(5).put(BAJA).putInt(clave);
+            return cerrarRegistro(5);
+        }
+    }
+
+    /**
+     * Agrega una intervención del historial de reparaciones.
+     *
+     * @param clave Clave de la matrícula.
+     * @param instante Instante, en milisegundos desde el 1 de enero de 1970.
+     * @param tipo Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @return Número de secuencia del evento, para confirmarlo.
+     */
+    long agregarIntervencion(int clave, long instante, String tipo, long coste) {
+        byte[] texto = tipo.getBytes(StandardCharsets.UTF_8);
+        int longitud = comprobarLongitud(1 + 4 + 8 + 8 + 4 + (long) texto.length);
+        synchronized (monitor) {
+            reservar(longitud).put(INTERVENCION).putInt(clave).putLong(instante)
+                    .putLong(coste).putInt(texto.length).put(texto);
+            return cerrarRegistro(longitud);
+        }
+    }
+
+    /**
+     * Comprueba que el alta de un vehículo nuevo cabe en un registro, sin
+     * agregarla. Sirve para rechazar una orden antes de tomar el cerrojo, de
+     * forma que un lote no falle a medias (ver Orden).
+     *
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @throws IllegalArgumentException Si no cabe.
+     */
+    static void comprobarAlta(String marca, String modelo, String color) {
+        comprobarTextos(1 + 4 + 4, marca, modelo, color);
+    }
+
+    /**
+     * Comprueba que una intervención cabe en un registro, sin agregarla. Ver
+     * comprobarAlta().
+     *
+     * @param tipo Tipo de reparación.
+     * @throws IllegalArgumentException Si no cabe.
+     */
+    static void comprobarIntervencion(String tipo) {
+        comprobarTextos(1 + 4 + 8 + 8, tipo);
+    }
+
+    /**
+     * Espera a que un evento y todos los anteriores estén escritos en el
+     * disco. Si nadie está escribiendo, este hilo escribe la tanda completa
+     * de eventos pendientes.
+     *
+     * @param secuencia Número de secuencia devuelto al agregar el evento.
+     * @throws UncheckedIOException Si falla la escritura.
+     */
+    void confirmar(long secuencia) {
+        while (true) {
+            ByteBuffer tanda;
+            FileChannel destino;
+            long hasta;
+            synchronized (monitor) {
+                while (confirmados < secuencia && error == null && escribiendo) {
+                    esperar();
+                }
+                if (confirmados >= secuencia) {
+                    return;
+                }
+                if (error != null) {
+                    throw new UncheckedIOException(error);
+                }
+                escribiendo = true;
+                destino = canal;
+                tanda = pendientes;
+                pendientes = enEscritura;
+                enEscritura = tanda;
+                hasta = agregados;
+            }
+            // Escribimos sin el monitor para que otros hilos puedan ir
+            // agregando eventos a la siguiente tanda
+            IOException fallo = null;
+            try {
+                escribirSinMonitor(destino, tanda);
+            } catch (IOException e) {
+                fallo = e;
+            }
+            synchronized (monitor) {
+                tanda.clear();
+                escribiendo = false;
+                if (fallo != null) {
+                    error = fallo;
+                } else {
+                    confirmados = hasta;
+                    sincronizaciones++;
+                }
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Empieza un segmento nuevo del diario. Antes escribe y sincroniza todo lo
+     * pendiente en el segmento actual. Quien llama debe garantizar que no se
+     * agregan eventos mientras tanto (Taller lo hace con el cerrojo de
+     * lectura del registro).
+     *
+     * @return Generación del segmento que se acaba de cerrar.
+     * @throws IOException Si falla la escritura o la creación del segmento.
+     */
+    long rotar() throws IOException {
+        long ultimo;
+        synchronized (monitor) {
+            ultimo = agregados;
+        }
+        try {
+            confirmar(ultimo);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        synchronized (monitor) {
+            while (escribiendo) {
+                esperar();
+            }
+            FileChannel nuevo = FileChannel.open(segmento(generacion + 1),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                sincronizarCarpeta(base);
+            } catch (IOException e) {
+                nuevo.close();
+                throw e;
+            }
+            canal.close();
+            canal = nuevo;
+            agregadosAlRotar = agregados;
+            return generacion++;
+        }
+    }
+
+    /**
+     * Elimina los segmentos de una generación o anteriores, que ya están
+     * incluidos en una instantánea.
+     *
+     * @param hasta Última generación a eliminar.
+     * @throws IOException Si falla el borrado.
+     */
+    void eliminarHasta(long hasta) throws IOException {
+        for (long g : generaciones()) {
+            if (g <= hasta) {
+                Files.deleteIfExists(segmento(g));
+            }
+        }
+    }
+
+    /**
+     * Número de eventos agregados al segmento actual.
+     *
+     * @return Eventos desde la última rotación.
+     */
+    long getEventosDelSegmento() {
+        synchronized (monitor) {
+            return agregados - agregadosAlRotar;
+        }
+    }
+
+    /**
+     * Escribe y sincroniza todo lo pendiente y cierra el fichero.
+     *
+     * @throws IOException Si falla la escritura o el cierre.
+     */
+    @Override
+    public void close() throws IOException {
+        long ultimo;
+        synchronized (monitor) {
+            ultimo = agregados;
+        }
+        try {
+            confirmar(ultimo);
+        } catch (UncheckedIOException e) {
+            canal.close();
+            throw e.getCause();
+        }
+        canal.close();
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Comprueba que el cuerpo de un registro no pasa de CUERPO_MAXIMO, antes
+     * de agregarlo.
+     *
+     * @param longitud Longitud del cuerpo.
+     * @return La longitud.
+     * @throws IllegalArgumentException Si pasa del máximo.
+     */
+    private static int comprobarLongitud(long longitud) {
+        if (longitud > CUERPO_MAXIMO) {
+            throw new IllegalArgumentException("El cambio ocupa " + longitud
+                    + " bytes y el diario admite como mucho " + CUERPO_MAXIMO);
+        }
+        return (int) longitud;
+    }
+
+    /**
+     * Comprueba que un registro con unos textos cabe en el diario. Solo los
+     * codifica si podrían no caber: en UTF-8 cada carácter ocupa como mucho
+     * 3 bytes.
+     *
+     * @param fijos Bytes del cuerpo que no son textos.
+     * @param textos Textos, cada uno precedido de su longitud.
+     * @throws IllegalArgumentException Si no cabe.
+     */
+    private static void comprobarTextos(int fijos, String... textos) {
+        long maximo = fijos;
+        for (String texto : textos) {
+            maximo += 4 + 3L * texto.length();
+        }
+        if (maximo <= CUERPO_MAXIMO) {
+            return;
+        }
+        long total = fijos;
+        for (String texto : textos) {
+            total += 4 + texto.getBytes(StandardCharsets.UTF_8).length;
+        }
+        comprobarLongitud(total);
+    }
+
+    /**
+     * Deja sitio en el búfer pendiente para un registro y escribe su
+     * longitud. Se debe llamar con el monitor tomado.
+     *
+     * @param longitud Longitud del cuerpo del registro.
+     * @return El búfer, listo para escribir el cuerpo.
+     */
+    private ByteBuffer reservar(int longitud) {
+        int necesario = 4 + longitud + 4;
+        if (pendientes.remaining() < necesario) {
+            int capacidad = Math.max(pendientes.capacity() * 2,
+                    pendientes.position() + necesario);
+            ByteBuffer mayor = ByteBuffer.allocate(capacidad);
+            pendientes.flip();
+            mayor.put(pendientes);
+            pendientes = mayor;
+        }
+        return pendientes.putInt(longitud);
+    }
+
+    /**
+     * Calcula el CRC del cuerpo que se acaba de escribir y lo agrega al final.
+     * Se debe llamar con el monitor tomado.
+     *
+     * @param longitud Longitud del cuerpo del registro.
+     * @return Número de secuencia asignado al evento.
+     */
+    private long cerrarRegistro(int longitud) {
+        crc.reset();
+        crc.update(pendientes.array(), pendientes.position() - longitud, longitud);
+        pendientes.putInt((int) crc.getValue());
+        return ++agregados;
+    }
+
+    /**
+     * Espera a que termine la tanda en curso.
+     */
+    private void esperar() {
+        try {
+            monitor.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrumpido mientras se esperaba al diario", e);
+        }
+    }
+
+    /**
+     * Escribe una tanda en el fichero y la sincroniza con el disco. Solo la
+     * llama el hilo que tiene "escribiendo" a true.
+     *
+     * @param destino Segmento en el que se escribe.
+     * @param tanda Búfer con los eventos.
+     * @throws IOException Si falla la escritura.
+     */
+    private static void escribirSinMonitor(FileChannel destino, ByteBuffer tanda)
+            throws IOException {
+        tanda.flip();
+        while (tanda.hasRemaining()) {
+            destino.write(tanda);
+        }
+        destino.force(false);
+    }
+
+    /**
+     * Sincroniza con el disco la carpeta de un fichero, para que su entrada
+     * (un fichero nuevo o renombrado) no se pierda si se va la luz. Sin esto,
+     * los registros confirmados en un segmento nuevo podrían desaparecer con
+     * él. En Windows no se puede abrir una carpeta como fichero y no se hace
+     * nada: NTFS ya anota en su propio diario los cambios de las carpetas.
+     *
+     * @param fichero Fichero cuya carpeta se sincroniza.
+     * @throws IOException Si falla la sincronización.
+     */
+    static void sincronizarCarpeta(Path fichero) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            return;
+        }
+        Path carpeta = fichero.toAbsolutePath().getParent();
+        try (FileChannel c = FileChannel.open(carpeta, StandardOpenOption.READ)) {
+            c.force(true);
+        }
+    }
+
+    /**
+     * Ruta del segmento de una generación.
+     *
+     * @param g Generación.
+     * @return La ruta.
+     */
+    private Path segmento(long g) {
+        return g == 0 ? base : base.resolveSibling(base.getFileName() + "." + g);
+    }
+
+    /**
+     * Busca las generaciones de los segmentos que hay en el disco.
+     *
+     * @return Las generaciones, en orden.
+     * @throws IOException Si no se puede leer el directorio.
+     */
+    private List<Long> generaciones() throws IOException {
+        List<Long> encontradas = new ArrayList<>();
+        if (Files.exists(base)) {
+            encontradas.add(0L);
+        }
+        String prefijo = base.getFileName() + ".";
+        try (Stream<Path> ficheros = Files.list(base.getParent())) {
+            ficheros.map(f -> f.getFileName().toString())
+                    .filter(n -> n.startsWith(prefijo)
+                    && n.length() > prefijo.length()
+                    && n.substring(prefijo.length()).chars().allMatch(Character::isDigit))
+                    .map(n -> Long.parseLong(n.substring(prefijo.length())))
+                    .sorted()
+                    .forEach(encontradas::add);
+        }
+        return encontradas;
+    }
+
+    /**
+     * Lee un segmento desde el principio y pasa cada evento al receptor.
+     * Un registro incompleto o con CRC incorrecto al final del último
+     * segmento es una escritura interrumpida, y la reproducción termina
+     * ahí. Se considera así si llega hasta el final del fichero o si desde
+     * él solo hay ceros (el sistema de ficheros puede haber ampliado el
+     * fichero antes de escribir los datos).
+     *
+     * @param segmento Segmento a leer.
+     * @param ruta Ruta del segmento, para los mensajes.
+     * @param ultimo "true" si es el último segmento.
+     * @param receptor Destinatario de los eventos.
+     * @return Posición del final del último registro válido.
+     * @throws IOException Si no se puede leer el fichero, si tiene un
+     * registro dañado que no es una escritura interrumpida o si el receptor
+     * no puede aplicar algún evento.
+     */
+    private long reproducir(FileChannel segmento, Path ruta, boolean ultimo,
+            Receptor receptor) throws IOException {
+        ByteBuffer b = ByteBuffer.allocateDirect(BUFER_LECTURA);
+        CRC32 control = new CRC32();
+        long tamano = segmento.size();
+        long valido = 0;
+        segmento.position(0);
+        b.limit(0);
+        while (valido < tamano) {
+            if (valido + 4 > tamano) {
+                return interrumpido(segmento, ruta, ultimo, valido, true);
+            }
+            b = rellenar(segmento, b, 4);
+            int longitud = b.getInt(b.position());
+            if (longitud < 1 || longitud > CUERPO_MAXIMO) {
+                return interrumpido(segmento, ruta, ultimo, valido, false);
+            }
+            long fin = valido + 4 + longitud + 4;
+            if (fin > tamano) {
+                return interrumpido(segmento, ruta, ultimo, valido, true);
+            }
+            b = rellenar(segmento, b, 4 + longitud + 4);
+            int inicio = b.position() + 4;
+            ByteBuffer cuerpo = b.slice(inicio, longitud);
+            control.reset();
+            control.update(cuerpo.duplicate());
+            if ((int) control.getValue() != b.getInt(inicio + longitud)) {
+                return interrumpido(segmento, ruta, ultimo, valido, fin == tamano);
+            }
+            try {
+                aplicar(cuerpo, receptor);
+            } catch (RuntimeException e) {
+                // El registro está bien escrito: el problema no es del disco
+                // y los cambios siguientes ya estaban confirmados
+                throw new IOException("No se puede aplicar el evento de la posición "
+                        + valido + " de " + ruta, e);
+            }
+            b.position(inicio + longitud + 4);
+            valido = fin;
+            reproducidos++;
+        }
+        return valido;
+    }
+
+    /**
+     * Decide qué hacer con un registro dañado al reproducir un segmento.
+     *
+     * @param hastaElFinal "true" si el registro llega hasta el final del
+     * fichero.
+     * @return La posición del registro, donde se trunca el segmento, si es
+     * una escritura interrumpida.
+     * @throws IOException Si no lo es.
+     */
+    private static long interrumpido(FileChannel segmento, Path ruta,
+            boolean ultimo, long posicion, boolean hastaElFinal)
+            throws IOException {
+        if (ultimo && (hastaElFinal || soloCeros(segmento, posicion))) {
+            return posicion;
+        }
+        throw new IOException("Registro dañado en la posición " + posicion
+                + " de " + ruta + (ultimo ? "" : ", que no es el último segmento"));
+    }
+
+    /**
+     * Informa si un fichero solo tiene ceros desde una posición.
+     */
+    private static boolean soloCeros(FileChannel segmento, long desde)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+        long posicion = desde;
+        while (true) {
+            b.clear();
+            int leidos = segmento.read(b, posicion);
+            if (leidos < 0) {
+                return true;
+            }
+            for (int i = 0; i < leidos; i++) {
+                if (b.get(i) != 0) {
+                    return false;
+                }
+            }
+            posicion += leidos;
+        }
+    }
+
+    /**
+     * Se asegura de que haya al menos "necesario" bytes por leer en el búfer,
+     * leyendo más del fichero. Si el registro no cabe, cambia el búfer por
+     * otro mayor. Quien llama ya ha comprobado que el fichero tiene esos
+     * bytes.
+     *
+     * @param segmento Segmento que se está leyendo.
+     * @param b Búfer de lectura.
+     * @param necesario Bytes que se necesitan.
+     * @return El búfer, que puede ser otro.
+     * @throws IOException Si falla la lectura o el fichero se acaba antes.
+     */
+    private static ByteBuffer rellenar(FileChannel segmento, ByteBuffer b,
+            int necesario) throws IOException {
+        if (b.remaining() >= necesario) {
+            return b;
+        }
+        if (necesario > b.capacity()) {
+            ByteBuffer mayor = ByteBuffer.allocateDirect(
+                    Math.max(necesario, Math.min(b.capacity() * 2, CUERPO_MAXIMO + 8)));
+            mayor.put(b);
+            b = mayor;
+        } else {
+            b.compact();
+        }
+        while (b.position() < necesario) {
+            if (segmento.read(b) < 0) {
+                throw new EOFException("El diario se ha acortado mientras se leía");
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Decodifica el cuerpo de un registro y lo pasa al receptor.
+     *
+     * @param cuerpo Cuerpo del registro (tipo + datos).
+     * @param receptor Destinatario del evento.
+     */
+    private static void aplicar(ByteBuffer cuerpo, Receptor receptor) {
+        byte tipo = cuerpo.get();
+        int clave = cuerpo.getInt();
+        switch (tipo) {
+            case ALTA, ACTUALIZACION -> {
+                String marca = leerTexto(cuerpo);
+                String modelo = leerTexto(cuerpo);
+                String color = leerTexto(cuerpo);
+                String[] reparaciones = new String[cuerpo.getInt()];
+                for (int i = 0; i < reparaciones.length; i++) {
+                    reparaciones[i] = leerTexto(cuerpo);
+                }
+                if (tipo == ALTA) {
+                    receptor.alta(clave, marca, modelo, color, reparaciones);
+                } else {
+                    receptor.actualizacion(
+                            clave, marca, modelo, color, reparaciones);
+                }
+            }
+            case REPARACION ->
+                receptor.reparacion(clave, leerTexto(cuerpo));
+            case BAJA ->
+                receptor.baja(clave);
+            case INTERVENCION -> {
+                long instante = cuerpo.getLong();
+                long coste = cuerpo.getLong();
+                receptor.intervencion(clave, instante, leerTexto(cuerpo), coste);
+            }
+            default ->
+                throw new IllegalArgumentException("Tipo de evento desconocido");
+        }
+    }
+
+    /**
+     * Lee un texto UTF-8 precedido de su longitud.
+     *
+     * @param b Búfer de lectura.
+     * @return El texto.
+     */
+    private static String leerTexto(ByteBuffer b) {
+        int longitud = b.getInt();
+        byte[] bytes = new byte[longitud];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,141 @@
+package taller;
+
+/**
+ * Filtro de vehículos por marca, modelo y color para
+ * Taller.buscarEnRegistroPorFiltro() y Taller.contarEnRegistro(). Los
+ * filtros simples comparan un campo con un valor (sin distinguir mayúsculas)
+ * y se combinan con y() y o():
+ * <pre>
+ * Filtro.marca("Seat").y(Filtro.color("Rojo").o(Filtro.color("Granate")))
+ * </pre>
+ * Los filtros no cambian una vez creados, así que se pueden reutilizar.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Filtro {
+
+    /**
+     * Campo que compara un filtro simple (ver Indices), o -1 si el filtro es
+     * una combinación.
+     */
+    private final int campo;
+    /**
+     * Valor que busca un filtro simple.
+     */
+    private final String valor;
+    /**
+     * Operandos de una combinación.
+     */
+    private final Filtro izquierda, derecha;
+    /**
+     * "true" si la combinación es y(), "false" si es o().
+     */
+    private final boolean conjuncion;
+
+    /**
+     * Constructor privado: los filtros se crean con los métodos de clase y
+     * se combinan con y() y o().
+     */
+    private Filtro(int campo, String valor, Filtro izquierda, Filtro derecha,
+            boolean conjuncion) {
+        this.campo = campo;
+        this.valor = valor;
+        this.izquierda = izquierda;
+        this.derecha = derecha;
+        this.conjuncion = conjuncion;
+    }
+
+    /**
+     * Vehículos de una marca.
+     *
+     * @param marca La marca.
+     * @return El filtro.
+     */
+    public static Filtro marca(String marca) {
+        return simple(Indices.MARCA, marca);
+    }
+
+    /**
+     * Vehículos de un modelo.
+     *
+     * @param modelo El modelo.
+     * @return El filtro.
+     */
+    public static Filtro modelo(String modelo) {
+        return simple(Indices.MODELO, modelo);
+    }
+
+    /**
+     * Vehículos de un color.
+     *
+     * @param color El color.
+     * @return El filtro.
+     */
+    public static Filtro color(String color) {
+        return simple(Indices.COLOR, color);
+    }
+
+    /**
+     * Vehículos que cumplen este filtro y otro.
+     *
+     * @param otro El otro filtro.
+     * @return El filtro combinado.
+     */
+    public Filtro y(Filtro otro) {
+        return new Filtro(-1, null, this, otro, true);
+    }
+
+    /**
+     * Vehículos que cumplen este filtro u otro.
+     *
+     * @param otro El otro filtro.
+     * @return El filtro combinado.
+     */
+    public Filtro o(Filtro otro) {
+        return new Filtro(-1, null, this, otro, false);
+    }
+
+    /**
+     * Calcula las filas que cumplen el filtro. Se debe llamar con el cerrojo
+     * del registro tomado.
+     *
+     * @param indices Índices del registro.
+     * @return Las filas. Puede ser un conjunto de los propios índices, así
+     * que no se debe modificar.
+     */
+    ConjuntoFilas evaluar(Indices indices) {
+        if (campo >= 0) {
+            return indices.filas(campo, valor);
+        }
+        ConjuntoFilas a = izquierda.evaluar(indices);
+        if (conjuncion && a.cardinal() == 0) {
+            return ConjuntoFilas.VACIO;
+        }
+        ConjuntoFilas b = derecha.evaluar(indices);
+        return conjuncion ? a.y(b) : a.o(b);
+    }
+
+    /**
+     * Crea una cadena legible con el filtro.
+     *
+     * @return Por ejemplo: (marca = Seat y color = Rojo)
+     */
+    @Override
+    public String toString() {
+        if (campo >= 0) {
+            String[] nombres = {"marca", "modelo", "color"};
+            return nombres[campo] + " = " + valor;
+        }
+        return "(" + izquierda + (conjuncion ? " y " : " o ") + derecha + ")";
+    }
+
+    /**
+     * Crea un filtro simple.
+     */
+    private static Filtro simple(int campo, String valor) {
+        if (valor == null) {
+            throw new IllegalArgumentException("El valor del filtro no puede ser null");
+        }
+        return new Filtro(campo, valor, null, null, false);
+    }
+}
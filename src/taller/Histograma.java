@@ -0,0 +1,171 @@
+package taller;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Histograma de duraciones en nanosegundos en el que solo anota un hilo, sin
+ * cerrojos ni instrucciones atómicas. Los demás hilos pueden leerlo mientras
+ * tanto y sumar los de varios hilos (ver Metricas).
+ *
+ * Como en los histogramas HDR, los cubos crecen de forma exponencial y cada
+ * potencia de 2 se divide en SUBDIVISIONES cubos iguales, así que el error de
+ * cualquier valor es como mucho de un 1/SUBDIVISIONES (un 6 %) con un número
+ * fijo de cubos, desde 1 ns hasta cientos de años. Anotar un valor solo hace
+ * unos desplazamientos de bits y tres escrituras.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+final class Histograma {
+
+    /**
+     * Bits de cada potencia de 2 que distinguen los cubos.
+     */
+    private static final int BITS = 4;
+    /**
+     * Cubos de cada potencia de 2.
+     */
+    private static final int SUBDIVISIONES = 1 << BITS;
+    /**
+     * Número total de cubos: los valores menores que SUBDIVISIONES van cada
+     * uno a su cubo y el resto se reparten por potencias de 2 hasta 2^63.
+     */
+    private static final int CUBOS = (64 - BITS + 1) * SUBDIVISIONES;
+    /**
+     * Posiciones de la suma de las duraciones y de la mayor, detrás de los
+     * cubos.
+     */
+    private static final int TOTAL = CUBOS;
+    private static final int MAXIMO = CUBOS + 1;
+
+    private static final VarHandle VALOR
+            = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Cuenta de cada cubo, seguida de la suma y la mayor de las duraciones.
+     */
+    private final long[] valores = new long[CUBOS + 2];
+
+    /**
+     * Anota una duración. Solo la llama el hilo dueño del histograma.
+     *
+     * @param nanos Duración en nanosegundos. Las negativas cuentan como 0.
+     */
+    void anotar(long nanos) {
+        long valor = Math.max(0, nanos);
+        int cubo = cubo(valor);
+        // Escrituras "opacas": sin barreras, pero sin cortar el long en dos
+        VALOR.setOpaque(valores, cubo, valores[cubo] + 1);
+        VALOR.setOpaque(valores, TOTAL, valores[TOTAL] + valor);
+        if (valor > valores[MAXIMO]) {
+            VALOR.setOpaque(valores, MAXIMO, valor);
+        }
+    }
+
+    /**
+     * Vacía el histograma. Solo la llama el hilo dueño del histograma.
+     */
+    void vaciar() {
+        for (int i = 0; i < valores.length; i++) {
+            VALOR.setOpaque(valores, i, 0L);
+        }
+    }
+
+    /**
+     * Crea un acumulado vacío para sumarA().
+     *
+     * @return El acumulado.
+     */
+    static long[] acumulado() {
+        return new long[CUBOS + 2];
+    }
+
+    /**
+     * Suma el histograma a un acumulado. Si se anota algo mientras tanto,
+     * puede que lo tenga en cuenta solo en parte.
+     *
+     * @param acumulado Creado con acumulado().
+     */
+    void sumarA(long[] acumulado) {
+        for (int i = 0; i < MAXIMO; i++) {
+            acumulado[i] += (long) VALOR.getOpaque(valores, i);
+        }
+        acumulado[MAXIMO] = Math.max(acumulado[MAXIMO],
+                (long) VALOR.getOpaque(valores, MAXIMO));
+    }
+
+    /**
+     * Resumen de un acumulado.
+     *
+     * @param numero Número de duraciones anotadas.
+     * @param total Suma de todas ellas, en nanosegundos.
+     * @param p50 Percentiles 50, 99 y 99,9, en nanosegundos.
+     * @param maximo La mayor duración anotada, en nanosegundos.
+     */
+    record Resumen(long numero, long total, long p50, long p99, long p999, long maximo) {
+    }
+
+    /**
+     * Resume un acumulado.
+     *
+     * @param acumulado Creado con acumulado() y sumado con sumarA().
+     * @return El resumen.
+     */
+    static Resumen resumir(long[] acumulado) {
+        long numero = 0;
+        for (int i = 0; i < CUBOS; i++) {
+            numero += acumulado[i];
+        }
+        long mayor = acumulado[MAXIMO];
+        return new Resumen(numero, acumulado[TOTAL],
+                percentil(acumulado, numero, 0.5, mayor),
+                percentil(acumulado, numero, 0.99, mayor),
+                percentil(acumulado, numero, 0.999, mayor), mayor);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Cubo que corresponde a un valor no negativo.
+     */
+    static int cubo(long valor) {
+        if (valor < SUBDIVISIONES) {
+            return (int) valor;
+        }
+        int potencia = 63 - Long.numberOfLeadingZeros(valor);
+        int parte = (int) (valor >>> (potencia - BITS)) & (SUBDIVISIONES - 1);
+        return (potencia - BITS + 1) * SUBDIVISIONES + parte;
+    }
+
+    /**
+     * Mayor valor que cae en un cubo.
+     */
+    static long limite(int cubo) {
+        if (cubo < SUBDIVISIONES) {
+            return cubo;
+        }
+        int potencia = cubo / SUBDIVISIONES + BITS - 1;
+        long inicio = (long) (SUBDIVISIONES + cubo % SUBDIVISIONES) << (potencia - BITS);
+        return inicio + (1L << (potencia - BITS)) - 1;
+    }
+
+    /**
+     * Valor por debajo del cual queda una fracción de las anotaciones. No
+     * pasa del máximo anotado, que es exacto.
+     */
+    private static long percentil(long[] cuentas, long numero, double fraccion, long mayor) {
+        if (numero == 0) {
+            return 0;
+        }
+        long objetivo = (long) Math.ceil(numero * fraccion);
+        long acumulado = 0;
+        for (int i = 0; i < CUBOS; i++) {
+            acumulado += cuentas[i];
+            if (acumulado >= objetivo) {
+                return Math.min(limite(i), mayor);
+            }
+        }
+        return mayor;
+    }
+}
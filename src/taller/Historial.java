@@ -0,0 +1,359 @@
+package taller;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import vehiculo.Diccionario;
+
+/**
+ * Historial de todas las reparaciones hechas en el taller, de solo
+ * escritura al final. A diferencia de las reparaciones de cada vehículo, que
+ * tienen un número máximo de huecos, aquí se anotan todas, y se conservan
+ * aunque el vehículo se dé de baja.
+ *
+ * Cada intervención guarda la clave de la matrícula, el instante, el tipo de
+ * reparación (su código en Diccionario.TIPOS_REPARACION) y el coste en
+ * céntimos. Se guardan por columnas de tipos primitivos en trozos de
+ * TROZO intervenciones que, una vez llenos, no vuelven a cambiar ni a
+ * copiarse: al crecer solo se amplía el array de trozos.
+ *
+ * Las intervenciones de un mismo vehículo se encadenan hacia atrás, de forma
+ * que su historial se recorre sin mirar las de los demás. Además, al anotar
+ * cada intervención se actualizan los totales por tipo y por día, así que
+ * consultarlos no obliga a recorrer el historial.
+ *
+ * Como Registro, esta clase no se protege sola frente a accesos
+ * concurrentes.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Historial {
+
+    /**
+     * Intervenciones de cada trozo. Es una potencia de 2.
+     */
+    static final int TROZO = 1 << 12;
+    /**
+     * Valor de "anterior" de la primera intervención de un vehículo.
+     */
+    static final int NINGUNA = -1;
+    /**
+     * Número máximo de días entre la primera y la última intervención.
+     */
+    private static final int DIAS_MAXIMOS = 1 << 20;
+
+    /**
+     * Un trozo de intervenciones, por columnas.
+     */
+    private static final class Trozo {
+
+        final int[] claves = new int[TROZO];
+        final int[] tipos = new int[TROZO];
+        final long[] instantes = new long[TROZO];
+        final long[] costes = new long[TROZO];
+        /**
+         * Intervención anterior del mismo vehículo, o NINGUNA.
+         */
+        final int[] anteriores = new int[TROZO];
+    }
+
+    /**
+     * Zona horaria con la que se decide a qué día pertenece cada
+     * intervención.
+     */
+    private final ZoneId zona;
+    /**
+     * Trozos de intervenciones. Solo el último puede estar a medio llenar.
+     */
+    private Trozo[] trozos = new Trozo[16];
+    /**
+     * Número de intervenciones anotadas.
+     */
+    private int tamano;
+    /**
+     * Vehículos con alguna intervención. Su número de entrada en el mapa es
+     * la posición en "ultimas" de su última intervención.
+     */
+    private final MapaMatriculas<Object> vehiculos = new MapaMatriculas<>();
+    private int[] ultimas = new int[1024];
+    /**
+     * Número de intervenciones y coste total de cada tipo, por código.
+     */
+    private long[] numeroPorTipo = new long[64];
+    private long[] costePorTipo = new long[64];
+    /**
+     * Número de intervenciones y coste total de cada día, a partir de
+     * primerDia (en días desde el 1 de enero de 1970).
+     */
+    private long primerDia;
+    private long[] numeroPorDia = new long[0];
+    private long[] costePorDia = new long[0];
+
+    /**
+     * Constructor de la clase.
+     *
+     * @param zona Zona horaria de los totales por día.
+     */
+    Historial(ZoneId zona) {
+        this.zona = zona;
+    }
+
+    /**
+     * Anota una intervención al final del historial.
+     *
+     * @param clave Clave de la matrícula.
+     * @param instante Instante, en milisegundos desde el 1 de enero de 1970.
+     * @param tipo Código del tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @throws IllegalArgumentException Si el instante queda demasiado lejos
+     * de los de las demás intervenciones.
+     */
+    void agregar(int clave, long instante, int tipo, long coste) {
+        // Primero lo que puede fallar, para no dejar nada a medias
+        int dia = posicionDia(dia(instante));
+        if (tamano == Integer.MAX_VALUE) {
+            throw new IllegalStateException("El historial está lleno");
+        }
+        int numeroTrozo = tamano / TROZO;
+        if (numeroTrozo == trozos.length) {
+            trozos = Arrays.copyOf(trozos, trozos.length * 2);
+        }
+        if (trozos[numeroTrozo] == null) {
+            trozos[numeroTrozo] = new Trozo();
+        }
+        int entrada = vehiculos.entrada(clave);
+        if (entrada == MapaMatriculas.NINGUNA) {
+            vehiculos.poner(clave, null);
+            entrada = vehiculos.entrada(clave);
+            if (entrada >= ultimas.length) {
+                ultimas = Arrays.copyOf(ultimas,
+                        Math.max(entrada + 1, ultimas.length * 2));
+            }
+            ultimas[entrada] = NINGUNA;
+        }
+        if (tipo >= numeroPorTipo.length) {
+            int capacidad = Math.max(tipo + 1, numeroPorTipo.length * 2);
+            numeroPorTipo = Arrays.copyOf(numeroPorTipo, capacidad);
+            costePorTipo = Arrays.copyOf(costePorTipo, capacidad);
+        }
+
+        Trozo trozo = trozos[numeroTrozo];
+        int i = tamano % TROZO;
+        trozo.claves[i] = clave;
+        trozo.tipos[i] = tipo;
+        trozo.instantes[i] = instante;
+        trozo.costes[i] = coste;
+        trozo.anteriores[i] = ultimas[entrada];
+        ultimas[entrada] = tamano++;
+        numeroPorTipo[tipo]++;
+        costePorTipo[tipo] += coste;
+        numeroPorDia[dia]++;
+        costePorDia[dia] += coste;
+    }
+
+    /**
+     * Número de intervenciones anotadas.
+     *
+     * @return El número de intervenciones.
+     */
+    int tamano() {
+        return tamano;
+    }
+
+    /**
+     * Intervenciones de un vehículo, en el orden en que se anotaron.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Las posiciones de sus intervenciones en el historial.
+     */
+    int[] intervenciones(int clave) {
+        int entrada = vehiculos.entrada(clave);
+        if (entrada == MapaMatriculas.NINGUNA) {
+            return new int[0];
+        }
+        int numero = 0;
+        for (int i = ultimas[entrada]; i != NINGUNA; i = anterior(i)) {
+            numero++;
+        }
+        int[] posiciones = new int[numero];
+        for (int i = ultimas[entrada]; i != NINGUNA; i = anterior(i)) {
+            posiciones[--numero] = i;
+        }
+        return posiciones;
+    }
+
+    /**
+     * Datos de una intervención.
+     *
+     * @param i Posición en el historial.
+     * @return La clave de la matrícula, el instante, el código del tipo o el
+     * coste.
+     */
+    int clave(int i) {
+        return trozos[i / TROZO].claves[i % TROZO];
+    }
+
+    long instante(int i) {
+        return trozos[i / TROZO].instantes[i % TROZO];
+    }
+
+    int tipo(int i) {
+        return trozos[i / TROZO].tipos[i % TROZO];
+    }
+
+    long coste(int i) {
+        return trozos[i / TROZO].costes[i % TROZO];
+    }
+
+    /**
+     * Número de intervenciones de un tipo.
+     *
+     * @param tipo Código del tipo de reparación.
+     * @return El número de intervenciones.
+     */
+    long numeroDelTipo(int tipo) {
+        return tipo >= 0 && tipo < numeroPorTipo.length ? numeroPorTipo[tipo] : 0;
+    }
+
+    /**
+     * Coste total de las intervenciones de un tipo.
+     *
+     * @param tipo Código del tipo de reparación.
+     * @return El coste en céntimos.
+     */
+    long costeDelTipo(int tipo) {
+        return tipo >= 0 && tipo < costePorTipo.length ? costePorTipo[tipo] : 0;
+    }
+
+    /**
+     * Número de intervenciones de un día.
+     *
+     * @param dia Día, en días desde el 1 de enero de 1970.
+     * @return El número de intervenciones.
+     */
+    long numeroDelDia(long dia) {
+        long i = dia - primerDia;
+        return i >= 0 && i < numeroPorDia.length ? numeroPorDia[(int) i] : 0;
+    }
+
+    /**
+     * Coste total de las intervenciones de un día.
+     *
+     * @param dia Día, en días desde el 1 de enero de 1970.
+     * @return El coste en céntimos.
+     */
+    long costeDelDia(long dia) {
+        long i = dia - primerDia;
+        return i >= 0 && i < costePorDia.length ? costePorDia[(int) i] : 0;
+    }
+
+    /**
+     * Día al que pertenece un instante en la zona horaria del historial.
+     *
+     * @param instante Instante, en milisegundos desde el 1 de enero de 1970.
+     * @return El día, en días desde el 1 de enero de 1970.
+     */
+    long dia(long instante) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(instante), zona).toEpochDay();
+    }
+
+    /**
+     * Copia del historial en un momento dado, para escribirla en una
+     * instantánea sin tener el cerrojo tomado. Los trozos se comparten con el
+     * historial porque las posiciones ya ocupadas nunca cambian. Incluye los
+     * textos del catálogo de tipos de reparación, por código.
+     */
+    static final class Copia {
+
+        private final Trozo[] trozos;
+        private final int tamano;
+        private final String[] tipos;
+
+        private Copia(Trozo[] trozos, int tamano, String[] tipos) {
+            this.trozos = trozos;
+            this.tamano = tamano;
+            this.tipos = tipos;
+        }
+
+        int tamano() {
+            return tamano;
+        }
+
+        String[] tipos() {
+            return tipos;
+        }
+
+        int clave(int i) {
+            return trozos[i / TROZO].claves[i % TROZO];
+        }
+
+        long instante(int i) {
+            return trozos[i / TROZO].instantes[i % TROZO];
+        }
+
+        int tipo(int i) {
+            return trozos[i / TROZO].tipos[i % TROZO];
+        }
+
+        long coste(int i) {
+            return trozos[i / TROZO].costes[i % TROZO];
+        }
+    }
+
+    /**
+     * Copia el historial. Se debe llamar con el cerrojo tomado.
+     *
+     * @return La copia.
+     */
+    Copia copiar() {
+        // Los tipos de todas las intervenciones ya tienen código, así que
+        // caben en el tamaño actual del catálogo
+        String[] tipos = new String[Diccionario.TIPOS_REPARACION.tamano()];
+        for (int i = 0; i < tipos.length; i++) {
+            tipos[i] = Diccionario.TIPOS_REPARACION.texto(i);
+        }
+        return new Copia(trozos, tamano, tipos);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Intervención anterior del mismo vehículo.
+     */
+    private int anterior(int i) {
+        return trozos[i / TROZO].anteriores[i % TROZO];
+    }
+
+    /**
+     * Posición de un día en los totales por día, ampliándolos si hace falta
+     * por delante o por detrás.
+     */
+    private int posicionDia(long dia) {
+        if (numeroPorDia.length == 0) {
+            primerDia = dia;
+            numeroPorDia = new long[64];
+            costePorDia = new long[64];
+        }
+        long desde = Math.min(primerDia, dia);
+        long hasta = Math.max(primerDia + numeroPorDia.length, dia + 1);
+        if (hasta - desde > DIAS_MAXIMOS) {
+            throw new IllegalArgumentException(
+                    "La fecha está demasiado lejos de las demás del historial");
+        }
+        if (desde < primerDia || hasta > primerDia + numeroPorDia.length) {
+            int capacidad = (int) Math.min(DIAS_MAXIMOS,
+                    Math.max(hasta - desde, 2L * numeroPorDia.length));
+            int desplazamiento = (int) (primerDia - desde);
+            long[] numero = new long[capacidad];
+            long[] coste = new long[capacidad];
+            System.arraycopy(numeroPorDia, 0, numero, desplazamiento, numeroPorDia.length);
+            System.arraycopy(costePorDia, 0, coste, desplazamiento, costePorDia.length);
+            numeroPorDia = numero;
+            costePorDia = coste;
+            primerDia = desde;
+        }
+        return (int) (dia - primerDia);
+    }
+}
@@ -0,0 +1,174 @@
+package taller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import vehiculo.Diccionario;
+import vehiculo.Vehiculo;
+
+/**
+ * Índices secundarios del registro por marca, modelo y color. Para cada
+ * código de los diccionarios de los vehículos (ver Diccionario) se guarda el
+ * conjunto de filas (ver ConjuntoFilas) de los vehículos que lo tienen. Las
+ * filas son los números que asigna Registro a cada vehículo.
+ *
+ * Los valores se comparan como en Diccionario, sin distinguir mayúsculas ni
+ * espacios, así que "rojo" encuentra los vehículos de color "Rojo".
+ *
+ * Como Registro, esta clase no se protege sola frente a accesos
+ * concurrentes.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Indices {
+
+    /**
+     * Campo de la marca.
+     */
+    static final int MARCA = 0;
+    /**
+     * Campo del modelo.
+     */
+    static final int MODELO = 1;
+    /**
+     * Campo del color.
+     */
+    static final int COLOR = 2;
+    /**
+     * Número de campos indexados.
+     */
+    private static final int CAMPOS = 3;
+    /**
+     * Diccionario de cada campo.
+     */
+    private static final Diccionario[] DICCIONARIOS = {
+        Diccionario.MARCAS, Diccionario.MODELOS, Diccionario.COLORES};
+
+    /**
+     * Índice de un campo.
+     */
+    private static final class Campo {
+
+        /**
+         * Filas que tienen cada código, o "null" si ninguna lo ha tenido.
+         */
+        ConjuntoFilas[] filas = new ConjuntoFilas[16];
+        /**
+         * Código más uno de cada fila, o 0 si la fila está libre. Permite
+         * quitar una fila sin tener que leer el vehículo.
+         */
+        int[] porFila = new int[1024];
+    }
+
+    /**
+     * Índice de cada campo.
+     */
+    private final Campo[] campos = new Campo[CAMPOS];
+
+    /**
+     * Constructor de la clase.
+     */
+    Indices() {
+        vaciar();
+    }
+
+    /**
+     * Quita todo lo indexado.
+     */
+    final void vaciar() {
+        for (int c = 0; c < CAMPOS; c++) {
+            campos[c] = new Campo();
+        }
+    }
+
+    /**
+     * Indexa una fila.
+     *
+     * @param fila Número de fila.
+     * @param vehiculo El vehículo.
+     */
+    void agregar(int fila, Vehiculo vehiculo) {
+        agregarCodigo(MARCA, fila, vehiculo.getCodigoMarca());
+        agregarCodigo(MODELO, fila, vehiculo.getCodigoModelo());
+        agregarCodigo(COLOR, fila, vehiculo.getCodigoColor());
+    }
+
+    /**
+     * Indexa todos los vehículos de una instantánea, con filas iguales a sus
+     * posiciones. Como los textos de la instantánea no se repiten, cada valor
+     * distinto se busca en el diccionario una sola vez.
+     *
+     * @param instantanea La instantánea.
+     */
+    void agregar(Instantanea instantanea) {
+        for (int c = 0; c < CAMPOS; c++) {
+            int campo = c;
+            Map<Integer, Integer> leidos = new HashMap<>();
+            for (int fila = 0; fila < instantanea.tamano(); fila++) {
+                int codigo = leidos.computeIfAbsent(
+                        instantanea.referenciaTexto(fila, campo),
+                        r -> DICCIONARIOS[campo].codigo(instantanea.texto(r)));
+                agregarCodigo(campo, fila, codigo);
+            }
+        }
+    }
+
+    /**
+     * Quita una fila de los índices.
+     *
+     * @param fila Número de fila.
+     */
+    void quitar(int fila) {
+        for (Campo campo : campos) {
+            if (fila < campo.porFila.length && campo.porFila[fila] != 0) {
+                campo.filas[campo.porFila[fila] - 1].quitar(fila);
+                campo.porFila[fila] = 0;
+            }
+        }
+    }
+
+    /**
+     * Filas que tienen un valor en un campo.
+     *
+     * @param campo MARCA, MODELO o COLOR.
+     * @param valor Valor buscado.
+     * @return El conjunto de filas. No se debe modificar.
+     */
+    ConjuntoFilas filas(int campo, String valor) {
+        ConjuntoFilas[] filas = campos[campo].filas;
+        int codigo = DICCIONARIOS[campo].buscar(valor);
+        return codigo < 0 || codigo >= filas.length || filas[codigo] == null
+                ? ConjuntoFilas.VACIO
+                : filas[codigo];
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Anota el código de una fila en un campo. Un código -1 (sin valor) no se
+     * indexa.
+     */
+    private void agregarCodigo(int c, int fila, int codigo) {
+        Campo campo = campos[c];
+        if (fila >= campo.porFila.length) {
+            campo.porFila = Arrays.copyOf(campo.porFila,
+                    Math.max(fila + 1, campo.porFila.length * 2));
+        }
+        if (campo.porFila[fila] != 0) {
+            campo.filas[campo.porFila[fila] - 1].quitar(fila);
+        }
+        campo.porFila[fila] = codigo + 1;
+        if (codigo < 0) {
+            return;
+        }
+        if (codigo >= campo.filas.length) {
+            campo.filas = Arrays.copyOf(campo.filas,
+                    Math.max(codigo + 1, campo.filas.length * 2));
+        }
+        if (campo.filas[codigo] == null) {
+            campo.filas[codigo] = new ConjuntoFilas();
+        }
+        campo.filas[codigo].agregar(fila);
+    }
+}
@@ -0,0 +1,314 @@
+package taller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import vehiculo.Diccionario;
+
+/**
+ * Informe sobre todos los vehículos del registro del taller: reparaciones por
+ * marca, reparaciones más frecuentes y vehículos que ya no admiten más
+ * reparaciones.
+ *
+ * El informe se calcula sobre una captura del registro (ver
+ * Taller.capturarRegistro()): con el cerrojo de lectura solo se copia el
+ * estado de los vehículos que están en memoria, como al compactar el diario,
+ * y el recorrido se hace ya sin ningún cerrojo, así que las modificaciones
+ * no esperan a que termine. La captura se reparte en trozos que se recorren
+ * en paralelo con fork/join, cada uno con sus propios totales, y los totales
+ * se suman al final.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Informe {
+
+    /**
+     * Vehículos a partir de los cuales un trozo se divide en dos.
+     */
+    private static final int TROZO = 1 << 14;
+
+    /**
+     * Número de vehículos.
+     */
+    private final int vehiculos;
+    /**
+     * Número total de reparaciones.
+     */
+    private final long reparaciones;
+    /**
+     * Vehículos que tienen el máximo de reparaciones.
+     */
+    private final int vehiculosConReparacionesLlenas;
+    /**
+     * Reparaciones por marca, de más a menos.
+     */
+    private final Map<String, Long> reparacionesPorMarca;
+    /**
+     * Reparaciones más frecuentes, de más a menos.
+     */
+    private final Map<String, Long> reparacionesMasFrecuentes;
+
+    /**
+     * Constructor privado: los informes se obtienen con generar().
+     */
+    private Informe(Parcial total, int masFrecuentes) {
+        this.vehiculos = total.vehiculos;
+        this.reparaciones = total.reparaciones;
+        this.vehiculosConReparacionesLlenas = total.llenos;
+        Map<String, Long> porMarca = new HashMap<>();
+        for (int codigo = 0; codigo < total.porMarca.length; codigo++) {
+            if (total.porMarca[codigo] > 0) {
+                porMarca.put(Diccionario.MARCAS.texto(codigo), total.porMarca[codigo]);
+            }
+        }
+        this.reparacionesPorMarca = ordenar(porMarca, Integer.MAX_VALUE);
+        Map<String, Long> porTexto = new HashMap<>();
+        total.porReparacion.forEach((texto, numero) -> porTexto.put(texto, numero[0]));
+        this.reparacionesMasFrecuentes = ordenar(porTexto, masFrecuentes);
+    }
+
+    /**
+     * Genera el informe con el grupo de hilos común de fork/join.
+     *
+     * @param masFrecuentes Número de reparaciones más frecuentes que se
+     * incluyen.
+     * @return El informe.
+     */
+    public static Informe generar(int masFrecuentes) {
+        return generar(masFrecuentes, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Genera el informe con un grupo de hilos concreto.
+     *
+     * @param masFrecuentes Número de reparaciones más frecuentes que se
+     * incluyen.
+     * @param hilos Grupo de hilos que recorre los trozos.
+     * @return El informe.
+     */
+    public static Informe generar(int masFrecuentes, ForkJoinPool hilos) {
+        Taller.Captura captura = Taller.capturarRegistro();
+        Parcial total = hilos.invoke(new Recorrido(captura, 0,
+                captura.vigentes().length + captura.enMemoria().length));
+        return new Informe(total, masFrecuentes);
+    }
+
+    /**
+     * Número de vehículos del registro.
+     *
+     * @return El número de vehículos.
+     */
+    public int getVehiculos() {
+        return vehiculos;
+    }
+
+    /**
+     * Número total de reparaciones de los vehículos del registro.
+     *
+     * @return El número de reparaciones.
+     */
+    public long getReparaciones() {
+        return reparaciones;
+    }
+
+    /**
+     * Número de vehículos que ya no admiten más reparaciones (ver
+     * Taller.estanReparacionesLlenas()).
+     *
+     * @return El número de vehículos.
+     */
+    public int getVehiculosConReparacionesLlenas() {
+        return vehiculosConReparacionesLlenas;
+    }
+
+    /**
+     * Número de reparaciones de los vehículos de cada marca.
+     *
+     * @return Las marcas, de más a menos reparaciones.
+     */
+    public Map<String, Long> getReparacionesPorMarca() {
+        return reparacionesPorMarca;
+    }
+
+    /**
+     * Reparaciones que más se repiten, tal como se escribieron.
+     *
+     * @return Las reparaciones y cuántas veces aparecen, de más a menos.
+     */
+    public Map<String, Long> getReparacionesMasFrecuentes() {
+        return reparacionesMasFrecuentes;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Ordena unos totales de más a menos y se queda con los primeros.
+     */
+    private static Map<String, Long> ordenar(Map<String, Long> totales, int maximo) {
+        Map<String, Long> ordenados = new LinkedHashMap<>();
+        totales.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(maximo)
+                .forEach(e -> ordenados.put(e.getKey(), e.getValue()));
+        return Collections.unmodifiableMap(ordenados);
+    }
+
+    /**
+     * Totales de una parte de la captura.
+     */
+    private static final class Parcial {
+
+        int vehiculos;
+        long reparaciones;
+        int llenos;
+        /**
+         * Reparaciones por código de marca.
+         */
+        long[] porMarca = new long[0];
+        /**
+         * Veces que aparece cada reparación. El array de un elemento permite
+         * sumar sin volver a buscar el texto.
+         */
+        final Map<String, long[]> porReparacion = new HashMap<>();
+
+        /**
+         * Anota un vehículo.
+         */
+        void agregar(int marca, int numero, int maximo) {
+            vehiculos++;
+            reparaciones += numero;
+            if (maximo != Taller.SIN_LIMITE && numero >= maximo) {
+                llenos++;
+            }
+            if (marca >= porMarca.length) {
+                porMarca = Arrays.copyOf(porMarca, Math.max(marca + 1, porMarca.length * 2));
+            }
+            porMarca[marca] += numero;
+        }
+
+        /**
+         * Suma a estos totales los de otra parte.
+         */
+        Parcial sumar(Parcial otro) {
+            vehiculos += otro.vehiculos;
+            reparaciones += otro.reparaciones;
+            llenos += otro.llenos;
+            if (otro.porMarca.length > porMarca.length) {
+                porMarca = Arrays.copyOf(porMarca, otro.porMarca.length);
+            }
+            for (int i = 0; i < otro.porMarca.length; i++) {
+                porMarca[i] += otro.porMarca[i];
+            }
+            otro.porReparacion.forEach((texto, numero)
+                    -> porReparacion.computeIfAbsent(texto, t -> new long[1])[0] += numero[0]);
+            return this;
+        }
+    }
+
+    /**
+     * Recorre una parte de la captura: las posiciones [desde, hasta) de los
+     * vehículos vigentes de la instantánea seguidos de los de memoria. Si la
+     * parte es grande, se divide en dos que se recorren en paralelo.
+     */
+    private static final class Recorrido extends RecursiveTask<Parcial> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Taller.Captura captura;
+        private final int desde, hasta;
+
+        Recorrido(Taller.Captura captura, int desde, int hasta) {
+            this.captura = captura;
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected Parcial compute() {
+            if (hasta - desde > TROZO) {
+                int medio = (desde + hasta) >>> 1;
+                Recorrido izquierda = new Recorrido(captura, desde, medio);
+                izquierda.fork();
+                Parcial derecha = new Recorrido(captura, medio, hasta).compute();
+                return izquierda.join().sumar(derecha);
+            }
+            Parcial parcial = new Parcial();
+            int[] vigentes = captura.vigentes();
+            int maximo = captura.reparacionesMaximas();
+            int i = desde;
+            if (i < vigentes.length) {
+                recorrerInstantanea(parcial, Math.min(hasta, vigentes.length), maximo);
+                i = vigentes.length;
+            }
+            for (; i < hasta; i++) {
+                Taller.Copia copia = captura.enMemoria()[i - vigentes.length];
+                parcial.agregar(Diccionario.MARCAS.codigo(copia.marca()),
+                        copia.numero(), maximo);
+                for (int r = 0; r < copia.numero(); r++) {
+                    parcial.porReparacion.computeIfAbsent(
+                            copia.reparaciones()[r], t -> new long[1])[0]++;
+                }
+            }
+            return parcial;
+        }
+
+        /**
+         * Recorre los vehículos de la instantánea hasta una posición de
+         * "vigentes". En la instantánea los textos no se repiten, así que se
+         * cuentan por su referencia y solo se leen al final. Como en
+         * Historial, el número de entrada de cada referencia en el mapa es su
+         * posición en los arrays de totales, y así no se crea ningún objeto
+         * por vehículo.
+         */
+        private void recorrerInstantanea(Parcial parcial, int fin, int maximo) {
+            Instantanea instantanea = captura.instantanea();
+            MapaMatriculas<Object> marcas = new MapaMatriculas<>();
+            int[] codigos = new int[16];
+            MapaMatriculas<Object> textos = new MapaMatriculas<>();
+            long[] veces = new long[64];
+            for (int i = desde; i < fin; i++) {
+                int posicion = captura.vigentes()[i];
+                int numero = instantanea.numeroDeReparaciones(posicion);
+                int referencia = instantanea.referenciaTexto(posicion, 0);
+                int marca = marcas.entrada(referencia);
+                if (marca == MapaMatriculas.NINGUNA) {
+                    marca = agregar(marcas, referencia);
+                    if (marca >= codigos.length) {
+                        codigos = Arrays.copyOf(codigos, codigos.length * 2);
+                    }
+                    codigos[marca] = Diccionario.MARCAS.codigo(instantanea.texto(referencia));
+                }
+                parcial.agregar(codigos[marca], numero, maximo);
+                for (int r = 0; r < numero; r++) {
+                    referencia = instantanea.referenciaReparacion(posicion, r);
+                    int texto = textos.entrada(referencia);
+                    if (texto == MapaMatriculas.NINGUNA) {
+                        texto = agregar(textos, referencia);
+                        if (texto >= veces.length) {
+                            veces = Arrays.copyOf(veces, veces.length * 2);
+                        }
+                    }
+                    veces[texto]++;
+                }
+            }
+            for (int e = textos.primera(); e != MapaMatriculas.NINGUNA; e = textos.siguiente(e)) {
+                parcial.porReparacion.computeIfAbsent(
+                        instantanea.texto(textos.clave(e)), t -> new long[1])[0] += veces[e];
+            }
+        }
+
+        /**
+         * Agrega una referencia a un mapa y devuelve su número de entrada.
+         */
+        private static int agregar(MapaMatriculas<Object> mapa, int referencia) {
+            mapa.poner(referencia, null);
+            return mapa.entrada(referencia);
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package taller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import vehiculo.Diccionario;
+
+/**
+ * Instantánea del registro del taller en un fichero de formato fijo que se
+ * proyecta en memoria (memory-mapped). Al arrancar no hace falta leer ni
+ * deserializar todos los vehículos: las búsquedas por matrícula se resuelven
+ * directamente sobre el fichero proyectado con una búsqueda binaria.
+ *
+ * Formato del fichero:
+ * <pre>
+ * Cabecera (64 bytes)
+ *   int   MAGICO
+ *   int   VERSION
+ *   long  generación del diario que incluye la instantánea
+ *   int   número de vehículos
+ *   int   número total de reparaciones
+ *   long  posición de los vehículos
+ *   long  posición de las reparaciones
+ *   long  posición de los textos
+ *   long  tamaño de los textos
+ *   long  posición del historial
+ * Vehículos, ordenados por clave de matrícula (24 bytes cada uno)
+ *   int   clave de la matrícula
+ *   int   marca  (posición en los textos)
+ *   int   modelo (posición en los textos)
+ *   int   color  (posición en los textos)
+ *   int   número de reparaciones
+ *   int   primera reparación (posición en las reparaciones)
+ * Reparaciones (4 bytes cada una)
+ *   int   texto de la reparación (posición en los textos)
+ * Textos, sin repetir
+ *   int   longitud en bytes + texto en UTF-8
+ * Historial de reparaciones (ver Historial)
+ *   int   número de tipos de reparación
+ *   ...   longitud en bytes + texto en UTF-8 de cada tipo, por código
+ *   int   número de intervenciones
+ *   ...   intervenciones, en orden (24 bytes cada una)
+ *         int clave, int tipo, long instante, long coste
+ * </pre>
+ * Las instantáneas de la versión 1 no tienen historial.
+ *
+ * Como las posiciones son int y la proyección es un único MappedByteBuffer,
+ * el fichero no puede pasar de 2 GB.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Instantanea {
+
+    /**
+     * Marca de los ficheros de instantánea ("TALI").
+     */
+    private static final int MAGICO = 0x54414C49;
+    /**
+     * Versión del formato.
+     */
+    private static final int VERSION = 2;
+    /**
+     * Tamaño de la cabecera.
+     */
+    private static final int CABECERA = 64;
+    /**
+     * Tamaño de cada vehículo.
+     */
+    private static final int VEHICULO = 24;
+    /**
+     * Tamaño de cada intervención del historial.
+     */
+    private static final int INTERVENCION = 24;
+    /**
+     * Tamaño de los búferes de escritura.
+     */
+    private static final int BUFER_ESCRITURA = 256 * 1024;
+
+    /**
+     * Fichero proyectado en memoria.
+     */
+    private final MappedByteBuffer datos;
+    /**
+     * Generación del diario incluida en la instantánea.
+     */
+    private final long generacion;
+    /**
+     * Número de vehículos.
+     */
+    private final int tamano;
+    /**
+     * Posiciones de cada zona del fichero.
+     */
+    private final int vehiculos, reparaciones, textos;
+    /**
+     * Posición del historial, o 0 si la instantánea no lo tiene.
+     */
+    private final int historial;
+
+    /**
+     * Constructor privado: las instantáneas se abren con abrir().
+     */
+    private Instantanea(MappedByteBuffer datos) throws IOException {
+        this.datos = datos;
+        if (datos.capacity() < CABECERA || datos.getInt(0) != MAGICO
+                || datos.getInt(4) < 1 || datos.getInt(4) > VERSION) {
+            throw new IOException("El fichero no es una instantánea del taller");
+        }
+        this.generacion = datos.getLong(8);
+        this.tamano = datos.getInt(16);
+        this.vehiculos = (int) datos.getLong(24);
+        this.reparaciones = (int) datos.getLong(32);
+        this.textos = (int) datos.getLong(40);
+        this.historial = datos.getInt(4) >= 2 ? (int) datos.getLong(56) : 0;
+    }
+
+    /**
+     * Proyecta en memoria una instantánea. Solo se lee la cabecera.
+     *
+     * @param fichero Ruta de la instantánea.
+     * @return La instantánea, o "null" si el fichero no existe.
+     * @throws IOException Si el fichero no se puede leer o no es válido.
+     */
+    static Instantanea abrir(Path fichero) throws IOException {
+        if (!Files.exists(fichero)) {
+            return null;
+        }
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+            return new Instantanea(
+                    canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+        }
+    }
+
+    /**
+     * Generación del diario que incluye la instantánea: los segmentos del
+     * diario con esa generación o anteriores ya están incorporados.
+     *
+     * @return La generación.
+     */
+    long getGeneracion() {
+        return generacion;
+    }
+
+    /**
+     * Número de vehículos de la instantánea.
+     *
+     * @return El número de vehículos.
+     */
+    int tamano() {
+        return tamano;
+    }
+
+    /**
+     * Busca una matrícula en la instantánea.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Posición del vehículo (entre 0 y tamano() - 1), o -1 si no está.
+     */
+    int buscar(int clave) {
+        int posicion = primeraDesde(clave);
+        return posicion < tamano && clave(posicion) == clave ? posicion : -1;
+    }
+
+    /**
+     * Busca el primer vehículo cuya matrícula no es menor que una dada.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Posición del vehículo, o tamano() si todos son menores.
+     */
+    int primeraDesde(int clave) {
+        int inferior = 0;
+        int superior = tamano;
+        while (inferior < superior) {
+            int medio = (inferior + superior) >>> 1;
+            if (clave(medio) < clave) {
+                inferior = medio + 1;
+            } else {
+                superior = medio;
+            }
+        }
+        return inferior;
+    }
+
+    /**
+     * Clave de la matrícula de un vehículo.
+     *
+     * @param posicion Posición del vehículo.
+     * @return La clave.
+     */
+    int clave(int posicion) {
+        return datos.getInt(vehiculos + posicion * VEHICULO);
+    }
+
+    /**
+     * Crea el objeto Taller de un vehículo de la instantánea.
+     *
+     * @param posicion Posición del vehículo.
+     * @return Un objeto Taller nuevo con sus datos y reparaciones.
+     */
+    Taller leer(int posicion) {
+        int base = vehiculos + posicion * VEHICULO;
+        String[] lista = new String[datos.getInt(base + 16)];
+        int primera = reparaciones + datos.getInt(base + 20) * 4;
+        for (int i = 0; i < lista.length; i++) {
+            lista[i] = texto(datos.getInt(primera + i * 4));
+        }
+        return Taller.restaurar(datos.getInt(base), texto(datos.getInt(base + 4)),
+                texto(datos.getInt(base + 8)), texto(datos.getInt(base + 12)),
+                lista);
+    }
+
+    /**
+     * Número de reparaciones de un vehículo.
+     *
+     * @param posicion Posición del vehículo.
+     * @return El número de reparaciones.
+     */
+    int numeroDeReparaciones(int posicion) {
+        return datos.getInt(vehiculos + posicion * VEHICULO + 16);
+    }
+
+    /**
+     * Referencia a una reparación de un vehículo en la zona de textos. Dos
+     * reparaciones con el mismo texto tienen la misma referencia.
+     *
+     * @param posicion Posición del vehículo.
+     * @param i Número de la reparación, desde 0.
+     * @return Posición del texto dentro de la zona de textos.
+     */
+    int referenciaReparacion(int posicion, int i) {
+        int primera = datos.getInt(vehiculos + posicion * VEHICULO + 20);
+        return datos.getInt(reparaciones + (primera + i) * 4);
+    }
+
+    /**
+     * Referencia a la marca, el modelo o el color de un vehículo en la zona
+     * de textos. Dos vehículos con el mismo valor tienen la misma referencia.
+     *
+     * @param posicion Posición del vehículo.
+     * @param campo 0 para la marca, 1 para el modelo y 2 para el color.
+     * @return Posición del texto dentro de la zona de textos.
+     */
+    int referenciaTexto(int posicion, int campo) {
+        return datos.getInt(vehiculos + posicion * VEHICULO + 4 + campo * 4);
+    }
+
+    /**
+     * Lee un texto de la zona de textos.
+     *
+     * @param posicion Posición del texto dentro de la zona.
+     * @return El texto.
+     */
+    String texto(int posicion) {
+        int inicio = textos + posicion;
+        byte[] bytes = new byte[datos.getInt(inicio)];
+        datos.get(inicio + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Agrega a un historial las intervenciones guardadas en la instantánea.
+     * Los tipos de reparación se vuelven a buscar en el catálogo por su
+     * texto, porque sus códigos pueden ser otros en este arranque.
+     *
+     * @param destino Historial al que se agregan.
+     */
+    void leerHistorial(Historial destino) {
+        if (historial == 0) {
+            return;
+        }
+        int posicion = historial;
+        int[] tipos = new int[datos.getInt(posicion)];
+        posicion += 4;
+        for (int i = 0; i < tipos.length; i++) {
+            byte[] bytes = new byte[datos.getInt(posicion)];
+            datos.get(posicion + 4, bytes);
+            tipos[i] = Diccionario.TIPOS_REPARACION.codigo(
+                    new String(bytes, StandardCharsets.UTF_8));
+            posicion += 4 + bytes.length;
+        }
+        int numero = datos.getInt(posicion);
+        posicion += 4;
+        for (int i = 0; i < numero; i++, posicion += INTERVENCION) {
+            destino.agregar(datos.getInt(posicion), datos.getLong(posicion + 8),
+                    tipos[datos.getInt(posicion + 4)], datos.getLong(posicion + 16));
+        }
+    }
+
+    /* ------------------------- */
+ /* ESCRITURA DE INSTANTÁNEAS */
+ /* ------------------------- */
+    /**
+     * Escribe una instantánea nueva mezclando, en orden de matrícula, los
+     * vehículos que siguen vigentes en una instantánea anterior y los que
+     * están en memoria. Se escribe primero en un fichero temporal y se
+     * renombra al final, de forma que nunca queda una instantánea a medias.
+     * Al volver, la instantánea y su nombre ya están en el disco.
+     *
+     * @param destino Ruta de la instantánea.
+     * @param generacion Generación del diario que incluye.
+     * @param anterior Instantánea anterior, o "null".
+     * @param vigentes Posiciones de "anterior" que siguen vigentes, en orden.
+     * @param enMemoria Vehículos en memoria, ordenados por matrícula. Ninguno
+     * puede estar también en "vigentes".
+     * @param historial Historial de reparaciones completo.
+     * @throws IOException Si falla la escritura.
+     */
+    static void escribir(Path destino, long generacion, Instantanea anterior,
+            int[] vigentes, Taller.Copia[] enMemoria, Historial.Copia historial)
+            throws IOException {
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+        int total = vigentes.length + enMemoria.length;
+        long numeroReparaciones = 0;
+        for (int v : vigentes) {
+            numeroReparaciones += anterior.datos.getInt(
+                    anterior.vehiculos + v * VEHICULO + 16);
+        }
+        for (Taller.Copia c : enMemoria) {
+            numeroReparaciones += c.numero();
+        }
+        long posVehiculos = CABECERA;
+        long posReparaciones = posVehiculos + (long) total * VEHICULO;
+        long posTextos = posReparaciones + numeroReparaciones * 4;
+        if (posTextos > Integer.MAX_VALUE) {
+            throw new IOException("La instantánea no cabe en 2 GB");
+        }
+        try (FileChannel canal = FileChannel.open(temporal,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Escritor escritor = new Escritor(
+                    canal, posVehiculos, posReparaciones, posTextos);
+            int i = 0;
+            int j = 0;
+            while (i < vigentes.length || j < enMemoria.length) {
+                boolean deLaAnterior = j == enMemoria.length
+                        || (i < vigentes.length
+                        && anterior.clave(vigentes[i]) < enMemoria[j].clave());
+                if (deLaAnterior) {
+                    escritor.copiarDe(anterior, vigentes[i++]);
+                } else {
+                    escritor.agregar(enMemoria[j++]);
+                }
+            }
+            long tamanoTextos = escritor.terminar();
+            long posHistorial = posTextos + tamanoTextos;
+            long fin = escritor.escribirHistorial(posHistorial, historial);
+            if (fin > Integer.MAX_VALUE) {
+                throw new IOException("La instantánea no cabe en 2 GB");
+            }
+            ByteBuffer cabecera = ByteBuffer.allocate(CABECERA);
+            cabecera.putInt(MAGICO).putInt(VERSION).putLong(generacion)
+                    .putInt(total).putInt((int) numeroReparaciones)
+                    .putLong(posVehiculos).putLong(posReparaciones)
+                    .putLong(posTextos).putLong(tamanoTextos)
+                    .putLong(posHistorial).flip();
+            while (cabecera.hasRemaining()) {
+                canal.write(cabecera, cabecera.position());
+            }
+            canal.force(true);
+        }
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // El nombre nuevo también debe estar en el disco antes de que se
+        // borren los segmentos del diario que incluye
+        Diario.sincronizarCarpeta(destino);
+    }
+
+    /**
+     * Escribe las tres zonas variables del fichero a la vez, cada una con su
+     * propio búfer y posición, e interna los textos repetidos. Al final
+     * escribe el historial detrás de los textos.
+     */
+    private static class Escritor {
+
+        private final FileChannel canal;
+        private final ByteBuffer vehiculos = ByteBuffer.allocate(BUFER_ESCRITURA);
+        private final ByteBuffer reparaciones = ByteBuffer.allocate(BUFER_ESCRITURA);
+        private final ByteBuffer textos = ByteBuffer.allocate(BUFER_ESCRITURA);
+        private long posVehiculos, posReparaciones, posTextos;
+        private final long inicioTextos;
+        private int siguienteReparacion;
+        private int tamanoTextos;
+        private final Map<String, Integer> internados = new HashMap<>();
+
+        Escritor(FileChannel canal, long posVehiculos, long posReparaciones,
+                long posTextos) {
+            this.canal = canal;
+            this.posVehiculos = posVehiculos;
+            this.posReparaciones = posReparaciones;
+            this.posTextos = posTextos;
+            this.inicioTextos = posTextos;
+        }
+
+        void copiarDe(Instantanea origen, int posicion) throws IOException {
+            int base = origen.vehiculos + posicion * VEHICULO;
+            String[] lista = new String[origen.datos.getInt(base + 16)];
+            int primera = origen.reparaciones + origen.datos.getInt(base + 20) * 4;
+            for (int i = 0; i < lista.length; i++) {
+                lista[i] = origen.texto(origen.datos.getInt(primera + i * 4));
+            }
+            escribirVehiculo(origen.datos.getInt(base),
+                    origen.texto(origen.datos.getInt(base + 4)),
+                    origen.texto(origen.datos.getInt(base + 8)),
+                    origen.texto(origen.datos.getInt(base + 12)),
+                    lista, lista.length);
+        }
+
+        void agregar(Taller.Copia copia) throws IOException {
+            escribirVehiculo(copia.clave(), copia.marca(), copia.modelo(),
+                    copia.color(), copia.reparaciones(), copia.numero());
+        }
+
+        long terminar() throws IOException {
+            posVehiculos = volcar(vehiculos, posVehiculos);
+            posReparaciones = volcar(reparaciones, posReparaciones);
+            posTextos = volcar(textos, posTextos);
+            return posTextos - inicioTextos;
+        }
+
+        private void escribirVehiculo(int clave, String marca, String modelo,
+                String color, String[] lista, int numero) throws IOException {
+            int marcaEn = internar(marca);
+            int modeloEn = internar(modelo);
+            int colorEn = internar(color);
+            if (vehiculos.remaining() < VEHICULO) {
+                posVehiculos = volcar(vehiculos, posVehiculos);
+            }
+            vehiculos.putInt(clave).putInt(marcaEn).putInt(modeloEn)
+                    .putInt(colorEn).putInt(numero).putInt(siguienteReparacion);
+            for (int i = 0; i < numero; i++) {
+                int textoEn = internar(lista[i]);
+                if (reparaciones.remaining() < 4) {
+                    posReparaciones = volcar(reparaciones, posReparaciones);
+                }
+                reparaciones.putInt(textoEn);
+            }
+            siguienteReparacion += numero;
+        }
+
+        long escribirHistorial(long posicion, Historial.Copia historial)
+                throws IOException {
+            ByteBuffer b = textos;
+            b.putInt(historial.tipos().length);
+            for (String tipo : historial.tipos()) {
+                byte[] bytes = tipo.getBytes(StandardCharsets.UTF_8);
+                if (b.remaining() < 4 + bytes.length) {
+                    posicion = volcar(b, posicion);
+                }
+                if (b.remaining() < 4 + bytes.length) {
+                    ByteBuffer grande = ByteBuffer.allocate(4 + bytes.length);
+                    grande.putInt(bytes.length).put(bytes);
+                    posicion = volcar(grande, posicion);
+                } else {
+                    b.putInt(bytes.length).put(bytes);
+                }
+            }
+            if (b.remaining() < 4) {
+                posicion = volcar(b, posicion);
+            }
+            b.putInt(historial.tamano());
+            for (int i = 0; i < historial.tamano(); i++) {
+                if (b.remaining() < INTERVENCION) {
+                    posicion = volcar(b, posicion);
+                }
+                b.putInt(historial.clave(i)).putInt(historial.tipo(i))
+                        .putLong(historial.instante(i)).putLong(historial.coste(i));
+            }
+            return volcar(b, posicion);
+        }
+
+        private int internar(String texto) throws IOException {
+            Integer posicion = internados.get(texto);
+            if (posicion != null) {
+                return posicion;
+            }
+            byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+            if (textos.remaining() < 4 + bytes.length) {
+                posTextos = volcar(textos, posTextos);
+            }
+            int nueva = tamanoTextos;
+            if (textos.remaining() < 4 + bytes.length) {
+                // Texto mayor que el búfer: se escribe directamente
+                ByteBuffer grande = ByteBuffer.allocate(4 + bytes.length);
+                grande.putInt(bytes.length).put(bytes);
+                posTextos = volcar(grande, posTextos);
+            } else {
+                textos.putInt(bytes.length).put(bytes);
+            }
+            tamanoTextos += 4 + bytes.length;
+            internados.put(texto, nueva);
+            return nueva;
+        }
+
+        private long volcar(ByteBuffer bufer, long posicion) throws IOException {
+            bufer.flip();
+            while (bufer.hasRemaining()) {
+                posicion += canal.write(bufer, posicion);
+            }
+            bufer.clear();
+            return posicion;
+        }
+    }
+}
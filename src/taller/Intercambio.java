@@ -0,0 +1,729 @@
+package taller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import vehiculo.Matricula;
+
+/**
+ * Carga y volcado masivos del registro del taller en ficheros CSV o JSONL,
+ * pensados para dar de alta de una vez los vehículos de otro taller.
+ *
+ * Los dos formatos guardan un vehículo por fila:
+ * <pre>
+ * CSV:   matricula,marca,modelo,color,reparacion1,reparacion2...
+ * JSONL: {"matricula":"1234BCD","marca":"Seat","modelo":"Ibiza",
+ *         "color":"Rojo","reparaciones":["Aceite","Frenos"]}
+ * </pre>
+ * En CSV los campos con comas, comillas o saltos de línea van entre comillas
+ * dobles, y la primera fila puede ser la cabecera. En JSONL cada línea es un
+ * objeto y se ignoran las propiedades desconocidas.
+ *
+ * Los ficheros se leen y se escriben fila a fila, así que la memoria que se
+ * usa no depende de su tamaño. Las filas no válidas se informan y se saltan
+ * sin abortar la carga, y las válidas se agregan al registro por lotes, cada
+ * lote con una sola toma del cerrojo y una sola confirmación del diario.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class Intercambio {
+
+    /**
+     * Vehículos que se agregan al registro de una vez.
+     */
+    private static final int LOTE = 1024;
+    /**
+     * Tamaño del búfer de lectura y escritura.
+     */
+    private static final int BUFER = 1 << 16;
+    /**
+     * Longitud máxima de una fila CSV que ocupa varias líneas. Evita que unas
+     * comillas sin cerrar lleven el resto del fichero a memoria.
+     */
+    private static final int FILA_MAXIMA = 1 << 20;
+    /**
+     * Cabecera de los ficheros CSV.
+     */
+    private static final String CABECERA_CSV
+            = "matricula,marca,modelo,color,reparaciones";
+
+    /**
+     * Formatos de fichero admitidos.
+     */
+    public enum Formato {
+        /**
+         * Valores separados por comas, un vehículo por fila.
+         */
+        CSV,
+        /**
+         * Un objeto JSON por línea.
+         */
+        JSONL;
+
+        /**
+         * Deduce el formato a partir de la extensión del fichero: ".jsonl" o
+         * ".json" para JSONL y cualquier otra para CSV.
+         *
+         * @param fichero Ruta del fichero.
+         * @return El formato.
+         */
+        public static Formato deFichero(Path fichero) {
+            String nombre = fichero.getFileName().toString()
+                    .toLowerCase(Locale.ROOT);
+            return nombre.endsWith(".jsonl") || nombre.endsWith(".json")
+                    ? JSONL
+                    : CSV;
+        }
+    }
+
+    /**
+     * Resultado de una carga.
+     *
+     * @param leidas Filas con datos leídas del fichero.
+     * @param agregadas Vehículos agregados al registro.
+     * @param repetidas Filas cuya matrícula ya estaba en el registro.
+     * @param sinSitio Filas que no se han agregado por estar el taller lleno.
+     * @param erroneas Filas no válidas.
+     */
+    public record Resumen(long leidas, long agregadas, long repetidas,
+            long sinSitio, long erroneas) {
+    }
+
+    /**
+     * Constructor privado: la clase solo tiene métodos estáticos.
+     */
+    private Intercambio() {
+    }
+
+    /* ------------- */
+ /* CARGA MASIVA */
+ /* ------------- */
+    /**
+     * Carga en el registro los vehículos de un fichero. Cada fila que no se
+     * puede agregar (no es válida o su matrícula ya está registrada) se
+     * informa con su número de línea y se salta. Las que no caben porque el
+     * taller está lleno solo se cuentan.
+     *
+     * @param fichero Ruta del fichero.
+     * @param formato Formato del fichero.
+     * @param errores Recibe un mensaje por cada fila que no se agrega.
+     * @return El resumen de la carga.
+     * @throws IOException Si no se puede leer el fichero.
+     */
+    public static Resumen importar(Path fichero, Formato formato,
+            Consumer<String> errores) throws IOException {
+        // Los bytes que no son UTF-8 válido se sustituyen en vez de abortar
+        // la lectura: la fila afectada saldrá con un carácter de reemplazo
+        CharsetDecoder decodificador = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ);
+                BufferedReader lector = new BufferedReader(
+                        Channels.newReader(canal, decodificador, -1), BUFER)) {
+            Carga carga = new Carga(errores);
+            List<String> campos = new ArrayList<>();
+            long linea = 0;
+            String texto;
+            while ((texto = lector.readLine()) != null) {
+                long inicio = ++linea;
+                if (texto.isBlank()) {
+                    continue;
+                }
+                try {
+                    if (formato == Formato.CSV) {
+                        // Un campo entre comillas puede seguir en la línea
+                        // siguiente
+                        StringBuilder fila = new StringBuilder(texto);
+                        while (!camposCsv(fila, campos)) {
+                            String siguiente = lector.readLine();
+                            if (siguiente == null || fila.length() > FILA_MAXIMA) {
+                                throw new IllegalArgumentException(
+                                        "faltan las comillas de cierre");
+                            }
+                            linea++;
+                            fila.append('\n').append(siguiente);
+                        }
+                        if (inicio == 1 && !campos.isEmpty()
+                                && campos.get(0).strip().equalsIgnoreCase("matricula")) {
+                            continue;
+                        }
+                    } else {
+                        camposJson(texto, campos);
+                    }
+                    carga.agregar(inicio, campos);
+                } catch (IllegalArgumentException e) {
+                    carga.error(inicio, e.getMessage());
+                }
+            }
+            carga.vaciar();
+            return carga.resumen();
+        }
+    }
+
+    /**
+     * Acumula las filas válidas de una carga y las agrega al registro por
+     * lotes.
+     */
+    private static class Carga {
+
+        private final Consumer<String> errores;
+        private final Taller[] lote = new Taller[LOTE];
+        private final long[] lineas = new long[LOTE];
+        private final Resultado[] resultados = new Resultado[LOTE];
+        private int enLote;
+        private long agregadas;
+        private long repetidas;
+        private long sinSitio;
+        private long erroneas;
+
+        Carga(Consumer<String> errores) {
+            this.errores = errores;
+        }
+
+        /**
+         * Valida una fila y la pone en el lote.
+         *
+         * @param linea Línea del fichero donde empieza la fila.
+         * @param campos Matrícula, marca, modelo, color y reparaciones.
+         * @throws IllegalArgumentException Si la fila no es válida.
+         */
+        void agregar(long linea, List<String> campos) {
+            if (campos.size() < 4) {
+                throw new IllegalArgumentException(
+                        "faltan campos (matrícula, marca, modelo y color)");
+            }
+            String texto = campos.get(0) == null ? "" : campos.get(0).strip();
+            Matricula matricula;
+            try {
+                matricula = Metricas.matricula(texto.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "matrícula no válida: \"" + texto + "\"");
+            }
+            String marca = obligatorio(campos.get(1), "marca");
+            String modelo = obligatorio(campos.get(2), "modelo");
+            String color = obligatorio(campos.get(3), "color");
+            // Las reparaciones en blanco se ignoran: las hojas de cálculo
+            // suelen dejar columnas vacías al final de las filas
+            List<String> reparaciones = new ArrayList<>();
+            for (int i = 4; i < campos.size(); i++) {
+                String reparacion = campos.get(i);
+                if (reparacion != null && !reparacion.isBlank()) {
+                    reparaciones.add(reparacion);
+                }
+            }
+            int maximas = Taller.getReparacionesMaximas();
+            if (maximas != Taller.SIN_LIMITE && reparaciones.size() > maximas) {
+                throw new IllegalArgumentException("tiene "
+                        + reparaciones.size() + " reparaciones y el máximo es "
+                        + maximas);
+            }
+            lote[enLote] = Taller.restaurar(matricula.toKey(), marca, modelo,
+                    color, reparaciones.toArray(new String[0]));
+            lineas[enLote] = linea;
+            if (++enLote == LOTE) {
+                vaciar();
+            }
+        }
+
+        /**
+         * Informa de una fila no válida.
+         *
+         * @param linea Línea del fichero donde empieza la fila.
+         * @param mensaje Motivo.
+         */
+        void error(long linea, String mensaje) {
+            erroneas++;
+            errores.accept("Línea " + linea + ": " + mensaje);
+        }
+
+        /**
+         * Agrega al registro el lote acumulado.
+         */
+        void vaciar() {
+            if (enLote == 0) {
+                return;
+            }
+            Taller.agregarLote(lote, enLote, resultados);
+            for (int i = 0; i < enLote; i++) {
+                switch (resultados[i]) {
+                    case REALIZADO ->
+                        agregadas++;
+                    case YA_EXISTE -> {
+                        repetidas++;
+                        errores.accept("Línea " + lineas[i]
+                                + ": la matrícula ya está en el taller");
+                    }
+                    default ->
+                        sinSitio++;
+                }
+                lote[i] = null;
+            }
+            enLote = 0;
+        }
+
+        Resumen resumen() {
+            return new Resumen(agregadas + repetidas + sinSitio + erroneas,
+                    agregadas, repetidas, sinSitio, erroneas);
+        }
+
+        private static String obligatorio(String valor, String nombre) {
+            if (valor == null || valor.isBlank()) {
+                throw new IllegalArgumentException(
+                        "el campo \"" + nombre + "\" está en blanco");
+            }
+            return valor;
+        }
+    }
+
+    /* --------------- */
+ /* VOLCADO MASIVO */
+ /* --------------- */
+    /**
+     * Escribe todos los vehículos del registro en un fichero, en el mismo
+     * orden que el listado. El fichero se escribe primero con otro nombre y
+     * se renombra al terminar, así que nunca queda a medias.
+     *
+     * Se vuelca una foto del registro (ver Sede.recorrerRegistro()), sin
+     * mantener ningún cerrojo: ni las consultas ni las modificaciones esperan
+     * mientras dura el volcado, y el fichero tiene el registro tal como
+     * estaba al empezar, sin los cambios que se hagan mientras tanto.
+     *
+     * @param fichero Ruta del fichero. Si existe, se sustituye.
+     * @param formato Formato del fichero.
+     * @return Número de vehículos escritos.
+     * @throws IOException Si no se puede escribir el fichero.
+     */
+    public static long exportar(Path fichero, Formato formato) throws IOException {
+        Path temporal = fichero.resolveSibling(fichero.getFileName() + ".tmp");
+        long[] escritos = {0};
+        try (FileChannel canal = FileChannel.open(temporal,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                BufferedWriter escritor = new BufferedWriter(Channels.newWriter(
+                        canal, StandardCharsets.UTF_8.newEncoder(), -1), BUFER)) {
+            if (formato == Formato.CSV) {
+                escritor.write(CABECERA_CSV);
+                escritor.newLine();
+            }
+            try {
+                Taller.recorrerRegistro(copia -> {
+                    try {
+                        if (formato == Formato.CSV) {
+                            escribirCsv(escritor, copia);
+                        } else {
+                            escribirJson(escritor, copia);
+                        }
+                        escritor.newLine();
+                        escritos[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            escritor.flush();
+            canal.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+        Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return escritos[0];
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Separa los campos de una fila CSV.
+     *
+     * @param fila Texto de la fila.
+     * @param campos Donde se dejan los campos.
+     * @return "false" si la fila termina dentro de un campo entre comillas y
+     * hay que añadirle la línea siguiente.
+     * @throws IllegalArgumentException Si hay texto después de unas comillas
+     * de cierre.
+     */
+    static boolean camposCsv(CharSequence fila, List<String> campos) {
+        campos.clear();
+        StringBuilder campo = new StringBuilder();
+        int i = 0;
+        int n = fila.length();
+        while (true) {
+            campo.setLength(0);
+            if (i < n && fila.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= n) {
+                        return false;
+                    }
+                    char c = fila.charAt(i++);
+                    if (c != '"') {
+                        campo.append(c);
+                    } else if (i < n && fila.charAt(i) == '"') {
+                        campo.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (i < n && fila.charAt(i) != ',') {
+                    throw new IllegalArgumentException(
+                            "texto después de las comillas de cierre");
+                }
+            } else {
+                while (i < n && fila.charAt(i) != ',') {
+                    campo.append(fila.charAt(i++));
+                }
+            }
+            campos.add(campo.toString());
+            if (i >= n) {
+                return true;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Lee un objeto JSON de una línea y deja sus campos en el orden de una
+     * fila CSV.
+     *
+     * @param linea Texto de la línea.
+     * @param campos Donde se dejan los campos.
+     * @throws IllegalArgumentException Si la línea no es un objeto JSON
+     * válido.
+     */
+    static void camposJson(String linea, List<String> campos) {
+        campos.clear();
+        String[] fijos = new String[4];
+        List<String> reparaciones = new ArrayList<>();
+        LectorJson json = new LectorJson(linea);
+        json.esperar('{');
+        if (!json.siguienteEs('}')) {
+            do {
+                String nombre = json.cadena();
+                json.esperar(':');
+                switch (nombre) {
+                    case "matricula" ->
+                        fijos[0] = json.cadenaONulo();
+                    case "marca" ->
+                        fijos[1] = json.cadenaONulo();
+                    case "modelo" ->
+                        fijos[2] = json.cadenaONulo();
+                    case "color" ->
+                        fijos[3] = json.cadenaONulo();
+                    case "reparaciones" ->
+                        json.listaDeCadenas(reparaciones);
+                    default ->
+                        json.saltarValor();
+                }
+            } while (json.siguienteEs(','));
+            json.esperar('}');
+        }
+        json.fin();
+        if (fijos[0] == null) {
+            throw new IllegalArgumentException("falta la matrícula");
+        }
+        campos.addAll(List.of(fijos[0],
+                fijos[1] == null ? "" : fijos[1],
+                fijos[2] == null ? "" : fijos[2],
+                fijos[3] == null ? "" : fijos[3]));
+        campos.addAll(reparaciones);
+    }
+
+    /**
+     * Escribe un vehículo como fila CSV, sin el salto de línea.
+     *
+     * @param escritor Destino.
+     * @param copia Vehículo.
+     * @throws IOException Si falla la escritura.
+     */
+    private static void escribirCsv(Writer escritor, Taller.Copia copia)
+            throws IOException {
+        escritor.write(Matricula.fromKey(copia.clave()).getNumero());
+        campoCsv(escritor, copia.marca());
+        campoCsv(escritor, copia.modelo());
+        campoCsv(escritor, copia.color());
+        for (int i = 0; i < copia.numero(); i++) {
+            campoCsv(escritor, copia.reparaciones()[i]);
+        }
+    }
+
+    /**
+     * Escribe una coma y un campo CSV, entre comillas solo si hace falta.
+     *
+     * @param escritor Destino.
+     * @param valor Campo.
+     * @throws IOException Si falla la escritura.
+     */
+    static void campoCsv(Writer escritor, String valor) throws IOException {
+        escritor.write(',');
+        boolean comillas = false;
+        for (int i = 0; i < valor.length() && !comillas; i++) {
+            char c = valor.charAt(i);
+            comillas = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!comillas) {
+            escritor.write(valor);
+            return;
+        }
+        escritor.write('"');
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            if (c == '"') {
+                escritor.write('"');
+            }
+            escritor.write(c);
+        }
+        escritor.write('"');
+    }
+
+    /**
+     * Escribe un vehículo como objeto JSON, sin el salto de línea.
+     *
+     * @param escritor Destino.
+     * @param copia Vehículo.
+     * @throws IOException Si falla la escritura.
+     */
+    private static void escribirJson(Writer escritor, Taller.Copia copia)
+            throws IOException {
+        escritor.write("{\"matricula\":\"");
+        escritor.write(Matricula.fromKey(copia.clave()).getNumero());
+        escritor.write("\",\"marca\":");
+        cadenaJson(escritor, copia.marca());
+        escritor.write(",\"modelo\":");
+        cadenaJson(escritor, copia.modelo());
+        escritor.write(",\"color\":");
+        cadenaJson(escritor, copia.color());
+        escritor.write(",\"reparaciones\":[");
+        for (int i = 0; i < copia.numero(); i++) {
+            if (i > 0) {
+                escritor.write(',');
+            }
+            cadenaJson(escritor, copia.reparaciones()[i]);
+        }
+        escritor.write("]}");
+    }
+
+    /**
+     * Escribe una cadena JSON entre comillas.
+     *
+     * @param escritor Destino.
+     * @param valor Cadena.
+     * @throws IOException Si falla la escritura.
+     */
+    private static void cadenaJson(Writer escritor, String valor) throws IOException {
+        escritor.write('"');
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            switch (c) {
+                case '"' ->
+                    escritor.write("\\\"");
+                case '\\' ->
+                    escritor.write("\\\\");
+                case '\n' ->
+                    escritor.write("\\n");
+                case '\r' ->
+                    escritor.write("\\r");
+                case '\t' ->
+                    escritor.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        escritor.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        escritor.write(c);
+                    }
+                }
+            }
+        }
+        escritor.write('"');
+    }
+
+    /**
+     * Lector mínimo de JSON para una línea: solo lo necesario para los
+     * objetos de un vehículo, saltando cualquier otro valor.
+     */
+    private static class LectorJson {
+
+        private final String texto;
+        private int posicion;
+
+        LectorJson(String texto) {
+            this.texto = texto;
+        }
+
+        /**
+         * Consume un carácter concreto tras los espacios.
+         */
+        void esperar(char c) {
+            if (!siguienteEs(c)) {
+                throw error("se esperaba '" + c + "'");
+            }
+        }
+
+        /**
+         * Consume un carácter si es el siguiente tras los espacios.
+         */
+        boolean siguienteEs(char c) {
+            saltarEspacios();
+            if (posicion < texto.length() && texto.charAt(posicion) == c) {
+                posicion++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Comprueba que no queda nada más que espacios.
+         */
+        void fin() {
+            saltarEspacios();
+            if (posicion < texto.length()) {
+                throw error("texto después del objeto");
+            }
+        }
+
+        String cadenaONulo() {
+            saltarEspacios();
+            if (texto.startsWith("null", posicion)) {
+                posicion += 4;
+                return null;
+            }
+            return cadena();
+        }
+
+        void listaDeCadenas(List<String> destino) {
+            saltarEspacios();
+            if (texto.startsWith("null", posicion)) {
+                posicion += 4;
+                return;
+            }
+            esperar('[');
+            if (siguienteEs(']')) {
+                return;
+            }
+            do {
+                destino.add(cadena());
+            } while (siguienteEs(','));
+            esperar(']');
+        }
+
+        String cadena() {
+            esperar('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (posicion >= texto.length()) {
+                    throw error("cadena sin cerrar");
+                }
+                char c = texto.charAt(posicion++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (posicion >= texto.length()) {
+                    throw error("cadena sin cerrar");
+                }
+                char escape = texto.charAt(posicion++);
+                switch (escape) {
+                    case '"', '\\', '/' ->
+                        sb.append(escape);
+                    case 'b' ->
+                        sb.append('\b');
+                    case 'f' ->
+                        sb.append('\f');
+                    case 'n' ->
+                        sb.append('\n');
+                    case 'r' ->
+                        sb.append('\r');
+                    case 't' ->
+                        sb.append('\t');
+                    case 'u' -> {
+                        if (posicion + 4 > texto.length()) {
+                            throw error("escape \\u incompleto");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(
+                                    texto.substring(posicion, posicion + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("escape \\u no válido");
+                        }
+                        posicion += 4;
+                    }
+                    default ->
+                        throw error("escape no válido");
+                }
+            }
+        }
+
+        /**
+         * Salta un valor cualquiera (cadena, número, literal, lista u
+         * objeto).
+         */
+        void saltarValor() {
+            saltarEspacios();
+            if (posicion >= texto.length()) {
+                throw error("falta un valor");
+            }
+            char c = texto.charAt(posicion);
+            if (c == '"') {
+                cadena();
+            } else if (c == '[' || c == '{') {
+                char cierre = c == '[' ? ']' : '}';
+                posicion++;
+                if (siguienteEs(cierre)) {
+                    return;
+                }
+                do {
+                    if (cierre == '}') {
+                        cadena();
+                        esperar(':');
+                    }
+                    saltarValor();
+                } while (siguienteEs(','));
+                esperar(cierre);
+            } else {
+                int inicio = posicion;
+                while (posicion < texto.length()
+                        && "-+.eE0123456789truefalsn".indexOf(texto.charAt(posicion)) >= 0) {
+                    posicion++;
+                }
+                if (posicion == inicio) {
+                    throw error("valor no válido");
+                }
+            }
+        }
+
+        private void saltarEspacios() {
+            while (posicion < texto.length()
+                    && Character.isWhitespace(texto.charAt(posicion))) {
+                posicion++;
+            }
+        }
+
+        private IllegalArgumentException error(String mensaje) {
+            return new IllegalArgumentException(
+                    "JSON no válido en la columna " + (posicion + 1) + ": " + mensaje);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package taller;
+
+import java.util.Arrays;
+
+/**
+ * Tabla hash de direccionamiento abierto indexada por la clave entera de una
+ * matrícula (ver Matricula.toKey()). Las claves se guardan como int, sin
+ * convertirlas a Integer, y las operaciones de inserción, consulta y borrado
+ * son de coste constante.
+ *
+ * Los datos de cada elemento se guardan en "entradas" (arrays paralelos de
+ * claves, valores y enlaces) y la tabla hash solo contiene el número de
+ * entrada. Las entradas están enlazadas en una lista doble por orden de
+ * inserción, de forma que se pueden recorrer en el mismo orden en el que se
+ * agregaron sin tener que compactar nada al borrar.
+ *
+ * La tabla usa sondeo lineal y, al borrar, desplaza hacia atrás los elementos
+ * siguientes del grupo, así que nunca quedan marcas de borrado.
+ *
+ * @param <V> Tipo de los valores guardados.
+ * @author Gabriel Cubillos Rodríguez
+ */
+class MapaMatriculas<V> {
+
+    /**
+     * Número de entradas que se reservan al crear el mapa.
+     */
+    private static final int ENTRADAS_INICIALES = 8;
+    /**
+     * Valor de enlace que indica que no hay entrada.
+     */
+    static final int NINGUNA = -1;
+
+    /**
+     * Tabla hash. Cada posición guarda el número de entrada más uno, de forma
+     * que el valor 0 significa posición vacía.
+     */
+    private int[] tabla;
+    /**
+     * Número de elementos que admite la tabla antes de redimensionarse.
+     */
+    private int umbral;
+    /**
+     * Claves de cada entrada.
+     */
+    private int[] claves;
+    /**
+     * Valores de cada entrada.
+     */
+    private Object[] valores;
+    /**
+     * Entrada anterior en el orden de inserción.
+     */
+    private int[] anterior;
+    /**
+     * Entrada siguiente en el orden de inserción. En las entradas libres se
+     * usa para encadenar la lista de entradas reutilizables.
+     */
+    private int[] siguiente;
+    /**
+     * Número de orden de cada entrada: crece con cada inserción y no se
+     * repite, así que identifica la entrada aunque después se borre y su
+     * número de entrada se reutilice.
+     */
+    private long[] orden;
+    /**
+     * Número de orden de la última inserción.
+     */
+    private long ultimoOrden;
+    /**
+     * Primera y última entrada en el orden de inserción.
+     */
+    private int primera = NINGUNA, ultima = NINGUNA;
+    /**
+     * Primera entrada de la lista de entradas libres.
+     */
+    private int libre = NINGUNA;
+    /**
+     * Número de entradas que se han usado alguna vez.
+     */
+    private int usadas;
+    /**
+     * Número de elementos guardados.
+     */
+    private int tamano;
+
+    /**
+     * Constructor de la clase.
+     */
+    MapaMatriculas() {
+        this.claves = new int[ENTRADAS_INICIALES];
+        this.valores = new Object[ENTRADAS_INICIALES];
+        this.anterior = new int[ENTRADAS_INICIALES];
+        this.siguiente = new int[ENTRADAS_INICIALES];
+        this.orden = new long[ENTRADAS_INICIALES];
+        this.tabla = new int[ENTRADAS_INICIALES * 2];
+        this.umbral = ENTRADAS_INICIALES;
+    }
+
+    /**
+     * Número de elementos del mapa.
+     *
+     * @return Cuántas claves distintas hay guardadas.
+     */
+    int tamano() {
+        return tamano;
+    }
+
+    /**
+     * Obtiene el valor asociado a una clave.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El valor, o "null" si la clave no está.
+     */
+    @SuppressWarnings("unchecked")
+    V obtener(int clave) {
+        int posicion = buscarPosicion(clave);
+        return posicion < 0 ? null : (V) valores[tabla[posicion] - 1];
+    }
+
+    /**
+     * Número de entrada de una clave. No cambia mientras la clave siga en el
+     * mapa.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El número de entrada, o NINGUNA si la clave no está.
+     */
+    int entrada(int clave) {
+        int posicion = buscarPosicion(clave);
+        return posicion < 0 ? NINGUNA : tabla[posicion] - 1;
+    }
+
+    /**
+     * Informa si una clave está en el mapa.
+     *
+     * @param clave Clave de la matrícula.
+     * @return "true" si existe.
+     */
+    boolean contiene(int clave) {
+        return buscarPosicion(clave) >= 0;
+    }
+
+    /**
+     * Guarda un valor para una clave. Si la clave ya existía se sustituye su
+     * valor y se conserva su lugar en el orden de inserción.
+     *
+     * @param clave Clave de la matrícula.
+     * @param valor Valor a guardar.
+     * @return El valor que había antes, o "null" si la clave es nueva.
+     */
+    @SuppressWarnings("unchecked")
+    V poner(int clave, V valor) {
+        int mascara = tabla.length - 1;
+        int posicion = dispersar(clave) & mascara;
+        while (tabla[posicion] != 0) {
+            int entrada = tabla[posicion] - 1;
+            if (claves[entrada] == clave) {
+                V previo = (V) valores[entrada];
+                valores[entrada] = valor;
+                return previo;
+            }
+            posicion = (posicion + 1) & mascara;
+        }
+        int entrada = nuevaEntrada(clave, valor);
+        tabla[posicion] = entrada + 1;
+        if (++tamano > umbral) {
+            redimensionarTabla();
+        }
+        return null;
+    }
+
+    /**
+     * Elimina una clave del mapa.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El valor que tenía la clave, o "null" si no existía.
+     */
+    @SuppressWarnings("unchecked")
+    V quitar(int clave) {
+        int posicion = buscarPosicion(clave);
+        if (posicion < 0) {
+            return null;
+        }
+        int entrada = tabla[posicion] - 1;
+        V previo = (V) valores[entrada];
+        vaciarPosicion(posicion);
+        liberarEntrada(entrada);
+        tamano--;
+        return previo;
+    }
+
+    /* ------------------------------- */
+ /* RECORRIDO EN ORDEN DE INSERCIÓN */
+ /* ------------------------------- */
+    /**
+     * Primera entrada en el orden de inserción.
+     *
+     * @return Número de entrada, o NINGUNA si el mapa está vacío.
+     */
+    int primera() {
+        return primera;
+    }
+
+    /**
+     * Entrada que sigue a otra en el orden de inserción.
+     *
+     * @param entrada Número de entrada actual.
+     * @return Número de la siguiente entrada, o NINGUNA si es la última.
+     */
+    int siguiente(int entrada) {
+        return siguiente[entrada];
+    }
+
+    /**
+     * Clave guardada en una entrada.
+     *
+     * @param entrada Número de entrada.
+     * @return La clave de la matrícula.
+     */
+    int clave(int entrada) {
+        return claves[entrada];
+    }
+
+    /**
+     * Valor guardado en una entrada.
+     *
+     * @param entrada Número de entrada.
+     * @return El valor.
+     */
+    @SuppressWarnings("unchecked")
+    V valor(int entrada) {
+        return (V) valores[entrada];
+    }
+
+    /**
+     * Número de orden de una entrada. Las entradas se recorren en orden
+     * creciente de este número.
+     *
+     * @param entrada Número de entrada.
+     * @return El número de orden.
+     */
+    long orden(int entrada) {
+        return orden[entrada];
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Mezcla los bits de la clave para repartir bien las posiciones, ya que
+     * las matrículas consecutivas tienen claves consecutivas.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Un entero disperso.
+     */
+    private static int dispersar(int clave) {
+        int h = clave * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Busca la posición de la tabla que apunta a una clave.
+     *
+     * @param clave Clave de la matrícula.
+     * @return La posición, o -1 si la clave no está.
+     */
+    private int buscarPosicion(int clave) {
+        int mascara = tabla.length - 1;
+        int posicion = dispersar(clave) & mascara;
+        while (tabla[posicion] != 0) {
+            if (claves[tabla[posicion] - 1] == clave) {
+                return posicion;
+            }
+            posicion = (posicion + 1) & mascara;
+        }
+        return -1;
+    }
+
+    /**
+     * Vacía una posición de la tabla y desplaza hacia atrás los elementos del
+     * mismo grupo que quedarían inalcanzables.
+     *
+     * @param posicion Posición a vaciar.
+     */
+    private void vaciarPosicion(int posicion) {
+        int mascara = tabla.length - 1;
+        int hueco = posicion;
+        int actual = posicion;
+        while (true) {
+            actual = (actual + 1) & mascara;
+            if (tabla[actual] == 0) {
+                break;
+            }
+            int ideal = dispersar(claves[tabla[actual] - 1]) & mascara;
+            // El elemento se mueve si su posición ideal no está entre el
+            // hueco (exclusive) y su posición actual (inclusive)
+            boolean entreHuecoYActual = hueco <= actual
+                    ? ideal > hueco && ideal <= actual
+                    : ideal > hueco || ideal <= actual;
+            if (!entreHuecoYActual) {
+                tabla[hueco] = tabla[actual];
+                hueco = actual;
+            }
+        }
+        tabla[hueco] = 0;
+    }
+
+    /**
+     * Reserva una entrada (reutilizando una libre si la hay) y la enlaza al
+     * final del orden de inserción.
+     *
+     * @param clave Clave de la matrícula.
+     * @param valor Valor a guardar.
+     * @return Número de la entrada.
+     */
+    private int nuevaEntrada(int clave, V valor) {
+        int entrada;
+        if (libre != NINGUNA) {
+            entrada = libre;
+            libre = siguiente[entrada];
+        } else {
+            if (usadas == claves.length) {
+                ampliarEntradas();
+            }
+            entrada = usadas++;
+        }
+        claves[entrada] = clave;
+        valores[entrada] = valor;
+        orden[entrada] = ++ultimoOrden;
+        anterior[entrada] = ultima;
+        siguiente[entrada] = NINGUNA;
+        if (ultima == NINGUNA) {
+            primera = entrada;
+        } else {
+            siguiente[ultima] = entrada;
+        }
+        ultima = entrada;
+        return entrada;
+    }
+
+    /**
+     * Desenlaza una entrada del orden de inserción y la deja en la lista de
+     * entradas libres.
+     *
+     * @param entrada Número de la entrada.
+     */
+    private void liberarEntrada(int entrada) {
+        int previa = anterior[entrada];
+        int proxima = siguiente[entrada];
+        if (previa == NINGUNA) {
+            primera = proxima;
+        } else {
+            siguiente[previa] = proxima;
+        }
+        if (proxima == NINGUNA) {
+            ultima = previa;
+        } else {
+            anterior[proxima] = previa;
+        }
+        valores[entrada] = null;
+        siguiente[entrada] = libre;
+        libre = entrada;
+    }
+
+    /**
+     * Duplica el espacio de las entradas.
+     */
+    private void ampliarEntradas() {
+        int capacidad = claves.length * 2;
+        claves = Arrays.copyOf(claves, capacidad);
+        valores = Arrays.copyOf(valores, capacidad);
+        anterior = Arrays.copyOf(anterior, capacidad);
+        siguiente = Arrays.copyOf(siguiente, capacidad);
+        orden = Arrays.copyOf(orden, capacidad);
+    }
+
+    /**
+     * Duplica el tamaño de la tabla hash y vuelve a colocar las entradas. La
+     * tabla se mantiene siempre a menos de la mitad de su capacidad.
+     */
+    private void redimensionarTabla() {
+        int[] nueva = new int[tabla.length * 2];
+        int mascara = nueva.length - 1;
+        for (int e = primera; e != NINGUNA; e = siguiente[e]) {
+            int posicion = dispersar(claves[e]) & mascara;
+            while (nueva[posicion] != 0) {
+                posicion = (posicion + 1) & mascara;
+            }
+            nueva[posicion] = e + 1;
+        }
+        tabla = nueva;
+        umbral = nueva.length / 2;
+    }
+}
@@ -0,0 +1,343 @@
+package taller;
+
+import java.util.function.Consumer;
+
+/**
+ * Mapa persistente (inmutable) indexado por claves long no negativas, que se
+ * recorre en orden de clave. Cada modificación devuelve un mapa nuevo que
+ * comparte con el anterior todo lo que no cambia, así que el anterior sigue
+ * valiendo tal cual para quien lo tenga y se puede recorrer sin cerrojo
+ * mientras se hacen más modificaciones. Cuando nadie lo usa, el recolector
+ * de basura libera lo que solo era suyo.
+ *
+ * Es un árbol de prefijos de 32 ramas: cada nivel usa 5 bits de la clave,
+ * de los altos a los bajos, y la altura crece con la clave más alta. Cada
+ * nodo tiene sitio para sus 32 ramas y un mapa de bits de las que están
+ * ocupadas; los nodos que se quedan vacíos se quitan. Poner o quitar una
+ * clave copia únicamente los nodos del camino hasta ella. Está pensado para
+ * claves que se reparten de forma densa, como números de orden.
+ *
+ * Para no copiar una y otra vez el mismo camino en una serie de cambios
+ * seguidos, cada modificación recibe una "edición": los nodos creados con la
+ * misma edición se modifican directamente, sin copiarlos. Quien
+ * modifica debe estrenar una edición nueva en cuanto entrega el mapa a otros
+ * hilos, para que los nodos que ya ven no cambien nunca.
+ *
+ * @param <V> Tipo de los valores guardados.
+ * @author Gabriel Cubillos Rodríguez
+ */
+final class MapaPersistente<V> {
+
+    /**
+     * Bits de la clave que se usan en cada nivel del árbol.
+     */
+    private static final int BITS = 5;
+    private static final int RAMAS = 1 << BITS;
+    private static final int MASCARA = RAMAS - 1;
+    /**
+     * Valor que se devuelve cuando no queda ninguna clave.
+     */
+    static final long NINGUNA = -1;
+
+    @SuppressWarnings("rawtypes")
+    private static final MapaPersistente VACIO = new MapaPersistente<>(null, 0);
+
+    /**
+     * Raíz del árbol, o "null" si el mapa está vacío.
+     */
+    private final Nodo raiz;
+    /**
+     * Desplazamiento de los bits de la clave que usa la raíz. Las hojas
+     * están en el desplazamiento 0.
+     */
+    private final int desplazamiento;
+
+    private MapaPersistente(Nodo raiz, int desplazamiento) {
+        this.raiz = raiz;
+        this.desplazamiento = desplazamiento;
+    }
+
+    /**
+     * Mapa vacío.
+     *
+     * @param <V> Tipo de los valores.
+     * @return El mapa vacío, que es siempre el mismo objeto.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> MapaPersistente<V> vacio() {
+        return VACIO;
+    }
+
+    /**
+     * Obtiene el valor asociado a una clave.
+     *
+     * @param clave La clave.
+     * @return El valor, o "null" si la clave no está.
+     */
+    @SuppressWarnings("unchecked")
+    V obtener(long clave) {
+        if (raiz == null || clave < 0 || !cabe(clave, desplazamiento)) {
+            return null;
+        }
+        Nodo nodo = raiz;
+        for (int d = desplazamiento; d > 0; d -= BITS) {
+            nodo = (Nodo) nodo.rama(indice(clave, d));
+            if (nodo == null) {
+                return null;
+            }
+        }
+        return (V) nodo.rama(indice(clave, 0));
+    }
+
+    /**
+     * Obtiene un mapa igual a este pero con una clave asociada a un valor.
+     *
+     * @param clave La clave, no negativa.
+     * @param valor El valor, que no puede ser "null".
+     * @param edicion Edición en curso: los nodos creados con ella se
+     * modifican en lugar de copiarse.
+     * @return El mapa con el cambio.
+     */
+    MapaPersistente<V> poner(long clave, V valor, Object edicion) {
+        Nodo nueva = raiz;
+        int d = desplazamiento;
+        if (nueva == null) {
+            d = 0;
+        }
+        // Se añaden niveles por arriba hasta que la clave cabe
+        while (!cabe(clave, d)) {
+            if (nueva != null) {
+                nueva = new Nodo(edicion).con(0, nueva);
+            }
+            d += BITS;
+        }
+        nueva = poner(nueva, d, clave, valor, edicion);
+        return nueva == raiz && d == desplazamiento ? this : new MapaPersistente<>(nueva, d);
+    }
+
+    /**
+     * Obtiene un mapa igual a este pero sin una clave.
+     *
+     * @param clave La clave.
+     * @param edicion Edición en curso. Ver poner().
+     * @return El mapa con el cambio, o este mismo si la clave no estaba.
+     */
+    MapaPersistente<V> quitar(long clave, Object edicion) {
+        if (raiz == null || clave < 0 || !cabe(clave, desplazamiento)) {
+            return this;
+        }
+        Nodo nueva = quitar(raiz, desplazamiento, clave, edicion);
+        if (nueva == raiz) {
+            return this;
+        }
+        return nueva == null ? vacio() : new MapaPersistente<>(nueva, desplazamiento);
+    }
+
+    /**
+     * Busca la primera clave del mapa que es mayor o igual que una dada.
+     *
+     * @param desde Clave desde la que se busca (incluida).
+     * @return La clave, o NINGUNA si no hay ninguna.
+     */
+    long siguiente(long desde) {
+        return recorrer(desde, 0, valor -> {
+        });
+    }
+
+    /**
+     * Recorre en orden de clave los valores cuya clave es mayor o igual que
+     * una dada, visitando como mucho un número de ellos.
+     *
+     * @param desde Clave desde la que se recorre (incluida).
+     * @param maximo Número máximo de valores a visitar.
+     * @param accion Lo que se hace con cada valor.
+     * @return La clave del primer valor que queda sin visitar, para seguir
+     * desde ella, o NINGUNA si no queda ninguno.
+     */
+    long recorrer(long desde, int maximo, Consumer<? super V> accion) {
+        long inicio = Math.max(0, desde);
+        if (raiz == null || !cabe(inicio, desplazamiento)) {
+            return NINGUNA;
+        }
+        Recorrido recorrido = new Recorrido(accion, maximo);
+        recorrer(raiz, desplazamiento, 0, inicio, recorrido);
+        return recorrido.siguiente;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Estado de un recorrido: lo que se hace con cada valor, cuántos quedan
+     * por visitar y dónde se ha parado.
+     */
+    private static final class Recorrido {
+
+        private final Consumer<Object> accion;
+        private int quedan;
+        private long siguiente = NINGUNA;
+
+        @SuppressWarnings("unchecked")
+        private Recorrido(Consumer<?> accion, int maximo) {
+            this.accion = (Consumer<Object>) accion;
+            this.quedan = maximo;
+        }
+    }
+
+    /**
+     * Nodo del árbol. En las hojas las ramas son los valores.
+     */
+    private static final class Nodo {
+
+        /**
+         * Edición con la que se creó el nodo.
+         */
+        private final Object edicion;
+        /**
+         * Bit i activo si el nodo tiene la rama i.
+         */
+        private int mapa;
+        private final Object[] ramas;
+
+        private Nodo(Object edicion) {
+            this.edicion = edicion;
+            this.ramas = new Object[RAMAS];
+        }
+
+        private Nodo(Object edicion, Nodo original) {
+            this.edicion = edicion;
+            this.mapa = original.mapa;
+            this.ramas = original.ramas.clone();
+        }
+
+        /**
+         * Rama con un índice.
+         *
+         * @param i Índice, de 0 a 31.
+         * @return La rama, o "null" si el nodo no la tiene.
+         */
+        private Object rama(int i) {
+            return ramas[i];
+        }
+
+        /**
+         * Pone una rama en el nodo, que debe ser modificable.
+         *
+         * @return Este nodo.
+         */
+        private Nodo con(int i, Object rama) {
+            ramas[i] = rama;
+            mapa |= 1 << i;
+            return this;
+        }
+
+        /**
+         * Quita una rama del nodo, que debe ser modificable.
+         *
+         * @return Este nodo, o "null" si se ha quedado vacío.
+         */
+        private Nodo sin(int i) {
+            ramas[i] = null;
+            mapa &= ~(1 << i);
+            return mapa == 0 ? null : this;
+        }
+
+        /**
+         * Nodo que se puede modificar con una edición: este mismo si se creó
+         * con ella, o una copia.
+         *
+         * @param edicion Edición en curso.
+         * @return El nodo modificable.
+         */
+        private Nodo editable(Object edicion) {
+            return edicion != null && this.edicion == edicion
+                    ? this
+                    : new Nodo(edicion, this);
+        }
+    }
+
+    /**
+     * Informa si una clave cabe en un árbol cuya raíz usa un desplazamiento.
+     */
+    private static boolean cabe(long clave, int desplazamiento) {
+        return desplazamiento + BITS >= Long.SIZE - 1
+                || clave >>> (desplazamiento + BITS) == 0;
+    }
+
+    private static int indice(long clave, int desplazamiento) {
+        return (int) (clave >>> desplazamiento) & MASCARA;
+    }
+
+    /**
+     * Pone una clave en un subárbol.
+     *
+     * @return El subárbol con el cambio (el mismo nodo si se ha modificado
+     * directamente).
+     */
+    private static Nodo poner(Nodo nodo, int desplazamiento, long clave,
+            Object valor, Object edicion) {
+        int i = indice(clave, desplazamiento);
+        Object rama = valor;
+        if (desplazamiento > 0) {
+            rama = poner(nodo == null ? null : (Nodo) nodo.rama(i),
+                    desplazamiento - BITS, clave, valor, edicion);
+        }
+        if (nodo == null) {
+            return new Nodo(edicion).con(i, rama);
+        }
+        return nodo.rama(i) == rama ? nodo : nodo.editable(edicion).con(i, rama);
+    }
+
+    /**
+     * Quita una clave de un subárbol.
+     *
+     * @return El subárbol con el cambio (el mismo nodo si la clave no
+     * estaba o se ha modificado directamente), o "null" si se ha quedado
+     * vacío.
+     */
+    private static Nodo quitar(Nodo nodo, int desplazamiento, long clave,
+            Object edicion) {
+        int i = indice(clave, desplazamiento);
+        Object rama = nodo.rama(i);
+        if (rama == null) {
+            return nodo;
+        }
+        if (desplazamiento > 0) {
+            Nodo hijo = quitar((Nodo) rama, desplazamiento - BITS, clave, edicion);
+            if (hijo == rama) {
+                return nodo;
+            }
+            if (hijo != null) {
+                return nodo.editable(edicion).con(i, hijo);
+            }
+        }
+        return nodo.editable(edicion).sin(i);
+    }
+
+    /**
+     * Recorre un subárbol cuyas claves empiezan en una base.
+     *
+     * @return "false" si el recorrido ha terminado.
+     */
+    private static boolean recorrer(Nodo nodo, int desplazamiento,
+            long base, long desde, Recorrido recorrido) {
+        int primera = desde > base ? indice(desde, desplazamiento) : 0;
+        for (int ramas = nodo.mapa & (-1 << primera); ramas != 0; ramas &= ramas - 1) {
+            int i = Integer.numberOfTrailingZeros(ramas);
+            long clave = base | (long) i << desplazamiento;
+            Object rama = nodo.ramas[i];
+            if (desplazamiento == 0) {
+                if (recorrido.quedan == 0) {
+                    recorrido.siguiente = clave;
+                    return false;
+                }
+                recorrido.quedan--;
+                recorrido.accion.accept(rama);
+            } else if (!recorrer((Nodo) rama, desplazamiento - BITS, clave,
+                    i == primera ? desde : clave, recorrido)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,611 @@
+package taller;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import vehiculo.Matricula;
+
+/**
+ * Métricas de las operaciones del registro del taller: cuántas veces se hace
+ * cada una y cuánto tarda (ver Histograma), además de la ocupación del taller,
+ * de los huecos de reparaciones y de la caché de búsquedas por matrícula
+ * (ver Taller.configurarCache()). Se pueden consultar con escribir(), desde
+ * el menú, o por JMX con registrarEnJmx(), en los objetos
+ * "taller:type=Operacion,name=..." y "taller:type=Registro".
+ *
+ * Por defecto solo se cuentan las operaciones. La duración de cada una se
+ * mide solo después de medirDuraciones(true): leer el reloj dos veces puede
+ * costar más que las operaciones más rápidas del registro, como una búsqueda
+ * por matrícula (MetricasBenchmark lo mide). Entonces se miden todas, así que
+ * los percentiles son exactos, salvo el error de los cubos del histograma.
+ * Cada hilo anota en sus propios contadores e histogramas, sin cerrojos ni
+ * instrucciones atómicas, y se suman al leerlos. Con activar(false) no se
+ * cuenta ni se mide nada.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Metricas {
+
+    /**
+     * Operaciones que se miden.
+     */
+    public enum Operacion {
+        /**
+         * Búsqueda de un vehículo por su matrícula.
+         */
+        BUSCAR,
+        /**
+         * Alta de un vehículo.
+         */
+        ALTA,
+        /**
+         * Baja de un vehículo.
+         */
+        BAJA,
+        /**
+         * Reparación de un vehículo.
+         */
+        REPARACION,
+        /**
+         * Lote de órdenes (ver Taller.ejecutar()).
+         */
+        LOTE,
+        /**
+         * Validación del texto de una matrícula.
+         */
+        MATRICULA
+    }
+
+    /**
+     * Valor de empezar() cuando no se mide la duración.
+     */
+    static final long SIN_MEDIDA = Long.MIN_VALUE;
+    /**
+     * Milisegundos durante los que se reutilizan los datos de los huecos de
+     * reparaciones, que obligan a recorrer todo el registro.
+     */
+    private static final long VIGENCIA_REPARACIONES = 10_000;
+
+    private static final int OPERACIONES = Operacion.values().length;
+
+    /**
+     * Contadores e histogramas de cada hilo (ver Contadores). Los de los
+     * hilos que han terminado se suman a RETIRADOS y DURACIONES_RETIRADAS y
+     * se quitan de la lista cada vez que empieza a contar un hilo nuevo.
+     */
+    private static final List<Contadores> CONTADORES = new ArrayList<>();
+    private static final long[] RETIRADOS = new long[OPERACIONES];
+    private static final long[][] DURACIONES_RETIRADAS = new long[OPERACIONES][];
+
+    static {
+        for (int i = 0; i < OPERACIONES; i++) {
+            DURACIONES_RETIRADAS[i] = Histograma.acumulado();
+        }
+    }
+
+    private static final ThreadLocal<Contadores> PROPIOS
+            = ThreadLocal.withInitial(Metricas::nuevosContadores);
+    /**
+     * Contadores de cada hilo por los últimos bits de su identificador, para
+     * no buscar en PROPIOS en cada operación. Si dos hilos vivos comparten
+     * posición, el que llega después usa PROPIOS.
+     */
+    private static final Contadores[] POR_HILO = new Contadores[64];
+
+    private static volatile boolean activas = true;
+    private static volatile boolean duraciones;
+    /**
+     * Número de veces que se ha llamado a reiniciar(). Cada hilo vacía sus
+     * contadores cuando ve que ha cambiado, y hasta entonces no se suman.
+     */
+    private static volatile int generacion;
+    /**
+     * Último informe de los huecos de reparaciones y cuándo se generó.
+     */
+    private static Informe informe;
+    private static long informeGenerado;
+
+    /**
+     * Constructor privado: la clase solo tiene métodos estáticos.
+     */
+    private Metricas() {
+    }
+
+    /**
+     * Activa o desactiva la medida de las operaciones. Lo ya medido se
+     * conserva.
+     *
+     * @param activar "true" para medir.
+     */
+    public static void activar(boolean activar) {
+        activas = activar;
+    }
+
+    /**
+     * Informa si se están midiendo las operaciones.
+     *
+     * @return "true" si están activas.
+     */
+    public static boolean estanActivas() {
+        return activas;
+    }
+
+    /**
+     * Empieza o deja de medir la duración de cada operación, además de
+     * contarlas. Lo ya medido se conserva.
+     *
+     * @param medir "true" para medir las duraciones.
+     */
+    public static void medirDuraciones(boolean medir) {
+        duraciones = medir;
+    }
+
+    /**
+     * Informa si se está midiendo la duración de cada operación.
+     *
+     * @return "true" si se miden.
+     */
+    public static boolean midenDuraciones() {
+        return duraciones;
+    }
+
+    /**
+     * Vacía todas las medidas. Cada hilo vacía las suyas en su siguiente
+     * operación; hasta entonces no se tienen en cuenta.
+     */
+    public static void reiniciar() {
+        synchronized (CONTADORES) {
+            generacion++;
+            for (int i = 0; i < OPERACIONES; i++) {
+                RETIRADOS[i] = 0;
+                DURACIONES_RETIRADAS[i] = Histograma.acumulado();
+            }
+        }
+    }
+
+    /**
+     * Crea una matrícula a partir de su texto, midiendo la validación.
+     *
+     * @param texto Texto de la matrícula (ej. 1234BCD).
+     * @return La matrícula.
+     * @throws IllegalArgumentException Si el texto no tiene el formato
+     * correcto.
+     */
+    public static Matricula matricula(String texto) {
+        long inicio = empezar(Operacion.MATRICULA);
+        try {
+            return new Matricula(texto);
+        } finally {
+            anotar(Operacion.MATRICULA, inicio);
+        }
+    }
+
+    /**
+     * Medidas de una operación. Las duraciones son de las veces que se ha
+     * hecho mientras se medían (ver medirDuraciones()).
+     *
+     * @param numero Veces que se ha hecho.
+     * @param medidas Veces que se ha medido su duración.
+     * @param media Duración media, en microsegundos.
+     * @param p50 Percentiles 50, 99 y 99,9 de la duración, en microsegundos.
+     * @param maximo La mayor duración, en microsegundos.
+     */
+    public record Medida(long numero, long medidas, double media, double p50,
+            double p99, double p999, double maximo) {
+    }
+
+    /**
+     * Lee las medidas de una operación.
+     *
+     * @param operacion La operación.
+     * @return Sus medidas.
+     */
+    public static Medida medida(Operacion operacion) {
+        int i = operacion.ordinal();
+        long numero;
+        long[] acumulado;
+        synchronized (CONTADORES) {
+            numero = RETIRADOS[i];
+            acumulado = DURACIONES_RETIRADAS[i].clone();
+            int actual = generacion;
+            for (Contadores contadores : CONTADORES) {
+                if (contadores.generacion == actual) {
+                    numero += contadores.leer(i);
+                    contadores.histogramas[i].sumarA(acumulado);
+                }
+            }
+        }
+        Histograma.Resumen resumen = Histograma.resumir(acumulado);
+        return new Medida(numero, resumen.numero(),
+                resumen.numero() == 0 ? 0 : resumen.total() / 1e3 / resumen.numero(),
+                resumen.p50() / 1e3, resumen.p99() / 1e3, resumen.p999() / 1e3,
+                resumen.maximo() / 1e3);
+    }
+
+    /**
+     * Escribe una tabla con las medidas de cada operación y la ocupación del
+     * taller.
+     *
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
+     */
+    public static void escribir(Appendable destino) throws IOException {
+        destino.append(String.format(Locale.ROOT, "%-11s %12s %10s %10s %10s %10s %10s %10s%n",
+                "Operación", "Número", "Medidas", "Media µs", "p50 µs", "p99 µs",
+                "p99,9 µs", "Máx. µs"));
+        for (Operacion operacion : Operacion.values()) {
+            Medida m = medida(operacion);
+            destino.append(String.format(Locale.ROOT, "%-11s %12d %10d", operacion,
+                    m.numero(), m.medidas()));
+            if (m.medidas() == 0) {
+                destino.append(String.format(Locale.ROOT, " %10s %10s %10s %10s %10s%n",
+                        "-", "-", "-", "-", "-"));
+            } else {
+                destino.append(String.format(Locale.ROOT,
+                        " %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                        m.media(), m.p50(), m.p99(), m.p999(), m.maximo()));
+            }
+        }
+        int maximos = Taller.getVehiculosMaximos();
+        destino.append(String.format(Locale.ROOT, "%nVehículos: %d de %s%n",
+                Taller.getVehiculosRegistrados(),
+                maximos == Taller.SIN_LIMITE ? "ilimitados" : String.valueOf(maximos)));
+        Informe huecos = huecos();
+        destino.append(String.format(Locale.ROOT,
+                "Reparaciones por vehículo: %.2f; sin huecos para más: %d%n",
+                huecos.getVehiculos() == 0 ? 0
+                : (double) huecos.getReparaciones() / huecos.getVehiculos(),
+                huecos.getVehiculosConReparacionesLlenas()));
+        Taller.EstadisticasCache cache = Taller.getEstadisticasCache();
+        if (cache != null) {
+            destino.append(String.format(Locale.ROOT,
+                    "Caché de búsquedas (%s): %d de %d vehículos; aciertos: %d (%.1f %%);"
+                    + " fallos: %d; desalojos: %d; invalidaciones: %d%n",
+                    cache.politica(), cache.vehiculos(), cache.capacidad(),
+                    cache.aciertos(), cache.tasaDeAciertos() * 100, cache.fallos(),
+                    cache.desalojos(), cache.invalidaciones()));
+        }
+        if (!activas) {
+            destino.append("Las métricas están desactivadas\n");
+        } else if (!duraciones) {
+            destino.append("Solo se cuentan las operaciones; no se mide su duración\n");
+        }
+    }
+
+    /* -------------- */
+ /* ACCESO POR JMX */
+ /* -------------- */
+    /**
+     * Medidas de una operación por JMX. Los tiempos van en microsegundos.
+     */
+    public interface OperacionMXBean {
+
+        long getNumero();
+
+        long getMedidas();
+
+        double getMedia();
+
+        double getP50();
+
+        double getP99();
+
+        double getP999();
+
+        double getMaximo();
+    }
+
+    /**
+     * Ocupación del taller por JMX. Los datos de las reparaciones se
+     * calculan recorriendo el registro, como mucho una vez cada 10 segundos.
+     */
+    public interface RegistroMXBean {
+
+        int getVehiculos();
+
+        /**
+         * @return La capacidad, o -1 si es ilimitada.
+         */
+        int getVehiculosMaximos();
+
+        /**
+         * @return Fracción de la capacidad ocupada, o 0 si es ilimitada.
+         */
+        double getOcupacion();
+
+        double getReparacionesPorVehiculo();
+
+        int getVehiculosConReparacionesLlenas();
+
+        /**
+         * @return Fracción de las búsquedas por matrícula resueltas por la
+         * caché, o 0 si no se usa.
+         */
+        double getTasaDeAciertosCache();
+
+        boolean isMetricasActivas();
+
+        void setMetricasActivas(boolean activas);
+
+        boolean isDuracionesMedidas();
+
+        void setDuracionesMedidas(boolean medir);
+
+        void reiniciar();
+    }
+
+    /**
+     * Publica las métricas en el servidor de MBeans de la plataforma. Si ya
+     * estaban publicadas, las sustituye.
+     *
+     * @throws IllegalStateException Si no se pueden publicar.
+     */
+    public static void registrarEnJmx() {
+        MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Operacion operacion : Operacion.values()) {
+                publicar(servidor, new ObjectName("taller:type=Operacion,name=" + operacion),
+                        new OperacionMXBean() {
+                    @Override
+                    public long getNumero() {
+                        return medida(operacion).numero();
+                    }
+
+                    @Override
+                    public long getMedidas() {
+                        return medida(operacion).medidas();
+                    }
+
+                    @Override
+                    public double getMedia() {
+                        return medida(operacion).media();
+                    }
+
+                    @Override
+                    public double getP50() {
+                        return medida(operacion).p50();
+                    }
+
+                    @Override
+                    public double getP99() {
+                        return medida(operacion).p99();
+                    }
+
+                    @Override
+                    public double getP999() {
+                        return medida(operacion).p999();
+                    }
+
+                    @Override
+                    public double getMaximo() {
+                        return medida(operacion).maximo();
+                    }
+                }, OperacionMXBean.class);
+            }
+            publicar(servidor, new ObjectName("taller:type=Registro"), new RegistroMXBean() {
+                @Override
+                public int getVehiculos() {
+                    return Taller.getVehiculosRegistrados();
+                }
+
+                @Override
+                public int getVehiculosMaximos() {
+                    return Taller.getVehiculosMaximos();
+                }
+
+                @Override
+                public double getOcupacion() {
+                    int maximos = Taller.getVehiculosMaximos();
+                    return maximos == Taller.SIN_LIMITE
+                            ? 0 : (double) Taller.getVehiculosRegistrados() / maximos;
+                }
+
+                @Override
+                public double getReparacionesPorVehiculo() {
+                    Informe huecos = huecos();
+                    return huecos.getVehiculos() == 0
+                            ? 0 : (double) huecos.getReparaciones() / huecos.getVehiculos();
+                }
+
+                @Override
+                public int getVehiculosConReparacionesLlenas() {
+                    return huecos().getVehiculosConReparacionesLlenas();
+                }
+
+                @Override
+                public double getTasaDeAciertosCache() {
+                    Taller.EstadisticasCache cache = Taller.getEstadisticasCache();
+                    return cache == null ? 0 : cache.tasaDeAciertos();
+                }
+
+                @Override
+                public boolean isMetricasActivas() {
+                    return estanActivas();
+                }
+
+                @Override
+                public void setMetricasActivas(boolean activas) {
+                    activar(activas);
+                }
+
+                @Override
+                public boolean isDuracionesMedidas() {
+                    return midenDuraciones();
+                }
+
+                @Override
+                public void setDuracionesMedidas(boolean medir) {
+                    medirDuraciones(medir);
+                }
+
+                @Override
+                public void reiniciar() {
+                    Metricas.reiniciar();
+                }
+            }, RegistroMXBean.class);
+        } catch (JMException e) {
+            throw new IllegalStateException("No se pueden publicar las métricas por JMX", e);
+        }
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Cuenta una operación y empieza a medir su duración si se están
+     * midiendo.
+     *
+     * @param operacion La operación.
+     * @return El instante de inicio, o SIN_MEDIDA si no se miden las
+     * duraciones o las métricas están desactivadas.
+     */
+    static long empezar(Operacion operacion) {
+        if (!activas) {
+            return SIN_MEDIDA;
+        }
+        propios().contar(operacion.ordinal());
+        return duraciones ? System.nanoTime() : SIN_MEDIDA;
+    }
+
+    /**
+     * Termina de medir la duración de una operación y la anota.
+     *
+     * @param operacion La operación.
+     * @param inicio Lo que devolvió empezar().
+     */
+    static void anotar(Operacion operacion, long inicio) {
+        if (inicio != SIN_MEDIDA) {
+            long nanos = System.nanoTime() - inicio;
+            propios().histogramas[operacion.ordinal()].anotar(nanos);
+        }
+    }
+
+    /**
+     * Contadores e histogramas de un hilo. Solo los modifica su hilo, así
+     * que no necesitan instrucciones atómicas, que en algunas máquinas
+     * cuestan más que las operaciones más rápidas del registro; los demás
+     * hilos solo los leen.
+     */
+    private static final class Contadores {
+
+        private static final VarHandle VALOR
+                = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final Thread hilo = Thread.currentThread();
+        private final long[] valores = new long[OPERACIONES];
+        private final Histograma[] histogramas = new Histograma[OPERACIONES];
+        /**
+         * Valor de Metricas.generacion con el que se vaciaron por última vez.
+         * Lo escribe su hilo después de vaciarlos, así que quien lo lee igual
+         * a Metricas.generacion ya no ve los valores de antes.
+         */
+        private volatile int generacion;
+
+        Contadores(int generacion) {
+            this.generacion = generacion;
+            for (int i = 0; i < OPERACIONES; i++) {
+                histogramas[i] = new Histograma();
+            }
+        }
+
+        /**
+         * Cuenta una operación, después de vaciar los contadores si se ha
+         * llamado a reiniciar().
+         */
+        void contar(int operacion) {
+            int actual = Metricas.generacion;
+            if (actual != generacion) {
+                vaciar(actual);
+            }
+            // Escritura "opaca": sin barreras, pero sin cortar el long en dos
+            VALOR.setOpaque(valores, operacion, valores[operacion] + 1);
+        }
+
+        long leer(int operacion) {
+            return (long) VALOR.getOpaque(valores, operacion);
+        }
+
+        private void vaciar(int actual) {
+            for (int i = 0; i < OPERACIONES; i++) {
+                VALOR.setOpaque(valores, i, 0L);
+                histogramas[i].vaciar();
+            }
+            generacion = actual;
+        }
+    }
+
+    /**
+     * Contadores del hilo actual.
+     */
+    private static Contadores propios() {
+        Thread hilo = Thread.currentThread();
+        Contadores contadores = POR_HILO[(int) hilo.getId() & (POR_HILO.length - 1)];
+        return contadores != null && contadores.hilo == hilo ? contadores : PROPIOS.get();
+    }
+
+    /**
+     * Crea los contadores del hilo actual, retira los de los hilos que han
+     * terminado y ocupa su posición en POR_HILO si está libre.
+     */
+    private static Contadores nuevosContadores() {
+        synchronized (CONTADORES) {
+            int actual = generacion;
+            for (Iterator<Contadores> it = CONTADORES.iterator(); it.hasNext();) {
+                Contadores otros = it.next();
+                if (!otros.hilo.isAlive()) {
+                    if (otros.generacion == actual) {
+                        for (int i = 0; i < OPERACIONES; i++) {
+                            RETIRADOS[i] += otros.leer(i);
+                            otros.histogramas[i].sumarA(DURACIONES_RETIRADAS[i]);
+                        }
+                    }
+                    it.remove();
+                }
+            }
+            Contadores nuevos = new Contadores(actual);
+            CONTADORES.add(nuevos);
+            int posicion = (int) nuevos.hilo.getId() & (POR_HILO.length - 1);
+            if (POR_HILO[posicion] == null || !POR_HILO[posicion].hilo.isAlive()) {
+                POR_HILO[posicion] = nuevos;
+            }
+            return nuevos;
+        }
+    }
+
+    /**
+     * Informe con los huecos de reparaciones, reutilizado durante
+     * VIGENCIA_REPARACIONES.
+     */
+    private static synchronized Informe huecos() {
+        long ahora = System.currentTimeMillis();
+        if (informe == null || ahora - informeGenerado > VIGENCIA_REPARACIONES) {
+            informe = Informe.generar(0);
+            informeGenerado = ahora;
+        }
+        return informe;
+    }
+
+    /**
+     * Publica un MBean, sustituyendo al que hubiese con el mismo nombre.
+     */
+    private static <T> void publicar(MBeanServer servidor, ObjectName nombre,
+            T objeto, Class<T> interfaz) throws JMException {
+        StandardMBean mbean = new StandardMBean(objeto, interfaz, true);
+        try {
+            servidor.registerMBean(mbean, nombre);
+        } catch (InstanceAlreadyExistsException e) {
+            servidor.unregisterMBean(nombre);
+            servidor.registerMBean(mbean, nombre);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package taller;
+
+import vehiculo.Diccionario;
+import vehiculo.Matricula;
+
+/**
+ * Una modificación del registro del taller que se ejecuta junto con otras en
+ * un lote (ver Taller.ejecutar()). Los datos se validan al crear la orden,
+ * antes de tomar ningún cerrojo, incluido que el cambio quepa en el diario
+ * (ver Diario.CUERPO_MAXIMO): así un lote no puede fallar a medias, con
+ * las primeras órdenes aplicadas y las demás no.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Orden {
+
+    /**
+     * Tipos de orden.
+     */
+    enum Tipo {
+        ALTA, ESPERA, REPARACION, BAJA
+    }
+
+    final Tipo tipo;
+    final Matricula matricula;
+    /**
+     * Datos del vehículo de un alta.
+     */
+    final String marca, modelo, color;
+    /**
+     * Urgencia de un alta que puede quedar en espera.
+     */
+    final Urgencia urgencia;
+    /**
+     * Nombre, código en Diccionario.TIPOS_REPARACION y coste en céntimos de
+     * una reparación.
+     */
+    final String reparacion;
+    final int tipoReparacion;
+    final long coste;
+
+    /**
+     * Constructor privado: las órdenes se crean con alta(), espera(),
+     * reparacion() y baja().
+     */
+    private Orden(Tipo tipo, Matricula matricula, String marca, String modelo,
+            String color, Urgencia urgencia, String reparacion, int tipoReparacion,
+            long coste) {
+        this.tipo = tipo;
+        this.matricula = matricula;
+        this.marca = marca;
+        this.modelo = modelo;
+        this.color = color;
+        this.urgencia = urgencia;
+        this.reparacion = reparacion;
+        this.tipoReparacion = tipoReparacion;
+        this.coste = coste;
+    }
+
+    /**
+     * Orden de agregar un vehículo, como Taller.addIfAbsent(). Su resultado
+     * es REALIZADO, YA_EXISTE o LLENO.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @return La orden.
+     * @throws IllegalArgumentException Si algún dato está en blanco o no
+     * cabe en el diario.
+     */
+    public static Orden alta(Matricula matricula, String marca, String modelo,
+            String color) {
+        Orden orden = new Orden(Tipo.ALTA, obligatoria(matricula),
+                obligatorio(marca, "marca"), obligatorio(modelo, "modelo"),
+                obligatorio(color, "color"), null, null, 0, 0);
+        Diario.comprobarAlta(marca, modelo, color);
+        return orden;
+    }
+
+    /**
+     * Orden de agregar un vehículo o, si el taller está lleno, dejarlo en la
+     * cola de espera, como Taller.addOrEnqueue(). Su resultado es REALIZADO,
+     * EN_ESPERA o YA_EXISTE.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera.
+     * @return La orden.
+     * @throws IllegalArgumentException Si algún dato está en blanco o no
+     * cabe en el diario.
+     */
+    public static Orden espera(Matricula matricula, String marca, String modelo,
+            String color, Urgencia urgencia) {
+        if (urgencia == null) {
+            throw new IllegalArgumentException("Falta la urgencia");
+        }
+        Orden orden = new Orden(Tipo.ESPERA, obligatoria(matricula),
+                obligatorio(marca, "marca"), obligatorio(modelo, "modelo"),
+                obligatorio(color, "color"), urgencia, null, 0, 0);
+        Diario.comprobarAlta(marca, modelo, color);
+        return orden;
+    }
+
+    /**
+     * Orden de anotar una reparación hecha ahora, como
+     * Taller.registrarReparacion(). Su resultado es REALIZADO, NO_EXISTE o
+     * LLENO.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @return La orden.
+     * @throws IllegalArgumentException Si la reparación está en blanco o no
+     * cabe en el diario, o si el coste es negativo.
+     */
+    public static Orden reparacion(Matricula matricula, String reparacion, long coste) {
+        obligatorio(reparacion, "reparación");
+        if (coste < 0) {
+            throw new IllegalArgumentException("El coste no puede ser negativo");
+        }
+        Diario.comprobarIntervencion(reparacion);
+        return new Orden(Tipo.REPARACION, obligatoria(matricula), null, null,
+                null, null, reparacion, Diccionario.TIPOS_REPARACION.codigo(reparacion),
+                coste);
+    }
+
+    /**
+     * Orden de eliminar un vehículo, como Taller.removeVehiculo(). Su
+     * resultado es REALIZADO o NO_EXISTE.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return La orden.
+     */
+    public static Orden baja(Matricula matricula) {
+        return new Orden(Tipo.BAJA, obligatoria(matricula), null, null, null,
+                null, null, 0, 0);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    private static Matricula obligatoria(Matricula matricula) {
+        if (matricula == null) {
+            throw new IllegalArgumentException("Falta la matrícula");
+        }
+        return matricula;
+    }
+
+    private static String obligatorio(String valor, String nombre) {
+        if (valor == null || valor.isBlank()) {
+            throw new IllegalArgumentException(
+                    "El campo \"" + nombre + "\" está en blanco");
+        }
+        return valor;
+    }
+}
@@ -0,0 +1,28 @@
+package taller;
+
+/**
+ * Forma de elegir qué vehículo sale de la caché de búsquedas del registro
+ * cuando está llena (ver Taller.configurarCache()).
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public enum PoliticaCache {
+    /**
+     * Sale el que lleva más tiempo sin buscarse.
+     */
+    LRU,
+    /**
+     * Sale el que se ha buscado menos veces. Las cuentas se van reduciendo
+     * a la mitad para que los que se buscaron mucho hace tiempo no se queden
+     * para siempre.
+     */
+    LFU,
+    /**
+     * Los nuevos entran en una ventana pequeña por orden de uso, y al salir
+     * de ella solo se quedan si se han buscado más veces que el que tendría
+     * que dejarles sitio. Las veces se cuentan también de los que no están
+     * en la caché. Es la que mejor aguanta tanto los vehículos muy buscados
+     * como las rachas de búsquedas de uno solo.
+     */
+    W_TINY_LFU
+}
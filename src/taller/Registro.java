@@ -0,0 +1,814 @@
+package taller;
+
+import java.util.BitSet;
+import java.util.function.Consumer;
+import vehiculo.PatronMatricula;
+
+/**
+ * Registro de los vehículos del taller indexado por la clave de la matrícula.
+ * Los vehículos que se han agregado o modificado desde el arranque están en
+ * memoria, en un MapaMatriculas. Los demás se leen bajo demanda de la
+ * instantánea proyectada en memoria, si la hay, sin cargarlos todos.
+ *
+ * Cada vehículo de la instantánea está "vigente" mientras no se haya
+ * modificado ni eliminado. En cuanto se modifica pasa a memoria, y si se
+ * elimina simplemente deja de estar vigente.
+ *
+ * Si se configura un AlmacenDirecto, los datos de los vehículos en memoria
+ * no se guardan en objetos Taller sino fuera del montículo, en la fila del
+ * almacén que corresponde a su entrada del MapaMatriculas (que entonces
+ * guarda valores "null"). Las consultas devuelven un objeto nuevo leído del
+ * almacén, como con la instantánea.
+ *
+ * Cada vehículo ocupa una "fila", que es el número que usan los índices por
+ * marca, modelo y color (ver Indices): los de la instantánea, su posición en
+ * ella, y los de memoria, el tamaño de la instantánea más su número de
+ * entrada en el MapaMatriculas. Las filas no cambian mientras el vehículo no
+ * se modifica o se elimina.
+ *
+ * Las búsquedas por matrícula de los vehículos que no están en memoria como
+ * objetos (los de la instantánea y los del almacén) pasan antes por una
+ * CacheDeVehiculos, de la que salen los vehículos que se van a modificar o
+ * eliminar (ver modificado() y quitar()).
+ *
+ * Además, el registro mantiene "fotos" (ver Foto) con las que los listados
+ * lo recorren sin cerrojo: versiones inmutables del registro. Una foto no
+ * copia el registro: los vehículos de memoria se guardan también, congelados,
+ * en un MapaPersistente por su número de orden, y de la instantánea solo se
+ * guardan las posiciones que han dejado de estar vigentes. Cuando alguien
+ * pide una foto y ha habido cambios se publica una (ver publicar()).
+ *
+ * Esos mapas solo se mantienen mientras se piden fotos. Hasta que se pide
+ * la primera, las modificaciones no los tocan, y publicar() los construye
+ * desde cero, recorriendo los vehículos de memoria. A partir de entonces
+ * las modificaciones van preparando la foto siguiente sobre ellos, así que
+ * publicar() solo cuesta lo que los cambios pendientes. Si se acumulan más
+ * cambios sin publicar que vehículos hay, sale más barato volver a
+ * construirlos que seguir manteniéndolos, así que se descartan y se vuelve
+ * a empezar: un registro que nadie lista no paga nada por las fotos, y uno
+ * que se lista a menudo no repite el recorrido. Las fotos que ya no usa
+ * nadie las libera el recolector de basura.
+ *
+ * Esta clase no se protege sola frente a accesos concurrentes: Sede la usa
+ * siempre con su cerrojo tomado (de lectura para las consultas y de escritura
+ * para el resto). Solo getFotoAlDia() y los métodos de Foto se pueden usar
+ * sin cerrojo.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+class Registro {
+
+    /**
+     * Número máximo de claves pendientes de congelar. Al llegar a él se
+     * congelan en la foto en preparación, aunque nadie la haya pedido.
+     */
+    private static final int PENDIENTES_MAXIMOS = 1024;
+
+    /**
+     * Vehículos en memoria.
+     */
+    private final MapaMatriculas<Taller> memoria = new MapaMatriculas<>();
+    /**
+     * Instantánea de la que se leen los vehículos que no están en memoria,
+     * o "null".
+     */
+    private Instantanea instantanea;
+    /**
+     * Posiciones de la instantánea que ya no están vigentes.
+     */
+    private BitSet resueltos = new BitSet();
+    /**
+     * Número de vehículos de la instantánea que siguen vigentes.
+     */
+    private int vigentes;
+    /**
+     * Índices por marca, modelo y color.
+     */
+    private final Indices indices = new Indices();
+    /**
+     * Claves de los vehículos en memoria, en orden. Las de la instantánea ya
+     * están ordenadas en ella.
+     */
+    private final ConjuntoFilas clavesEnMemoria = new ConjuntoFilas();
+    /**
+     * Almacén fuera del montículo de los vehículos en memoria, o "null" si
+     * se guardan como objetos.
+     */
+    private AlmacenDirecto almacen;
+    /**
+     * Caché de las búsquedas por matrícula de los vehículos de la
+     * instantánea o del almacén, o "null".
+     */
+    private CacheDeVehiculos cache = new CacheDeVehiculos(
+            Taller.VEHICULOS_EN_CACHE, PoliticaCache.W_TINY_LFU);
+    /**
+     * Indica si se está preparando la foto siguiente, es decir, si
+     * memoriaEnFoto y resueltosEnFoto tienen los cambios publicados más los
+     * que están en pendientes.
+     */
+    private boolean preparandoFoto;
+    /**
+     * Cambios desde la última publicación mientras se prepara la foto
+     * siguiente.
+     */
+    private int cambiosSinPublicar;
+    /**
+     * Vehículos de memoria de la foto en preparación, congelados, por su
+     * número de orden en el MapaMatriculas, y posiciones de la instantánea
+     * que ya no están vigentes en ella.
+     */
+    private MapaPersistente<Taller> memoriaEnFoto = MapaPersistente.vacio();
+    private MapaPersistente<Boolean> resueltosEnFoto = MapaPersistente.vacio();
+    /**
+     * Edición de los mapas de la foto en preparación: sus nodos creados
+     * desde la última publicación se modifican sin copiarlos.
+     */
+    private Object edicion = new Object();
+    /**
+     * Claves de los vehículos de memoria que se han podido modificar y que
+     * hay que volver a congelar. Puede haber repetidas.
+     */
+    private final int[] pendientes = new int[PENDIENTES_MAXIMOS];
+    private int numeroDePendientes;
+    /**
+     * Última foto publicada, y su versión. Se olvida al dejar de preparar
+     * fotos.
+     */
+    private volatile Foto foto = new Foto(null, MapaPersistente.vacio(),
+            MapaPersistente.vacio(), 0, 0);
+    private long version;
+    /**
+     * Indica si la última foto publicada tiene todos los cambios. Se
+     * consulta sin cerrojo.
+     */
+    private volatile boolean fotoAlDia = true;
+
+    /**
+     * Elige dónde se guardan los vehículos en memoria. Debe llamarse con el
+     * registro vacío.
+     *
+     * @param almacen El almacén fuera del montículo, o "null" para usar
+     * objetos.
+     * @throws IllegalStateException Si ya hay vehículos en memoria.
+     */
+    void usarAlmacen(AlmacenDirecto almacen) {
+        if (memoria.tamano() > 0) {
+            throw new IllegalStateException(
+                    "El almacén se debe elegir antes de registrar vehículos");
+        }
+        this.almacen = almacen;
+    }
+
+    /**
+     * Sustituye la caché de las búsquedas por matrícula.
+     *
+     * @param cache La caché nueva, vacía, o "null" para no usar caché.
+     */
+    void usarCache(CacheDeVehiculos cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Estadísticas de la caché de las búsquedas por matrícula.
+     *
+     * @return Las estadísticas, o "null" si no se usa caché.
+     */
+    Taller.EstadisticasCache estadisticasCache() {
+        return cache == null ? null : cache.estadisticas();
+    }
+
+    /**
+     * Empieza a usar una instantánea como base del registro. Debe llamarse
+     * con el registro vacío.
+     *
+     * @param base La instantánea.
+     */
+    void usarInstantanea(Instantanea base) {
+        this.instantanea = base;
+        this.resueltos = new BitSet();
+        this.vigentes = base == null ? 0 : base.tamano();
+        cambio();
+        dejarDePrepararFoto();
+        if (cache != null) {
+            cache.vaciar();
+        }
+        indices.vaciar();
+        if (base != null) {
+            indices.agregar(base);
+        }
+    }
+
+    /**
+     * Número de vehículos registrados.
+     *
+     * @return Los que hay en memoria más los vigentes de la instantánea.
+     */
+    int tamano() {
+        return memoria.tamano() + vigentes;
+    }
+
+    /**
+     * Informa si una matrícula está registrada.
+     *
+     * @param clave Clave de la matrícula.
+     * @return "true" si existe.
+     */
+    boolean contiene(int clave) {
+        return memoria.contiene(clave) || posicionVigente(clave) >= 0;
+    }
+
+    /**
+     * Obtiene un vehículo para consultarlo. Si solo está en la instantánea se
+     * devuelve un objeto nuevo leído de ella, sin pasarlo a memoria. Los que
+     * se leen de la instantánea o del almacén se buscan antes en la caché y,
+     * si no están, se guardan en ella.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El vehículo, o "null" si no existe.
+     */
+    Taller obtener(int clave) {
+        int entrada = memoria.entrada(clave);
+        if (entrada != MapaMatriculas.NINGUNA && almacen == null) {
+            return memoria.valor(entrada);
+        }
+        if (entrada == MapaMatriculas.NINGUNA && vigentes == 0) {
+            return null;
+        }
+        if (cache != null) {
+            Taller guardado = cache.obtener(clave);
+            if (guardado != null) {
+                return guardado;
+            }
+        }
+        Taller leido;
+        if (entrada != MapaMatriculas.NINGUNA) {
+            leido = almacen.leer(entrada);
+        } else {
+            int posicion = posicionVigente(clave);
+            if (posicion < 0) {
+                return null;
+            }
+            leido = instantanea.leer(posicion);
+        }
+        if (cache == null) {
+            return leido;
+        }
+        cache.poner(clave, leido);
+        return leido.clonar();
+    }
+
+    /**
+     * Informa si un objeto concreto es el que está en memoria para una
+     * matrícula, sin leer nada de la instantánea.
+     *
+     * @param clave Clave de la matrícula.
+     * @param taller El objeto.
+     * @return "true" si es el mismo objeto.
+     */
+    boolean esElRegistrado(int clave, Taller taller) {
+        return memoria.obtener(clave) == taller;
+    }
+
+    /**
+     * Obtiene un vehículo para modificarlo. Si solo está en la instantánea se
+     * lee y se pasa a memoria, de forma que las modificaciones se conservan.
+     * Con almacén fuera del montículo se devuelve una vista de su fila, que
+     * no se debe usar después de soltar el cerrojo.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El vehículo, o "null" si no existe.
+     */
+    Taller obtenerParaModificar(int clave) {
+        int entrada = memoria.entrada(clave);
+        if (entrada != MapaMatriculas.NINGUNA) {
+            modificado(clave);
+        } else {
+            int posicion = posicionVigente(clave);
+            if (posicion < 0) {
+                return null;
+            }
+            Taller taller = instantanea.leer(posicion);
+            resolver(posicion);
+            entrada = guardar(clave, taller);
+            if (almacen == null) {
+                return taller;
+            }
+        }
+        return almacen != null ? almacen.vista(entrada) : memoria.valor(entrada);
+    }
+
+    /**
+     * Guarda un vehículo en memoria, sustituyendo al que hubiera.
+     *
+     * @param clave Clave de la matrícula.
+     * @param taller El vehículo.
+     */
+    void poner(int clave, Taller taller) {
+        int posicion = posicionVigente(clave);
+        if (posicion >= 0) {
+            resolver(posicion);
+        }
+        guardar(clave, taller);
+    }
+
+    /**
+     * Elimina un vehículo.
+     *
+     * @param clave Clave de la matrícula.
+     * @return "true" si existía.
+     */
+    boolean quitar(int clave) {
+        if (cache != null) {
+            cache.invalidar(clave);
+        }
+        int entrada = memoria.entrada(clave);
+        if (entrada != MapaMatriculas.NINGUNA) {
+            indices.quitar(filaDeEntrada(entrada));
+            if (preparandoFoto) {
+                memoriaEnFoto = memoriaEnFoto.quitar(memoria.orden(entrada), edicion);
+            }
+            cambio();
+            if (almacen != null) {
+                almacen.liberar(entrada);
+            }
+            memoria.quitar(clave);
+            clavesEnMemoria.quitar(clave);
+            return true;
+        }
+        int posicion = posicionVigente(clave);
+        if (posicion >= 0) {
+            resolver(posicion);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Recorre todos los vehículos: primero los vigentes de la instantánea,
+     * en orden de matrícula, y después los de memoria, en orden de llegada.
+     *
+     * @param accion Lo que se hace con cada vehículo.
+     */
+    void recorrer(Consumer<Taller> accion) {
+        if (vigentes > 0) {
+            for (int i = resueltos.nextClearBit(0); i < instantanea.tamano();
+                    i = resueltos.nextClearBit(i + 1)) {
+                accion.accept(instantanea.leer(i));
+            }
+        }
+        for (int e = memoria.primera(); e != MapaMatriculas.NINGUNA;
+                e = memoria.siguiente(e)) {
+            accion.accept(valor(e));
+        }
+    }
+
+    /* ----------------------------------- */
+ /* CONSULTAS POR MARCA, MODELO Y COLOR */
+ /* ----------------------------------- */
+    /**
+     * Índices por marca, modelo y color.
+     *
+     * @return Los índices.
+     */
+    Indices getIndices() {
+        return indices;
+    }
+
+    /**
+     * Obtiene el vehículo que ocupa una fila.
+     *
+     * @param fila Número de fila, obtenido de los índices.
+     * @return El vehículo. Si está en la instantánea es un objeto nuevo.
+     */
+    Taller obtenerFila(int fila) {
+        int enInstantanea = instantanea == null ? 0 : instantanea.tamano();
+        return fila < enInstantanea
+                ? instantanea.leer(fila)
+                : valor(fila - enInstantanea);
+    }
+
+    /* ----------------------------------- */
+ /* CONSULTAS POR PARTE DE LA MATRÍCULA */
+ /* ----------------------------------- */
+    /**
+     * Recorre en orden de matrícula los vehículos cuya matrícula encaja en un
+     * patrón. Se salta de una matrícula registrada a la siguiente que puede
+     * encajar, así que no se visitan todos los vehículos.
+     *
+     * @param patron El patrón.
+     * @param maximo Número máximo de vehículos a visitar.
+     * @param accion Lo que se hace con cada vehículo. Los de la instantánea
+     * son objetos nuevos.
+     */
+    void recorrer(PatronMatricula patron, int maximo, Consumer<Taller> accion) {
+        int posicion = siguienteEnInstantanea(patron, 0);
+        int clave = siguienteEnMemoria(patron, 0);
+        for (int visitados = 0; visitados < maximo; visitados++) {
+            int deInstantanea = posicion < 0 ? -1 : instantanea.clave(posicion);
+            if (deInstantanea < 0 && clave < 0) {
+                return;
+            }
+            // Las dos listas no tienen claves en común
+            if (clave < 0 || (deInstantanea >= 0 && deInstantanea < clave)) {
+                accion.accept(instantanea.leer(posicion));
+                posicion = siguienteEnInstantanea(patron, deInstantanea + 1);
+            } else {
+                accion.accept(valor(memoria.entrada(clave)));
+                clave = siguienteEnMemoria(patron, clave + 1);
+            }
+        }
+    }
+
+    /* ---------------------------------------------- */
+ /* FOTOS DEL REGISTRO PARA RECORRERLO SIN CERROJO */
+ /* ---------------------------------------------- */
+    /**
+     * Anota que un vehículo de memoria se ha podido modificar, para volver a
+     * congelarlo en la foto, y lo quita de la caché. Sede lo llama cuando
+     * modifica directamente un objeto que obtuvo antes.
+     *
+     * @param clave Clave de la matrícula.
+     */
+    void modificado(int clave) {
+        if (cache != null) {
+            cache.invalidar(clave);
+        }
+        if (preparandoFoto) {
+            if (numeroDePendientes == PENDIENTES_MAXIMOS) {
+                congelarPendientes();
+            }
+            pendientes[numeroDePendientes++] = clave;
+        }
+        cambio();
+    }
+
+    /**
+     * Obtiene la última foto publicada si tiene todos los cambios. No
+     * necesita el cerrojo.
+     *
+     * @return La foto, o "null" si hay cambios sin publicar (ver
+     * publicar()).
+     */
+    Foto getFotoAlDia() {
+        return fotoAlDia ? foto : null;
+    }
+
+    /**
+     * Publica una foto con los cambios hechos hasta ahora, si no estaba ya
+     * publicada. Si no se estaba preparando, la construye recorriendo los
+     * vehículos de memoria. Se debe llamar con el cerrojo de escritura
+     * tomado.
+     *
+     * @return La foto.
+     */
+    Foto publicar() {
+        if (fotoAlDia) {
+            return foto;
+        }
+        if (preparandoFoto) {
+            congelarPendientes();
+        } else {
+            empezarAPrepararFoto();
+        }
+        cambiosSinPublicar = 0;
+        Foto nueva = new Foto(instantanea, resueltosEnFoto, memoriaEnFoto,
+                tamano(), ++version);
+        foto = nueva;
+        fotoAlDia = true;
+        // Los nodos que acaba de ver la foto ya no se pueden modificar
+        edicion = new Object();
+        return nueva;
+    }
+
+    /**
+     * Versión inmutable del registro tal como estaba al terminar una
+     * modificación. Se recorre sin cerrojo y siempre da el mismo resultado,
+     * aunque el registro siga cambiando: ningún vehículo sale dos veces ni
+     * falta, y cada uno sale con los datos que tenía en ese momento.
+     */
+    static final class Foto {
+
+        private final Instantanea instantanea;
+        private final MapaPersistente<Boolean> resueltos;
+        private final MapaPersistente<Taller> memoria;
+        private final int tamano;
+        private final long version;
+
+        private Foto(Instantanea instantanea, MapaPersistente<Boolean> resueltos,
+                MapaPersistente<Taller> memoria, int tamano, long version) {
+            this.instantanea = instantanea;
+            this.resueltos = resueltos;
+            this.memoria = memoria;
+            this.tamano = tamano;
+            this.version = version;
+        }
+
+        /**
+         * Número de vehículos de la foto.
+         *
+         * @return Cuántos vehículos había registrados.
+         */
+        int tamano() {
+            return tamano;
+        }
+
+        /**
+         * Número de versión de la foto, que crece con cada publicación.
+         *
+         * @return La versión.
+         */
+        long getVersion() {
+            return version;
+        }
+
+        /**
+         * Recorre todos los vehículos de la foto, en el mismo orden que el
+         * registro: primero los de la instantánea y después los de memoria.
+         *
+         * @param accion Lo que se hace con cada vehículo. No se deben
+         * modificar.
+         */
+        void recorrer(Consumer<Taller> accion) {
+            recorrer(0, Integer.MAX_VALUE, accion);
+        }
+
+        /**
+         * Recorre la foto por partes, visitando como mucho un número de
+         * vehículos.
+         *
+         * @param desde Dónde se empieza: 0 para empezar por el principio, o
+         * lo que devolvió la llamada anterior.
+         * @param maximo Número máximo de vehículos a visitar.
+         * @param accion Lo que se hace con cada vehículo. No se deben
+         * modificar.
+         * @return Dónde seguir, o MapaPersistente.NINGUNA si ya no quedan
+         * vehículos.
+         */
+        long recorrer(long desde, int maximo, Consumer<Taller> accion) {
+            // Las posiciones de la instantánea van primero y, tras ellas,
+            // los números de orden de los vehículos de memoria
+            int enInstantanea = instantanea == null ? 0 : instantanea.tamano();
+            long i = desde;
+            int visitados = 0;
+            if (i < enInstantanea) {
+                long resuelto = resueltos.siguiente(i);
+                while (i < enInstantanea) {
+                    if (i == resuelto) {
+                        resuelto = resueltos.siguiente(i + 1);
+                    } else if (visitados == maximo) {
+                        return i;
+                    } else {
+                        accion.accept(instantanea.leer((int) i));
+                        visitados++;
+                    }
+                    i++;
+                }
+            }
+            long siguiente = memoria.recorrer(i - enInstantanea,
+                    maximo - visitados, accion);
+            return siguiente == MapaPersistente.NINGUNA
+                    ? MapaPersistente.NINGUNA
+                    : siguiente + enInstantanea;
+        }
+    }
+
+    /* ----------------------- */
+ /* APOYO A LA COMPACTACIÓN */
+ /* ----------------------- */
+    /**
+     * Instantánea en uso.
+     *
+     * @return La instantánea, o "null".
+     */
+    Instantanea getInstantanea() {
+        return instantanea;
+    }
+
+    /**
+     * Posiciones de la instantánea que siguen vigentes, en orden.
+     *
+     * @return Array con las posiciones.
+     */
+    int[] posicionesVigentes() {
+        int[] posiciones = new int[vigentes];
+        int n = 0;
+        if (vigentes > 0) {
+            for (int i = resueltos.nextClearBit(0); i < instantanea.tamano();
+                    i = resueltos.nextClearBit(i + 1)) {
+                posiciones[n++] = i;
+            }
+        }
+        return posiciones;
+    }
+
+    /**
+     * Copia el estado de los vehículos que están en memoria, en orden de
+     * llegada. Para escribir una instantánea hay que ordenarlas antes por
+     * matrícula, lo que se puede hacer ya sin el cerrojo.
+     *
+     * @return Array con las copias.
+     */
+    Taller.Copia[] copiarMemoria() {
+        Taller.Copia[] copias = new Taller.Copia[memoria.tamano()];
+        int n = 0;
+        for (int e = memoria.primera(); e != MapaMatriculas.NINGUNA;
+                e = memoria.siguiente(e)) {
+            copias[n++] = valor(e).copiar();
+        }
+        return copias;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Busca una matrícula entre los vehículos vigentes de la instantánea.
+     *
+     * @param clave Clave de la matrícula.
+     * @return Posición en la instantánea, o -1 si no está o no es vigente.
+     */
+    private int posicionVigente(int clave) {
+        if (vigentes == 0) {
+            return -1;
+        }
+        int posicion = instantanea.buscar(clave);
+        return posicion >= 0 && !resueltos.get(posicion) ? posicion : -1;
+    }
+
+    /**
+     * Busca el siguiente vehículo vigente de la instantánea que encaja en un
+     * patrón.
+     *
+     * @param patron El patrón.
+     * @param desde Clave desde la que se busca (incluida).
+     * @return Posición del vehículo, o -1 si no hay ninguno.
+     */
+    private int siguienteEnInstantanea(PatronMatricula patron, int desde) {
+        if (vigentes == 0) {
+            return -1;
+        }
+        for (int c = patron.siguiente(desde); c >= 0; ) {
+            int posicion = instantanea.primeraDesde(c);
+            if (posicion == instantanea.tamano()) {
+                return -1;
+            }
+            int clave = instantanea.clave(posicion);
+            if (patron.encaja(clave)) {
+                if (!resueltos.get(posicion)) {
+                    return posicion;
+                }
+                clave++;
+            }
+            c = patron.siguiente(clave);
+        }
+        return -1;
+    }
+
+    /**
+     * Busca la siguiente clave de memoria que encaja en un patrón.
+     *
+     * @param patron El patrón.
+     * @param desde Clave desde la que se busca (incluida).
+     * @return La clave, o -1 si no hay ninguna.
+     */
+    private int siguienteEnMemoria(PatronMatricula patron, int desde) {
+        for (int c = patron.siguiente(desde); c >= 0; ) {
+            int clave = clavesEnMemoria.siguiente(c);
+            if (clave < 0 || patron.encaja(clave)) {
+                return clave;
+            }
+            c = patron.siguiente(clave);
+        }
+        return -1;
+    }
+
+    /**
+     * Marca una posición de la instantánea como no vigente.
+     *
+     * @param posicion Posición en la instantánea.
+     */
+    private void resolver(int posicion) {
+        resueltos.set(posicion);
+        if (preparandoFoto) {
+            resueltosEnFoto = resueltosEnFoto.poner(posicion, Boolean.TRUE, edicion);
+        }
+        cambio();
+        vigentes--;
+        indices.quitar(posicion);
+    }
+
+    /**
+     * Fila de una entrada de memoria.
+     *
+     * @param entrada Número de entrada en el MapaMatriculas.
+     * @return La fila.
+     */
+    private int filaDeEntrada(int entrada) {
+        return (instantanea == null ? 0 : instantanea.tamano()) + entrada;
+    }
+
+    /**
+     * Guarda un vehículo en memoria (o en el almacén) y lo indexa. Si
+     * sustituye a otro con la misma matrícula, ocupa su misma fila.
+     *
+     * @param clave Clave de la matrícula.
+     * @param taller El vehículo.
+     * @return Número de entrada en el MapaMatriculas.
+     */
+    private int guardar(int clave, Taller taller) {
+        memoria.poner(clave, almacen == null ? taller : null);
+        int entrada = memoria.entrada(clave);
+        if (almacen != null) {
+            almacen.escribir(entrada, taller.copiar());
+        }
+        clavesEnMemoria.agregar(clave);
+        indices.agregar(filaDeEntrada(entrada), taller.getVehiculo());
+        modificado(clave);
+        return entrada;
+    }
+
+    /**
+     * Vehículo de una entrada de memoria.
+     *
+     * @param entrada Número de entrada en el MapaMatriculas.
+     * @return El objeto guardado o, con almacén fuera del montículo, un
+     * objeto nuevo leído de él.
+     */
+    private Taller valor(int entrada) {
+        return almacen != null ? almacen.leer(entrada) : memoria.valor(entrada);
+    }
+
+    /**
+     * Anota que la última foto publicada ya no tiene todos los cambios y,
+     * si se acumulan demasiados sin publicar, deja de preparar la foto
+     * siguiente.
+     */
+    private void cambio() {
+        if (fotoAlDia) {
+            fotoAlDia = false;
+        }
+        if (preparandoFoto && ++cambiosSinPublicar > Math.max(PENDIENTES_MAXIMOS,
+                memoria.tamano())) {
+            dejarDePrepararFoto();
+        }
+    }
+
+    /**
+     * Construye desde cero los mapas de la foto en preparación con el
+     * estado actual del registro.
+     */
+    private void empezarAPrepararFoto() {
+        edicion = new Object();
+        memoriaEnFoto = MapaPersistente.vacio();
+        for (int e = memoria.primera(); e != MapaMatriculas.NINGUNA;
+                e = memoria.siguiente(e)) {
+            memoriaEnFoto = memoriaEnFoto.poner(memoria.orden(e), congelado(e), edicion);
+        }
+        resueltosEnFoto = MapaPersistente.vacio();
+        for (int i = resueltos.nextSetBit(0); i >= 0; i = resueltos.nextSetBit(i + 1)) {
+            resueltosEnFoto = resueltosEnFoto.poner(i, Boolean.TRUE, edicion);
+        }
+        numeroDePendientes = 0;
+        preparandoFoto = true;
+    }
+
+    /**
+     * Descarta los mapas de la foto en preparación y la última foto
+     * publicada, que ya no está al día; los listados que la usan la
+     * conservan.
+     */
+    private void dejarDePrepararFoto() {
+        preparandoFoto = false;
+        memoriaEnFoto = MapaPersistente.vacio();
+        resueltosEnFoto = MapaPersistente.vacio();
+        numeroDePendientes = 0;
+        if (!fotoAlDia) {
+            foto = null;
+        }
+    }
+
+    /**
+     * Congela en la foto en preparación los vehículos pendientes.
+     */
+    private void congelarPendientes() {
+        for (int i = 0; i < numeroDePendientes; i++) {
+            int entrada = memoria.entrada(pendientes[i]);
+            // Los que se han eliminado ya se quitaron de la foto
+            if (entrada != MapaMatriculas.NINGUNA) {
+                memoriaEnFoto = memoriaEnFoto.poner(memoria.orden(entrada),
+                        congelado(entrada), edicion);
+            }
+        }
+        numeroDePendientes = 0;
+    }
+
+    /**
+     * Vehículo de una entrada de memoria tal como está ahora, para la foto.
+     *
+     * @param entrada Número de entrada en el MapaMatriculas.
+     * @return Un objeto que no cambia aunque cambie el vehículo.
+     */
+    private Taller congelado(int entrada) {
+        return almacen != null ? almacen.leer(entrada) : memoria.valor(entrada).congelar();
+    }
+}
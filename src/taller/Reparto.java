@@ -0,0 +1,912 @@
+package taller;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import taller.Taller.Espera;
+import taller.Taller.Intervencion;
+import taller.Taller.Totales;
+import vehiculo.Matricula;
+import vehiculo.PatronMatricula;
+
+/**
+ * Reparto de los vehículos entre varias sedes del taller (ver Sede) según la
+ * clave de su matrícula: cada matrícula tiene una sola sede dueña, donde se
+ * registra, se repara y se da de baja. Como cada sede tiene su propio
+ * cerrojo y su propio diario, las modificaciones de distintas sedes no se
+ * esperan unas a otras. Cuánto se gana con ello depende de los procesadores
+ * y del disco; RepartoBenchmark lo mide.
+ *
+ * La sede de cada matrícula se elige con el hash consistente "jump" de
+ * Lamping y Veach: con n sedes, cada una recibe 1/n de las matrículas, y al
+ * agregar una sede (ver agregarSede()) solo cambian de dueña las que pasan a
+ * la nueva, 1/(n+1) del total. Esos vehículos se trasladan con los
+ * cerrojos de escritura de todas las sedes tomados, y las operaciones que
+ * esperaban comprueban de nuevo la sede dueña al entrar, así que ningún
+ * vehículo se registra nunca en una sede que ya no es la suya.
+ *
+ * Las operaciones con una matrícula se hacen en el hilo que llama, con el
+ * cerrojo de su sede. Los lotes (ver ejecutar()) se reparten entre las sedes
+ * y cada sede aplica los suyos en su propio hilo, juntando los lotes de
+ * todos los que llegan mientras tanto en una sola toma del cerrojo y una sola
+ * confirmación del diario. Las búsquedas y los listados de todo el taller
+ * recorren las sedes una a una; si a la vez se agrega una sede, un vehículo
+ * que se está trasladando puede salir dos veces o no salir.
+ *
+ * El reparto no se guarda en el disco: cada sede puede tener su diario, y al
+ * arrancar se deben pasar las mismas sedes en el mismo orden. Un traslado
+ * se confirma en dos diarios, primero el de la sede nueva y luego el de la
+ * anterior, así que si el programa se cae entre medias un vehículo puede
+ * quedar en las dos sedes, o en la anterior si se cae antes. Al arrancar,
+ * el reparto deja cada vehículo solo en su sede dueña (ver Reparto()).
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Reparto implements AutoCloseable {
+
+    /**
+     * Lotes que como mucho junta el hilo de una sede en una sola toma del
+     * cerrojo.
+     */
+    private static final int LOTES_POR_TANDA = 256;
+    /**
+     * Resultado de una operación que ha tomado el cerrojo de una sede que ya
+     * no es la dueña de la matrícula, y que hay que repetir.
+     */
+    private static final Object OTRA_SEDE = new Object();
+    /**
+     * Marca que se encarga al hilo de una sede al cerrar para que termine.
+     */
+    private static final Encargo FIN = new Encargo(null, new int[0], null);
+
+    /**
+     * Sedes e hilos en vigor. Se sustituye entero al agregar una sede.
+     */
+    private volatile Mapa mapa;
+    /**
+     * Acciones de alPromover(), para las sedes que se agreguen después.
+     */
+    private final List<Consumer<Espera>> accionesAlPromover = new ArrayList<>();
+
+    /**
+     * Sedes del reparto y el hilo de cada una, en el mismo orden. El orden
+     * es el número de sede del hash consistente.
+     */
+    private record Mapa(Sede[] sedes, Hilo[] hilos) {
+
+        /**
+         * Número de la sede dueña de una matrícula.
+         */
+        int indice(int clave) {
+            return sede(clave, sedes.length);
+        }
+    }
+
+    /**
+     * Crea un reparto entre unas sedes. Las sedes pueden venir vacías o con
+     * los vehículos recuperados de su diario, siempre que sean las mismas y
+     * en el mismo orden que cuando se registraron.
+     *
+     * Los vehículos que un traslado interrumpido ha dejado fuera de su sede
+     * dueña se terminan de trasladar, y si ya estaban también en la dueña,
+     * se quitan de la otra sede: la copia de la dueña es la que puede tener
+     * cambios posteriores.
+     *
+     * @param sedes Las sedes.
+     * @throws IllegalArgumentException Si no hay ninguna sede.
+     * @throws IllegalStateException Si los vehículos que hay que trasladar
+     * no caben en su sede dueña.
+     */
+    public Reparto(List<Sede> sedes) {
+        if (sedes.isEmpty()) {
+            throw new IllegalArgumentException("El reparto necesita alguna sede");
+        }
+        Sede[] propias = sedes.toArray(Sede[]::new);
+        int n = propias.length;
+        for (int i = 0; i < n; i++) {
+            Sede origen = propias[i];
+            int propia = i;
+            IntPredicate ajena = clave -> sede(clave, n) != propia;
+            if (origen.modificar(() -> origen.contarParaTrasladar(null, ajena)) == 0) {
+                continue;
+            }
+            for (int j = 0; j < n; j++) {
+                if (j != i) {
+                    Sede duena = propias[j];
+                    int indice = j;
+                    origen.modificar(() -> duena.modificar(() -> trasladarSiCaben(
+                            List.of(origen), duena, clave -> sede(clave, n) == indice)));
+                }
+            }
+        }
+        Hilo[] hilos = new Hilo[propias.length];
+        for (int i = 0; i < hilos.length; i++) {
+            hilos[i] = new Hilo(propias[i]);
+        }
+        mapa = new Mapa(propias, hilos);
+        for (Hilo hilo : hilos) {
+            hilo.start();
+        }
+    }
+
+    /**
+     * Sede a la que corresponde una clave de matrícula entre n sedes, con el
+     * hash consistente "jump". La clave se mezcla antes para que las
+     * matrículas consecutivas no vayan juntas.
+     *
+     * @param clave Clave de la matrícula.
+     * @param n Número de sedes.
+     * @return El número de sede, de 0 a n-1.
+     */
+    static int sede(int clave, int n) {
+        long k = clave * 0x9E3779B97F4A7C15L;
+        k ^= k >>> 32;
+        long b = -1;
+        long j = 0;
+        while (j < n) {
+            b = j;
+            k = k * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((k >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * Obtiene el número de sedes.
+     *
+     * @return Cuántas sedes hay.
+     */
+    public int getNumeroDeSedes() {
+        return mapa.sedes.length;
+    }
+
+    /**
+     * Obtiene las sedes, en el orden del reparto.
+     *
+     * @return Las sedes.
+     */
+    public List<Sede> getSedes() {
+        return List.of(mapa.sedes);
+    }
+
+    /**
+     * Sede dueña de una matrícula en este momento.
+     *
+     * @param matricula La matrícula.
+     * @return Su sede.
+     */
+    public Sede sedeDe(Matricula matricula) {
+        Mapa actual = mapa;
+        return actual.sedes[actual.indice(matricula.toKey())];
+    }
+
+    /**
+     * Agrega una sede vacía al reparto y le traslada los vehículos que le
+     * corresponden, unos 1/n del total con n sedes en el reparto nuevo,
+     * junto con los que esperan en las colas. El historial de reparaciones
+     * no se traslada: sigue en la sede donde se anotó (ver historialDe()).
+     *
+     * Mientras dura el traslado las sedes anteriores no atienden ninguna
+     * operación, porque se tiene tomado su cerrojo de escritura.
+     *
+     * @param nueva La sede, ya configurada y con su diario abierto si lo
+     * tiene.
+     * @return Número de vehículos registrados que se han trasladado.
+     * @throws IllegalArgumentException Si la sede no está vacía o ya está en
+     * el reparto.
+     * @throws IllegalStateException Si el reparto está cerrado, o si los
+     * vehículos registrados que le corresponden no caben en la sede (ver
+     * Sede.configurarCapacidad()); entonces no se agrega ni se traslada
+     * ninguno.
+     */
+    public synchronized int agregarSede(Sede nueva) {
+        Mapa anterior = mapa;
+        if (anterior.hilos[0].cerrado) {
+            throw new IllegalStateException("El reparto está cerrado");
+        }
+        if (nueva.getVehiculosRegistrados() > 0 || nueva.getVehiculosEnEspera() > 0
+                || Arrays.asList(anterior.sedes).contains(nueva)) {
+            throw new IllegalArgumentException(
+                    "La sede " + nueva.getNombre() + " no está vacía o ya está en el reparto");
+        }
+        int n = anterior.sedes.length;
+        Sede[] sedes = Arrays.copyOf(anterior.sedes, n + 1);
+        Hilo[] hilos = Arrays.copyOf(anterior.hilos, n + 1);
+        sedes[n] = nueva;
+        hilos[n] = new Hilo(nueva);
+        int trasladados = trasladar(anterior, new Mapa(sedes, hilos), 0);
+        // Lo que se le encargue mientras tanto espera en su cola
+        hilos[n].start();
+        return trasladados;
+    }
+
+    /**
+     * Toma el cerrojo de escritura de las sedes anteriores desde una dada,
+     * por orden y sin soltar los anteriores, y con todos tomados y el de la
+     * sede nueva traslada a esta sus vehículos y publica el mapa nuevo, así
+     * que quien espere un cerrojo ya ve el mapa nuevo al conseguirlo.
+     *
+     * @return Número de vehículos registrados trasladados.
+     */
+    private int trasladar(Mapa anterior, Mapa siguiente, int desde) {
+        if (desde < anterior.sedes.length) {
+            return anterior.sedes[desde].modificar(
+                    () -> trasladar(anterior, siguiente, desde + 1));
+        }
+        Sede nueva = siguiente.sedes[desde];
+        int n = siguiente.sedes.length;
+        return nueva.modificar(() -> {
+            int trasladados = trasladarSiCaben(List.of(anterior.sedes), nueva,
+                    clave -> sede(clave, n) == n - 1);
+            for (Consumer<Espera> accion : accionesAlPromover) {
+                nueva.alPromover(accion);
+            }
+            mapa = siguiente;
+            return trasladados;
+        });
+    }
+
+    /**
+     * Traslada a una sede los vehículos de otras cuya matrícula cumple una
+     * condición, solo si caben todos los registrados. Se debe llamar con el
+     * cerrojo de escritura de todas tomado.
+     *
+     * @return Número de vehículos registrados trasladados.
+     * @throws IllegalStateException Si no caben; no se traslada ninguno.
+     */
+    private static int trasladarSiCaben(List<Sede> origenes, Sede destino,
+            IntPredicate seVa) {
+        int llegan = 0;
+        for (Sede origen : origenes) {
+            llegan += origen.contarParaTrasladar(destino, seVa);
+        }
+        if (!destino.caben(llegan)) {
+            throw new IllegalStateException("En la sede " + destino.getNombre()
+                    + " no caben los " + llegan + " vehículos que le corresponden");
+        }
+        int trasladados = 0;
+        for (Sede origen : origenes) {
+            trasladados += origen.trasladar(destino, seVa);
+        }
+        return trasladados;
+    }
+
+    /* ----------------------------- */
+ /* OPERACIONES CON UNA MATRICULA */
+ /* ----------------------------- */
+    /**
+     * Busca un vehículo en su sede. Ver Taller.buscarEnRegistroPorMatricula().
+     *
+     * @param matricula Matrícula del vehículo a buscar.
+     * @return Un objeto Taller o "null" si no se encuentra nada.
+     */
+    public Taller buscarEnRegistroPorMatricula(Matricula matricula) {
+        int clave = matricula.toKey();
+        long inicio = Metricas.empezar(Metricas.Operacion.BUSCAR);
+        try {
+            return enSuSede(clave, false, sede -> sede.obtener(clave));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.BUSCAR, inicio);
+        }
+    }
+
+    /**
+     * Informa si existe un vehículo en su sede.
+     *
+     * @param matricula Matrícula del vehículo a buscar.
+     * @return "true" si existe.
+     */
+    public boolean existeVehiculo(Matricula matricula) {
+        return buscarEnRegistroPorMatricula(matricula) != null;
+    }
+
+    /**
+     * Agrega un vehículo a su sede si no estaba ya y si queda sitio. Ver
+     * Taller.addIfAbsent().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @return REALIZADO, YA_EXISTE o LLENO si su sede está llena.
+     */
+    public Resultado addIfAbsent(
+            Matricula matricula, String marca, String modelo, String color) {
+        long inicio = Metricas.empezar(Metricas.Operacion.ALTA);
+        try {
+            Taller taller = new Taller();
+            taller.setVehiculo(matricula, marca, modelo, color);
+            return enSuSede(matricula.toKey(), true,
+                    sede -> sede.agregarAlRegistro(taller));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.ALTA, inicio);
+        }
+    }
+
+    /**
+     * Agrega un vehículo a su sede o, si está llena, a su cola de espera.
+     * Ver Taller.addOrEnqueue().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera si su sede está llena.
+     * @return REALIZADO, EN_ESPERA o YA_EXISTE.
+     */
+    public Resultado addOrEnqueue(Matricula matricula, String marca,
+            String modelo, String color, Urgencia urgencia) {
+        long inicio = Metricas.empezar(Metricas.Operacion.ALTA);
+        try {
+            Taller taller = new Taller();
+            taller.setVehiculo(matricula, marca, modelo, color);
+            long llegada = Instant.now().toEpochMilli();
+            return enSuSede(matricula.toKey(), true,
+                    sede -> sede.agregarOEsperar(taller, urgencia, llegada));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.ALTA, inicio);
+        }
+    }
+
+    /**
+     * Agrega una reparación a un vehículo si existe y le queda sitio. Ver
+     * Taller.appendRepairIfRoom().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Nombre de la reparación.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    public Resultado appendRepairIfRoom(Matricula matricula, String reparacion) {
+        int clave = matricula.toKey();
+        long inicio = Metricas.empezar(Metricas.Operacion.REPARACION);
+        try {
+            return enSuSede(clave, true,
+                    sede -> sede.agregarReparacionSiCabe(clave, reparacion));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.REPARACION, inicio);
+        }
+    }
+
+    /**
+     * Anota una reparación hecha ahora en el historial de la sede del
+     * vehículo y, si le queda sitio, en sus reparaciones. Ver
+     * Taller.registrarReparacion().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     * @throws IllegalArgumentException Si la reparación está en blanco o el
+     * coste es negativo.
+     */
+    public Resultado registrarReparacion(Matricula matricula,
+            String reparacion, long coste) {
+        int clave = matricula.toKey();
+        int tipo = Sede.tipoDeReparacion(reparacion, coste);
+        long inicio = Metricas.empezar(Metricas.Operacion.REPARACION);
+        try {
+            long milisegundos = Instant.now().toEpochMilli();
+            return enSuSede(clave, true, sede -> sede.anotarReparacion(
+                    clave, reparacion, tipo, milisegundos, coste));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.REPARACION, inicio);
+        }
+    }
+
+    /**
+     * Elimina un vehículo de su sede.
+     *
+     * @param matricula Matrícula del vehículo a eliminar.
+     * @return "true" si el vehículo existía.
+     */
+    public boolean removeVehiculo(Matricula matricula) {
+        int clave = matricula.toKey();
+        long inicio = Metricas.empezar(Metricas.Operacion.BAJA);
+        try {
+            return enSuSede(clave, true, sede -> sede.quitarDelRegistro(clave));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.BAJA, inicio);
+        }
+    }
+
+    /**
+     * Ejecuta una operación en la sede dueña de una matrícula, con su
+     * cerrojo tomado. Si al conseguir el cerrojo la sede ya no es la dueña
+     * (porque entretanto se ha agregado una sede), se repite en la nueva.
+     *
+     * @param <T> Tipo del resultado.
+     * @param clave Clave de la matrícula.
+     * @param modifica "true" para tomar el cerrojo de escritura.
+     * @param operacion La operación.
+     * @return Su resultado.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T enSuSede(int clave, boolean modifica, Function<Sede, T> operacion) {
+        while (true) {
+            Mapa actual = mapa;
+            Sede sede = actual.sedes[actual.indice(clave)];
+            Supplier<Object> comprobada
+                    = () -> mapa == actual ? operacion.apply(sede) : OTRA_SEDE;
+            Object resultado = modifica
+                    ? sede.modificar(comprobada)
+                    : sede.consultar(comprobada);
+            if (resultado != OTRA_SEDE) {
+                return (T) resultado;
+            }
+        }
+    }
+
+    /* ----------------------------- */
+ /* LOTES EN EL HILO DE CADA SEDE */
+ /* ----------------------------- */
+    /**
+     * Ejecuta un lote de órdenes repartiéndolas entre las sedes. Cada sede
+     * aplica las suyas en su propio hilo, en el orden en que vienen, y todas
+     * las sedes a la vez; se espera a que terminen todas. Las órdenes de una
+     * misma matrícula siempre van a la misma sede, así que el resultado es el
+     * mismo que si se hubiesen ejecutado una a una, pero el lote no es
+     * atómico entre sedes: otro hilo puede ver las órdenes de una sede ya
+     * hechas y las de otra todavía no.
+     *
+     * @param ordenes Las órdenes.
+     * @return El resultado de cada orden, en la misma posición (ver Orden).
+     * @throws IllegalStateException Si el reparto está cerrado.
+     */
+    public Resultado[] ejecutar(List<Orden> ordenes) {
+        long inicio = Metricas.empezar(Metricas.Operacion.LOTE);
+        try {
+            Resultado[] resultados = new Resultado[ordenes.size()];
+            int[] pendientes = new int[ordenes.size()];
+            for (int i = 0; i < pendientes.length; i++) {
+                pendientes[i] = i;
+            }
+            while (pendientes.length > 0) {
+                pendientes = repartir(ordenes, pendientes, resultados);
+            }
+            return resultados;
+        } finally {
+            Metricas.anotar(Metricas.Operacion.LOTE, inicio);
+        }
+    }
+
+    /**
+     * Reparte unas órdenes entre las sedes con el mapa actual, las encarga
+     * al hilo de cada sede y espera a que terminen.
+     *
+     * @param ordenes Todas las órdenes del lote.
+     * @param posiciones Posiciones de las órdenes a repartir.
+     * @param resultados Donde se deja el resultado de cada orden.
+     * @return Posiciones de las órdenes que hay que repetir porque su sede
+     * ha dejado de ser la dueña.
+     */
+    private int[] repartir(List<Orden> ordenes, int[] posiciones,
+            Resultado[] resultados) {
+        Mapa actual = mapa;
+        int n = actual.sedes.length;
+        int[] cuantas = new int[n];
+        int[] indices = new int[posiciones.length];
+        for (int i = 0; i < posiciones.length; i++) {
+            indices[i] = actual.indice(ordenes.get(posiciones[i]).matricula.toKey());
+            cuantas[indices[i]]++;
+        }
+        Encargo[] encargos = new Encargo[n];
+        int partes = 0;
+        for (int s = 0; s < n; s++) {
+            if (cuantas[s] > 0) {
+                partes++;
+            }
+        }
+        CountDownLatch fin = new CountDownLatch(partes);
+        for (int s = 0; s < n; s++) {
+            if (cuantas[s] > 0) {
+                encargos[s] = new Encargo(actual, new int[cuantas[s]], fin);
+                cuantas[s] = 0;
+            }
+        }
+        for (int i = 0; i < posiciones.length; i++) {
+            Encargo encargo = encargos[indices[i]];
+            encargo.posiciones[cuantas[indices[i]]++] = posiciones[i];
+        }
+        for (int s = 0; s < n; s++) {
+            if (encargos[s] != null) {
+                encargos[s].preparar(ordenes);
+                if (!actual.hilos[s].encargar(encargos[s])) {
+                    encargos[s].error = new IllegalStateException("El reparto está cerrado");
+                    fin.countDown();
+                }
+            }
+        }
+        boolean interrumpido = false;
+        while (true) {
+            try {
+                fin.await();
+                break;
+            } catch (InterruptedException e) {
+                // Las órdenes ya están encargadas: hay que esperar su
+                // resultado igualmente
+                interrumpido = true;
+            }
+        }
+        if (interrumpido) {
+            Thread.currentThread().interrupt();
+        }
+        int[] repetir = new int[0];
+        for (Encargo encargo : encargos) {
+            if (encargo == null) {
+                continue;
+            }
+            if (encargo.error != null) {
+                throw encargo.error;
+            }
+            if (encargo.resultados == null) {
+                int m = repetir.length;
+                repetir = Arrays.copyOf(repetir, m + encargo.posiciones.length);
+                System.arraycopy(encargo.posiciones, 0, repetir, m,
+                        encargo.posiciones.length);
+            } else {
+                for (int i = 0; i < encargo.posiciones.length; i++) {
+                    resultados[encargo.posiciones[i]] = encargo.resultados[i];
+                }
+            }
+        }
+        // Las órdenes que se repiten deben seguir en su orden
+        Arrays.sort(repetir);
+        return repetir;
+    }
+
+    /**
+     * Parte de un lote que aplica el hilo de una sede.
+     */
+    private static final class Encargo {
+
+        /**
+         * Mapa con el que se eligió la sede.
+         */
+        final Mapa mapa;
+        /**
+         * Posiciones de las órdenes en el lote, en orden.
+         */
+        final int[] posiciones;
+        /**
+         * Se descuenta al terminar el encargo.
+         */
+        final CountDownLatch fin;
+        List<Orden> ordenes;
+        Taller[] altas;
+        /**
+         * Resultado de cada orden, o "null" si la sede ha dejado de ser la
+         * dueña y hay que repetirlas.
+         */
+        Resultado[] resultados;
+        RuntimeException error;
+
+        Encargo(Mapa mapa, int[] posiciones, CountDownLatch fin) {
+            this.mapa = mapa;
+            this.posiciones = posiciones;
+            this.fin = fin;
+        }
+
+        /**
+         * Extrae sus órdenes del lote y crea los vehículos de las altas, en
+         * el hilo que llama y no en el de la sede.
+         */
+        void preparar(List<Orden> lote) {
+            Orden[] propias = new Orden[posiciones.length];
+            for (int i = 0; i < propias.length; i++) {
+                propias[i] = lote.get(posiciones[i]);
+            }
+            ordenes = List.of(propias);
+            altas = Sede.prepararAltas(ordenes);
+        }
+    }
+
+    /**
+     * Hilo que aplica los encargos de una sede. Junta todos los que haya
+     * pendientes en una sola toma del cerrojo, así que con muchos clientes
+     * el diario de la sede confirma muchos lotes con una sola escritura.
+     */
+    private final class Hilo extends Thread {
+
+        private final Sede sede;
+        private final LinkedBlockingQueue<Encargo> encargos = new LinkedBlockingQueue<>();
+        /**
+         * Indica si se ha cerrado. Se cambia con el monitor del hilo tomado,
+         * igual que se encargan los lotes, para que ningún encargo llegue
+         * después de la marca de fin.
+         */
+        private volatile boolean cerrado;
+
+        Hilo(Sede sede) {
+            super("sede-" + sede.getNombre());
+            this.sede = sede;
+            setDaemon(true);
+        }
+
+        /**
+         * Encarga un lote al hilo.
+         *
+         * @return "false" si el hilo está cerrado.
+         */
+        synchronized boolean encargar(Encargo encargo) {
+            if (cerrado) {
+                return false;
+            }
+            encargos.add(encargo);
+            return true;
+        }
+
+        synchronized void cerrar() {
+            if (!cerrado) {
+                cerrado = true;
+                encargos.add(FIN);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Encargo> tanda = new ArrayList<>();
+            boolean terminar = false;
+            while (!terminar) {
+                tanda.clear();
+                try {
+                    tanda.add(encargos.take());
+                } catch (InterruptedException e) {
+                    // Solo se interrumpe al cerrar, y entonces ya hay
+                    // una marca de fin en la cola
+                    continue;
+                }
+                encargos.drainTo(tanda, LOTES_POR_TANDA - 1);
+                terminar = tanda.remove(FIN);
+                if (!tanda.isEmpty()) {
+                    aplicar(tanda);
+                }
+            }
+        }
+
+        /**
+         * Aplica una tanda de encargos con una sola toma del cerrojo.
+         */
+        private void aplicar(List<Encargo> tanda) {
+            long milisegundos = Instant.now().toEpochMilli();
+            try {
+                sede.modificar(() -> {
+                    for (Encargo encargo : tanda) {
+                        if (mapa == encargo.mapa) {
+                            encargo.resultados = sede.aplicar(encargo.ordenes,
+                                    encargo.altas, milisegundos);
+                        }
+                    }
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                for (Encargo encargo : tanda) {
+                    encargo.error = e;
+                }
+            } finally {
+                for (Encargo encargo : tanda) {
+                    encargo.fin.countDown();
+                }
+            }
+        }
+    }
+
+    /* ---------------------------- */
+ /* CONSULTAS DE TODAS LAS SEDES */
+ /* ---------------------------- */
+    /**
+     * Informa de cuántos vehículos hay registrados entre todas las sedes.
+     *
+     * @return Número de vehículos registrados.
+     */
+    public int getVehiculosRegistrados() {
+        int total = 0;
+        for (Sede sede : mapa.sedes) {
+            total += sede.getVehiculosRegistrados();
+        }
+        return total;
+    }
+
+    /**
+     * Número de vehículos registrados en cada sede, para ver si el reparto
+     * está equilibrado.
+     *
+     * @return Los vehículos de cada sede, en el orden del reparto.
+     */
+    public int[] getVehiculosPorSede() {
+        Sede[] sedes = mapa.sedes;
+        int[] vehiculos = new int[sedes.length];
+        for (int i = 0; i < sedes.length; i++) {
+            vehiculos[i] = sedes[i].getVehiculosRegistrados();
+        }
+        return vehiculos;
+    }
+
+    /**
+     * Busca en todas las sedes los vehículos que cumplen un filtro por
+     * marca, modelo y color. Ver Taller.buscarEnRegistroPorFiltro().
+     *
+     * @param filtro El filtro.
+     * @return Los vehículos que lo cumplen, sede a sede en el orden del
+     * listado.
+     */
+    public List<Taller> buscarEnRegistroPorFiltro(Filtro filtro) {
+        List<Taller> encontrados = new ArrayList<>();
+        for (Sede sede : mapa.sedes) {
+            encontrados.addAll(sede.buscarEnRegistroPorFiltro(filtro));
+        }
+        return encontrados;
+    }
+
+    /**
+     * Cuenta los vehículos de todas las sedes que cumplen un filtro.
+     *
+     * @param filtro El filtro.
+     * @return El número de vehículos que lo cumplen.
+     */
+    public int contarEnRegistro(Filtro filtro) {
+        int total = 0;
+        for (Sede sede : mapa.sedes) {
+            total += sede.contarEnRegistro(filtro);
+        }
+        return total;
+    }
+
+    /**
+     * Busca en todas las sedes los vehículos cuya matrícula encaja en un
+     * patrón. Cada sede devuelve los suyos en orden de matrícula y se mezclan
+     * para devolver los primeros del conjunto.
+     *
+     * @param patron El patrón.
+     * @param maximo Número máximo de vehículos a devolver.
+     * @return Los vehículos encontrados, en orden de matrícula.
+     */
+    public List<Taller> buscarEnRegistroPorPatron(PatronMatricula patron,
+            int maximo) {
+        List<Taller> encontrados = new ArrayList<>();
+        for (Sede sede : mapa.sedes) {
+            encontrados.addAll(sede.buscarEnRegistroPorPatron(patron, maximo));
+        }
+        encontrados.sort(Comparator.comparingInt(Taller::getClave));
+        return encontrados.size() > maximo
+                ? new ArrayList<>(encontrados.subList(0, maximo))
+                : encontrados;
+    }
+
+    /**
+     * Busca en el historial de todas las sedes las reparaciones de un
+     * vehículo: si ha cambiado de sede, las anteriores siguen en la que
+     * estaba.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return Sus reparaciones, por orden de fecha.
+     */
+    public List<Intervencion> historialDe(Matricula matricula) {
+        List<Intervencion> intervenciones = new ArrayList<>();
+        for (Sede sede : mapa.sedes) {
+            intervenciones.addAll(sede.historialDe(matricula));
+        }
+        // La ordenación es estable: las de la misma fecha quedan como se
+        // anotaron en cada sede
+        intervenciones.sort(Comparator.comparing(Intervencion::instante));
+        return intervenciones;
+    }
+
+    /**
+     * Totales del historial de todas las sedes por tipo de reparación.
+     *
+     * @return Los totales de cada tipo con alguna reparación.
+     */
+    public Map<String, Totales> totalesPorTipo() {
+        Map<String, Totales> totales = new LinkedHashMap<>();
+        for (Sede sede : mapa.sedes) {
+            sumar(totales, sede.totalesPorTipo());
+        }
+        return totales;
+    }
+
+    /**
+     * Totales del historial de todas las sedes por día.
+     *
+     * @param desde Primer día.
+     * @param hasta Último día.
+     * @return Los totales de cada día con alguna reparación, en orden.
+     */
+    public Map<LocalDate, Totales> totalesPorDia(LocalDate desde, LocalDate hasta) {
+        Map<LocalDate, Totales> totales = new LinkedHashMap<>();
+        for (Sede sede : mapa.sedes) {
+            sumar(totales, sede.totalesPorDia(desde, hasta));
+        }
+        List<Map.Entry<LocalDate, Totales>> dias = new ArrayList<>(totales.entrySet());
+        dias.sort(Map.Entry.comparingByKey());
+        Map<LocalDate, Totales> ordenados = new LinkedHashMap<>();
+        for (Map.Entry<LocalDate, Totales> dia : dias) {
+            ordenados.put(dia.getKey(), dia.getValue());
+        }
+        return ordenados;
+    }
+
+    /**
+     * Escribe la información de todos los vehículos, sede a sede, con el
+     * formato de Taller.registroTallerToString() y numerados de forma
+     * seguida. Antes de escribir nada se toma la foto del registro de cada
+     * sede (ver Sede.Listado), una detrás de otra, así que el listado no
+     * bloquea las modificaciones y cada sede sale coherente. Un traslado
+     * entre sedes hecho mientras se toman las fotos sí puede hacer que un
+     * vehículo salga en las dos o en ninguna.
+     *
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
+     */
+    public void escribirRegistro(Appendable destino) throws IOException {
+        Sede[] sedes = mapa.sedes;
+        Sede.Listado[] listados = new Sede.Listado[sedes.length];
+        int numero = 1;
+        for (int i = 0; i < sedes.length; i++) {
+            listados[i] = sedes[i].listar(numero);
+            numero += listados[i].getVehiculos();
+        }
+        for (Sede.Listado listado : listados) {
+            listado.escribirPagina(destino, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Añade una acción que se ejecuta cada vez que un vehículo pasa de la
+     * cola de espera al registro en cualquiera de las sedes, también en las
+     * que se agreguen después. Ver Taller.alPromover().
+     *
+     * @param accion La acción.
+     */
+    public synchronized void alPromover(Consumer<Espera> accion) {
+        accionesAlPromover.add(accion);
+        for (Sede sede : mapa.sedes) {
+            sede.alPromover(accion);
+        }
+    }
+
+    /**
+     * Termina los hilos de las sedes después de aplicar los lotes que ya
+     * tenían encargados. Las sedes siguen abiertas, con sus diarios; se
+     * pueden seguir usando directamente o en otro reparto.
+     */
+    @Override
+    public synchronized void close() {
+        for (Hilo hilo : mapa.hilos) {
+            hilo.cerrar();
+        }
+        for (Hilo hilo : mapa.hilos) {
+            try {
+                hilo.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Suma a unos totales los de una sede.
+     */
+    private static <K> void sumar(Map<K, Totales> totales, Map<K, Totales> deLaSede) {
+        for (Map.Entry<K, Totales> entrada : deLaSede.entrySet()) {
+            totales.merge(entrada.getKey(), entrada.getValue(),
+                    (a, b) -> new Totales(a.reparaciones() + b.reparaciones(),
+                            a.coste() + b.coste()));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package taller;
+
+/**
+ * Resultado de una operación sobre el registro del taller que puede fallar
+ * por más de un motivo.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public enum Resultado {
+    /**
+     * La operación se ha realizado.
+     */
+    REALIZADO,
+    /**
+     * El vehículo no está en el taller.
+     */
+    NO_EXISTE,
+    /**
+     * El vehículo ya estaba en el taller.
+     */
+    YA_EXISTE,
+    /**
+     * No queda sitio: el taller o las reparaciones del vehículo están llenos.
+     */
+    LLENO,
+    /**
+     * El taller está lleno y el vehículo queda en la cola de espera.
+     */
+    EN_ESPERA
+}
@@ -0,0 +1,1647 @@
+package taller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import taller.Taller.Cambio;
+import taller.Taller.Copia;
+import taller.Taller.Espera;
+import taller.Taller.Intervencion;
+import taller.Taller.Totales;
+import vehiculo.Diccionario;
+import vehiculo.Matricula;
+import vehiculo.PatronMatricula;
+
+/**
+ * Sede del taller: el registro de los vehículos que hay en ella con sus
+ * reparaciones, el historial de reparaciones, la cola de espera y,
+ * opcionalmente, el diario en disco. Cada sede tiene su propio cerrojo y su
+ * propio diario, así que varias sedes del mismo programa (ver Reparto) se
+ * modifican a la vez sin esperarse unas a otras.
+ *
+ * Los métodos estáticos de Taller trabajan sobre la sede principal (ver
+ * Taller.getSedePrincipal()), que es la que usa el menú del programa. Las
+ * demás sedes, si las hay, se reparten los vehículos con un Reparto; cada
+ * objeto Taller sabe en qué sede está registrado.
+ *
+ * El registro se puede usar desde varios hilos a la vez (por ejemplo, varios
+ * puestos de recepción). Las consultas comparten un cerrojo de lectura y las
+ * modificaciones toman el de escritura. Para evitar condiciones de carrera
+ * entre comprobar y actuar, las operaciones addIfAbsent() y
+ * appendRepairIfRoom() hacen las dos cosas de forma atómica. Los listados del
+ * registro no toman ningún cerrojo: recorren una foto inmutable del registro
+ * tal como estaba al empezar (ver Listado).
+ *
+ * Opcionalmente, cada modificación del registro se anota en un diario en
+ * disco (ver abrirDiario()), de forma que la sede se recupera al volver a
+ * arrancar el programa. Las operaciones no terminan hasta que su cambio está
+ * escrito en el disco. Cada cierto número de cambios, el diario se compacta
+ * en segundo plano en una instantánea proyectada en memoria (ver
+ * compactar()), que al arrancar se usa directamente sin cargar todos los
+ * vehículos.
+ *
+ * Además de las reparaciones de cada vehículo, que tienen un número máximo,
+ * la sede lleva un historial con todas las reparaciones hechas, su fecha y
+ * su coste (ver registrarReparacion()), del que se obtienen totales por tipo
+ * de reparación y por día.
+ *
+ * Los vehículos que llegan con la sede llena pueden quedar en una cola de
+ * espera (ver addOrEnqueue()), de la que entran solos en el registro, por
+ * urgencia y orden de llegada, en cuanto una baja deja sitio. La cola solo
+ * vive en memoria: no se anota en el diario.
+ *
+ * Otros programas (facturación, pedidos de piezas...) pueden recibir los
+ * cambios del registro según se hacen, sin consultarlo una y otra vez (ver
+ * suscribir()).
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Sede {
+
+    /**
+     * Nombre de la sede, para los mensajes y los hilos.
+     */
+    private final String nombre;
+    /**
+     * Capacidad de la sede en vehículos, o Taller.SIN_LIMITE.
+     */
+    private int vehiculosMaximos = Taller.VEHICULOS_MAXIMOS;
+    /**
+     * Reparaciones que admite cada vehículo, o Taller.SIN_LIMITE.
+     */
+    private int reparacionesMaximas = Taller.REPARACIONES_MAXIMAS;
+    /**
+     * Registro con todos los datos de los vehículos de la sede junto con sus
+     * reparaciones, indexado por la clave entera de la matrícula. Los
+     * vehículos están en una tabla hash en memoria o, si se ha cargado una
+     * instantánea, se leen de ella bajo demanda.
+     */
+    private final Registro registro = new Registro();
+    /**
+     * Historial de todas las reparaciones hechas en la sede. Lo protege el
+     * mismo cerrojo que el registro.
+     */
+    private final Historial historial = new Historial(ZoneId.systemDefault());
+    /**
+     * Vehículos que esperan sitio en la sede. La protege el mismo cerrojo
+     * que el registro.
+     */
+    private final ColaDeEspera cola = new ColaDeEspera();
+    /**
+     * Acciones que se avisan cuando un vehículo pasa de la cola al registro.
+     */
+    private final List<Consumer<Espera>> accionesAlPromover = new CopyOnWriteArrayList<>();
+    /**
+     * Cerrojo que protege el registro y las reparaciones de los vehículos
+     * registrados. Admite varios lectores a la vez o un solo escritor.
+     */
+    private final ReentrantReadWriteLock cerrojo = new ReentrantReadWriteLock();
+    /**
+     * Parte de lectura del cerrojo, para las consultas.
+     */
+    private final Lock lectura = cerrojo.readLock();
+    /**
+     * Parte de escritura del cerrojo, para las modificaciones.
+     */
+    private final Lock escritura = cerrojo.writeLock();
+    /**
+     * Diario donde se anotan las modificaciones, o "null" si la sede solo
+     * vive en memoria.
+     */
+    private volatile Diario diario;
+    /**
+     * Número de secuencia en el diario del último cambio hecho con el cerrojo
+     * de escritura tomado, pendiente de confirmar al soltarlo.
+     */
+    private long secuenciaPendiente;
+    /**
+     * Vehículos que han pasado de la cola al registro con el cerrojo de
+     * escritura tomado, pendientes de avisar al soltarlo, o "null".
+     */
+    private List<Espera> promovidosPendientes;
+    /**
+     * Anillo por el que llegan los cambios del registro a las suscripciones
+     * (ver suscribir()), o "null" hasta la primera. Se usa con el cerrojo de
+     * escritura tomado, salvo para publicar.
+     */
+    private AnilloDeCambios cambios;
+    /**
+     * Número de cambios en el diario a partir del cual se compacta
+     * automáticamente, o 0 para no hacerlo.
+     */
+    private long umbralCompactacion = 100_000;
+    /**
+     * Indica si hay una compactación en curso.
+     */
+    private final AtomicBoolean compactando = new AtomicBoolean();
+    /**
+     * Hilo de la última compactación lanzada.
+     */
+    private volatile Thread compactacion;
+
+    /**
+     * Crea una sede vacía, con la capacidad por defecto (ver
+     * configurarCapacidad()).
+     *
+     * @param nombre Nombre de la sede.
+     */
+    public Sede(String nombre) {
+        this.nombre = nombre;
+    }
+
+    /**
+     * Obtiene el nombre de la sede.
+     *
+     * @return El nombre.
+     */
+    public String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * Establece la capacidad de la sede. Está pensado para llamarse una sola
+     * vez al arrancar, antes de registrar ningún vehículo.
+     *
+     * @param vehiculos Número máximo de vehículos, o Taller.SIN_LIMITE.
+     * @param reparaciones Número máximo de reparaciones por vehículo, o
+     * Taller.SIN_LIMITE.
+     * @throws IllegalArgumentException Si alguno de los valores no es positivo
+     * ni Taller.SIN_LIMITE.
+     */
+    public void configurarCapacidad(int vehiculos, int reparaciones) {
+        if ((vehiculos < 1 && vehiculos != Taller.SIN_LIMITE)
+                || (reparaciones < 1 && reparaciones != Taller.SIN_LIMITE)) {
+            throw new IllegalArgumentException(
+                    "La capacidad debe ser un número positivo o ilimitada");
+        }
+        vehiculosMaximos = vehiculos;
+        reparacionesMaximas = reparaciones;
+    }
+
+    /**
+     * Elige dónde se guardan los vehículos del registro: en objetos del
+     * montículo de Java (por defecto) o por columnas fuera de él (ver
+     * AlmacenDirecto). Ver Taller.configurarAlmacen().
+     *
+     * @param fueraDelMonticulo "true" para guardarlos fuera del montículo.
+     * @throws IllegalStateException Si ya hay vehículos registrados.
+     */
+    public void configurarAlmacen(boolean fueraDelMonticulo) {
+        escritura.lock();
+        try {
+            registro.usarAlmacen(fueraDelMonticulo ? new AlmacenDirecto() : null);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Configura la caché de las búsquedas por matrícula de la sede. Ver
+     * Taller.configurarCache().
+     *
+     * @param vehiculos Número máximo de vehículos, o 0 para no usar caché.
+     * @param politica Cómo se elige el que sale cuando está llena.
+     * @throws IllegalArgumentException Si el número de vehículos es negativo.
+     */
+    public void configurarCache(int vehiculos, PoliticaCache politica) {
+        if (vehiculos < 0) {
+            throw new IllegalArgumentException(
+                    "El tamaño de la caché no puede ser negativo");
+        }
+        escritura.lock();
+        try {
+            registro.usarCache(vehiculos == 0 ? null
+                    : new CacheDeVehiculos(vehiculos, politica));
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Obtiene las estadísticas de la caché de las búsquedas por matrícula.
+     *
+     * @return Las estadísticas, o "null" si no se usa caché.
+     */
+    public Taller.EstadisticasCache getEstadisticasCache() {
+        lectura.lock();
+        try {
+            return registro.estadisticasCache();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Obtiene la capacidad configurada de la sede.
+     *
+     * @return Número máximo de vehículos, o Taller.SIN_LIMITE.
+     */
+    public int getVehiculosMaximos() {
+        return vehiculosMaximos;
+    }
+
+    /**
+     * Obtiene el número de reparaciones que admite cada vehículo.
+     *
+     * @return Número máximo de reparaciones, o Taller.SIN_LIMITE.
+     */
+    public int getReparacionesMaximas() {
+        return reparacionesMaximas;
+    }
+
+    /* ------------------------------------------ */
+ /* METODOS DE CONSULTA DEL ESTADO DE LA CLASE */
+ /* ------------------------------------------ */
+    /**
+     * Informa de cuántos vehículos hay en el registro de la sede.
+     *
+     * @return Número de vehículos registrados.
+     */
+    public int getVehiculosRegistrados() {
+        lectura.lock();
+        try {
+            return registro.tamano();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Este método informa si ya no hay más espacio en la sede para nuevos
+     * vehículos.
+     *
+     * @return "true" si no hay más espacio.
+     */
+    public boolean estaTallerLleno() {
+        lectura.lock();
+        try {
+            return tallerLleno();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Informa si existe un vehículo en el registro de la sede.
+     *
+     * @param matricula Matrícula del vehículo a buscar.
+     * @return "true" si existe.
+     */
+    public boolean existeVehiculo(Matricula matricula) {
+        lectura.lock();
+        try {
+            return registro.contiene(matricula.toKey());
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /* --------------------------------------------- */
+ /* OPERACIONES CRUD SOBRE EL REGISTRO DE LA SEDE */
+ /* --------------------------------------------- */
+    /**
+     * Busca en el registro una matrícula y devuelve el vehículo que coincide
+     * con esa matrícula, junto con sus reparaciones.
+     *
+     * @param matricula Matrícula del vehículo a buscar.
+     * @return Un objeto Taller o "null" si no se encuentra nada.
+     */
+    public Taller buscarEnRegistroPorMatricula(Matricula matricula) {
+        long inicio = Metricas.empezar(Metricas.Operacion.BUSCAR);
+        lectura.lock();
+        try {
+            return registro.obtener(matricula.toKey());
+        } finally {
+            lectura.unlock();
+            Metricas.anotar(Metricas.Operacion.BUSCAR, inicio);
+        }
+    }
+
+    /**
+     * Agrega un vehículo al registro de la sede.
+     *
+     * @param taller El vehículo.
+     * @return Devuelve un valor "true" si la inserción se realiza
+     * correctamente.
+     */
+    public boolean addRegistro(Taller taller) {
+        long inicio = Metricas.empezar(Metricas.Operacion.ALTA);
+        try {
+            return modificar(() -> agregarAlRegistro(taller) == Resultado.REALIZADO);
+        } finally {
+            Metricas.anotar(Metricas.Operacion.ALTA, inicio);
+        }
+    }
+
+    /**
+     * Crea un vehículo y lo agrega al registro si no estaba ya y si queda
+     * sitio. La comprobación y la inserción se hacen de forma atómica, así
+     * que dos puestos que registren la misma matrícula a la vez no pueden
+     * duplicarla ni pasar de la capacidad de la sede.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @return REALIZADO, YA_EXISTE o LLENO.
+     */
+    public Resultado addIfAbsent(
+            Matricula matricula, String marca, String modelo, String color) {
+        long inicio = Metricas.empezar(Metricas.Operacion.ALTA);
+        try {
+            Taller taller = new Taller();
+            taller.setVehiculo(matricula, marca, modelo, color);
+            return modificar(() -> agregarAlRegistro(taller));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.ALTA, inicio);
+        }
+    }
+
+    /**
+     * Agrega un vehículo que llega ahora. Ver addOrEnqueue() con el instante.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera si la sede está llena.
+     * @return REALIZADO, EN_ESPERA o YA_EXISTE.
+     */
+    public Resultado addOrEnqueue(Matricula matricula, String marca,
+            String modelo, String color, Urgencia urgencia) {
+        return addOrEnqueue(matricula, marca, modelo, color, urgencia, Instant.now());
+    }
+
+    /**
+     * Agrega un vehículo al registro como addIfAbsent() pero, si la sede
+     * está llena, lo deja en la cola de espera en lugar de rechazarlo. Cuando
+     * una baja deja sitio, el primero de la cola (el más urgente y, entre los
+     * de la misma urgencia, el que llegó antes) entra solo en el registro y
+     * se avisa a las acciones de alPromover().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera si la sede está llena.
+     * @param llegada Cuándo ha llegado.
+     * @return REALIZADO, EN_ESPERA, o YA_EXISTE si ya estaba en el registro
+     * o en la cola.
+     */
+    public Resultado addOrEnqueue(Matricula matricula, String marca,
+            String modelo, String color, Urgencia urgencia, Instant llegada) {
+        long inicio = Metricas.empezar(Metricas.Operacion.ALTA);
+        try {
+            Taller taller = new Taller();
+            taller.setVehiculo(matricula, marca, modelo, color);
+            long milisegundos = llegada.toEpochMilli();
+            return modificar(() -> agregarOEsperar(taller, urgencia, milisegundos));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.ALTA, inicio);
+        }
+    }
+
+    /**
+     * Saca un vehículo de la cola de espera sin que llegue a entrar en la
+     * sede.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return "true" si estaba en la cola.
+     */
+    public boolean cancelarEspera(Matricula matricula) {
+        return modificar(() -> cola.quitar(matricula.toKey()));
+    }
+
+    /**
+     * Informa si un vehículo está en la cola de espera.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return "true" si espera.
+     */
+    public boolean estaEnEspera(Matricula matricula) {
+        lectura.lock();
+        try {
+            return cola.contiene(matricula.toKey());
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Obtiene el número de vehículos en la cola de espera.
+     *
+     * @return Cuántos esperan.
+     */
+    public int getVehiculosEnEspera() {
+        lectura.lock();
+        try {
+            return cola.tamano();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Lista la cola de espera.
+     *
+     * @return Los vehículos en el orden en que entrarán en la sede.
+     */
+    public List<Espera> listarEspera() {
+        lectura.lock();
+        try {
+            return cola.enOrden();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Añade una acción que se ejecuta cada vez que un vehículo pasa de la
+     * cola de espera al registro. Se ejecuta en el hilo que hizo la baja,
+     * después de soltar el cerrojo y de confirmar el cambio en el diario.
+     *
+     * @param accion La acción.
+     */
+    public void alPromover(Consumer<Espera> accion) {
+        accionesAlPromover.add(accion);
+    }
+
+    /**
+     * Añade una acción que recibe los cambios del registro de la sede: cada
+     * alta (también la de un vehículo que entra desde la cola de espera),
+     * cada reparación que se agrega a un vehículo registrado, cada
+     * actualización (ver updateTallerToRegistro()) y cada baja. Al agregar
+     * la sede a un Reparto, los vehículos que se trasladan salen como bajas
+     * de su sede anterior y altas de la nueva.
+     *
+     * La acción recibe los cambios por lotes, en el orden en que se hicieron,
+     * en un hilo propio de la suscripción y después de confirmarse en el
+     * diario. Las modificaciones no esperan nunca a la acción: si se queda
+     * demasiado atrás, pierde cambios (ver Suscripcion). Los cambios de antes
+     * de suscribirse no se reciben.
+     *
+     * @param accion La acción. La lista que recibe no se puede modificar.
+     * @return La suscripción, que se cierra para dejar de recibirlos.
+     */
+    public Suscripcion suscribir(Consumer<List<Cambio>> accion) {
+        escritura.lock();
+        try {
+            if (cambios == null) {
+                cambios = new AnilloDeCambios();
+            }
+            return cambios.suscribir("cambios-" + nombre, accion);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Agrega una reparación a un vehículo del registro si el vehículo existe
+     * y le queda sitio, todo ello de forma atómica.
+     * No se anota en el historial de la sede (ver registrarReparacion()).
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Nombre de la reparación.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    public Resultado appendRepairIfRoom(Matricula matricula, String reparacion) {
+        long inicio = Metricas.empezar(Metricas.Operacion.REPARACION);
+        try {
+            return modificar(() -> agregarReparacionSiCabe(matricula.toKey(), reparacion));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.REPARACION, inicio);
+        }
+    }
+
+    /**
+     * Anota una reparación hecha ahora. Ver registrarReparacion() con el
+     * instante.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    public Resultado registrarReparacion(Matricula matricula,
+            String reparacion, long coste) {
+        return registrarReparacion(matricula, reparacion, coste, Instant.now());
+    }
+
+    /**
+     * Anota una reparación de un vehículo del registro en el historial de la
+     * sede y, si le queda sitio, la agrega también a sus reparaciones, todo
+     * ello de forma atómica. El historial no tiene límite, así que la
+     * reparación queda anotada aunque el vehículo ya tenga el máximo de
+     * reparaciones.
+     *
+     * Las reparaciones que solo se escriben de forma distinta (mayúsculas o
+     * espacios) se cuentan como el mismo tipo en los totales.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @param instante Cuándo se ha hecho.
+     * @return REALIZADO, NO_EXISTE, o LLENO si solo se ha anotado en el
+     * historial porque el vehículo no tiene sitio para más reparaciones.
+     * @throws IllegalArgumentException Si la reparación está en blanco o el
+     * coste es negativo.
+     */
+    public Resultado registrarReparacion(Matricula matricula,
+            String reparacion, long coste, Instant instante) {
+        int tipo = tipoDeReparacion(reparacion, coste);
+        long inicio = Metricas.empezar(Metricas.Operacion.REPARACION);
+        try {
+            long milisegundos = instante.toEpochMilli();
+            return modificar(() -> anotarReparacion(
+                    matricula.toKey(), reparacion, tipo, milisegundos, coste));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.REPARACION, inicio);
+        }
+    }
+
+    /**
+     * Sustituye en el registro los datos de un vehículo y sus reparaciones
+     * por los de otro objeto con la misma matrícula.
+     *
+     * @param taller El vehículo con los datos nuevos.
+     */
+    public void updateTallerToRegistro(Taller taller) {
+        modificar(() -> {
+            int clave = taller.getVehiculo().getClaveMatricula();
+            Taller anterior = registro.obtener(clave);
+            if (anterior != null && anterior != taller) {
+                taller.sede = this;
+                anotarVehiculo(taller, Diario.ACTUALIZACION);
+                registro.poner(clave, taller);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Elimina un vehículo del registro.
+     *
+     * @param matricula Matrícula del vehículo a eliminar.
+     * @return "True" si el vehículo existe en la sede y se realiza la
+     * elminacíon. Si el vehículo no existe, devuelve "false".
+     */
+    public boolean removeVehiculo(Matricula matricula) {
+        long inicio = Metricas.empezar(Metricas.Operacion.BAJA);
+        try {
+            return modificar(() -> quitarDelRegistro(matricula.toKey()));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.BAJA, inicio);
+        }
+    }
+
+    /**
+     * Ejecuta un lote de órdenes en el orden en que vienen, como si se
+     * hubiesen ejecutado una a una, pero tomando el cerrojo de escritura una
+     * sola vez y confirmando todos los cambios en el diario con una sola
+     * escritura. Mientras se ejecuta el lote nadie ve los cambios a medias.
+     * Las reparaciones del lote se anotan con el instante en que empieza.
+     *
+     * @param ordenes Las órdenes.
+     * @return El resultado de cada orden, en la misma posición (ver Orden).
+     */
+    public Resultado[] ejecutar(List<Orden> ordenes) {
+        long inicio = Metricas.empezar(Metricas.Operacion.LOTE);
+        try {
+            Taller[] altas = prepararAltas(ordenes);
+            long milisegundos = Instant.now().toEpochMilli();
+            return modificar(() -> aplicar(ordenes, altas, milisegundos));
+        } finally {
+            Metricas.anotar(Metricas.Operacion.LOTE, inicio);
+        }
+    }
+
+    /**
+     * Busca en el registro los vehículos que cumplen un filtro por marca,
+     * modelo y color. Ver Taller.buscarEnRegistroPorFiltro().
+     *
+     * @param filtro El filtro.
+     * @return Los vehículos que lo cumplen, en el orden del listado.
+     */
+    public List<Taller> buscarEnRegistroPorFiltro(Filtro filtro) {
+        lectura.lock();
+        try {
+            ConjuntoFilas filas = filtro.evaluar(registro.getIndices());
+            List<Taller> encontrados = new ArrayList<>(filas.cardinal());
+            filas.recorrer(fila -> encontrados.add(registro.obtenerFila(fila)));
+            return encontrados;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Cuenta los vehículos del registro que cumplen un filtro por marca,
+     * modelo y color. Ver buscarEnRegistroPorFiltro().
+     *
+     * @param filtro El filtro.
+     * @return El número de vehículos que lo cumplen.
+     */
+    public int contarEnRegistro(Filtro filtro) {
+        lectura.lock();
+        try {
+            return filtro.evaluar(registro.getIndices()).cardinal();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Busca en el registro los vehículos cuya matrícula encaja en un patrón.
+     * Ver Taller.buscarEnRegistroPorPatron().
+     *
+     * @param patron El patrón.
+     * @param maximo Número máximo de vehículos a devolver.
+     * @return Los vehículos encontrados, en orden de matrícula.
+     */
+    public List<Taller> buscarEnRegistroPorPatron(PatronMatricula patron,
+            int maximo) {
+        lectura.lock();
+        try {
+            List<Taller> encontrados = new ArrayList<>();
+            registro.recorrer(patron, maximo, encontrados::add);
+            return encontrados;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Busca en el historial todas las reparaciones de un vehículo, aunque ya
+     * no esté en la sede.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return Sus reparaciones, en el orden en que se anotaron.
+     */
+    public List<Intervencion> historialDe(Matricula matricula) {
+        lectura.lock();
+        try {
+            int[] posiciones = historial.intervenciones(matricula.toKey());
+            List<Intervencion> intervenciones = new ArrayList<>(posiciones.length);
+            for (int i : posiciones) {
+                intervenciones.add(new Intervencion(
+                        Instant.ofEpochMilli(historial.instante(i)),
+                        Diccionario.TIPOS_REPARACION.texto(historial.tipo(i)),
+                        historial.coste(i)));
+            }
+            return intervenciones;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Totales del historial por tipo de reparación. Se llevan al día con cada
+     * reparación, así que no se recorre el historial.
+     *
+     * @return Los totales de cada tipo con alguna reparación, en el orden en
+     * que aparecieron los tipos.
+     */
+    public Map<String, Totales> totalesPorTipo() {
+        lectura.lock();
+        try {
+            Map<String, Totales> totales = new LinkedHashMap<>();
+            for (int tipo = 0; tipo < Diccionario.TIPOS_REPARACION.tamano(); tipo++) {
+                long numero = historial.numeroDelTipo(tipo);
+                if (numero > 0) {
+                    totales.put(Diccionario.TIPOS_REPARACION.texto(tipo),
+                            new Totales(numero, historial.costeDelTipo(tipo)));
+                }
+            }
+            return totales;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Totales del historial por día, en la zona horaria del sistema. Se
+     * llevan al día con cada reparación, así que no se recorre el historial.
+     *
+     * @param desde Primer día.
+     * @param hasta Último día.
+     * @return Los totales de cada día con alguna reparación, en orden.
+     */
+    public Map<LocalDate, Totales> totalesPorDia(LocalDate desde,
+            LocalDate hasta) {
+        lectura.lock();
+        try {
+            Map<LocalDate, Totales> totales = new LinkedHashMap<>();
+            for (long dia = desde.toEpochDay(); dia <= hasta.toEpochDay(); dia++) {
+                long numero = historial.numeroDelDia(dia);
+                if (numero > 0) {
+                    totales.put(LocalDate.ofEpochDay(dia),
+                            new Totales(numero, historial.costeDelDia(dia)));
+                }
+            }
+            return totales;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Agrega al registro un lote de vehículos nuevos, con el cerrojo de
+     * escritura tomado una sola vez para todo el lote y una sola confirmación
+     * del diario. Cada vehículo se trata como en addIfAbsent().
+     *
+     * @param lote Vehículos a agregar, creados con Taller.restaurar().
+     * @param n Número de posiciones ocupadas del lote.
+     * @param resultados Donde se deja el resultado de cada vehículo: REALIZADO,
+     * YA_EXISTE o LLENO.
+     */
+    void agregarLote(Taller[] lote, int n, Resultado[] resultados) {
+        modificar(() -> {
+            for (int i = 0; i < n; i++) {
+                resultados[i] = agregarAlRegistro(lote[i]);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Recorre una copia de cada vehículo del registro, en el mismo orden que
+     * el listado. Se recorre una foto del registro (ver Registro.Foto), así
+     * que las modificaciones no esperan a que termine.
+     *
+     * @param accion Lo que se hace con cada copia.
+     */
+    void recorrerRegistro(Consumer<Copia> accion) {
+        foto().recorrer(t -> accion.accept(t.copiar()));
+    }
+
+    /**
+     * Captura el estado del registro. Ver Taller.capturarRegistro().
+     *
+     * @return La captura.
+     */
+    Taller.Captura capturarRegistro() {
+        lectura.lock();
+        try {
+            return new Taller.Captura(registro.getInstantanea(),
+                    registro.posicionesVigentes(), registro.copiarMemoria(),
+                    reparacionesMaximas);
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /* ---------------------------------- */
+ /* PERSISTENCIA DEL REGISTRO EN DISCO */
+ /* ---------------------------------- */
+    /**
+     * Abre el diario de la sede y recupera el registro. Si hay una
+     * instantánea (el fichero del diario con la extensión ".instantanea") se
+     * proyecta en memoria y solo se reproducen los cambios posteriores. A
+     * partir de ese momento cada modificación del registro se anota en el
+     * diario. Debe llamarse al arrancar, antes de usar el registro.
+     *
+     * @param fichero Ruta del diario. Se crea si no existe.
+     * @return Número de cambios reproducidos.
+     * @throws IOException Si no se puede leer o crear el fichero.
+     * @throws IllegalStateException Si ya hay un diario abierto.
+     */
+    public long abrirDiario(Path fichero) throws IOException {
+        escritura.lock();
+        try {
+            if (diario != null) {
+                throw new IllegalStateException("El diario ya está abierto");
+            }
+            Instantanea instantanea = Instantanea.abrir(rutaInstantanea(fichero));
+            registro.usarInstantanea(instantanea);
+            if (instantanea != null) {
+                instantanea.leerHistorial(historial);
+            }
+            Diario abierto = new Diario(fichero,
+                    instantanea == null ? -1 : instantanea.getGeneracion(),
+                    new Reproduccion());
+            diario = abierto;
+            return abierto.getReproducidos();
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Escribe en el disco lo que quede pendiente y cierra el diario. Si hay
+     * una compactación en curso, espera a que termine.
+     *
+     * @throws IOException Si falla la escritura.
+     */
+    public void cerrarDiario() throws IOException {
+        Thread enCurso = compactacion;
+        if (enCurso != null) {
+            try {
+                enCurso.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        escritura.lock();
+        try {
+            if (diario != null) {
+                Diario abierto = diario;
+                diario = null;
+                abierto.close();
+            }
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Establece cada cuántos cambios se compacta automáticamente el diario.
+     *
+     * @param cambios Número de cambios, o 0 para no compactar nunca de forma
+     * automática.
+     */
+    public void configurarCompactacion(long cambios) {
+        if (cambios < 0) {
+            throw new IllegalArgumentException(
+                    "El número de cambios no puede ser negativo");
+        }
+        umbralCompactacion = cambios;
+    }
+
+    /**
+     * Lanza en segundo plano la compactación del diario: se empieza un
+     * segmento nuevo del diario, se escribe una instantánea con el estado del
+     * registro en ese momento y se borran los segmentos anteriores.
+     *
+     * Los lectores no se bloquean en ningún momento. Los escritores solo
+     * esperan mientras se copia el estado de los vehículos que están en
+     * memoria; la escritura del fichero se hace sin ningún cerrojo.
+     *
+     * @return "true" si se ha lanzado, "false" si no hay diario o ya había
+     * una compactación en curso.
+     */
+    public boolean compactar() {
+        Diario abierto = diario;
+        if (abierto == null || !compactando.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread hilo = new Thread(() -> {
+            try {
+                compactarAhora(abierto);
+            } catch (IOException | RuntimeException e) {
+                // Los segmentos del diario siguen en el disco, así que no se
+                // pierde nada: se reintentará en la próxima compactación
+                System.err.println("No se ha podido compactar el diario de la sede "
+                        + nombre + ": " + e);
+            } finally {
+                compactando.set(false);
+            }
+        }, "compactacion-" + nombre);
+        hilo.setDaemon(true);
+        compactacion = hilo;
+        hilo.start();
+        return true;
+    }
+
+    /* ------------------------------------------ */
+ /* LISTADO DEL REGISTRO SIN CONSTRUIR CADENAS */
+ /* ------------------------------------------ */
+    /**
+     * Escribe la información de todos los vehículos del registro, con el
+     * mismo formato que Taller.registroTallerToString(), directamente en un
+     * destino (la consola, un fichero...) sin construir una cadena con todo.
+     * Se escribe una foto del registro, así que el listado es coherente y
+     * las modificaciones no esperan mientras tanto.
+     *
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
+     */
+    public void escribirRegistro(Appendable destino) throws IOException {
+        new Listado(foto(), 1).escribirPagina(destino, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Empieza un listado del registro por páginas. Ver Listado.
+     *
+     * @return El listado, situado al principio.
+     */
+    public Listado listar() {
+        return new Listado(foto(), 1);
+    }
+
+    /**
+     * Empieza un listado del registro por páginas cuyos vehículos se
+     * numeran a partir de un número dado, para seguir el de otra sede.
+     *
+     * @param primero Número del primer vehículo.
+     * @return El listado, situado al principio.
+     */
+    Listado listar(int primero) {
+        return new Listado(foto(), primero);
+    }
+
+    /**
+     * Listado del registro por páginas, con el mismo formato que
+     * Taller.registroTallerToString(). El listado recorre una foto del
+     * registro tomada al crearlo (ver Registro.Foto), sin tomar el cerrojo:
+     * las modificaciones siguen mientras tanto sin esperar y sin afectar al
+     * listado, que sale igual que si se hubiera escrito entero en ese
+     * momento. Tomar la foto solo necesita el cerrojo si ha habido cambios
+     * desde la anterior (ver foto()).
+     */
+    public final class Listado {
+
+        /**
+         * Foto del registro que se lista.
+         */
+        private final Registro.Foto foto;
+        /**
+         * Dónde se ha quedado el recorrido de la foto, o
+         * MapaPersistente.NINGUNA si ha terminado.
+         */
+        private long posicion;
+        /**
+         * Número del siguiente vehículo que se escribe.
+         */
+        private int numero;
+
+        /**
+         * Constructor privado: se obtiene con listar().
+         */
+        private Listado(Registro.Foto foto, int primero) {
+            this.foto = foto;
+            this.numero = primero;
+        }
+
+        /**
+         * Escribe la siguiente página del listado.
+         *
+         * @param destino Donde se escribe.
+         * @param vehiculos Número máximo de vehículos de la página.
+         * @return "true" si quedan vehículos por escribir.
+         * @throws IOException Si falla la escritura.
+         */
+        public boolean escribirPagina(Appendable destino, int vehiculos)
+                throws IOException {
+            if (posicion == MapaPersistente.NINGUNA) {
+                return false;
+            }
+            try {
+                posicion = foto.recorrer(posicion, vehiculos, t -> {
+                    try {
+                        t.escribirEnListado(destino, numero++);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return posicion != MapaPersistente.NINGUNA;
+        }
+
+        /**
+         * Número de vehículos del listado.
+         *
+         * @return Cuántos vehículos había en el registro al crearlo.
+         */
+        public int getVehiculos() {
+            return foto.tamano();
+        }
+
+        /**
+         * Versión del registro que se lista. Dos listados con la misma
+         * versión salen iguales.
+         *
+         * @return La versión.
+         */
+        public long getVersion() {
+            return foto.getVersion();
+        }
+
+        /**
+         * Número que llevará el siguiente vehículo del listado.
+         *
+         * @return El número.
+         */
+        int getSiguienteNumero() {
+            return numero;
+        }
+    }
+
+    /* -------------------------------------------------------- */
+ /* OPERACIONES CON EL CERROJO TOMADO, PARA TALLER Y REPARTO */
+ /* -------------------------------------------------------- */
+    /**
+     * Ejecuta una modificación del registro con el cerrojo de escritura
+     * tomado y, ya sin él, espera a que el diario confirme el cambio. Así
+     * varias modificaciones de distintos hilos pueden confirmarse con una
+     * sola escritura en el disco. Después publica los cambios a las
+     * suscripciones (ver suscribir()).
+     *
+     * @param <T> Tipo del resultado de la operación.
+     * @param operacion Modificación a realizar.
+     * @return El resultado de la operación.
+     */
+    <T> T modificar(Supplier<T> operacion) {
+        T resultado;
+        long secuencia;
+        List<Espera> promovidos;
+        AnilloDeCambios anillo;
+        long anotados = 0;
+        escritura.lock();
+        try {
+            secuenciaPendiente = 0;
+            promovidosPendientes = null;
+            resultado = operacion.get();
+            secuencia = secuenciaPendiente;
+            promovidos = promovidosPendientes;
+        } finally {
+            anillo = cambios;
+            if (anillo != null) {
+                anotados = anillo.getEscritos();
+            }
+            escritura.unlock();
+        }
+        Diario abierto = diario;
+        if (secuencia > 0 && abierto != null) {
+            abierto.confirmar(secuencia);
+            if (umbralCompactacion > 0 && !compactando.get()
+                    && abierto.getEventosDelSegmento() >= umbralCompactacion) {
+                compactar();
+            }
+        }
+        // Los suscriptores solo ven los cambios ya confirmados en el diario
+        if (anillo != null) {
+            anillo.publicar(anotados);
+        }
+        if (promovidos != null) {
+            for (Espera espera : promovidos) {
+                for (Consumer<Espera> accion : accionesAlPromover) {
+                    accion.accept(espera);
+                }
+            }
+        }
+        return resultado;
+    }
+
+    /**
+     * Ejecuta una consulta con el cerrojo de lectura tomado.
+     *
+     * @param <T> Tipo del resultado de la consulta.
+     * @param consulta La consulta.
+     * @return El resultado de la consulta.
+     */
+    <T> T consultar(Supplier<T> consulta) {
+        lectura.lock();
+        try {
+            return consulta.get();
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Parte de lectura del cerrojo, para las consultas de un vehículo de
+     * esta sede.
+     *
+     * @return El cerrojo de lectura.
+     */
+    Lock getLectura() {
+        return lectura;
+    }
+
+    /**
+     * Obtiene un vehículo del registro. Se debe llamar con el cerrojo tomado.
+     *
+     * @param clave Clave de la matrícula.
+     * @return El vehículo, o "null" si no existe.
+     */
+    Taller obtener(int clave) {
+        return registro.obtener(clave);
+    }
+
+    /**
+     * Agrega una reparación a un vehículo en la primera posición libre, si
+     * le queda sitio, y la anota en el diario si el vehículo es el que está
+     * en el registro. Se debe llamar con el cerrojo de escritura tomado.
+     *
+     * @param taller El vehículo.
+     * @param reparacion Nombre de la reparación.
+     * @return "true" si se ha agregado.
+     */
+    boolean agregarReparacion(Taller taller, String reparacion) {
+        if (taller.reparacionesLlenas(reparacionesMaximas)) {
+            return false;
+        }
+        // Las reparaciones de un vehículo aún no registrado se anotan en el
+        // diario y en los cambios con su alta
+        if ((diario != null || cambios != null) && (taller.esVista()
+                || (taller.getVehiculo() != null
+                && registro.esElRegistrado(taller.getClave(), taller)))) {
+            if (diario != null) {
+                secuenciaPendiente = diario.agregarReparacion(taller.getClave(), reparacion);
+            }
+            if (cambios != null) {
+                cambios.reparacion(taller.getClave(), reparacion);
+            }
+        }
+        taller.guardarReparacion(reparacion, reparacionesMaximas);
+        if (taller.esVista() || taller.getVehiculo() != null) {
+            registro.modificado(taller.getClave());
+        }
+        return true;
+    }
+
+    /**
+     * Agrega una reparación a un vehículo del registro si existe y le queda
+     * sitio. Ver appendRepairIfRoom(). Se debe llamar con el cerrojo de
+     * escritura tomado.
+     *
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    Resultado agregarReparacionSiCabe(int clave, String reparacion) {
+        Taller taller = obtenerParaModificar(clave);
+        if (taller == null) {
+            return Resultado.NO_EXISTE;
+        }
+        return agregarReparacion(taller, reparacion)
+                ? Resultado.REALIZADO
+                : Resultado.LLENO;
+    }
+
+    /**
+     * Agrega un vehículo al registro si no estaba ya y si queda sitio. Se
+     * debe llamar con el cerrojo de escritura tomado.
+     *
+     * @param taller El vehículo.
+     * @return REALIZADO, YA_EXISTE o LLENO.
+     */
+    Resultado agregarAlRegistro(Taller taller) {
+        int clave = taller.getVehiculo().getClaveMatricula();
+        if (registro.contiene(clave)) {
+            return Resultado.YA_EXISTE;
+        }
+        if (tallerLleno()) {
+            return Resultado.LLENO;
+        }
+        taller.sede = this;
+        anotarVehiculo(taller, Diario.ALTA);
+        registro.poner(clave, taller);
+        return Resultado.REALIZADO;
+    }
+
+    /**
+     * Agrega un vehículo al registro si no estaba ya ni en la cola de
+     * espera; si no queda sitio, lo deja en la cola. Se debe llamar con el
+     * cerrojo de escritura tomado.
+     *
+     * @param taller El vehículo.
+     * @param urgencia Urgencia con la que espera si la sede está llena.
+     * @param llegada Instante de llegada, en milisegundos.
+     * @return REALIZADO, EN_ESPERA o YA_EXISTE.
+     */
+    Resultado agregarOEsperar(Taller taller, Urgencia urgencia, long llegada) {
+        if (cola.contiene(taller.getVehiculo().getClaveMatricula())) {
+            return Resultado.YA_EXISTE;
+        }
+        Resultado resultado = agregarAlRegistro(taller);
+        if (resultado == Resultado.LLENO) {
+            cola.agregar(taller, urgencia, llegada);
+            return Resultado.EN_ESPERA;
+        }
+        return resultado;
+    }
+
+    /**
+     * Anota una reparación en el historial y, si le queda sitio, en las
+     * reparaciones del vehículo. Ver registrarReparacion(). Se debe llamar
+     * con el cerrojo de escritura tomado.
+     *
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    Resultado anotarReparacion(int clave, String reparacion, int tipo,
+            long milisegundos, long coste) {
+        Taller taller = obtenerParaModificar(clave);
+        if (taller == null) {
+            return Resultado.NO_EXISTE;
+        }
+        if (diario != null) {
+            secuenciaPendiente = diario.agregarIntervencion(
+                    clave, milisegundos, reparacion, coste);
+        }
+        historial.agregar(clave, milisegundos, tipo, coste);
+        return agregarReparacion(taller, reparacion)
+                ? Resultado.REALIZADO
+                : Resultado.LLENO;
+    }
+
+    /**
+     * Quita un vehículo del registro, anota la baja en el diario y deja
+     * entrar a los que esperan. Se debe llamar con el cerrojo de escritura
+     * tomado.
+     *
+     * @return "true" si el vehículo estaba en el registro.
+     */
+    boolean quitarDelRegistro(int clave) {
+        if (!quitarSinPromover(clave)) {
+            return false;
+        }
+        promoverEsperas();
+        return true;
+    }
+
+    /**
+     * Aplica un lote de órdenes. Ver ejecutar(). Se debe llamar con el
+     * cerrojo de escritura tomado.
+     *
+     * @param ordenes Las órdenes.
+     * @param altas Vehículos de las altas, creados con prepararAltas().
+     * @param milisegundos Instante de las reparaciones.
+     * @return El resultado de cada orden.
+     */
+    Resultado[] aplicar(List<Orden> ordenes, Taller[] altas, long milisegundos) {
+        Resultado[] resultados = new Resultado[ordenes.size()];
+        for (int i = 0; i < resultados.length; i++) {
+            Orden orden = ordenes.get(i);
+            int clave = orden.matricula.toKey();
+            resultados[i] = switch (orden.tipo) {
+                case ALTA ->
+                    agregarAlRegistro(altas[i]);
+                case ESPERA ->
+                    agregarOEsperar(altas[i], orden.urgencia, milisegundos);
+                case REPARACION ->
+                    anotarReparacion(clave, orden.reparacion,
+                            orden.tipoReparacion, milisegundos, orden.coste);
+                case BAJA ->
+                    quitarDelRegistro(clave)
+                    ? Resultado.REALIZADO
+                    : Resultado.NO_EXISTE;
+            };
+        }
+        return resultados;
+    }
+
+    /**
+     * Crea los vehículos de las altas de un lote, para no hacerlo con el
+     * cerrojo tomado.
+     *
+     * @param ordenes Las órdenes.
+     * @return El vehículo de cada alta en su posición, y "null" en las demás.
+     */
+    static Taller[] prepararAltas(List<Orden> ordenes) {
+        Taller[] altas = new Taller[ordenes.size()];
+        for (int i = 0; i < altas.length; i++) {
+            Orden orden = ordenes.get(i);
+            if (orden.tipo == Orden.Tipo.ALTA || orden.tipo == Orden.Tipo.ESPERA) {
+                altas[i] = new Taller();
+                altas[i].setVehiculo(orden.matricula, orden.marca,
+                        orden.modelo, orden.color);
+            }
+        }
+        return altas;
+    }
+
+    /**
+     * Comprueba una reparación y obtiene su tipo en el diccionario.
+     *
+     * @return El código del tipo.
+     * @throws IllegalArgumentException Si la reparación está en blanco o el
+     * coste es negativo.
+     */
+    static int tipoDeReparacion(String reparacion, long coste) {
+        if (reparacion == null || reparacion.isBlank()) {
+            throw new IllegalArgumentException("La reparación no puede estar en blanco");
+        }
+        if (coste < 0) {
+            throw new IllegalArgumentException("El coste no puede ser negativo");
+        }
+        return Diccionario.TIPOS_REPARACION.codigo(reparacion);
+    }
+
+    /**
+     * Cuenta los vehículos registrados cuya matrícula cumple una condición,
+     * sin los que ya están en el registro de otra sede: son los que
+     * ocuparían sitio en ella al trasladarlos (ver trasladar()). Se debe
+     * llamar con el cerrojo de escritura de las dos sedes tomado.
+     *
+     * @param destino La otra sede, o "null" para contarlos todos.
+     * @param seVa Condición sobre la clave de la matrícula.
+     * @return Número de vehículos.
+     */
+    int contarParaTrasladar(Sede destino, IntPredicate seVa) {
+        int[] n = {0};
+        registro.recorrer(t -> {
+            int clave = t.getClave();
+            if (seVa.test(clave)
+                    && (destino == null || !destino.registro.contiene(clave))) {
+                n[0]++;
+            }
+        });
+        return n[0];
+    }
+
+    /**
+     * Informa si caben más vehículos en el registro. Se debe llamar con el
+     * cerrojo de escritura tomado.
+     *
+     * @param vehiculos Cuántos vehículos más.
+     * @return "true" si caben todos.
+     */
+    boolean caben(int vehiculos) {
+        return vehiculosMaximos == Taller.SIN_LIMITE
+                || registro.tamano() + (long) vehiculos <= vehiculosMaximos;
+    }
+
+    /**
+     * Pasa a otra sede los vehículos, registrados o en la cola de espera,
+     * cuya matrícula cumple una condición. Los registrados entran en el
+     * registro de la otra sede aunque esté llena, así que antes se debe
+     * comprobar que caben (ver contarParaTrasladar() y caben()). Los de la
+     * cola conservan su urgencia y su instante de llegada, y entran en el
+     * registro de la otra sede si allí hay sitio. Se debe llamar con el
+     * cerrojo de escritura de las dos sedes tomado.
+     *
+     * Cada sede confirma su parte en su propio diario, y Reparto confirma
+     * antes la de la otra sede, así que si el programa se cae entre las dos
+     * confirmaciones un vehículo puede quedar en las dos. Si ya está en el
+     * registro de la otra sede, aquí solo se da de baja: es lo que hace
+     * Reparto al arrancar para quitar esos duplicados.
+     *
+     * @param destino La otra sede.
+     * @param seVa Condición sobre la clave de la matrícula.
+     * @return Número de vehículos registrados que se han pasado, sin los
+     * que ya estaban en la otra sede.
+     */
+    int trasladar(Sede destino, IntPredicate seVa) {
+        List<Copia> registrados = new ArrayList<>();
+        registro.recorrer(t -> {
+            if (seVa.test(t.getClave())) {
+                registrados.add(t.copiar());
+            }
+        });
+        int pasados = 0;
+        for (Copia copia : registrados) {
+            quitarSinPromover(copia.clave());
+            // La copia de la otra sede es la buena: puede tener cambios
+            // posteriores confirmados en su diario
+            if (!destino.registro.contiene(copia.clave())) {
+                destino.recibir(copia);
+                pasados++;
+            }
+        }
+        for (Espera espera : cola.enOrden()) {
+            int clave = espera.matricula().toKey();
+            if (seVa.test(clave)) {
+                cola.quitar(clave);
+                destino.recibirEspera(espera);
+            }
+        }
+        // Los huecos que han quedado son para los que siguen esperando aquí
+        promoverEsperas();
+        return pasados;
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Obtiene una foto del registro con todos los cambios hechos hasta
+     * ahora (ver Registro.Foto). Si la última publicada ya los tiene, no se
+     * toma ningún cerrojo; si no, se publica una nueva con el cerrojo de
+     * escritura, que se mantiene mientras se congelan los vehículos
+     * modificados desde la anterior o, si hace tiempo que nadie lista el
+     * registro, mientras se recorren todos los de memoria (ver Registro).
+     *
+     * @return La foto.
+     */
+    private Registro.Foto foto() {
+        Registro.Foto foto = registro.getFotoAlDia();
+        if (foto != null) {
+            return foto;
+        }
+        escritura.lock();
+        try {
+            return registro.publicar();
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Obtiene un vehículo del registro para modificarlo y lo marca como de
+     * esta sede. Se debe llamar con el cerrojo de escritura tomado.
+     */
+    private Taller obtenerParaModificar(int clave) {
+        Taller taller = registro.obtenerParaModificar(clave);
+        if (taller != null) {
+            taller.sede = this;
+        }
+        return taller;
+    }
+
+    /**
+     * Quita un vehículo del registro y anota la baja en el diario, sin
+     * dejar entrar a los que esperan. Se debe llamar con el cerrojo de
+     * escritura tomado.
+     *
+     * @return "true" si el vehículo estaba en el registro.
+     */
+    private boolean quitarSinPromover(int clave) {
+        if (!registro.quitar(clave)) {
+            return false;
+        }
+        if (diario != null) {
+            secuenciaPendiente = diario.agregarBaja(clave);
+        }
+        if (cambios != null) {
+            cambios.baja(clave);
+        }
+        return true;
+    }
+
+    /**
+     * Pasa vehículos de la cola de espera al registro mientras quede sitio,
+     * y los deja pendientes de avisar (ver alPromover()). Se debe llamar con
+     * el cerrojo de escritura tomado.
+     */
+    private void promoverEsperas() {
+        while (cola.tamano() > 0 && !tallerLleno()) {
+            Espera espera = cola.primera();
+            // Si la matrícula ya está en el registro, la espera se descarta
+            if (agregarAlRegistro(cola.sacar()) == Resultado.REALIZADO) {
+                anotarPromovido(espera);
+            }
+        }
+    }
+
+    private void anotarPromovido(Espera espera) {
+        if (promovidosPendientes == null) {
+            promovidosPendientes = new ArrayList<>();
+        }
+        promovidosPendientes.add(espera);
+    }
+
+    /**
+     * Registra un vehículo que viene de otra sede, sin tener en cuenta la
+     * capacidad, que ya ha comprobado quien lo traslada (ver trasladar()).
+     * Se debe llamar con el cerrojo de escritura tomado.
+     */
+    private void recibir(Copia copia) {
+        Taller taller = Taller.restaurar(copia.clave(), copia.marca(),
+                copia.modelo(), copia.color(),
+                Arrays.copyOf(copia.reparaciones(), copia.numero()));
+        taller.sede = this;
+        anotarVehiculo(taller, Diario.ALTA);
+        registro.poner(copia.clave(), taller);
+    }
+
+    /**
+     * Recibe un vehículo de la cola de espera de otra sede: entra en el
+     * registro si hay sitio, y si no, espera aquí. Se debe llamar con el
+     * cerrojo de escritura tomado.
+     */
+    private void recibirEspera(Espera espera) {
+        Taller taller = new Taller();
+        taller.setVehiculo(espera.matricula(), espera.marca(), espera.modelo(),
+                espera.color());
+        if (agregarOEsperar(taller, espera.urgencia(),
+                espera.llegada().toEpochMilli()) == Resultado.REALIZADO) {
+            anotarPromovido(espera);
+        }
+    }
+
+    /**
+     * Anota en el diario y en los cambios el alta o la actualización de un
+     * vehículo con sus reparaciones. Se debe llamar con el cerrojo de
+     * escritura tomado y antes de cambiar el registro, para que no cambie si
+     * el diario rechaza el cambio (ver Diario.CUERPO_MAXIMO).
+     *
+     * @param tipo Diario.ALTA o Diario.ACTUALIZACION.
+     */
+    private void anotarVehiculo(Taller taller, byte tipo) {
+        if (diario != null) {
+            secuenciaPendiente = taller.anotarEn(diario, tipo);
+        }
+        if (cambios != null) {
+            taller.anotarEn(cambios, tipo == Diario.ALTA
+                    ? Cambio.Tipo.ALTA
+                    : Cambio.Tipo.ACTUALIZACION);
+        }
+    }
+
+    /**
+     * Comprueba sin tomar el cerrojo si la sede está llena.
+     *
+     * @return "true" si no hay más espacio.
+     */
+    private boolean tallerLleno() {
+        return vehiculosMaximos != Taller.SIN_LIMITE
+                && registro.tamano() >= vehiculosMaximos;
+    }
+
+    /**
+     * Hace la compactación del diario. Ver compactar().
+     *
+     * @param abierto Diario a compactar.
+     * @throws IOException Si falla la escritura de la instantánea.
+     */
+    private void compactarAhora(Diario abierto) throws IOException {
+        long generacion;
+        Instantanea anterior;
+        int[] vigentes;
+        Copia[] enMemoria;
+        Historial.Copia copiaDelHistorial;
+        // Con el cerrojo de lectura nadie puede modificar el registro ni
+        // agregar cambios al diario, pero las consultas siguen funcionando
+        lectura.lock();
+        try {
+            generacion = abierto.rotar();
+            anterior = registro.getInstantanea();
+            vigentes = registro.posicionesVigentes();
+            enMemoria = registro.copiarMemoria();
+            copiaDelHistorial = historial.copiar();
+        } finally {
+            lectura.unlock();
+        }
+        Arrays.sort(enMemoria, Comparator.comparingInt(Copia::clave));
+        Instantanea.escribir(rutaInstantanea(abierto.getBase()), generacion,
+                anterior, vigentes, enMemoria, copiaDelHistorial);
+        // escribir() ha sincronizado la instantánea y su carpeta, así que ya
+        // se pueden borrar los segmentos que incluye
+        abierto.eliminarHasta(generacion);
+    }
+
+    /**
+     * Ruta de la instantánea que corresponde a un diario.
+     *
+     * @param diario Ruta del diario.
+     * @return La ruta de la instantánea.
+     */
+    private static Path rutaInstantanea(Path diario) {
+        return diario.resolveSibling(diario.getFileName() + ".instantanea");
+    }
+
+    /**
+     * Aplica al registro los eventos leídos del diario al arrancar.
+     */
+    private class Reproduccion implements Diario.Receptor {
+
+        @Override
+        public void alta(int clave, String marca, String modelo, String color,
+                String[] reparaciones) {
+            registro.poner(clave, restaurar(clave, marca, modelo, color, reparaciones));
+        }
+
+        @Override
+        public void reparacion(int clave, String reparacion) {
+            Taller taller = obtenerParaModificar(clave);
+            if (taller != null) {
+                taller.guardarReparacion(reparacion, Taller.SIN_LIMITE);
+            }
+        }
+
+        @Override
+        public void actualizacion(int clave, String marca, String modelo,
+                String color, String[] reparaciones) {
+            if (registro.contiene(clave)) {
+                registro.poner(clave,
+                        restaurar(clave, marca, modelo, color, reparaciones));
+            }
+        }
+
+        @Override
+        public void baja(int clave) {
+            registro.quitar(clave);
+        }
+
+        @Override
+        public void intervencion(int clave, long instante, String tipo,
+                long coste) {
+            historial.agregar(clave, instante,
+                    Diccionario.TIPOS_REPARACION.codigo(tipo), coste);
+        }
+
+        private Taller restaurar(int clave, String marca, String modelo,
+                String color, String[] reparaciones) {
+            Taller taller = Taller.restaurar(clave, marca, modelo, color, reparaciones);
+            taller.sede = Sede.this;
+            return taller;
+        }
+    }
+}
@@ -0,0 +1,576 @@
+package taller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import vehiculo.Matricula;
+
+/**
+ * Servidor TCP que ofrece por la red las mismas operaciones que el menú del
+ * programa, para que varios puestos trabajen a la vez con un único taller.
+ * Cada conexión se atiende en su propio hilo y todas usan el mismo registro,
+ * que ya se protege solo frente a accesos concurrentes.
+ *
+ * El protocolo es de texto en UTF-8, una orden por línea. Cada línea es una
+ * fila CSV (ver Intercambio) cuyo primer campo es el nombre de la orden:
+ * <pre>
+ * ALTA,matricula,marca,modelo,color     REALIZADO, YA_EXISTE o LLENO
+ * ESPERA,matricula,marca,modelo,color[,urgencia]
+ *                                       REALIZADO, EN_ESPERA o YA_EXISTE
+ * LISTADO                               REALIZADO y el listado
+ * BUSCAR,matricula                      REALIZADO y el vehículo, o NO_EXISTE
+ * REPARACION,matricula,nombre[,coste]   REALIZADO, NO_EXISTE o LLENO
+ * REPARACIONES,matricula                REALIZADO y las reparaciones, o NO_EXISTE
+ * BAJA,matricula                        REALIZADO o NO_EXISTE
+ * LOTE,numero                           REALIZADO y el resultado de cada orden
+ * SALIR                                 REALIZADO, y se cierra la conexión
+ * </pre>
+ * La respuesta empieza por una línea con el resultado (ver Resultado), o con
+ * "ERROR," y el motivo como campo CSV si la orden no es válida o no se ha
+ * podido ejecutar. Las órdenes que devuelven datos los escriben a
+ * continuación, línea a línea, y terminan con una línea que solo tiene un
+ * punto; a las líneas de datos que empiezan por un punto se les añade otro
+ * delante. El coste de REPARACION va en euros con dos decimales como mucho
+ * (ej. 49.90) y la reparación se anota también en el historial, como en el
+ * menú.
+ *
+ * ESPERA es como ALTA, pero si el taller está lleno deja el vehículo en la
+ * cola de espera (ver Taller.addOrEnqueue()) con la urgencia indicada
+ * (NORMAL por defecto, PREFERENTE o URGENTE).
+ *
+ * Detrás de LOTE van las órdenes del lote (ALTA, ESPERA, REPARACION o
+ * BAJA), una por línea, y se ejecutan todas juntas con Taller.ejecutar(): un
+ * solo cerrojo y una sola escritura en el diario para todo el lote. La
+ * respuesta trae una línea por orden, en el mismo orden, con su resultado o
+ * su error; las órdenes no válidas no se ejecutan, pero las demás sí.
+ *
+ * Las respuestas se envían cuando no quedan más órdenes recibidas, así que
+ * un cliente puede mandar varias órdenes seguidas sin esperar a cada
+ * respuesta.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class Servidor implements Closeable {
+
+    /**
+     * Número máximo de conexiones abiertas a la vez.
+     */
+    public static final int CONEXIONES_MAXIMAS = 1024;
+    /**
+     * Número máximo de órdenes de un lote.
+     */
+    public static final int LOTE_MAXIMO = 10_000;
+    /**
+     * Longitud máxima de una orden, en caracteres.
+     */
+    private static final int LINEA_MAXIMA = 1 << 16;
+    /**
+     * Milisegundos sin recibir nada tras los que se cierra una conexión.
+     */
+    private static final int INACTIVIDAD = 10 * 60 * 1000;
+    /**
+     * Vehículos de cada página del listado.
+     */
+    private static final int PAGINA = 1000;
+    /**
+     * Línea que termina los datos de una respuesta.
+     */
+    private static final String FIN_DATOS = ".";
+
+    /**
+     * Socket que acepta las conexiones.
+     */
+    private final ServerSocket aceptador;
+    /**
+     * Hilos de las conexiones, uno por conexión. El proyecto compila para
+     * Java 17, que no tiene hilos virtuales; con Java 21 bastaría con
+     * cambiar este ejecutor por Executors.newVirtualThreadPerTaskExecutor().
+     */
+    private final ExecutorService hilos;
+    /**
+     * Conexiones abiertas, para cerrarlas al parar el servidor.
+     */
+    private final Set<Socket> conexiones = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger abiertas = new AtomicInteger();
+    /**
+     * Número de la siguiente conexión, para el nombre de su hilo.
+     */
+    private final AtomicInteger numero = new AtomicInteger();
+
+    /**
+     * Abre el servidor y empieza a aceptar conexiones en segundo plano.
+     *
+     * @param direccion Dirección y puerto donde se escucha. Con el puerto 0
+     * se elige uno libre (ver getPuerto()).
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public Servidor(InetSocketAddress direccion) throws IOException {
+        this.aceptador = new ServerSocket();
+        this.aceptador.setReuseAddress(true);
+        this.aceptador.bind(direccion);
+        this.hilos = Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "conexion-taller-" + numero.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        Thread hilo = new Thread(this::aceptar, "servidor-taller");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Puerto en el que escucha el servidor.
+     *
+     * @return El número de puerto.
+     */
+    public int getPuerto() {
+        return aceptador.getLocalPort();
+    }
+
+    /**
+     * Número de conexiones abiertas.
+     *
+     * @return El número de conexiones.
+     */
+    public int getConexiones() {
+        return abiertas.get();
+    }
+
+    /**
+     * Deja de aceptar conexiones y cierra las que están abiertas. Las órdenes
+     * que se estén ejecutando terminan, pero su respuesta se pierde.
+     */
+    @Override
+    public void close() {
+        try {
+            aceptador.close();
+        } catch (IOException e) {
+            // Ya no se aceptan más conexiones
+        }
+        for (Socket conexion : conexiones) {
+            cerrar(conexion);
+        }
+        hilos.shutdown();
+        try {
+            hilos.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Acepta conexiones hasta que se cierra el servidor.
+     */
+    private void aceptar() {
+        while (!aceptador.isClosed()) {
+            Socket conexion;
+            try {
+                conexion = aceptador.accept();
+            } catch (IOException e) {
+                // El socket se ha cerrado con close()
+                continue;
+            }
+            if (abiertas.incrementAndGet() > CONEXIONES_MAXIMAS) {
+                abiertas.decrementAndGet();
+                rechazar(conexion);
+                continue;
+            }
+            conexiones.add(conexion);
+            try {
+                hilos.execute(() -> {
+                    try {
+                        atender(conexion);
+                    } finally {
+                        conexiones.remove(conexion);
+                        abiertas.decrementAndGet();
+                        cerrar(conexion);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Se ha cerrado el servidor justo después de aceptarla
+                conexiones.remove(conexion);
+                abiertas.decrementAndGet();
+                cerrar(conexion);
+            }
+        }
+    }
+
+    /**
+     * Responde a una conexión que no se puede atender y la cierra.
+     */
+    private static void rechazar(Socket conexion) {
+        try (conexion; Writer salida = new OutputStreamWriter(
+                conexion.getOutputStream(), StandardCharsets.UTF_8)) {
+            salida.write("ERROR,El servidor tiene demasiadas conexiones\n");
+        } catch (IOException e) {
+            // El cliente ya no está
+        }
+    }
+
+    /**
+     * Cierra una conexión sin informar de los errores.
+     */
+    private static void cerrar(Socket conexion) {
+        try {
+            conexion.close();
+        } catch (IOException e) {
+            // Ya estaba cerrada
+        }
+    }
+
+    /**
+     * Atiende las órdenes de una conexión hasta que el cliente la cierra o
+     * manda SALIR.
+     */
+    private static void atender(Socket conexion) {
+        try {
+            conexion.setSoTimeout(INACTIVIDAD);
+            conexion.setTcpNoDelay(true);
+            BufferedReader entrada = new BufferedReader(new InputStreamReader(
+                    conexion.getInputStream(), StandardCharsets.UTF_8));
+            Writer salida = new BufferedWriter(new OutputStreamWriter(
+                    conexion.getOutputStream(), StandardCharsets.UTF_8));
+            StringBuilder linea = new StringBuilder();
+            List<String> campos = new ArrayList<>();
+            boolean sigue = true;
+            while (sigue && leerLinea(entrada, linea)) {
+                sigue = ejecutar(entrada, linea, campos, salida);
+                // Si el cliente ya ha mandado más órdenes, se responden todas
+                // juntas
+                if (!sigue || !entrada.ready()) {
+                    salida.flush();
+                }
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // Conexión inactiva, cortada por el cliente o cerrada con close()
+        } catch (IOException e) {
+            System.err.println("Error en una conexión del servidor: " + e);
+        }
+    }
+
+    /**
+     * Lee una línea, sin el salto de línea.
+     *
+     * @return "false" si se ha terminado la entrada.
+     * @throws IOException Si la línea es demasiado larga o falla la lectura.
+     */
+    private static boolean leerLinea(BufferedReader entrada, StringBuilder linea)
+            throws IOException {
+        linea.setLength(0);
+        int c;
+        while ((c = entrada.read()) != '\n') {
+            if (c == -1) {
+                return linea.length() > 0;
+            }
+            if (linea.length() == LINEA_MAXIMA) {
+                throw new IOException("Orden de más de " + LINEA_MAXIMA + " caracteres");
+            }
+            linea.append((char) c);
+        }
+        if (linea.length() > 0 && linea.charAt(linea.length() - 1) == '\r') {
+            linea.setLength(linea.length() - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Ejecuta una orden y escribe su respuesta.
+     *
+     * @return "false" si hay que cerrar la conexión.
+     */
+    private static boolean ejecutar(BufferedReader entrada, StringBuilder linea,
+            List<String> campos, Writer salida) throws IOException {
+        try {
+            String orden = separar(linea, campos);
+            Orden modificacion = modificacion(orden, campos);
+            if (modificacion != null) {
+                salida.write(Taller.ejecutar(List.of(modificacion))[0].name());
+                salida.write('\n');
+                return true;
+            }
+            switch (orden) {
+                case "LISTADO" -> {
+                    argumentos(campos, 0, 0);
+                    salida.write(Resultado.REALIZADO.name());
+                    salida.write('\n');
+                    // El listado sale de una foto del registro, sin cerrojo,
+                    // así que un cliente lento no frena a nadie
+                    Sede.Listado listado = Taller.listar();
+                    StringBuilder pagina = new StringBuilder();
+                    boolean quedan = true;
+                    while (quedan) {
+                        pagina.setLength(0);
+                        quedan = listado.escribirPagina(pagina, PAGINA);
+                        escribirDatos(salida, pagina);
+                    }
+                    salida.write(FIN_DATOS + "\n");
+                }
+                case "BUSCAR", "REPARACIONES" -> {
+                    argumentos(campos, 1, 1);
+                    Taller taller = Taller.buscarEnRegistroPorMatricula(matricula(campos));
+                    if (taller == null) {
+                        salida.write(Resultado.NO_EXISTE.name());
+                        salida.write('\n');
+                    } else {
+                        salida.write(Resultado.REALIZADO.name());
+                        salida.write('\n');
+                        if (orden.equals("BUSCAR")) {
+                            escribirDatos(salida, taller.toString());
+                        } else {
+                            for (String reparacion : taller.getReparaciones()) {
+                                escribirDatos(salida, reparacion);
+                            }
+                        }
+                        salida.write(FIN_DATOS + "\n");
+                    }
+                }
+                case "LOTE" -> {
+                    return ejecutarLote(entrada, linea, campos, salida);
+                }
+                case "SALIR" -> {
+                    salida.write(Resultado.REALIZADO.name());
+                    salida.write('\n');
+                    return false;
+                }
+                default ->
+                    throw new IllegalArgumentException("Orden desconocida: " + orden);
+            }
+        } catch (IllegalArgumentException e) {
+            escribirError(salida, e);
+        } catch (RuntimeException e) {
+            // Un fallo del taller (el diario, por ejemplo) no es culpa del
+            // cliente, pero también recibe su respuesta
+            System.err.println("Error al ejecutar una orden del servidor: " + e);
+            escribirError(salida, e);
+        }
+        return true;
+    }
+
+    /**
+     * Escribe la respuesta de una orden no válida o que no se ha podido
+     * ejecutar. El motivo va como campo CSV, sin saltos de línea para que no
+     * parezca otra respuesta.
+     */
+    private static void escribirError(Writer salida, RuntimeException e)
+            throws IOException {
+        String motivo = e.getMessage();
+        if (motivo == null || motivo.isBlank()) {
+            motivo = e.getClass().getSimpleName();
+        }
+        salida.write("ERROR");
+        Intercambio.campoCsv(salida, motivo.replace('\r', ' ').replace('\n', ' '));
+        salida.write('\n');
+    }
+
+    /**
+     * Lee las órdenes de un lote y las ejecuta todas juntas con
+     * Taller.ejecutar(). Las órdenes no válidas no se ejecutan y su
+     * resultado es el error.
+     *
+     * @return "false" si hay que cerrar la conexión: si el número de órdenes
+     * no es válido, porque entonces no se sabe dónde termina el lote, o si
+     * la entrada se termina antes.
+     */
+    private static boolean ejecutarLote(BufferedReader entrada, StringBuilder linea,
+            List<String> campos, Writer salida) throws IOException {
+        int numero;
+        try {
+            argumentos(campos, 1, 1);
+            numero = Integer.parseInt(campos.get(1).strip());
+            if (numero < 1 || numero > LOTE_MAXIMO) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            escribirError(salida, new IllegalArgumentException(
+                    "Un lote lleva de 1 a " + LOTE_MAXIMO + " órdenes"));
+            return false;
+        } catch (IllegalArgumentException e) {
+            escribirError(salida, e);
+            return false;
+        }
+        List<Orden> ordenes = new ArrayList<>(numero);
+        IllegalArgumentException[] errores = new IllegalArgumentException[numero];
+        for (int i = 0; i < numero; i++) {
+            if (!leerLinea(entrada, linea)) {
+                return false;
+            }
+            try {
+                Orden orden = modificacion(separar(linea, campos), campos);
+                if (orden == null) {
+                    throw new IllegalArgumentException(
+                            "Un lote solo admite las órdenes ALTA, REPARACION y BAJA");
+                }
+                ordenes.add(orden);
+            } catch (IllegalArgumentException e) {
+                errores[i] = e;
+            }
+        }
+        Resultado[] resultados = Taller.ejecutar(ordenes);
+        salida.write(Resultado.REALIZADO.name());
+        salida.write('\n');
+        for (int i = 0, j = 0; i < numero; i++) {
+            if (errores[i] != null) {
+                escribirError(salida, errores[i]);
+            } else {
+                salida.write(resultados[j++].name());
+                salida.write('\n');
+            }
+        }
+        salida.write(FIN_DATOS + "\n");
+        return true;
+    }
+
+    /**
+     * Separa los campos de una orden.
+     *
+     * @return El nombre de la orden, en mayúsculas.
+     * @throws IllegalArgumentException Si la línea no es una fila CSV válida.
+     */
+    private static String separar(CharSequence linea, List<String> campos) {
+        if (!Intercambio.camposCsv(linea, campos)) {
+            throw new IllegalArgumentException("Faltan unas comillas de cierre");
+        }
+        return campos.get(0).strip().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Crea la orden de una modificación del registro (ALTA, ESPERA,
+     * REPARACION o BAJA).
+     *
+     * @return La orden, o "null" si es otro tipo de orden.
+     * @throws IllegalArgumentException Si sus argumentos no son válidos.
+     */
+    private static Orden modificacion(String orden, List<String> campos) {
+        switch (orden) {
+            case "ALTA" -> {
+                argumentos(campos, 4, 4);
+                return Orden.alta(matricula(campos), campos.get(2),
+                        campos.get(3), campos.get(4));
+            }
+            case "ESPERA" -> {
+                argumentos(campos, 4, 5);
+                return Orden.espera(matricula(campos), campos.get(2),
+                        campos.get(3), campos.get(4),
+                        campos.size() > 5 ? urgencia(campos.get(5)) : Urgencia.NORMAL);
+            }
+            case "REPARACION" -> {
+                argumentos(campos, 2, 3);
+                long coste = campos.size() > 3 ? importe(campos.get(3)) : 0;
+                return Orden.reparacion(matricula(campos), campos.get(2), coste);
+            }
+            case "BAJA" -> {
+                argumentos(campos, 1, 1);
+                return Orden.baja(matricula(campos));
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Lee una urgencia por su nombre.
+     *
+     * @throws IllegalArgumentException Si no es una urgencia.
+     */
+    private static Urgencia urgencia(String texto) {
+        try {
+            return Urgencia.valueOf(texto.strip().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Urgencia no válida: " + texto);
+        }
+    }
+
+    /**
+     * Comprueba el número de argumentos de una orden.
+     *
+     * @throws IllegalArgumentException Si no está entre el mínimo y el
+     * máximo.
+     */
+    private static void argumentos(List<String> campos, int minimo, int maximo) {
+        int numero = campos.size() - 1;
+        if (numero < minimo || numero > maximo) {
+            throw new IllegalArgumentException("La orden " + campos.get(0).strip()
+                    + " lleva " + (minimo == maximo ? String.valueOf(minimo)
+                    : "de " + minimo + " a " + maximo)
+                    + (maximo == 1 ? " argumento" : " argumentos"));
+        }
+    }
+
+    /**
+     * Matrícula del primer argumento.
+     *
+     * @throws IllegalArgumentException Si no tiene el formato correcto.
+     */
+    private static Matricula matricula(List<String> campos) {
+        String texto = campos.get(1).strip().toUpperCase(Locale.ROOT);
+        try {
+            return Metricas.matricula(texto);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Matrícula no válida: " + texto);
+        }
+    }
+
+    /**
+     * Convierte un importe en euros, con punto o coma decimal, en céntimos.
+     *
+     * @throws IllegalArgumentException Si no es un importe válido.
+     */
+    private static long importe(String texto) {
+        try {
+            BigDecimal euros = new BigDecimal(texto.strip().replace(',', '.'));
+            if (euros.signum() >= 0 && euros.scale() <= 2) {
+                return euros.movePointRight(2).longValueExact();
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Se informa más abajo
+        }
+        throw new IllegalArgumentException("Importe no válido: " + texto.strip());
+    }
+
+    /**
+     * Escribe un texto como líneas de datos, añadiendo un punto delante de
+     * las que empiezan por punto.
+     */
+    private static void escribirDatos(Writer salida, CharSequence texto)
+            throws IOException {
+        int inicio = 0;
+        int n = texto.length();
+        while (inicio < n) {
+            int fin = inicio;
+            while (fin < n && texto.charAt(fin) != '\n') {
+                fin++;
+            }
+            if (texto.charAt(inicio) == '.') {
+                salida.write('.');
+            }
+            salida.append(texto, inicio, fin);
+            salida.write('\n');
+            inicio = fin + 1;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package taller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import taller.Taller.Cambio;
+import vehiculo.Matricula;
+import vehiculo.Vehiculo;
+
+/**
+ * Suscripción a los cambios del registro de una sede (ver Sede.suscribir()).
+ * Tiene su propio hilo, que lee los cambios del anillo de la sede (ver
+ * AnilloDeCambios) y se los pasa a su acción por lotes: cada vez, todos los
+ * que se han publicado desde el lote anterior, hasta LOTE_MAXIMO. Así, si la
+ * acción va más despacio que el registro, los lotes crecen y se reparte el
+ * coste de cada llamada entre más cambios; si va más deprisa, recibe cada
+ * cambio en cuanto se publica.
+ *
+ * Las modificaciones del registro nunca esperan a la suscripción. Si se
+ * queda más de AnilloDeCambios.CAMBIOS cambios atrás, los más antiguos se
+ * pierden: se saltan, se cuentan en getPerdidos() y el número del siguiente
+ * cambio que recibe no sigue al del anterior. Quien no pueda perder ninguno
+ * debe entonces volver a leer el registro entero (ver Sede.listar()).
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Suscripcion implements AutoCloseable {
+
+    /**
+     * Número máximo de cambios de cada lote.
+     */
+    public static final int LOTE_MAXIMO = 1024;
+    /**
+     * Veces que se comprueba si hay cambios nuevos antes de dormir el hilo.
+     * Con un solo procesador no sirve de nada.
+     */
+    private static final int GIROS
+            = Runtime.getRuntime().availableProcessors() > 1 ? 200 : 0;
+
+    private final AnilloDeCambios anillo;
+    private final Consumer<List<Cambio>> accion;
+    private final Thread hilo;
+    /**
+     * Número del siguiente cambio que se lee. Solo lo modifica el hilo de la
+     * suscripción.
+     */
+    private volatile long siguiente;
+    private volatile long recibidos;
+    private volatile long perdidos;
+    /**
+     * Indica si el hilo duerme o está a punto de dormir, para que quien
+     * publique cambios lo despierte.
+     */
+    private volatile boolean dormido;
+    private volatile boolean cerrada;
+
+    /**
+     * Datos de las ranuras del lote que se está leyendo, copiados para
+     * comprobar que siguen intactos antes de crear los cambios. Solo los usa
+     * el hilo de la suscripción.
+     */
+    private final Cambio.Tipo[] tipos = new Cambio.Tipo[LOTE_MAXIMO];
+    private final int[] claves = new int[LOTE_MAXIMO];
+    private final Vehiculo[] vehiculos = new Vehiculo[LOTE_MAXIMO];
+    private final String[][] reparaciones = new String[LOTE_MAXIMO][];
+    private final int[] numeros = new int[LOTE_MAXIMO];
+    private final String[] nuevas = new String[LOTE_MAXIMO];
+
+    /**
+     * Crea la suscripción sin arrancar su hilo.
+     *
+     * @param anillo Anillo de la sede.
+     * @param nombre Nombre del hilo.
+     * @param accion Lo que se hace con cada lote.
+     * @param desde Número del primer cambio que se recibe.
+     */
+    Suscripcion(AnilloDeCambios anillo, String nombre,
+            Consumer<List<Cambio>> accion, long desde) {
+        this.anillo = anillo;
+        this.accion = accion;
+        this.siguiente = desde;
+        this.hilo = new Thread(this::recibir, nombre);
+        this.hilo.setDaemon(true);
+    }
+
+    void arrancar() {
+        hilo.start();
+    }
+
+    /**
+     * Obtiene el número de cambios que ha recibido la acción.
+     *
+     * @return El número.
+     */
+    public long getRecibidos() {
+        return recibidos;
+    }
+
+    /**
+     * Obtiene el número de cambios que se han perdido por quedarse atrás.
+     *
+     * @return El número.
+     */
+    public long getPerdidos() {
+        return perdidos;
+    }
+
+    /**
+     * Obtiene el número de cambios publicados que aún no ha leído.
+     *
+     * @return El número, que puede pasar de AnilloDeCambios.CAMBIOS si se
+     * está quedando atrás.
+     */
+    public long getPendientes() {
+        return Math.max(0, anillo.getPublicados() - siguiente);
+    }
+
+    /**
+     * Informa si la suscripción está cerrada, porque se ha llamado a close()
+     * o porque la acción ha lanzado una excepción.
+     *
+     * @return "true" si ya no recibe cambios.
+     */
+    public boolean isCerrada() {
+        return cerrada;
+    }
+
+    /**
+     * Deja de recibir cambios y espera a que termine el lote en curso, salvo
+     * si se llama desde la propia acción.
+     */
+    @Override
+    public void close() {
+        cerrada = true;
+        anillo.quitar(this);
+        LockSupport.unpark(hilo);
+        if (Thread.currentThread() != hilo) {
+            try {
+                hilo.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Despierta el hilo si está dormido. Lo llama el anillo al publicar.
+     */
+    void despertar() {
+        if (dormido) {
+            LockSupport.unpark(hilo);
+        }
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Bucle del hilo: lee los cambios publicados y se los pasa a la acción
+     * hasta que se cierra. Si la acción lanza una excepción, la suscripción
+     * se cierra y la excepción llega al manejador del hilo.
+     */
+    private void recibir() {
+        try {
+            long leido = siguiente;
+            while (!cerrada) {
+                long publicados = anillo.getPublicados();
+                if (publicados == leido) {
+                    esperar(leido);
+                    continue;
+                }
+                // Lo que ya se ha vuelto a escribir no se intenta leer
+                long desde = Math.max(leido, publicados - AnilloDeCambios.CAMBIOS);
+                int n = (int) Math.min(publicados - desde, LOTE_MAXIMO);
+                for (int i = 0; i < n; i++) {
+                    AnilloDeCambios.Ranura ranura = anillo.ranura(desde + i);
+                    tipos[i] = ranura.tipo;
+                    claves[i] = ranura.clave;
+                    vehiculos[i] = ranura.vehiculo;
+                    reparaciones[i] = ranura.reparaciones;
+                    numeros[i] = ranura.numero;
+                    nuevas[i] = ranura.reparacion;
+                }
+                int saltados = (int) Math.min(n, Math.max(0, anillo.primeroIntacto() - desde));
+                List<Cambio> lote = new ArrayList<>(n - saltados);
+                for (int i = saltados; i < n; i++) {
+                    lote.add(cambio(desde + i, i));
+                }
+                Arrays.fill(vehiculos, 0, n, null);
+                Arrays.fill(reparaciones, 0, n, null);
+                Arrays.fill(nuevas, 0, n, null);
+                if (desde + saltados > leido) {
+                    perdidos += desde + saltados - leido;
+                }
+                leido = desde + n;
+                siguiente = leido;
+                if (!lote.isEmpty()) {
+                    accion.accept(Collections.unmodifiableList(lote));
+                    recibidos += lote.size();
+                }
+            }
+        } finally {
+            cerrada = true;
+            anillo.quitar(this);
+        }
+    }
+
+    /**
+     * Crea el cambio de una posición de los datos leídos, que ya se han
+     * comprobado.
+     */
+    private Cambio cambio(long numero, int i) {
+        Matricula matricula = Matricula.fromKey(claves[i]);
+        return switch (tipos[i]) {
+            case ALTA, ACTUALIZACION -> {
+                Vehiculo vehiculo = vehiculos[i];
+                yield new Cambio(numero, tipos[i], matricula, vehiculo.getMarca(),
+                        vehiculo.getModelo(), vehiculo.getColor(),
+                        List.copyOf(Arrays.asList(reparaciones[i]).subList(0, numeros[i])));
+            }
+            case REPARACION ->
+                new Cambio(numero, tipos[i], matricula, null, null, null,
+                        List.of(nuevas[i]));
+            case BAJA ->
+                new Cambio(numero, tipos[i], matricula, null, null, null, List.of());
+        };
+    }
+
+    /**
+     * Espera a que se publiquen cambios a partir de uno o a que se cierre la
+     * suscripción. Primero lo comprueba unas cuantas veces seguidas y luego
+     * duerme hasta que lo despierten. Como quien publica anota el número
+     * antes de mirar si duerme, y aquí se anota que duerme antes de mirar el
+     * número, nunca se queda dormido con cambios pendientes.
+     */
+    private void esperar(long leido) {
+        for (int i = 0; i < GIROS; i++) {
+            if (anillo.getPublicados() != leido || cerrada) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        dormido = true;
+        if (anillo.getPublicados() == leido && !cerrada) {
+            LockSupport.park(this);
+        }
+        dormido = false;
+    }
+}
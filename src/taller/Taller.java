@@ -1,6 +1,17 @@
 package taller;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import vehiculo.Matricula;
+import vehiculo.PatronMatricula;
 import vehiculo.Vehiculo;
 
 /**
@@ -9,56 +20,259 @@ import vehiculo.Vehiculo;
  * y por otro, dispone de propiedades y métodos estáticos para las operaciones
  * relacionadas con el estado de la información (cuántos coches, cuántas
  * reparaciones) que guarda el taller.
- * 
+ *
+ * Los métodos estáticos trabajan sobre la sede principal del taller. Cómo
+ * se guarda y se protege el registro (cerrojos, diario, historial, cola de
+ * espera y suscripciones) se describe en la clase Sede.
+ *
  * @author Gabriel Cubillos Rodríguez
  */
 public class Taller {
 
     /**
-     * Máximas reparaciones que se admiten en cada vehículo.
+     * Máximas reparaciones que se admiten en cada vehículo si no se configura
+     * otro valor al arrancar.
      */
     public static final int REPARACIONES_MAXIMAS = 3;
     /**
-     * Número máximo de vehículos que se admite en el taller.
+     * Número máximo de vehículos que se admite en el taller si no se configura
+     * otro valor al arrancar.
      */
     public static final int VEHICULOS_MAXIMOS = 5;
     /**
-     * Esta es una variable fundamental para el proyecto. Se trata de un
-     * registro que guarda todos los datos de los vehículos en el taller junto
+     * Valor de capacidad que indica que no hay límite.
+     */
+    public static final int SIN_LIMITE = -1;
+    /**
+     * Vehículos que caben en la caché de búsquedas por matrícula si no se
+     * configura otro valor al arrancar (ver configurarCache()).
+     */
+    public static final int VEHICULOS_EN_CACHE = 10_000;
+    /**
+     * Array vacío compartido por todos los vehículos sin reparaciones. Así un
+     * vehículo no reserva memoria para reparaciones hasta que tiene alguna.
+     */
+    private static final String[] SIN_REPARACIONES = new String[0];
+    /**
+     * Esta es una variable fundamental para el proyecto. Se trata de la sede
+     * cuyo registro guarda todos los datos de los vehículos en el taller junto
      * con sus reparaciones. Es decir, es una base de datos con una serie de
      * datos con un índice único: la matrícula.
-     * 
-     * Los métodos más importantes de esta clase realizarán operaciones CRUD, 
-     * esto es, de adición, actualización, de consulta y de supresión de elementos.
      *
-     * Toda esta información se guarda en este array, en una propiedad de
-     * clase.
+     * Los métodos más importantes de esta clase realizarán operaciones CRUD,
+     * esto es, de adición, actualización, de consulta y de supresión de elementos.
+     */
+    private static final Sede PRINCIPAL = new Sede("principal");
+    /**
+     * Plantillas de toString() y del listado, troceadas una sola vez por sus
+     * huecos. Al escribir se intercalan los datos entre los trozos, sin
+     * volver a interpretar un formato en cada llamada.
      */
-    private static final Taller[] REGISTRO = new Taller[VEHICULOS_MAXIMOS];
+    private static final String[] PLANTILLA_VEHICULO = """
+                                Matrícula: %s
+                                Marca: %s
+                                Modelo: %s
+                                Color: %s
+                             """.split("%s", -1);
+    private static final String[] PLANTILLA_REPARACION = """
+                        Reparación %d: %s
+                      """.split("%[ds]", -1);
+    private static final String[] ENCABEZADO_LISTADO
+            = "\nVehículo %d en el taller:\n".split("%d", -1);
+    private static final String SIN_REPARACIONES_TEXTO
+            = "Este vehículo no tiene reparaciones\n";
+    private static final String CABECERA_REPARACIONES = "Reparaciones:\n";
 
     /**
      * Propiedad de instancia correspondiente al vehículo y sus características.
      */
     private Vehiculo vehiculo;
     /**
-     * Propiedad de instancia: Array que contiene reparaciones.
+     * Propiedad de instancia: Array que contiene reparaciones. Empieza siendo
+     * el array vacío compartido y crece a medida que se agregan.
+     */
+    private String[] reparaciones;
+    /**
+     * Propiedad de instancia: cuántas posiciones de "reparaciones" están
+     * ocupadas. Se actualiza en cada inserción para no tener que contarlas.
+     */
+    private int numeroDeReparaciones;
+    /**
+     * Si el objeto es una vista de una fila del almacén fuera del montículo
+     * (ver AlmacenDirecto.vista()), el almacén y la fila. En ese caso el
+     * vehículo y las reparaciones no se guardan en el objeto sino en el
+     * almacén.
+     */
+    private AlmacenDirecto almacen;
+    private int fila;
+    /**
+     * Sede en la que está registrado el vehículo, cuyo cerrojo protege sus
+     * reparaciones. Hasta que se registra es la sede principal. La cambia la
+     * sede al registrarlo, con su cerrojo de escritura tomado.
      */
-    private final String[] reparaciones;
+    Sede sede;
 
     /**
      * Constructor de la clase. Inicializamos las reparaciones.
      */
     public Taller() {
-        this.reparaciones = new String[REPARACIONES_MAXIMAS];
+        this.reparaciones = SIN_REPARACIONES;
+        this.sede = PRINCIPAL;
+    }
+
+    /**
+     * Obtiene la sede principal del taller, sobre la que trabajan los
+     * métodos estáticos de esta clase.
+     *
+     * @return La sede principal.
+     */
+    public static Sede getSedePrincipal() {
+        return PRINCIPAL;
+    }
+
+    /**
+     * Establece la capacidad del taller. Está pensado para llamarse una sola
+     * vez al arrancar, antes de registrar ningún vehículo.
+     *
+     * @param vehiculos Número máximo de vehículos, o SIN_LIMITE.
+     * @param reparaciones Número máximo de reparaciones por vehículo, o
+     * SIN_LIMITE.
+     * @throws IllegalArgumentException Si alguno de los valores no es positivo
+     * ni SIN_LIMITE.
+     */
+    public static void configurarCapacidad(int vehiculos, int reparaciones) {
+        PRINCIPAL.configurarCapacidad(vehiculos, reparaciones);
+    }
+
+    /**
+     * Elige dónde se guardan los vehículos del registro: en objetos del
+     * montículo de Java (por defecto) o por columnas fuera de él (ver
+     * AlmacenDirecto), lo que evita que el recolector de basura tenga que
+     * recorrer millones de objetos en los talleres muy grandes. Debe llamarse
+     * al arrancar, antes de registrar ningún vehículo y de abrir el diario.
+     *
+     * Fuera del montículo, las consultas devuelven siempre copias de los
+     * vehículos, así que modificar el objeto que se ha registrado o
+     * consultado no modifica el registro.
+     *
+     * @param fueraDelMonticulo "true" para guardarlos fuera del montículo.
+     * @throws IllegalStateException Si ya hay vehículos registrados.
+     */
+    public static void configurarAlmacen(boolean fueraDelMonticulo) {
+        PRINCIPAL.configurarAlmacen(fueraDelMonticulo);
+    }
+
+    /**
+     * Configura la caché de las búsquedas por matrícula. Los vehículos que
+     * el registro no tiene como objetos (los de la instantánea y, fuera del
+     * montículo, todos) se leen decodificando sus datos en cada búsqueda; la
+     * caché guarda los más buscados ya leídos, y las modificaciones y bajas
+     * los quitan de ella antes de hacerse. Por defecto admite
+     * VEHICULOS_EN_CACHE vehículos con la política W_TINY_LFU. Al
+     * configurarla se vacía.
+     *
+     * @param vehiculos Número máximo de vehículos, o 0 para no usar caché.
+     * @param politica Cómo se elige el que sale cuando está llena.
+     * @throws IllegalArgumentException Si el número de vehículos es negativo.
+     */
+    public static void configurarCache(int vehiculos, PoliticaCache politica) {
+        PRINCIPAL.configurarCache(vehiculos, politica);
+    }
+
+    /**
+     * Estadísticas de la caché de búsquedas por matrícula.
+     *
+     * @param politica Política con la que elige el vehículo que sale.
+     * @param capacidad Número máximo de vehículos.
+     * @param vehiculos Vehículos que tiene ahora.
+     * @param aciertos Búsquedas que ha resuelto.
+     * @param fallos Búsquedas que no ha resuelto, incluidas las de
+     * matrículas que no están registradas.
+     * @param desalojos Vehículos que han salido para dejar sitio.
+     * @param invalidaciones Vehículos que han salido porque se iban a
+     * modificar o eliminar.
+     */
+    public record EstadisticasCache(PoliticaCache politica, int capacidad,
+            int vehiculos, long aciertos, long fallos, long desalojos,
+            long invalidaciones) {
+
+        /**
+         * Fracción de las búsquedas que ha resuelto la caché.
+         *
+         * @return Un valor entre 0 y 1, o 0 si no ha habido búsquedas.
+         */
+        public double tasaDeAciertos() {
+            long busquedas = aciertos + fallos;
+            return busquedas == 0 ? 0 : (double) aciertos / busquedas;
+        }
+    }
+
+    /**
+     * Obtiene las estadísticas de la caché de búsquedas por matrícula.
+     *
+     * @return Las estadísticas, o "null" si no se usa caché.
+     */
+    public static EstadisticasCache getEstadisticasCache() {
+        return PRINCIPAL.getEstadisticasCache();
+    }
+
+    /**
+     * Obtiene la capacidad configurada del taller.
+     *
+     * @return Número máximo de vehículos, o SIN_LIMITE.
+     */
+    public static int getVehiculosMaximos() {
+        return PRINCIPAL.getVehiculosMaximos();
+    }
+
+    /**
+     * Obtiene el número de reparaciones que admite cada vehículo.
+     *
+     * @return Número máximo de reparaciones, o SIN_LIMITE.
+     */
+    public static int getReparacionesMaximas() {
+        return PRINCIPAL.getReparacionesMaximas();
     }
 
     /**
      * Obtiene el valor de las variable "reparaciones".
      *
-     * @return la propiedad "reparaciones"
+     * @return una copia de las reparaciones ocupadas de la propiedad
+     * "reparaciones"
      */
     public String[] getReparaciones() {
-        return reparaciones;
+        Lock lectura = sede.getLectura();
+        lectura.lock();
+        try {
+            return Arrays.copyOf(reparaciones, numeroDeReparaciones);
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Devuelve el número de reparaciones que tiene el vehículo del objeto
+     * Taller instanciado.
+     *
+     * @return Número de reparaciones de un vehículo.
+     */
+    public int getNumeroDeReparaciones() {
+        Lock lectura = sede.getLectura();
+        lectura.lock();
+        try {
+            return numeroDeReparaciones;
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Obtiene el vehículo, para los índices del registro.
+     *
+     * @return El vehículo.
+     */
+    Vehiculo getVehiculo() {
+        return vehiculo;
     }
 
     /**
@@ -79,21 +293,15 @@ public class Taller {
      * Se trata de un setter para la propiedad "reparaciones". Como en ningún
      * caso se va a agregar más de una reparación en la misma operación, el
      * parámetro que se pasa en un String y no un array de cadenas. Este String
-     * se agrega en la primera posición libre de la propiedad.
+     * se agrega en la primera posición libre de la propiedad, que duplica su
+     * tamaño (sin pasar del máximo) cuando se llena.
      *
      * @param reparacion Nombre de la reparación.
      * @return Un valor "true" si se ha producido la inserción en el array.
      */
     public boolean setReparacion(String reparacion) {
-        int index = 0;
-        while (index < this.reparaciones.length) {
-            if (this.reparaciones[index] == null) {
-                this.reparaciones[index] = reparacion;
-                return true;
-            }
-            index++;
-        }
-        return false;
+        Sede propia = sede;
+        return propia.modificar(() -> propia.agregarReparacion(this, reparacion));
     }
 
     /* ------------------------------------------ */
@@ -105,7 +313,23 @@ public class Taller {
      * @return "true" si no hay espacio para más reparaciones.
      */
     public boolean estanReparacionesLlenas() {
-        return numeroDeReparaciones() == REPARACIONES_MAXIMAS;
+        Sede propia = sede;
+        Lock lectura = propia.getLectura();
+        lectura.lock();
+        try {
+            return reparacionesLlenas(propia.getReparacionesMaximas());
+        } finally {
+            lectura.unlock();
+        }
+    }
+
+    /**
+     * Informa de cuántos vehículos hay en el registro del taller.
+     *
+     * @return Número de vehículos registrados.
+     */
+    public static int getVehiculosRegistrados() {
+        return PRINCIPAL.getVehiculosRegistrados();
     }
 
     /**
@@ -115,7 +339,7 @@ public class Taller {
      * @return "true" si no hay más espacio.
      */
     public static boolean estaTallerLleno() {
-        return numeroDeVehiculosRegistrados() == VEHICULOS_MAXIMOS;
+        return PRINCIPAL.estaTallerLleno();
     }
 
     /**
@@ -125,14 +349,7 @@ public class Taller {
      * @return "true" si existe.
      */
     public static boolean existeVehiculo(Matricula matricula) {
-        for (Taller t : REGISTRO) {
-            if (t != null
-                    && t.vehiculo.getNumeroMatricula()
-                            .equals(matricula.getNumero())) {
-                return true;
-            }
-        }
-        return false;
+        return PRINCIPAL.existeVehiculo(matricula);
     }
 
     /* --------------------------------------------- */
@@ -146,34 +363,245 @@ public class Taller {
      * @return Un objeto Taller o "null" si no se encuentra nada.
      */
     public static Taller buscarEnRegistroPorMatricula(Matricula matricula) {
-        int index = 0;
-        while (index < REGISTRO.length) {
-            if (REGISTRO[index] != null
-                    && REGISTRO[index].vehiculo.getNumeroMatricula()
-                            .equals(matricula.getNumero())) {
-                return REGISTRO[index];
-            }
-            index++;
-        }
-        return null;
+        return PRINCIPAL.buscarEnRegistroPorMatricula(matricula);
     }
 
     /**
-     * Agrega un vehículo al registro del taller.
+     * Agrega un vehículo al registro de su sede (la principal, si no se ha
+     * registrado en otra).
      *
      * @return Devuelve un valor "true" si la inserción se realiza
      * correctamente.
      */
     public boolean addRegistro() {
-        int index = 0;
-        while (index < REGISTRO.length) {
-            if (REGISTRO[index] == null) {
-                REGISTRO[index] = this;
-                return true;
-            }
-            index++;
+        return sede.addRegistro(this);
+    }
+
+    /**
+     * Crea un vehículo y lo agrega al registro si no estaba ya y si queda
+     * sitio. La comprobación y la inserción se hacen de forma atómica, así
+     * que dos puestos que registren la misma matrícula a la vez no pueden
+     * duplicarla ni pasar de la capacidad del taller.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @return REALIZADO, YA_EXISTE o LLENO.
+     */
+    public static Resultado addIfAbsent(
+            Matricula matricula, String marca, String modelo, String color) {
+        return PRINCIPAL.addIfAbsent(matricula, marca, modelo, color);
+    }
+
+    /**
+     * Agrega un vehículo que llega ahora. Ver addOrEnqueue() con el instante.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera si el taller está lleno.
+     * @return REALIZADO, EN_ESPERA o YA_EXISTE.
+     */
+    public static Resultado addOrEnqueue(Matricula matricula, String marca,
+            String modelo, String color, Urgencia urgencia) {
+        return PRINCIPAL.addOrEnqueue(matricula, marca, modelo, color, urgencia);
+    }
+
+    /**
+     * Agrega un vehículo al registro como addIfAbsent() pero, si el taller
+     * está lleno, lo deja en la cola de espera en lugar de rechazarlo. Cuando
+     * una baja deja sitio, el primero de la cola (el más urgente y, entre los
+     * de la misma urgencia, el que llegó antes) entra solo en el registro y
+     * se avisa a las acciones de alPromover().
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Urgencia con la que espera si el taller está lleno.
+     * @param llegada Cuándo ha llegado.
+     * @return REALIZADO, EN_ESPERA, o YA_EXISTE si ya estaba en el registro
+     * o en la cola.
+     */
+    public static Resultado addOrEnqueue(Matricula matricula, String marca,
+            String modelo, String color, Urgencia urgencia, Instant llegada) {
+        return PRINCIPAL.addOrEnqueue(matricula, marca, modelo, color, urgencia,
+                llegada);
+    }
+
+    /**
+     * Saca un vehículo de la cola de espera sin que llegue a entrar en el
+     * taller.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return "true" si estaba en la cola.
+     */
+    public static boolean cancelarEspera(Matricula matricula) {
+        return PRINCIPAL.cancelarEspera(matricula);
+    }
+
+    /**
+     * Informa si un vehículo está en la cola de espera.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return "true" si espera.
+     */
+    public static boolean estaEnEspera(Matricula matricula) {
+        return PRINCIPAL.estaEnEspera(matricula);
+    }
+
+    /**
+     * Obtiene el número de vehículos en la cola de espera.
+     *
+     * @return Cuántos esperan.
+     */
+    public static int getVehiculosEnEspera() {
+        return PRINCIPAL.getVehiculosEnEspera();
+    }
+
+    /**
+     * Lista la cola de espera.
+     *
+     * @return Los vehículos en el orden en que entrarán en el taller.
+     */
+    public static List<Espera> listarEspera() {
+        return PRINCIPAL.listarEspera();
+    }
+
+    /**
+     * Añade una acción que se ejecuta cada vez que un vehículo pasa de la
+     * cola de espera al registro. Se ejecuta en el hilo que hizo la baja,
+     * después de soltar el cerrojo y de confirmar el cambio en el diario.
+     *
+     * @param accion La acción.
+     */
+    public static void alPromover(Consumer<Espera> accion) {
+        PRINCIPAL.alPromover(accion);
+    }
+
+    /**
+     * Vehículo de la cola de espera.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param urgencia Su urgencia.
+     * @param llegada Cuándo llegó al taller.
+     */
+    public record Espera(Matricula matricula, String marca, String modelo,
+            String color, Urgencia urgencia, Instant llegada) {
+    }
+
+    /**
+     * Añade una acción que recibe los cambios del registro del taller (altas,
+     * reparaciones, actualizaciones y bajas) por lotes, en el orden en que se
+     * hicieron. Ver Sede.suscribir().
+     *
+     * @param accion La acción.
+     * @return La suscripción, que se cierra para dejar de recibirlos.
+     */
+    public static Suscripcion suscribir(Consumer<List<Cambio>> accion) {
+        return PRINCIPAL.suscribir(accion);
+    }
+
+    /**
+     * Cambio del registro de una sede, tal como lo recibe una suscripción
+     * (ver Sede.suscribir()).
+     *
+     * @param numero Número del cambio entre los que ha repartido la sede a
+     * sus suscripciones. Los que recibe una suscripción van seguidos salvo
+     * si se ha quedado atrás y ha perdido alguno (ver
+     * Suscripcion.getPerdidos()).
+     * @param tipo Qué ha cambiado.
+     * @param matricula Matrícula del vehículo.
+     * @param marca Marca del vehículo en las altas y actualizaciones, o
+     * "null".
+     * @param modelo Modelo, como la marca.
+     * @param color Color, como la marca.
+     * @param reparaciones Todas las reparaciones del vehículo en las altas y
+     * actualizaciones, la nueva en las reparaciones, y ninguna en las bajas.
+     */
+    public record Cambio(long numero, Cambio.Tipo tipo, Matricula matricula,
+            String marca, String modelo, String color, List<String> reparaciones) {
+
+        /**
+         * Tipos de cambio.
+         */
+        public enum Tipo {
+            /**
+             * Un vehículo entra en el registro, también desde la cola de
+             * espera o desde otra sede.
+             */
+            ALTA,
+            /**
+             * Se agrega una reparación a un vehículo del registro.
+             */
+            REPARACION,
+            /**
+             * Se sustituyen los datos de un vehículo del registro (ver
+             * updateTallerToRegistro()).
+             */
+            ACTUALIZACION,
+            /**
+             * Un vehículo sale del registro, también hacia otra sede.
+             */
+            BAJA
         }
-        return false;
+    }
+
+    /**
+     * Agrega una reparación a un vehículo del registro si el vehículo existe
+     * y le queda sitio, todo ello de forma atómica.
+     * No se anota en el historial del taller (ver registrarReparacion()).
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Nombre de la reparación.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    public static Resultado appendRepairIfRoom(
+            Matricula matricula, String reparacion) {
+        return PRINCIPAL.appendRepairIfRoom(matricula, reparacion);
+    }
+
+    /**
+     * Anota una reparación hecha ahora. Ver registrarReparacion() con el
+     * instante.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @return REALIZADO, NO_EXISTE o LLENO.
+     */
+    public static Resultado registrarReparacion(Matricula matricula,
+            String reparacion, long coste) {
+        return PRINCIPAL.registrarReparacion(matricula, reparacion, coste);
+    }
+
+    /**
+     * Anota una reparación de un vehículo del registro en el historial del
+     * taller y, si le queda sitio, la agrega también a sus reparaciones, todo
+     * ello de forma atómica. El historial no tiene límite, así que la
+     * reparación queda anotada aunque el vehículo ya tenga el máximo de
+     * reparaciones.
+     *
+     * Las reparaciones que solo se escriben de forma distinta (mayúsculas o
+     * espacios) se cuentan como el mismo tipo en los totales.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @param reparacion Tipo de reparación.
+     * @param coste Coste en céntimos.
+     * @param instante Cuándo se ha hecho.
+     * @return REALIZADO, NO_EXISTE, o LLENO si solo se ha anotado en el
+     * historial porque el vehículo no tiene sitio para más reparaciones.
+     * @throws IllegalArgumentException Si la reparación está en blanco o el
+     * coste es negativo.
+     */
+    public static Resultado registrarReparacion(Matricula matricula,
+            String reparacion, long coste, Instant instante) {
+        return PRINCIPAL.registrarReparacion(matricula, reparacion, coste, instante);
     }
 
     /**
@@ -181,8 +609,7 @@ public class Taller {
      * taller.
      */
     public void updateTallerToRegistro() {
-        int index = obtenerIndiceDelVehiculo();
-        REGISTRO[index] = this;
+        sede.updateTallerToRegistro(this);
     }
 
     /**
@@ -193,126 +620,465 @@ public class Taller {
      * elminacíon. Si el vehículo no existe, devuelve "false".
      */
     public static boolean removeVehiculo(Matricula matricula) {
-        Taller vehiculo = buscarEnRegistroPorMatricula(matricula);
-        if (vehiculo == null) {
-            return false;
-        }
-        int index = vehiculo.obtenerIndiceDelVehiculo();
-        REGISTRO[index] = null;
-        ordenarPosiciones();
-        return true;
+        return PRINCIPAL.removeVehiculo(matricula);
+    }
+
+    /**
+     * Ejecuta un lote de órdenes en el orden en que vienen, como si se
+     * hubiesen ejecutado una a una, pero tomando el cerrojo de escritura una
+     * sola vez y confirmando todos los cambios en el diario con una sola
+     * escritura. Mientras se ejecuta el lote nadie ve los cambios a medias.
+     * Las reparaciones del lote se anotan con el instante en que empieza.
+     *
+     * @param ordenes Las órdenes.
+     * @return El resultado de cada orden, en la misma posición (ver Orden).
+     */
+    public static Resultado[] ejecutar(List<Orden> ordenes) {
+        return PRINCIPAL.ejecutar(ordenes);
+    }
+
+    /**
+     * Busca en el REGISTRO los vehículos que cumplen un filtro por marca,
+     * modelo y color, por ejemplo:
+     * <pre>
+     * Filtro.marca("Seat").y(Filtro.modelo("Ibiza")).y(Filtro.color("Rojo"))
+     * </pre>
+     * El filtro se resuelve con los índices del registro, sin recorrer los
+     * vehículos.
+     *
+     * @param filtro El filtro.
+     * @return Los vehículos que lo cumplen, en el orden del listado.
+     */
+    public static List<Taller> buscarEnRegistroPorFiltro(Filtro filtro) {
+        return PRINCIPAL.buscarEnRegistroPorFiltro(filtro);
+    }
+
+    /**
+     * Cuenta los vehículos del REGISTRO que cumplen un filtro por marca,
+     * modelo y color. Ver buscarEnRegistroPorFiltro().
+     *
+     * @param filtro El filtro.
+     * @return El número de vehículos que lo cumplen.
+     */
+    public static int contarEnRegistro(Filtro filtro) {
+        return PRINCIPAL.contarEnRegistro(filtro);
+    }
+
+    /**
+     * Busca en el REGISTRO los vehículos cuya matrícula encaja en un patrón,
+     * para cuando solo se recuerda parte de ella (ver PatronMatricula). Las
+     * matrículas se recorren en orden saltando directamente a las que pueden
+     * encajar, sin comparar todos los vehículos.
+     *
+     * @param patron El patrón.
+     * @param maximo Número máximo de vehículos a devolver.
+     * @return Los vehículos encontrados, en orden de matrícula.
+     */
+    public static List<Taller> buscarEnRegistroPorPatron(PatronMatricula patron,
+            int maximo) {
+        return PRINCIPAL.buscarEnRegistroPorPatron(patron, maximo);
+    }
+
+    /**
+     * Reparación anotada en el historial del taller.
+     *
+     * @param instante Cuándo se hizo.
+     * @param tipo Tipo de reparación, tal como se escribió la primera vez.
+     * @param coste Coste en céntimos.
+     */
+    public record Intervencion(Instant instante, String tipo, long coste) {
+    }
+
+    /**
+     * Totales de un grupo de reparaciones del historial.
+     *
+     * @param reparaciones Número de reparaciones.
+     * @param coste Coste total en céntimos.
+     */
+    public record Totales(long reparaciones, long coste) {
+    }
+
+    /**
+     * Busca en el historial todas las reparaciones de un vehículo, aunque ya
+     * no esté en el taller.
+     *
+     * @param matricula Matrícula del vehículo.
+     * @return Sus reparaciones, en el orden en que se anotaron.
+     */
+    public static List<Intervencion> historialDe(Matricula matricula) {
+        return PRINCIPAL.historialDe(matricula);
+    }
+
+    /**
+     * Totales del historial por tipo de reparación. Se llevan al día con cada
+     * reparación, así que no se recorre el historial.
+     *
+     * @return Los totales de cada tipo con alguna reparación, en el orden en
+     * que aparecieron los tipos.
+     */
+    public static Map<String, Totales> totalesPorTipo() {
+        return PRINCIPAL.totalesPorTipo();
+    }
+
+    /**
+     * Totales del historial por día, en la zona horaria del sistema. Se
+     * llevan al día con cada reparación, así que no se recorre el historial.
+     *
+     * @param desde Primer día.
+     * @param hasta Último día.
+     * @return Los totales de cada día con alguna reparación, en orden.
+     */
+    public static Map<LocalDate, Totales> totalesPorDia(LocalDate desde,
+            LocalDate hasta) {
+        return PRINCIPAL.totalesPorDia(desde, hasta);
+    }
+
+    /**
+     * Agrega al registro un lote de vehículos nuevos, con el cerrojo de
+     * escritura tomado una sola vez para todo el lote y una sola confirmación
+     * del diario. Cada vehículo se trata como en addIfAbsent().
+     *
+     * @param lote Vehículos a agregar, creados con restaurar().
+     * @param n Número de posiciones ocupadas del lote.
+     * @param resultados Donde se deja el resultado de cada vehículo: REALIZADO,
+     * YA_EXISTE o LLENO.
+     */
+    static void agregarLote(Taller[] lote, int n, Resultado[] resultados) {
+        PRINCIPAL.agregarLote(lote, n, resultados);
+    }
+
+    /**
+     * Recorre una copia de cada vehículo de una foto del registro, sin
+     * cerrojo, en el mismo orden que registroTallerToString(). Ver
+     * Sede.recorrerRegistro().
+     *
+     * @param accion Lo que se hace con cada copia.
+     */
+    static void recorrerRegistro(Consumer<Copia> accion) {
+        PRINCIPAL.recorrerRegistro(accion);
+    }
+
+    /**
+     * Estado del registro en un momento dado, para recorrerlo sin tener el
+     * cerrojo tomado: la instantánea, las posiciones de sus vehículos
+     * vigentes, una copia de los vehículos que están en memoria y el número
+     * máximo de reparaciones que había.
+     */
+    record Captura(Instantanea instantanea, int[] vigentes, Copia[] enMemoria,
+            int reparacionesMaximas) {
+    }
+
+    /**
+     * Captura el estado del registro. Con el cerrojo de lectura solo se
+     * copian las posiciones vigentes y los vehículos en memoria, como al
+     * compactar el diario; la instantánea no cambia y se comparte.
+     *
+     * @return La captura.
+     */
+    static Captura capturarRegistro() {
+        return PRINCIPAL.capturarRegistro();
+    }
+
+    /* ---------------------------------- */
+ /* PERSISTENCIA DEL REGISTRO EN DISCO */
+ /* ---------------------------------- */
+    /**
+     * Abre el diario del taller y recupera el registro. Si hay una
+     * instantánea (el fichero del diario con la extensión ".instantanea") se
+     * proyecta en memoria y solo se reproducen los cambios posteriores. A
+     * partir de ese momento cada modificación del registro se anota en el
+     * diario. Debe llamarse al arrancar, antes de usar el registro.
+     *
+     * @param fichero Ruta del diario. Se crea si no existe.
+     * @return Número de cambios reproducidos.
+     * @throws IOException Si no se puede leer o crear el fichero.
+     * @throws IllegalStateException Si ya hay un diario abierto.
+     */
+    public static long abrirDiario(Path fichero) throws IOException {
+        return PRINCIPAL.abrirDiario(fichero);
+    }
+
+    /**
+     * Escribe en el disco lo que quede pendiente y cierra el diario. Si hay
+     * una compactación en curso, espera a que termine.
+     *
+     * @throws IOException Si falla la escritura.
+     */
+    public static void cerrarDiario() throws IOException {
+        PRINCIPAL.cerrarDiario();
+    }
+
+    /**
+     * Establece cada cuántos cambios se compacta automáticamente el diario.
+     *
+     * @param cambios Número de cambios, o 0 para no compactar nunca de forma
+     * automática.
+     */
+    public static void configurarCompactacion(long cambios) {
+        PRINCIPAL.configurarCompactacion(cambios);
+    }
+
+    /**
+     * Lanza en segundo plano la compactación del diario: se empieza un
+     * segmento nuevo del diario, se escribe una instantánea con el estado del
+     * registro en ese momento y se borran los segmentos anteriores.
+     *
+     * Los lectores no se bloquean en ningún momento. Los escritores solo
+     * esperan mientras se copia el estado de los vehículos que están en
+     * memoria; la escritura del fichero se hace sin ningún cerrojo.
+     *
+     * @return "true" si se ha lanzado, "false" si no hay diario o ya había
+     * una compactación en curso.
+     */
+    public static boolean compactar() {
+        return PRINCIPAL.compactar();
     }
 
     /* ------------------------------ */
  /* METODOS AUXILIARES DE LA CLASE */
  /* ------------------------------ */
     /**
-     * Obtiene el índice en el registro del último espacio ocupado por un
-     * vehículo.
+     * Guarda una reparación en la primera posición libre, sin comprobar si
+     * queda sitio ni anotarla en el diario (ver Sede.agregarReparacion()).
+     * Se debe llamar con el cerrojo de escritura de la sede tomado.
      *
-     * @return Índice del elemento en el array del registro.
+     * @param reparacion Nombre de la reparación.
+     * @param maximas Reparaciones que admite cada vehículo, o SIN_LIMITE.
      */
-    private int obtenerIndiceDelVehiculo() {
-        int index = 0;
-        while (index < REGISTRO.length) {
-            if (REGISTRO[index] == this) {
-                return index;
+    void guardarReparacion(String reparacion, int maximas) {
+        if (this.almacen != null) {
+            this.almacen.agregarReparacion(this.fila, reparacion);
+            return;
+        }
+        if (this.numeroDeReparaciones == this.reparaciones.length) {
+            int capacidad = Math.max(1, this.reparaciones.length * 2);
+            if (maximas != SIN_LIMITE) {
+                capacidad = Math.min(capacidad, maximas);
             }
-            index++;
+            this.reparaciones = Arrays.copyOf(this.reparaciones, capacidad);
         }
-        return -1;
+        this.reparaciones[this.numeroDeReparaciones++] = reparacion;
     }
 
     /**
-     * Cuenta el número de reparaciones que tiene el vehículo del objeto Taller
-     * instanciado.
+     * Copia del estado de un vehículo en un momento dado, para escribirla en
+     * una instantánea sin tener el cerrojo tomado. Las reparaciones se pueden
+     * compartir con el vehículo porque las posiciones ya ocupadas nunca
+     * cambian.
+     */
+    record Copia(int clave, String marca, String modelo, String color,
+            String[] reparaciones, int numero) {
+    }
+
+    /**
+     * Copia el estado de este vehículo. Se debe llamar con el cerrojo tomado.
      *
-     * @return Número de reparaciones de un vehículo.
+     * @return La copia.
      */
-    private int numeroDeReparaciones() {
-        int numeroDeReparaciones = 0;
-        for (Taller t : REGISTRO) {
-            if (t != null && t.vehiculo == this.vehiculo) {
-                for (String reparacion : t.reparaciones) {
-                    if (reparacion != null) {
-                        numeroDeReparaciones++;
-                    }
-                }
-            }
-        }
-        return numeroDeReparaciones;
+    Copia copiar() {
+        return new Copia(this.vehiculo.getClaveMatricula(),
+                this.vehiculo.getMarca(), this.vehiculo.getModelo(),
+                this.vehiculo.getColor(), this.reparaciones,
+                this.numeroDeReparaciones);
     }
 
     /**
-     * Método estático que devuelve el número de vehículos en el REGISTRO.
+     * Crea un objeto con el estado actual de este vehículo para una foto del
+     * registro (ver Registro.Foto), que ya no cambia aunque cambie el
+     * vehículo. Como en copiar(), las reparaciones se comparten. Se debe
+     * llamar con el cerrojo de escritura tomado, y el objeto creado no se
+     * debe modificar ni dejar salir de la sede.
      *
-     * @return Un entero que indica el número de posiciones del array que no son
-     * nulas.
+     * @return El objeto congelado.
      */
-    private static int numeroDeVehiculosRegistrados() {
-        int numeroDeVehiculos = 0;
-        for (Taller t : REGISTRO) {
-            if (t != null) {
-                numeroDeVehiculos++;
-            }
-        }
-        return numeroDeVehiculos;
+    Taller congelar() {
+        Taller congelado = new Taller();
+        congelado.vehiculo = this.vehiculo;
+        congelado.reparaciones = this.reparaciones;
+        congelado.numeroDeReparaciones = this.numeroDeReparaciones;
+        congelado.sede = this.sede;
+        return congelado;
     }
 
     /**
-     * Ordena las posiciones del registro conforme indica el enunciado, de forma
-     * que si existen posiciones nulas se ubicarán siempre al final del array.
+     * Crea otro objeto con el mismo vehículo y las mismas reparaciones, para
+     * entregar una copia de un vehículo de la caché del registro (ver
+     * CacheDeVehiculos). El array de reparaciones solo se comparte si está
+     * lleno: así la primera reparación que se agregue a cualquiera de los
+     * dos lo sustituye por uno nuevo, sin modificar el del otro.
+     *
+     * @return El objeto nuevo.
      */
-    private static void ordenarPosiciones() {
-        for (int i = 1; i < REGISTRO.length; i++) {
-            if (REGISTRO[i - 1] == null && REGISTRO[i] != null) {
-                REGISTRO[i - 1] = REGISTRO[i];
-                REGISTRO[i] = null;
-            }
+    Taller clonar() {
+        Taller clon = new Taller();
+        clon.vehiculo = this.vehiculo;
+        clon.reparaciones = this.numeroDeReparaciones == this.reparaciones.length
+                ? this.reparaciones
+                : Arrays.copyOf(this.reparaciones, this.numeroDeReparaciones);
+        clon.numeroDeReparaciones = this.numeroDeReparaciones;
+        clon.sede = this.sede;
+        return clon;
+    }
+
+    /**
+     * Anota en un diario el alta o la actualización de este vehículo con sus
+     * reparaciones. Se debe llamar con el cerrojo de escritura tomado.
+     *
+     * @param diario El diario de la sede.
+     * @param tipo Diario.ALTA o Diario.ACTUALIZACION.
+     * @return Número de secuencia del cambio en el diario.
+     */
+    long anotarEn(Diario diario, byte tipo) {
+        return diario.agregarVehiculo(tipo,
+                this.vehiculo.getClaveMatricula(), this.vehiculo.getMarca(),
+                this.vehiculo.getModelo(), this.vehiculo.getColor(),
+                this.reparaciones, this.numeroDeReparaciones);
+    }
+
+    /**
+     * Anota en el anillo de cambios de la sede el alta o la actualización de
+     * este vehículo con sus reparaciones, que se comparten como en copiar().
+     * Se debe llamar con el cerrojo de escritura tomado.
+     *
+     * @param anillo El anillo de la sede.
+     * @param tipo ALTA o ACTUALIZACION.
+     */
+    void anotarEn(AnilloDeCambios anillo, Cambio.Tipo tipo) {
+        anillo.vehiculo(tipo, this.vehiculo, this.reparaciones,
+                this.numeroDeReparaciones);
+    }
+
+    /**
+     * Clave de la matrícula del vehículo, también si es una vista de una
+     * fila del almacén.
+     *
+     * @return La clave.
+     */
+    int getClave() {
+        return this.almacen != null
+                ? this.almacen.clave(this.fila)
+                : this.vehiculo.getClaveMatricula();
+    }
+
+    /**
+     * Informa si el objeto es una vista de una fila del almacén fuera del
+     * montículo, es decir, si sus datos son los del registro.
+     *
+     * @return "true" si es una vista.
+     */
+    boolean esVista() {
+        return this.almacen != null;
+    }
+
+    /**
+     * Crea un objeto Taller con los datos recuperados del diario o de una
+     * instantánea, sin tener en cuenta la capacidad configurada.
+     *
+     * @param clave Clave de la matrícula.
+     * @param marca Marca del vehículo.
+     * @param modelo Modelo del vehículo.
+     * @param color Color del vehículo.
+     * @param reparaciones Reparaciones del vehículo.
+     * @return El objeto Taller.
+     */
+    static Taller restaurar(int clave, String marca, String modelo,
+            String color, String[] reparaciones) {
+        Taller taller = new Taller();
+        taller.setVehiculo(Matricula.fromKey(clave), marca, modelo, color);
+        if (reparaciones.length > 0) {
+            taller.reparaciones = reparaciones;
+            taller.numeroDeReparaciones = reparaciones.length;
         }
+        return taller;
+    }
+
+    /**
+     * Crea una vista de una fila del almacén fuera del montículo.
+     *
+     * @param almacen El almacén.
+     * @param fila Número de fila.
+     * @return La vista.
+     */
+    static Taller vista(AlmacenDirecto almacen, int fila) {
+        Taller taller = new Taller();
+        taller.almacen = almacen;
+        taller.fila = fila;
+        return taller;
+    }
+
+    /**
+     * Comprueba sin tomar el cerrojo si no hay espacio para más reparaciones.
+     *
+     * @param maximas Reparaciones que admite cada vehículo, o SIN_LIMITE.
+     * @return "true" si no hay espacio para más reparaciones.
+     */
+    boolean reparacionesLlenas(int maximas) {
+        int numero = this.almacen != null
+                ? this.almacen.numeroDeReparaciones(this.fila)
+                : this.numeroDeReparaciones;
+        return maximas != SIN_LIMITE && numero >= maximas;
     }
 
     /* ----------------------------------------- */
  /* METODOS toString PARA MOSTRAR INFORMACION */
  /* ----------------------------------------- */
     /**
-     * Crea una cadena con información sobre todos los vehículos del REGISTRO y
-     * sus reparaciones.
+     * Crea una cadena con información sobre todos los vehículos del registro
+     * de la sede de este vehículo y sus reparaciones. Con registros grandes
+     * es mejor usar escribirRegistro() o listar(), que no construyen la
+     * cadena entera.
      *
      * @return Un String con la información.
      */
     public String registroTallerToString() {
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < REGISTRO.length; i++) {
-            if (REGISTRO[i] != null) {
-                sb.append("\nVehículo ")
-                        .append(i + 1)
-                        .append(" en el taller:\n")
-                        .append(REGISTRO[i].toString());
-            }
+        try {
+            sede.escribirRegistro(sb);
+        } catch (IOException e) {
+            // Un StringBuilder no lanza IOException
+            throw new UncheckedIOException(e);
         }
         return sb.toString();
     }
 
     /**
-     * Crea una cadena con información sobre todas las reparaciones.
+     * Escribe la información de todos los vehículos del REGISTRO, con el
+     * mismo formato que registroTallerToString(), directamente en un destino
+     * (la consola, un fichero...) sin construir una cadena con todo. Se
+     * escribe la última foto del registro (ver Sede.Listado), así que el
+     * listado es coherente y las modificaciones no esperan mientras tanto.
      *
-     * @return Un String con la información.
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
      */
-    private String reparacionesToString() {
-        StringBuilder sb = new StringBuilder();
-        if (this.reparaciones[0] == null) {
-            sb.append("Este vehículo no tiene reparaciones\n");
-        } else {
-            sb.append("Reparaciones:\n");
-            for (int i = 0; i < numeroDeReparaciones(); i++) {
-                sb.append(String.format("""
-                        Reparación %d: %s
-                      """,
-                        i + 1, this.reparaciones[i]));
-            }
+    public static void escribirRegistro(Appendable destino) throws IOException {
+        PRINCIPAL.escribirRegistro(destino);
+    }
+
+    /**
+     * Empieza un listado del REGISTRO por páginas. Ver Sede.Listado.
+     *
+     * @return El listado, situado al principio.
+     */
+    public static Sede.Listado listar() {
+        return PRINCIPAL.listar();
+    }
+
+    /**
+     * Escribe la información de este vehículo y sus reparaciones, con el mismo
+     * formato que toString(), directamente en un destino.
+     *
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
+     */
+    public void escribir(Appendable destino) throws IOException {
+        Lock lectura = sede.getLectura();
+        lectura.lock();
+        try {
+            escribirSinCerrojo(destino);
+        } finally {
+            lectura.unlock();
         }
-        return sb.toString();
     }
 
     /**
@@ -323,19 +1089,79 @@ public class Taller {
      */
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("""
-                                Matrícula: %s
-                                Marca: %s
-                                Modelo: %s
-                                Color: %s
-                             """,
-                this.vehiculo.getNumeroMatricula(),
-                this.vehiculo.getMarca(),
-                this.vehiculo.getModelo(),
-                this.vehiculo.getColor()));
-        sb.append(reparacionesToString());
+        StringBuilder sb = new StringBuilder(128);
+        try {
+            escribir(sb);
+        } catch (IOException e) {
+            // Un StringBuilder no lanza IOException
+            throw new UncheckedIOException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Escribe el vehículo como una entrada del listado del registro, con su
+     * número delante. Se debe llamar con el cerrojo tomado, salvo si el
+     * objeto es de una foto del registro (ver congelar()).
+     *
+     * @param destino Donde se escribe.
+     * @param numero Número del vehículo en el listado.
+     * @throws IOException Si falla la escritura.
+     */
+    void escribirEnListado(Appendable destino, int numero) throws IOException {
+        destino.append(ENCABEZADO_LISTADO[0]);
+        escribirNumero(destino, numero);
+        destino.append(ENCABEZADO_LISTADO[1]);
+        escribirSinCerrojo(destino);
+    }
+
+    /**
+     * Escribe el vehículo y sus reparaciones rellenando las plantillas. Se
+     * debe llamar con el cerrojo tomado.
+     *
+     * @param destino Donde se escribe.
+     * @throws IOException Si falla la escritura.
+     */
+    private void escribirSinCerrojo(Appendable destino) throws IOException {
+        destino.append(PLANTILLA_VEHICULO[0])
+                .append(this.vehiculo.getNumeroMatricula())
+                .append(PLANTILLA_VEHICULO[1])
+                .append(this.vehiculo.getMarca())
+                .append(PLANTILLA_VEHICULO[2])
+                .append(this.vehiculo.getModelo())
+                .append(PLANTILLA_VEHICULO[3])
+                .append(this.vehiculo.getColor())
+                .append(PLANTILLA_VEHICULO[4]);
+        if (this.numeroDeReparaciones == 0) {
+            destino.append(SIN_REPARACIONES_TEXTO);
+        } else {
+            destino.append(CABECERA_REPARACIONES);
+            for (int i = 0; i < this.numeroDeReparaciones; i++) {
+                destino.append(PLANTILLA_REPARACION[0]);
+                escribirNumero(destino, i + 1);
+                destino.append(PLANTILLA_REPARACION[1])
+                        .append(this.reparaciones[i])
+                        .append(PLANTILLA_REPARACION[2]);
+            }
+        }
+    }
+
+    /**
+     * Escribe un número positivo cifra a cifra, sin crear un String.
+     *
+     * @param destino Donde se escribe.
+     * @param numero Número a escribir.
+     * @throws IOException Si falla la escritura.
+     */
+    private static void escribirNumero(Appendable destino, int numero)
+            throws IOException {
+        int divisor = 1;
+        while (numero / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            destino.append((char) ('0' + numero / divisor % 10));
+        }
+    }
+
 }
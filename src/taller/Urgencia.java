@@ -0,0 +1,23 @@
+package taller;
+
+/**
+ * Urgencia de un vehículo que espera sitio en el taller (ver
+ * Taller.addOrEnqueue()). Cuando queda un hueco entra el más urgente y, entre
+ * los de la misma urgencia, el que llegó antes.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public enum Urgencia {
+    /**
+     * Entra por orden de llegada.
+     */
+    NORMAL,
+    /**
+     * Entra antes que los normales.
+     */
+    PREFERENTE,
+    /**
+     * Entra antes que todos los demás.
+     */
+    URGENTE
+}
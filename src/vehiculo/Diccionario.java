@@ -0,0 +1,183 @@
+package vehiculo;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Diccionario de los textos de un atributo de los vehículos (marca, modelo o
+ * color). En un taller grande hay unos pocos cientos de valores distintos
+ * repetidos miles de veces, así que cada vehículo guarda solo el código de
+ * su valor, y el texto se guarda una única vez aquí.
+ *
+ * TIPOS_REPARACION es el catálogo de tipos de reparación del historial del
+ * taller, que agrupa las reparaciones que solo se escriben de forma
+ * distinta, para poder sumarlas por tipo. Los textos de las reparaciones de
+ * cada vehículo no están en ningún diccionario: son libres, casi todos
+ * distintos, y un diccionario no suelta nunca ningún texto.
+ *
+ * Los textos que solo se diferencian en mayúsculas o en espacios reciben el
+ * mismo código, y se devuelven siempre como se escribieron la primera vez
+ * (sin los espacios de los extremos ni los repetidos). Los códigos empiezan
+ * en 0 y no cambian nunca.
+ *
+ * Los vehículos se crean fuera del cerrojo del taller, así que los métodos se
+ * pueden llamar desde varios hilos a la vez.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class Diccionario {
+
+    /**
+     * Diccionario de las marcas.
+     */
+    public static final Diccionario MARCAS = new Diccionario();
+    /**
+     * Diccionario de los modelos.
+     */
+    public static final Diccionario MODELOS = new Diccionario();
+    /**
+     * Diccionario de los colores.
+     */
+    public static final Diccionario COLORES = new Diccionario();
+    /**
+     * Catálogo de los tipos de reparación.
+     */
+    public static final Diccionario TIPOS_REPARACION = new Diccionario();
+
+    /**
+     * Número máximo de textos tal como llegan que se recuerdan (ver
+     * exactos). Las formas de escribir un mismo valor no tienen límite, así
+     * que pasado este número las nuevas se normalizan cada vez.
+     */
+    private static final int EXACTOS_MAXIMOS = 4096;
+    /**
+     * Código de cada texto normalizado.
+     */
+    private final Map<String, Integer> codigos = new ConcurrentHashMap<>();
+    /**
+     * Código de cada texto tal como llega, hasta EXACTOS_MAXIMOS. Casi todos
+     * los textos se repiten igual, así que se evita normalizarlos (y crear
+     * una cadena nueva) cada vez.
+     */
+    private final Map<String, Integer> exactos = new ConcurrentHashMap<>();
+    /**
+     * Texto canónico de cada código. Solo se sustituye el array entero, al
+     * crecer, y siempre antes de publicar los códigos nuevos.
+     */
+    private volatile String[] textos = new String[64];
+
+    /**
+     * Constructor privado: hay un diccionario por atributo.
+     */
+    private Diccionario() {
+    }
+
+    /**
+     * Obtiene el código de un texto, asignándole el siguiente si es nuevo.
+     *
+     * @param texto El texto.
+     * @return El código, o -1 si el texto es "null".
+     */
+    public int codigo(String texto) {
+        if (texto == null) {
+            return -1;
+        }
+        Integer codigo = exactos.get(texto);
+        if (codigo == null) {
+            codigo = codigos.get(normalizar(texto));
+            if (codigo == null) {
+                codigo = nuevo(texto);
+            }
+            if (exactos.size() < EXACTOS_MAXIMOS) {
+                exactos.put(texto, codigo);
+            }
+        }
+        return codigo;
+    }
+
+    /**
+     * Busca el código de un texto sin agregarlo.
+     *
+     * @param texto El texto.
+     * @return El código, o -1 si el texto no está en el diccionario.
+     */
+    public int buscar(String texto) {
+        if (texto == null) {
+            return -1;
+        }
+        Integer codigo = exactos.get(texto);
+        if (codigo == null) {
+            codigo = codigos.get(normalizar(texto));
+        }
+        return codigo == null ? -1 : codigo;
+    }
+
+    /**
+     * Obtiene el texto canónico de un código.
+     *
+     * @param codigo Código obtenido con codigo().
+     * @return El texto, o "null" si el código es -1.
+     */
+    public String texto(int codigo) {
+        return codigo < 0 ? null : textos[codigo];
+    }
+
+    /**
+     * Número de textos distintos del diccionario.
+     *
+     * @return El número de códigos asignados.
+     */
+    public int tamano() {
+        return codigos.size();
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Asigna un código a un texto nuevo. Otro hilo puede haberse adelantado
+     * con el mismo texto, así que se vuelve a comprobar.
+     */
+    private synchronized int nuevo(String texto) {
+        String normalizado = normalizar(texto);
+        Integer existente = codigos.get(normalizado);
+        if (existente != null) {
+            return existente;
+        }
+        int codigo = codigos.size();
+        String[] actuales = textos;
+        if (codigo == actuales.length) {
+            actuales = Arrays.copyOf(actuales, codigo * 2);
+        }
+        actuales[codigo] = espacios(texto);
+        textos = actuales;
+        codigos.put(normalizado, codigo);
+        return codigo;
+    }
+
+    /**
+     * Forma en la que se comparan los textos: sin distinguir mayúsculas y con
+     * los espacios arreglados.
+     */
+    private static String normalizar(String texto) {
+        return espacios(texto).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Quita los espacios de los extremos y deja uno solo donde haya varios
+     * seguidos.
+     */
+    private static String espacios(String texto) {
+        String recortado = texto.strip();
+        for (int i = 1; i < recortado.length(); i++) {
+            if (Character.isWhitespace(recortado.charAt(i))
+                    && (recortado.charAt(i) != ' '
+                    || Character.isWhitespace(recortado.charAt(i - 1)))) {
+                return recortado.replaceAll("\\s+", " ");
+            }
+        }
+        return recortado;
+    }
+}
@@ -1,64 +1,187 @@
 package vehiculo;
 
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 /**
  * Esta clase es para instanciar un objeto que usaremos en la clase Vehiculo como
  * tipo de una propiedad.
  * Creamos así una propiedad validada para su uso en esa clase.
  * 
+ * Internamente la matrícula no se guarda como un String sino como una clave
+ * entera empaquetada: los cuatro números y las tres consonantes se codifican
+ * en base mixta (10 x 10 x 10 x 10 x 21 x 21 x 21), de forma que cualquier
+ * matrícula válida cabe en 27 bits. Así las búsquedas en el taller pueden
+ * comparar enteros en vez de cadenas.
+ * 
  * @author Gabriel Cubillos Rodríguez
  */
 public class Matricula {
     /**
-     * Expresión regular para filtrar los String que pretendan pasar por
-     * matrículas, según las indicaciones del enunciado.
+     * Consonantes admitidas en una matrícula, según las indicaciones del
+     * enunciado (alfabeto inglés, sin vocales). Su posición en esta cadena es
+     * el valor que se guarda en la clave.
+     */
+    private static final String CONSONANTES = "BCDFGHJKLMNPQRSTVWXYZ";
+    /**
+     * Número de consonantes distintas: la base de cada letra en la clave.
+     */
+    private static final int BASE_LETRAS = CONSONANTES.length();
+    /**
+     * Número de combinaciones de tres letras: lo que ocupa en la clave cada
+     * número de matrícula.
+     */
+    private static final int COMBINACIONES_LETRAS
+            = BASE_LETRAS * BASE_LETRAS * BASE_LETRAS;
+    /**
+     * Valor máximo (exclusivo) que puede tomar una clave.
      */
-    private final String REGEX_MATRICULA = "^[0-9]{4}[B-DF-HJ-NP-TV-Z]{3}$";
+    public static final int CLAVES_POSIBLES = 10000 * COMBINACIONES_LETRAS;
     /**
-     * El número (número y letras, se entiende) de matrícula.
+     * Tabla para traducir una letra de la 'A' a la 'Z' a su posición en
+     * CONSONANTES, o -1 si no es una consonante válida. Evitamos así compilar
+     * una expresión regular cada vez que se valida una matrícula.
      */
-    private String numero;
+    private static final byte[] VALOR_LETRA = new byte[26];
+
+    static {
+        Arrays.fill(VALOR_LETRA, (byte) -1);
+        for (int i = 0; i < BASE_LETRAS; i++) {
+            VALOR_LETRA[CONSONANTES.charAt(i) - 'A'] = (byte) i;
+        }
+    }
+
+    /**
+     * La clave empaquetada que representa el número (número y letras, se
+     * entiende) de matrícula.
+     */
+    private final int clave;
 
     /**
      * El constructor del objeto matrícula.
      * 
      * @param matriculaString Una cadena con el número de matricula
      * @throws IllegalArgumentException Se lanza esta excepción si el String
-     * que se pasa por argumento no se corresponde con el patrón regex de la
+     * que se pasa por argumento no se corresponde con el formato de la
      * matrícula.
      */
     public Matricula(String matriculaString)
             throws IllegalArgumentException {
-        if (this.esValida(matriculaString)) {
-            this.numero = matriculaString;
-        } else {
+        int codigo = codificar(matriculaString);
+        if (codigo < 0) {
             throw new IllegalArgumentException();
         }
+        this.clave = codigo;
+    }
+
+    /**
+     * Constructor privado a partir de una clave ya validada.
+     * 
+     * @param clave Clave empaquetada de la matrícula.
+     */
+    private Matricula(int clave) {
+        this.clave = clave;
+    }
+
+    /**
+     * Reconstruye una matrícula a partir de su clave empaquetada.
+     * 
+     * @param clave Clave obtenida con toKey().
+     * @return La matrícula correspondiente.
+     * @throws IllegalArgumentException Si la clave está fuera del rango de
+     * matrículas posibles.
+     */
+    public static Matricula fromKey(int clave) {
+        if (clave < 0 || clave >= CLAVES_POSIBLES) {
+            throw new IllegalArgumentException();
+        }
+        return new Matricula(clave);
+    }
+
+    /**
+     * Obtiene la clave empaquetada de la matrícula.
+     * 
+     * @return Un entero entre 0 y CLAVES_POSIBLES (exclusivo).
+     */
+    public int toKey() {
+        return clave;
     }
 
     /**
      * Obteiene el número de matrícula.
      * 
-     * @return el valor de la propiedad "numero".
+     * @return el número de matrícula, reconstruido a partir de la clave.
      */
     public String getNumero() {
-        return numero;
+        char[] texto = new char[7];
+        int letras = clave % COMBINACIONES_LETRAS;
+        int numeros = clave / COMBINACIONES_LETRAS;
+        for (int i = 3; i >= 0; i--) {
+            texto[i] = (char) ('0' + numeros % 10);
+            numeros /= 10;
+        }
+        for (int i = 6; i >= 4; i--) {
+            texto[i] = CONSONANTES.charAt(letras % BASE_LETRAS);
+            letras /= BASE_LETRAS;
+        }
+        return new String(texto);
     }
 
     /**
-     * Un método auxiliar para comprobar si una cadena se corresponde con
-     * la expresión regular para la matrícula.
+     * Un método auxiliar que comprueba si una cadena tiene el formato de una
+     * matrícula (cuatro números seguidos de tres consonantes) y, si lo tiene,
+     * la codifica como clave.
      * 
      * @param texto Texto que se pone a prueba.
-     * @return "true" si la cadena es un valor válido para ser una matrícula.
+     * @return La clave de la matrícula, o -1 si la cadena no es un valor
+     * válido para ser una matrícula.
+     */
+    private static int codificar(String texto) {
+        if (texto == null || texto.length() != 7) {
+            return -1;
+        }
+        int numeros = 0;
+        for (int i = 0; i < 4; i++) {
+            char c = texto.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            numeros = numeros * 10 + (c - '0');
+        }
+        int letras = 0;
+        for (int i = 4; i < 7; i++) {
+            char c = texto.charAt(i);
+            if (c < 'A' || c > 'Z' || VALOR_LETRA[c - 'A'] < 0) {
+                return -1;
+            }
+            letras = letras * BASE_LETRAS + VALOR_LETRA[c - 'A'];
+        }
+        return numeros * COMBINACIONES_LETRAS + letras;
+    }
+
+    /**
+     * Valor que toma en la clave un carácter de la matrícula.
+     *
+     * @param posicion Posición del carácter (de 0 a 6).
+     * @param c El carácter.
+     * @return El número (de 0 a 9) o la posición de la consonante en
+     * CONSONANTES, o -1 si el carácter no vale en esa posición.
      */
-    private boolean esValida(String texto) {
-        Pattern regex = Pattern.compile(REGEX_MATRICULA);
-        Matcher m = regex.matcher(texto);
-        return m.matches();
+    static int valorCaracter(int posicion, char c) {
+        if (posicion < 4) {
+            return c >= '0' && c <= '9' ? c - '0' : -1;
+        }
+        return c >= 'A' && c <= 'Z' ? VALOR_LETRA[c - 'A'] : -1;
+    }
+
+    /**
+     * Carácter de la matrícula que corresponde a un valor de la clave.
+     *
+     * @param posicion Posición del carácter (de 0 a 6).
+     * @param valor Valor obtenido con valorCaracter().
+     * @return El carácter.
+     */
+    static char caracter(int posicion, int valor) {
+        return posicion < 4 ? (char) ('0' + valor) : CONSONANTES.charAt(valor);
     }
 
     /**
@@ -70,8 +193,7 @@ public class Matricula {
      */
     @Override
     public int hashCode() {
-        int hash = 7;
-        return hash * this.numero.hashCode();
+        return this.clave;
     }
 
     /**
@@ -93,8 +215,7 @@ public class Matricula {
             return false;
         }
         final Matricula other = (Matricula) obj;
-        return Objects.equals(this.numero, other.numero);
+        return this.clave == other.clave;
     }
-    
-    
+
 }
@@ -0,0 +1,163 @@
+package vehiculo;
+
+/**
+ * Patrón para buscar matrículas de las que solo se conoce una parte. Cada
+ * carácter del patrón es un carácter fijo de la matrícula o '?', que vale por
+ * cualquiera. Un '*' (como mucho uno) vale por todos los caracteres que
+ * falten hasta los siete, así que sirve para buscar por el principio o por el
+ * final:
+ * <ul>
+ * <li>"12??B?D": empieza por 12, la primera letra es B y la última D.</li>
+ * <li>"12*": empieza por 12.</li>
+ * <li>"*BCD": termina en BCD.</li>
+ * </ul>
+ *
+ * Como las claves de Matricula ordenan las matrículas igual que su texto, los
+ * caracteres fijos del principio del patrón acotan un intervalo de claves, y
+ * siguiente() permite saltar directamente de una clave a la siguiente que
+ * encaja sin probar las de en medio.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public final class PatronMatricula {
+
+    /**
+     * Caracteres de una matrícula.
+     */
+    private static final int LONGITUD = 7;
+    /**
+     * Valores posibles de cada carácter.
+     */
+    private static final int[] BASE = {10, 10, 10, 10, 21, 21, 21};
+    /**
+     * Lo que vale en la clave una unidad de cada carácter.
+     */
+    private static final int[] PESO = new int[LONGITUD];
+
+    static {
+        int peso = 1;
+        for (int i = LONGITUD - 1; i >= 0; i--) {
+            PESO[i] = peso;
+            peso *= BASE[i];
+        }
+    }
+
+    /**
+     * Valor de cada carácter fijo, o -1 si el carácter es libre.
+     */
+    private final int[] fijo = new int[LONGITUD];
+
+    /**
+     * Constructor del patrón. Las letras se admiten también en minúscula.
+     *
+     * @param patron El patrón, por ejemplo "12??B?D", "12*" o "*BCD".
+     * @throws IllegalArgumentException Si el patrón no puede encajar con
+     * ninguna matrícula: sobran o faltan caracteres, hay más de un '*' o un
+     * carácter no vale en su posición.
+     */
+    public PatronMatricula(String patron) throws IllegalArgumentException {
+        if (patron == null) {
+            throw new IllegalArgumentException("El patrón no puede ser null");
+        }
+        String texto = patron.strip().toUpperCase();
+        int asterisco = texto.indexOf('*');
+        if (asterisco >= 0) {
+            if (texto.indexOf('*', asterisco + 1) >= 0 || texto.length() > LONGITUD + 1) {
+                throw new IllegalArgumentException("Patrón no válido: " + patron);
+            }
+            texto = texto.substring(0, asterisco)
+                    + "?".repeat(LONGITUD + 1 - texto.length())
+                    + texto.substring(asterisco + 1);
+        }
+        if (texto.length() != LONGITUD) {
+            throw new IllegalArgumentException("Patrón no válido: " + patron);
+        }
+        for (int i = 0; i < LONGITUD; i++) {
+            char c = texto.charAt(i);
+            fijo[i] = c == '?' ? -1 : Matricula.valorCaracter(i, c);
+            if (c != '?' && fijo[i] < 0) {
+                throw new IllegalArgumentException("Patrón no válido: " + patron);
+            }
+        }
+    }
+
+    /**
+     * Informa si una matrícula encaja en el patrón.
+     *
+     * @param clave Clave de la matrícula, obtenida con Matricula.toKey().
+     * @return "true" si encaja.
+     */
+    public boolean encaja(int clave) {
+        for (int i = 0; i < LONGITUD; i++) {
+            if (fijo[i] >= 0 && clave / PESO[i] % BASE[i] != fijo[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Busca la menor clave que encaja en el patrón a partir de una dada.
+     *
+     * @param desde Clave desde la que se busca (incluida).
+     * @return La clave encontrada, o -1 si no hay ninguna.
+     */
+    public int siguiente(int desde) {
+        if (desde >= Matricula.CLAVES_POSIBLES) {
+            return -1;
+        }
+        int[] valor = new int[LONGITUD];
+        for (int i = 0; i < LONGITUD; i++) {
+            valor[i] = Math.max(desde, 0) / PESO[i] % BASE[i];
+        }
+        for (int i = 0; i < LONGITUD; i++) {
+            if (fijo[i] < 0 || valor[i] == fijo[i]) {
+                continue;
+            }
+            if (valor[i] < fijo[i]) {
+                // Basta con poner el carácter fijo y lo más bajo detrás
+                valor[i] = fijo[i];
+                return componer(valor, i + 1);
+            }
+            // Hay que subir el carácter libre más cercano que se pueda
+            for (int j = i - 1; j >= 0; j--) {
+                if (fijo[j] < 0 && valor[j] < BASE[j] - 1) {
+                    valor[j]++;
+                    return componer(valor, j + 1);
+                }
+            }
+            return -1;
+        }
+        return Math.max(desde, 0);
+    }
+
+    /**
+     * Crea una cadena con el patrón completo, sin '*'.
+     *
+     * @return Por ejemplo: 12??B?D
+     */
+    @Override
+    public String toString() {
+        char[] texto = new char[LONGITUD];
+        for (int i = 0; i < LONGITUD; i++) {
+            texto[i] = fijo[i] < 0 ? '?' : Matricula.caracter(i, fijo[i]);
+        }
+        return new String(texto);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Calcula la clave de unos valores, poniendo a partir de una posición el
+     * menor valor que encaja en cada carácter.
+     */
+    private int componer(int[] valor, int desde) {
+        int clave = 0;
+        for (int i = 0; i < LONGITUD; i++) {
+            int v = i < desde ? valor[i] : Math.max(fijo[i], 0);
+            clave += v * PESO[i];
+        }
+        return clave;
+    }
+}
@@ -1,19 +1,23 @@
 package vehiculo;
 
-import java.util.Objects;
-
 /**
  * Clase para el POJO vehículo
  * 
+ * Para que cada vehículo ocupe poco en un taller grande, la matrícula se
+ * guarda como su clave entera, y la marca, el modelo y el color como códigos
+ * de los diccionarios de Diccionario. Los getters devuelven los textos
+ * canónicos, así que "SEAT" y "Seat " se devuelven igual que el primero que
+ * se registró de los dos.
+ * 
  * @author Gabriel Cubillos Rodríguez
  */
 public class Vehiculo {
 
     // Propiedades de instancia
-    private Matricula matricula;
-    private String marca;
-    private String modelo;
-    private String color;
+    private final int claveMatricula;
+    private final int marca;
+    private final int modelo;
+    private final int color;
 
     /**
      * Constructor del vehículo, empleando todos sus atributos.
@@ -25,23 +29,50 @@ public class Vehiculo {
      */
     public Vehiculo(
             Matricula matricula, String marca, String modelo, String color) {
-        this.matricula = matricula;
-        this.marca = marca;
-        this.modelo = modelo;
-        this.color = color;
+        this.claveMatricula = matricula.toKey();
+        this.marca = Diccionario.MARCAS.codigo(marca);
+        this.modelo = Diccionario.MODELOS.codigo(modelo);
+        this.color = Diccionario.COLORES.codigo(color);
     }
 
     // Getters
     
     public String getMarca() {
-        return marca;
+        return Diccionario.MARCAS.texto(marca);
     }
 
     public String getModelo() {
-        return modelo;
+        return Diccionario.MODELOS.texto(modelo);
     }
 
     public String getColor() {
+        return Diccionario.COLORES.texto(color);
+    }
+
+    /**
+     * Código de la marca en Diccionario.MARCAS.
+     * 
+     * @return El código, o -1 si no tiene marca.
+     */
+    public int getCodigoMarca() {
+        return marca;
+    }
+
+    /**
+     * Código del modelo en Diccionario.MODELOS.
+     * 
+     * @return El código, o -1 si no tiene modelo.
+     */
+    public int getCodigoModelo() {
+        return modelo;
+    }
+
+    /**
+     * Código del color en Diccionario.COLORES.
+     * 
+     * @return El código, o -1 si no tiene color.
+     */
+    public int getCodigoColor() {
         return color;
     }
 
@@ -53,7 +84,17 @@ public class Vehiculo {
      * @return 
      */
     public String getNumeroMatricula() {
-        return matricula.getNumero();
+        return Matricula.fromKey(claveMatricula).getNumero();
+    }
+
+    /**
+     * Devuelve la clave entera de la matrícula, que es la que se usa para
+     * indexar y comparar vehículos sin construir ningún String.
+     * 
+     * @return La clave empaquetada de la matrícula.
+     */
+    public int getClaveMatricula() {
+        return claveMatricula;
     }
 
     /**
@@ -66,7 +107,7 @@ public class Vehiculo {
     @Override
     public int hashCode() {
         int hash = 7;
-        return hash * this.matricula.hashCode();
+        return hash * this.claveMatricula;
     }
 
     /**
@@ -88,7 +129,7 @@ public class Vehiculo {
             return false;
         }
         final Vehiculo other = (Vehiculo) obj;
-        return Objects.equals(this.matricula, other.matricula);
+        return this.claveMatricula == other.claveMatricula;
     }
 
 }
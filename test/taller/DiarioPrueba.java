@@ -0,0 +1,425 @@
+package taller;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import vehiculo.Matricula;
+
+/**
+ * Pruebas del diario y la instantánea de una sede: que lo que se confirma se
+ * recupera al volver a abrir, también después de compactar, que un final
+ * de diario a medio escribir se descarta y que un diario dañado de otra
+ * forma no se trunca nunca.
+ *
+ * El proyecto no usa ninguna biblioteca de pruebas: cada prueba es un método
+ * que lanza AssertionError si falla, y main() las ejecuta todas y termina con
+ * código de salida 1 si alguna falla. Se ejecuta con "ant pruebas".
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class DiarioPrueba {
+
+    private static final String[] REPARACIONES = {"Frenos", "Aceite", "Embrague"};
+
+    /**
+     * Carpeta temporal de la prueba en curso.
+     */
+    private Path carpeta;
+
+    /**
+     * @param args No se usan.
+     * @throws Exception si falla la preparación de alguna prueba.
+     */
+    public static void main(String[] args) throws Exception {
+        DiarioPrueba pruebas = new DiarioPrueba();
+        List<String> fallidas = new ArrayList<>();
+        String[] nombres = {"recuperaLoConfirmado", "recuperaRegistrosGrandes",
+            "rechazaRegistrosDemasiadoGrandes", "descartaFinalAMedias",
+            "descartaFinalEnCeros", "noTruncaRegistroDanado",
+            "noTruncaSegmentoAnterior", "noTruncaSiNoSePuedeAplicar",
+            "recuperaDespuesDeCompactar"};
+        for (String nombre : nombres) {
+            pruebas.carpeta = Files.createTempDirectory("taller-prueba");
+            try {
+                DiarioPrueba.class.getDeclaredMethod(nombre).invoke(pruebas);
+                System.out.println("ok      " + nombre);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                fallidas.add(nombre);
+                System.out.println("FALLA   " + nombre + ": " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            } finally {
+                borrar(pruebas.carpeta);
+            }
+        }
+        System.out.println(nombres.length - fallidas.size() + " de " + nombres.length
+                + " pruebas correctas");
+        if (!fallidas.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /* ------- */
+ /* PRUEBAS */
+ /* ------- */
+    /**
+     * Altas, reparaciones, actualizaciones, bajas e intervenciones se
+     * recuperan tal cual al volver a abrir el diario.
+     */
+    void recuperaLoConfirmado() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 100);
+        Taller nuevo = new Taller();
+        nuevo.setVehiculo(Matricula.fromKey(3), "Ford", "Focus", "Gris");
+        sede.updateTallerToRegistro(nuevo);
+        sede.removeVehiculo(Matricula.fromKey(5));
+        sede.registrarReparacion(Matricula.fromKey(7), "Luces", 2_500);
+        String esperado = listado(sede);
+        int intervenciones = sede.historialDe(Matricula.fromKey(7)).size();
+        sede.cerrarDiario();
+
+        Sede recuperada = abrir(diario);
+        comprobar(listado(recuperada).equals(esperado), "el registro recuperado es distinto");
+        comprobar(recuperada.getVehiculosRegistrados() == 99, "faltan vehículos");
+        comprobar(recuperada.historialDe(Matricula.fromKey(7)).size() == intervenciones,
+                "falta el historial");
+        recuperada.cerrarDiario();
+    }
+
+    /**
+     * Un registro que no cabe en el búfer inicial de lectura se recupera,
+     * junto con todos los que vienen detrás.
+     */
+    void recuperaRegistrosGrandes() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        alta(sede, 1, "Seat");
+        alta(sede, 2, "M".repeat(1_100_000));
+        alta(sede, 3, "Renault");
+        String esperado = listado(sede);
+        sede.cerrarDiario();
+
+        Sede recuperada = abrir(diario);
+        comprobar(recuperada.getVehiculosRegistrados() == 3,
+                "se han recuperado " + recuperada.getVehiculosRegistrados() + " de 3");
+        comprobar(listado(recuperada).equals(esperado), "el registro recuperado es distinto");
+        recuperada.cerrarDiario();
+    }
+
+    /**
+     * Un cambio que no cabe en un registro del diario se rechaza sin
+     * cambiar el registro de la sede.
+     */
+    void rechazaRegistrosDemasiadoGrandes() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        alta(sede, 1, "Seat");
+        try {
+            alta(sede, 2, "M".repeat(Diario.CUERPO_MAXIMO));
+            throw new AssertionError("se ha aceptado un registro demasiado grande");
+        } catch (IllegalArgumentException e) {
+            // Es lo esperado
+        }
+        comprobar(sede.getVehiculosRegistrados() == 1, "el alta rechazada se ha registrado");
+        try {
+            Orden.alta(Matricula.fromKey(2), "M".repeat(Diario.CUERPO_MAXIMO),
+                    "Modelo", "Rojo");
+            throw new AssertionError("se ha creado una orden que no cabe en el diario");
+        } catch (IllegalArgumentException e) {
+            // Es lo esperado: se rechaza antes de ejecutar el lote
+        }
+        alta(sede, 3, "Renault");
+        sede.cerrarDiario();
+
+        Sede recuperada = abrir(diario);
+        comprobar(recuperada.getVehiculosRegistrados() == 2, "faltan vehículos");
+        recuperada.cerrarDiario();
+    }
+
+    /**
+     * Un registro incompleto al final del último segmento se descarta y se
+     * trunca, y se puede seguir escribiendo detrás.
+     */
+    void descartaFinalAMedias() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 10);
+        String esperado = listado(sede);
+        sede.cerrarDiario();
+        Path segmento = ultimoSegmento(diario);
+        long tamano = Files.size(segmento);
+        // Longitud de un registro de 100 bytes con solo 3 escritos
+        agregarBytes(segmento, new byte[]{0, 0, 0, 100, Diario.ALTA, 1, 2});
+
+        Sede recuperada = abrir(diario);
+        comprobar(listado(recuperada).equals(esperado), "el registro recuperado es distinto");
+        comprobar(Files.size(segmento) == tamano, "no se ha truncado el final a medias");
+        alta(recuperada, 50, "Seat");
+        recuperada.cerrarDiario();
+
+        Sede otraVez = abrir(diario);
+        comprobar(otraVez.getVehiculosRegistrados() == 11, "falta el alta posterior");
+        otraVez.cerrarDiario();
+    }
+
+    /**
+     * Un final del último segmento lleno de ceros, como el que queda si el
+     * sistema de ficheros amplió el fichero sin llegar a escribir los
+     * datos, se descarta.
+     */
+    void descartaFinalEnCeros() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 10);
+        sede.cerrarDiario();
+        Path segmento = ultimoSegmento(diario);
+        long tamano = Files.size(segmento);
+        agregarBytes(segmento, new byte[4096]);
+
+        Sede recuperada = abrir(diario);
+        comprobar(recuperada.getVehiculosRegistrados() == 10, "faltan vehículos");
+        comprobar(Files.size(segmento) == tamano, "no se han quitado los ceros");
+        recuperada.cerrarDiario();
+    }
+
+    /**
+     * Un registro con el CRC incorrecto seguido de otros registros no es una
+     * escritura interrumpida: la apertura falla y el fichero queda intacto.
+     */
+    void noTruncaRegistroDanado() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 10);
+        sede.cerrarDiario();
+        Path segmento = ultimoSegmento(diario);
+        long tamano = Files.size(segmento);
+        // El quinto byte es el tipo del primer registro, que está en el CRC
+        danar(segmento, 4);
+
+        debeFallarAlAbrir(diario);
+        comprobar(Files.size(segmento) == tamano, "se ha truncado el segmento dañado");
+    }
+
+    /**
+     * Un segmento que no es el último no puede estar a medias: si lo está,
+     * la apertura falla sin tocar ninguno.
+     */
+    void noTruncaSegmentoAnterior() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 10);
+        sede.cerrarDiario();
+        Path primero = ultimoSegmento(diario);
+        // Se empieza otro segmento a mano, como al rotar, con más altas
+        Diario segundo = new Diario(diario, -1, new Ignorar());
+        segundo.rotar();
+        segundo.confirmar(segundo.agregarVehiculo(Diario.ALTA, 99, "Seat", "Ibiza",
+                "Rojo", new String[0], 0));
+        segundo.close();
+        long tamano = Files.size(primero);
+        agregarBytes(primero, new byte[]{0, 0, 0, 100, Diario.ALTA});
+
+        debeFallarAlAbrir(diario);
+        comprobar(Files.size(primero) == tamano + 5, "se ha truncado el segmento anterior");
+    }
+
+    /**
+     * Si un evento bien escrito no se puede aplicar, la apertura falla y el
+     * diario no se trunca.
+     */
+    void noTruncaSiNoSePuedeAplicar() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 10);
+        sede.cerrarDiario();
+        Path segmento = ultimoSegmento(diario);
+        long tamano = Files.size(segmento);
+        try {
+            new Diario(diario, -1, new Ignorar() {
+                @Override
+                public void reparacion(int clave, String reparacion) {
+                    throw new IllegalStateException("fallo del receptor");
+                }
+            }).close();
+            throw new AssertionError("se ha abierto sin poder aplicar los eventos");
+        } catch (IOException e) {
+            // Es lo esperado
+        }
+        comprobar(Files.size(segmento) == tamano, "se ha truncado el diario");
+    }
+
+    /**
+     * Después de compactar, al volver a abrir se usa la instantánea y solo
+     * se reproducen los cambios posteriores, y el resultado es el mismo.
+     */
+    void recuperaDespuesDeCompactar() throws IOException {
+        Path diario = carpeta.resolve("taller.diario");
+        Sede sede = abrir(diario);
+        cargar(sede, 200);
+        sede.registrarReparacion(Matricula.fromKey(10), "Luces", 2_500);
+        comprobar(sede.compactar(), "no se ha compactado");
+        // Cerrar el diario espera a que termine la compactación
+        sede.cerrarDiario();
+        Sede reabierta = abrir(diario);
+        comprobar(reabierta.getVehiculosRegistrados() == 200, "faltan vehículos");
+        reabierta.removeVehiculo(Matricula.fromKey(20));
+        alta(reabierta, 1_000, "Seat");
+        reabierta.appendRepairIfRoom(Matricula.fromKey(30), "Luces");
+        String esperado = listado(reabierta);
+        reabierta.cerrarDiario();
+        comprobar(Files.exists(diario.resolveSibling("taller.diario.instantanea")),
+                "no hay instantánea");
+        try (Stream<Path> ficheros = Files.list(carpeta)) {
+            long segmentos = ficheros.filter(f -> f.getFileName().toString()
+                    .matches("taller\\.diario(\\.\\d+)?")).count();
+            comprobar(segmentos == 1, "quedan " + segmentos + " segmentos y no 1");
+        }
+
+        Sede recuperada = new Sede("prueba");
+        recuperada.configurarCapacidad(Taller.SIN_LIMITE, Taller.SIN_LIMITE);
+        long reproducidos = recuperada.abrirDiario(diario);
+        comprobar(reproducidos == 3, "se han reproducido " + reproducidos + " eventos y no 3");
+        comprobar(listado(recuperada).equals(esperado), "el registro recuperado es distinto");
+        comprobar(recuperada.historialDe(Matricula.fromKey(10)).size() == 1,
+                "falta el historial de la instantánea");
+        recuperada.cerrarDiario();
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Receptor que no hace nada con los eventos.
+     */
+    private static class Ignorar implements Diario.Receptor {
+
+        @Override
+        public void alta(int clave, String marca, String modelo, String color,
+                String[] reparaciones) {
+        }
+
+        @Override
+        public void reparacion(int clave, String reparacion) {
+        }
+
+        @Override
+        public void actualizacion(int clave, String marca, String modelo,
+                String color, String[] reparaciones) {
+        }
+
+        @Override
+        public void baja(int clave) {
+        }
+
+        @Override
+        public void intervencion(int clave, long instante, String tipo, long coste) {
+        }
+    }
+
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+
+    /**
+     * Crea una sede sin límites ni compactación automática y abre un diario.
+     */
+    private static Sede abrir(Path diario) throws IOException {
+        Sede sede = new Sede("prueba");
+        sede.configurarCapacidad(Taller.SIN_LIMITE, Taller.SIN_LIMITE);
+        sede.configurarCompactacion(0);
+        sede.abrirDiario(diario);
+        return sede;
+    }
+
+    private static void debeFallarAlAbrir(Path diario) {
+        try {
+            abrir(diario).cerrarDiario();
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("se ha abierto un diario dañado");
+    }
+
+    private static void alta(Sede sede, int clave, String marca) {
+        Resultado resultado = sede.addIfAbsent(Matricula.fromKey(clave), marca,
+                "Modelo", "Rojo");
+        comprobar(resultado == Resultado.REALIZADO, "alta " + clave + ": " + resultado);
+    }
+
+    /**
+     * Registra vehículos con claves de 0 a n - 1, con entre 0 y 2
+     * reparaciones.
+     */
+    private static void cargar(Sede sede, int n) {
+        for (int v = 0; v < n; v++) {
+            alta(sede, v, "Seat");
+            for (int r = 0; r < v % 3; r++) {
+                sede.appendRepairIfRoom(Matricula.fromKey(v), REPARACIONES[r]);
+            }
+        }
+    }
+
+    private static String listado(Sede sede) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sede.escribirRegistro(sb);
+        } catch (IOException e) {
+            // Un StringBuilder no lanza IOException
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Segmento de mayor generación del diario.
+     */
+    private static Path ultimoSegmento(Path diario) throws IOException {
+        try (Stream<Path> ficheros = Files.list(diario.getParent())) {
+            return ficheros.filter(f -> f.getFileName().toString()
+                    .matches("taller\\.diario\\.\\d+"))
+                    .max((a, b) -> Long.compare(generacion(a), generacion(b)))
+                    .orElseThrow();
+        }
+    }
+
+    private static long generacion(Path segmento) {
+        String nombre = segmento.getFileName().toString();
+        return Long.parseLong(nombre.substring(nombre.lastIndexOf('.') + 1));
+    }
+
+    private static void agregarBytes(Path fichero, byte[] bytes) throws IOException {
+        Files.write(fichero, bytes, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Cambia un byte de un fichero.
+     */
+    private static void danar(Path fichero, long posicion) throws IOException {
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            canal.read(b, posicion);
+            b.put(0, (byte) (b.get(0) ^ 0x5A));
+            b.rewind();
+            canal.write(b, posicion);
+        }
+    }
+
+    private static void borrar(Path carpeta) throws IOException {
+        try (Stream<Path> ficheros = Files.list(carpeta)) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                Files.delete(fichero);
+            }
+        }
+        Files.delete(carpeta);
+    }
+}
@@ -0,0 +1,279 @@
+package taller;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import vehiculo.Matricula;
+
+/**
+ * Pruebas del registro con muchos hilos a la vez: que ninguna alta,
+ * reparación o baja se pierde ni se aplica dos veces, y que los listados
+ * salen coherentes aunque el registro cambie mientras se escriben.
+ *
+ * Como DiarioPrueba, cada prueba es un método que lanza AssertionError si
+ * falla, y main() las ejecuta todas. Se ejecuta con "ant pruebas". La
+ * velocidad del registro con varios hilos se mide aparte, en
+ * bench/benchmark/RegistroConcurrenteBenchmark.
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class RegistroConcurrentePrueba {
+
+    /**
+     * Hilos que atacan el registro.
+     */
+    private static final int HILOS = 8;
+    /**
+     * Matrículas distintas que se disputan los hilos.
+     */
+    private static final int MATRICULAS = 20_000;
+    /**
+     * Reparaciones que admite cada vehículo en la prueba.
+     */
+    private static final int REPARACIONES = 3;
+    /**
+     * Vehículos que hay siempre en el registro en la prueba de los listados,
+     * y lotes que manda cada escritor.
+     */
+    private static final int VEHICULOS_LISTADOS = 2_000;
+    private static final int LOTES = 20_000;
+    private static final String MATRICULA = "Matrícula: ";
+
+    /**
+     * @param args No se usan.
+     * @throws Exception si falla la preparación de alguna prueba.
+     */
+    public static void main(String[] args) throws Exception {
+        RegistroConcurrentePrueba pruebas = new RegistroConcurrentePrueba();
+        List<String> fallidas = new ArrayList<>();
+        String[] nombres = {"noSePierdenActualizaciones", "listadosCoherentes"};
+        for (String nombre : nombres) {
+            try {
+                RegistroConcurrentePrueba.class.getDeclaredMethod(nombre).invoke(pruebas);
+                System.out.println("ok      " + nombre);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                fallidas.add(nombre);
+                System.out.println("FALLA   " + nombre + ": " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            }
+        }
+        System.out.println(nombres.length - fallidas.size() + " de " + nombres.length
+                + " pruebas correctas");
+        if (!fallidas.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /* ------- */
+ /* PRUEBAS */
+ /* ------- */
+    /**
+     * Cada hilo intenta registrar las mismas matrículas y agregarles
+     * reparaciones y, después, dar de baja la mitad. Cada matrícula se
+     * registra una sola vez, ningún vehículo pasa del máximo de reparaciones
+     * y las reparaciones aceptadas coinciden con las que quedan en el
+     * registro más las de los vehículos dados de baja.
+     */
+    void noSePierdenActualizaciones() throws InterruptedException {
+        Sede sede = new Sede("prueba");
+        sede.configurarCapacidad(Taller.SIN_LIMITE, REPARACIONES);
+        AtomicInteger altas = new AtomicInteger();
+        AtomicInteger reparaciones = new AtomicInteger();
+        AtomicInteger reparacionesBorradas = new AtomicInteger();
+        AtomicInteger bajas = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch salida = new CountDownLatch(1);
+        CyclicBarrier cambioDeFase = new CyclicBarrier(HILOS);
+        CountDownLatch fin = new CountDownLatch(HILOS);
+        for (int h = 0; h < HILOS; h++) {
+            int desplazamiento = h * 7919;
+            new Thread(() -> {
+                try {
+                    salida.await();
+                    for (int i = 0; i < MATRICULAS; i++) {
+                        Matricula m = Matricula.fromKey(
+                                (i + desplazamiento) % MATRICULAS);
+                        if (sede.addIfAbsent(m, "Seat", "Ibiza", "Rojo")
+                                == Resultado.REALIZADO) {
+                            altas.incrementAndGet();
+                        }
+                        if (sede.appendRepairIfRoom(m, "Frenos")
+                                == Resultado.REALIZADO) {
+                            reparaciones.incrementAndGet();
+                        }
+                    }
+                    // Las bajas empiezan cuando todos han terminado las altas,
+                    // así las reparaciones de cada vehículo ya no cambian
+                    cambioDeFase.await();
+                    for (int i = 0; i < MATRICULAS; i += 2) {
+                        Matricula m = Matricula.fromKey(i);
+                        Taller t = sede.buscarEnRegistroPorMatricula(m);
+                        int enVehiculo = t == null ? 0 : t.getNumeroDeReparaciones();
+                        if (sede.removeVehiculo(m)) {
+                            bajas.incrementAndGet();
+                            reparacionesBorradas.addAndGet(enVehiculo);
+                        }
+                    }
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    Thread.currentThread().interrupt();
+                    error.compareAndSet(null, e);
+                } catch (RuntimeException | Error e) {
+                    error.compareAndSet(null, e);
+                    cambioDeFase.reset();
+                } finally {
+                    fin.countDown();
+                }
+            }).start();
+        }
+        salida.countDown();
+        fin.await();
+        if (error.get() != null) {
+            throw new AssertionError("ha fallado un hilo", error.get());
+        }
+
+        int restantes = 0;
+        for (int i = 0; i < MATRICULAS; i++) {
+            Taller t = sede.buscarEnRegistroPorMatricula(Matricula.fromKey(i));
+            if (t != null) {
+                comprobar(t.getNumeroDeReparaciones() <= REPARACIONES,
+                        "el vehículo " + i + " pasa del máximo de reparaciones");
+                restantes += t.getNumeroDeReparaciones();
+            }
+        }
+        comprobar(altas.get() == MATRICULAS,
+                "altas: " + altas.get() + ", esperadas " + MATRICULAS);
+        comprobar(bajas.get() == MATRICULAS / 2,
+                "bajas: " + bajas.get() + ", esperadas " + MATRICULAS / 2);
+        comprobar(sede.getVehiculosRegistrados() == MATRICULAS - MATRICULAS / 2,
+                "quedan " + sede.getVehiculosRegistrados() + " vehículos");
+        comprobar(reparaciones.get() == restantes + reparacionesBorradas.get(),
+                "reparaciones aceptadas: " + reparaciones.get()
+                + ", encontradas " + (restantes + reparacionesBorradas.get()));
+    }
+
+    /**
+     * Varios escritores mandan lotes que dan de alta un vehículo nuevo y de
+     * baja uno de los suyos, así que el registro tiene siempre el mismo
+     * número de vehículos, mientras dos lectores lo listan por páginas: uno
+     * sin parar y otro con pausas, en las que se acumulan cambios
+     * suficientes para que el registro deje de preparar la foto siguiente y
+     * la tenga que volver a construir (ver Registro). Cada listado tiene
+     * exactamente ese número de vehículos, sin repetidos.
+     */
+    void listadosCoherentes() throws InterruptedException {
+        Sede sede = new Sede("prueba");
+        sede.configurarCapacidad(Taller.SIN_LIMITE, REPARACIONES);
+        List<ArrayDeque<Integer>> propios = new ArrayList<>();
+        for (int h = 0; h < HILOS / 2; h++) {
+            propios.add(new ArrayDeque<>());
+        }
+        List<Orden> altas = new ArrayList<>();
+        for (int v = 0; v < VEHICULOS_LISTADOS; v++) {
+            altas.add(Orden.alta(Matricula.fromKey(v), "Seat", "Ibiza", "Rojo"));
+            propios.get(v % propios.size()).add(v);
+        }
+        sede.ejecutar(altas);
+        AtomicInteger nueva = new AtomicInteger(VEHICULOS_LISTADOS);
+        AtomicInteger listados = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch escritores = new CountDownLatch(propios.size());
+        CountDownLatch fin = new CountDownLatch(propios.size() + 2);
+        for (ArrayDeque<Integer> suyos : propios) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < LOTES && error.get() == null; i++) {
+                        int alta = nueva.getAndIncrement();
+                        Resultado[] resultados = sede.ejecutar(List.of(
+                                Orden.alta(Matricula.fromKey(alta), "Seat", "Leon", "Azul"),
+                                Orden.baja(Matricula.fromKey(suyos.poll()))));
+                        comprobar(resultados[0] == Resultado.REALIZADO
+                                && resultados[1] == Resultado.REALIZADO,
+                                "lote con resultado " + resultados[0] + ", " + resultados[1]);
+                        suyos.add(alta);
+                    }
+                } catch (RuntimeException | Error e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    escritores.countDown();
+                    fin.countDown();
+                }
+            }).start();
+        }
+        for (int l = 0; l < 2; l++) {
+            boolean conPausas = l == 1;
+            new Thread(() -> {
+                try {
+                    while (escritores.getCount() > 0 && error.get() == null) {
+                        comprobarListado(sede.listar());
+                        listados.incrementAndGet();
+                        if (conPausas) {
+                            Thread.sleep(20);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error.compareAndSet(null, e);
+                } catch (RuntimeException | Error e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    fin.countDown();
+                }
+            }).start();
+        }
+        fin.await();
+        if (error.get() != null) {
+            throw new AssertionError("ha fallado un hilo", error.get());
+        }
+        comprobar(listados.get() > 0, "no se ha hecho ningún listado");
+        comprobarListado(sede.listar());
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    /**
+     * Escribe un listado completo por páginas y comprueba que tiene
+     * VEHICULOS_LISTADOS vehículos distintos.
+     */
+    private static void comprobarListado(Sede.Listado listado) {
+        StringBuilder pagina = new StringBuilder();
+        Set<String> matriculas = new HashSet<>();
+        int contados = 0;
+        try {
+            boolean quedan = true;
+            while (quedan) {
+                pagina.setLength(0);
+                quedan = listado.escribirPagina(pagina, 300);
+                for (int i = pagina.indexOf(MATRICULA); i >= 0;
+                        i = pagina.indexOf(MATRICULA, i + 1)) {
+                    int inicio = i + MATRICULA.length();
+                    matriculas.add(pagina.substring(inicio, pagina.indexOf("\n", inicio)));
+                    contados++;
+                }
+            }
+        } catch (IOException e) {
+            // Un StringBuilder no lanza IOException
+            throw new IllegalStateException(e);
+        }
+        comprobar(listado.getVehiculos() == VEHICULOS_LISTADOS,
+                "el listado dice tener " + listado.getVehiculos() + " vehículos");
+        comprobar(contados == VEHICULOS_LISTADOS,
+                "el listado tiene " + contados + " vehículos");
+        comprobar(matriculas.size() == VEHICULOS_LISTADOS,
+                "el listado tiene " + (contados - matriculas.size()) + " repetidos");
+    }
+
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package taller;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import vehiculo.Matricula;
+
+/**
+ * Pruebas de los traslados entre las sedes de un reparto: que no se pasan de
+ * la capacidad de la sede nueva y que, si el programa se cae a mitad de un
+ * traslado, al volver a arrancar cada vehículo queda solo en su sede dueña.
+ *
+ * Como DiarioPrueba, cada prueba es un método que lanza AssertionError si
+ * falla, y main() las ejecuta todas. Se ejecuta con "ant pruebas".
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class RepartoPrueba {
+
+    private static final int VEHICULOS = 3_000;
+
+    /**
+     * Carpeta temporal de la prueba en curso.
+     */
+    private Path carpeta;
+
+    /**
+     * @param args No se usan.
+     * @throws Exception si falla la preparación de alguna prueba.
+     */
+    public static void main(String[] args) throws Exception {
+        RepartoPrueba pruebas = new RepartoPrueba();
+        List<String> fallidas = new ArrayList<>();
+        String[] nombres = {"trasladaLosQueLeCorresponden", "rechazaSedeSinSitio",
+            "quitaDuplicadosAlArrancar", "terminaTrasladoAlArrancar"};
+        for (String nombre : nombres) {
+            pruebas.carpeta = Files.createTempDirectory("taller-prueba");
+            try {
+                RepartoPrueba.class.getDeclaredMethod(nombre).invoke(pruebas);
+                System.out.println("ok      " + nombre);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                fallidas.add(nombre);
+                System.out.println("FALLA   " + nombre + ": " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            } finally {
+                borrar(pruebas.carpeta);
+            }
+        }
+        System.out.println(nombres.length - fallidas.size() + " de " + nombres.length
+                + " pruebas correctas");
+        if (!fallidas.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /* ------- */
+ /* PRUEBAS */
+ /* ------- */
+    /**
+     * Al agregar una sede con sitio se le pasan sus vehículos y se siguen
+     * encontrando todos.
+     */
+    void trasladaLosQueLeCorresponden() {
+        try (Reparto reparto = new Reparto(List.of(sede("a", Taller.SIN_LIMITE),
+                sede("b", Taller.SIN_LIMITE)))) {
+            cargar(reparto);
+            int trasladados = reparto.agregarSede(sede("c", Taller.SIN_LIMITE));
+            int[] porSede = reparto.getVehiculosPorSede();
+            comprobar(trasladados == porSede[2], "trasladados " + trasladados
+                    + " y en la sede nueva " + porSede[2]);
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS, "faltan vehículos");
+            comprobarDuenas(reparto);
+        }
+    }
+
+    /**
+     * Si los vehículos que le corresponden no caben en la sede nueva, no se
+     * agrega y no se traslada ninguno.
+     */
+    void rechazaSedeSinSitio() {
+        try (Reparto reparto = new Reparto(List.of(sede("a", Taller.SIN_LIMITE),
+                sede("b", Taller.SIN_LIMITE)))) {
+            cargar(reparto);
+            Sede pequena = sede("c", 10);
+            try {
+                reparto.agregarSede(pequena);
+                throw new AssertionError("se ha agregado una sede sin sitio");
+            } catch (IllegalStateException e) {
+                // Es lo esperado
+            }
+            comprobar(reparto.getNumeroDeSedes() == 2, "se ha agregado la sede");
+            comprobar(pequena.getVehiculosRegistrados() == 0, "se han trasladado vehículos");
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS, "faltan vehículos");
+            comprobarDuenas(reparto);
+            // El reparto sigue funcionando y admite otra sede con sitio
+            comprobar(reparto.addIfAbsent(Matricula.fromKey(VEHICULOS), "Seat", "Leon",
+                    "Azul") == Resultado.REALIZADO, "no se puede dar de alta");
+            reparto.agregarSede(sede("d", Taller.SIN_LIMITE));
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS + 1, "faltan vehículos");
+            comprobarDuenas(reparto);
+        }
+    }
+
+    /**
+     * Si el programa se cae después de confirmar el traslado en el diario de
+     * la sede nueva y antes de confirmarlo en el de la anterior, los
+     * vehículos trasladados están en las dos; al arrancar se quitan de la
+     * anterior y se conservan los cambios hechos en la nueva.
+     */
+    void quitaDuplicadosAlArrancar() throws IOException {
+        List<Sede> sedes = abrir("a", "b");
+        try (Reparto reparto = new Reparto(sedes)) {
+            cargar(reparto);
+        }
+        // Se copian a mano a la sede nueva, como si solo se hubiera
+        // confirmado su diario, y se cambia uno de ellos
+        Sede nueva = abrir("c").get(0);
+        Matricula cambiada = null;
+        for (int clave = 0; clave < VEHICULOS; clave++) {
+            if (Reparto.sede(clave, 3) == 2) {
+                Taller original = buscar(sedes, clave);
+                Taller copia = new Taller();
+                copia.setVehiculo(Matricula.fromKey(clave), original.getVehiculo().getMarca(),
+                        original.getVehiculo().getModelo(), original.getVehiculo().getColor());
+                comprobar(nueva.addRegistro(copia), "no se ha copiado " + clave);
+                if (cambiada == null) {
+                    cambiada = Matricula.fromKey(clave);
+                    nueva.appendRepairIfRoom(cambiada, "Luces");
+                }
+            }
+        }
+        cerrar(sedes);
+        nueva.cerrarDiario();
+
+        List<Sede> rearrancadas = abrir("a", "b", "c");
+        try (Reparto reparto = new Reparto(rearrancadas)) {
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS,
+                    "hay " + reparto.getVehiculosRegistrados() + " vehículos y no "
+                    + VEHICULOS);
+            comprobarDuenas(reparto);
+            comprobar(Arrays.asList(reparto.buscarEnRegistroPorMatricula(cambiada)
+                    .getReparaciones()).contains("Luces"),
+                    "se ha perdido el cambio de la sede nueva");
+        }
+        cerrar(rearrancadas);
+
+        // Los duplicados se han quitado también del diario
+        List<Sede> otraVez = abrir("a", "b", "c");
+        try (Reparto reparto = new Reparto(otraVez)) {
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS, "hay duplicados");
+        }
+        cerrar(otraVez);
+    }
+
+    /**
+     * Si el programa se cae antes de confirmar el traslado en ningún diario,
+     * los vehículos siguen en las sedes anteriores; al arrancar con la sede
+     * nueva se le trasladan.
+     */
+    void terminaTrasladoAlArrancar() throws IOException {
+        List<Sede> sedes = abrir("a", "b");
+        try (Reparto reparto = new Reparto(sedes)) {
+            cargar(reparto);
+        }
+        cerrar(sedes);
+
+        List<Sede> rearrancadas = abrir("a", "b", "c");
+        try (Reparto reparto = new Reparto(rearrancadas)) {
+            comprobar(reparto.getVehiculosPorSede()[2] > 0, "no se ha trasladado nada");
+            comprobar(reparto.getVehiculosRegistrados() == VEHICULOS, "faltan vehículos");
+            comprobarDuenas(reparto);
+        }
+        cerrar(rearrancadas);
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+
+    private static Sede sede(String nombre, int vehiculos) {
+        Sede sede = new Sede(nombre);
+        sede.configurarCapacidad(vehiculos, Taller.REPARACIONES_MAXIMAS);
+        return sede;
+    }
+
+    /**
+     * Crea sedes sin límite con su diario abierto en la carpeta de la
+     * prueba.
+     */
+    private List<Sede> abrir(String... nombres) throws IOException {
+        List<Sede> sedes = new ArrayList<>();
+        for (String nombre : nombres) {
+            Sede sede = sede(nombre, Taller.SIN_LIMITE);
+            sede.abrirDiario(carpeta.resolve(nombre + ".diario"));
+            sedes.add(sede);
+        }
+        return sedes;
+    }
+
+    private static void cerrar(List<Sede> sedes) throws IOException {
+        for (Sede sede : sedes) {
+            sede.cerrarDiario();
+        }
+    }
+
+    private static void cargar(Reparto reparto) {
+        for (int clave = 0; clave < VEHICULOS; clave++) {
+            comprobar(reparto.addIfAbsent(Matricula.fromKey(clave), "Seat", "Leon",
+                    "Azul") == Resultado.REALIZADO, "alta " + clave);
+        }
+    }
+
+    private static Taller buscar(List<Sede> sedes, int clave) {
+        for (Sede sede : sedes) {
+            Taller taller = sede.buscarEnRegistroPorMatricula(Matricula.fromKey(clave));
+            if (taller != null) {
+                return taller;
+            }
+        }
+        throw new AssertionError("no está el vehículo " + clave);
+    }
+
+    /**
+     * Comprueba que cada vehículo está solo en su sede dueña.
+     */
+    private static void comprobarDuenas(Reparto reparto) {
+        List<Sede> sedes = reparto.getSedes();
+        for (int i = 0; i < sedes.size(); i++) {
+            int propia = i;
+            int fuera = sedes.get(i).modificar(() -> sedes.get(propia)
+                    .contarParaTrasladar(null, clave -> Reparto.sede(clave,
+                    sedes.size()) != propia));
+            comprobar(fuera == 0, "hay " + fuera + " vehículos fuera de su sede en "
+                    + sedes.get(i).getNombre());
+        }
+    }
+
+    private static void borrar(Path carpeta) throws IOException {
+        try (Stream<Path> ficheros = Files.list(carpeta)) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                Files.delete(fichero);
+            }
+        }
+        Files.delete(carpeta);
+    }
+}
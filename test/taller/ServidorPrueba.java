@@ -0,0 +1,140 @@
+package taller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pruebas de las respuestas de error del servidor: que toda orden no válida
+ * recibe una única línea "ERROR," con el motivo como campo CSV, y que la
+ * conexión sigue atendiendo órdenes después.
+ *
+ * Como DiarioPrueba, cada prueba es un método que lanza AssertionError si
+ * falla, y main() las ejecuta todas. Se ejecuta con "ant pruebas".
+ *
+ * @author Gabriel Cubillos Rodríguez
+ */
+public class ServidorPrueba {
+
+    /**
+     * Conexión con el servidor de la prueba en curso.
+     */
+    private Socket conexion;
+    private BufferedReader entrada;
+    private Writer salida;
+
+    /**
+     * @param args No se usan.
+     * @throws Exception si no se puede abrir el servidor.
+     */
+    public static void main(String[] args) throws Exception {
+        ServidorPrueba pruebas = new ServidorPrueba();
+        List<String> fallidas = new ArrayList<>();
+        String[] nombres = {"respondeOrdenDesconocida", "citaElMotivoSiHaceFalta",
+            "quitaLosSaltosDeLinea", "respondeArgumentosNoValidos",
+            "sigueDespuesDeLosErrores"};
+        try (Servidor servidor = new Servidor(new InetSocketAddress("127.0.0.1", 0))) {
+            for (String nombre : nombres) {
+                pruebas.conectar(servidor.getPuerto());
+                try {
+                    ServidorPrueba.class.getDeclaredMethod(nombre).invoke(pruebas);
+                    System.out.println("ok      " + nombre);
+                } catch (java.lang.reflect.InvocationTargetException e) {
+                    fallidas.add(nombre);
+                    System.out.println("FALLA   " + nombre + ": " + e.getCause());
+                    e.getCause().printStackTrace(System.out);
+                } finally {
+                    pruebas.conexion.close();
+                }
+            }
+        }
+        System.out.println(nombres.length - fallidas.size() + " de " + nombres.length
+                + " pruebas correctas");
+        if (!fallidas.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /* ------- */
+ /* PRUEBAS */
+ /* ------- */
+    void respondeOrdenDesconocida() throws IOException {
+        comprobarRespuesta("PINTAR,1234BCD", "ERROR,Orden desconocida: PINTAR");
+    }
+
+    /**
+     * Un motivo con comas o comillas va entre comillas, como cualquier campo
+     * CSV, para que el cliente lo lea entero.
+     */
+    void citaElMotivoSiHaceFalta() throws IOException {
+        comprobarRespuesta("\"PINTAR,\"\"ROJO\"\"\"",
+                "ERROR,\"Orden desconocida: PINTAR,\"\"ROJO\"\"\"");
+        comprobarRespuesta("ALTA,1234BCD,\"Seat,Ibiza,Rojo",
+                "ERROR,Faltan unas comillas de cierre");
+    }
+
+    /**
+     * Un salto de línea en el motivo no puede partir la respuesta en dos.
+     */
+    void quitaLosSaltosDeLinea() throws IOException {
+        comprobarRespuesta("\"PIN\rTAR\"", "ERROR,Orden desconocida: PIN TAR");
+        comprobarRespuesta("SALIR", "REALIZADO");
+    }
+
+    void respondeArgumentosNoValidos() throws IOException {
+        comprobarRespuesta("BUSCAR", "ERROR,La orden BUSCAR lleva 1 argumento");
+        comprobarRespuesta("BUSCAR,12", "ERROR,Matrícula no válida: 12");
+        comprobarRespuesta("ALTA,1234BCD, ,Ibiza,Rojo",
+                "ERROR,\"El campo \"\"marca\"\" está en blanco\"");
+        comprobarRespuesta("REPARACION,1234BCD,Frenos,-3",
+                "ERROR,Importe no válido: -3");
+    }
+
+    /**
+     * Después de una orden no válida, la conexión sigue atendiendo órdenes,
+     * también si se mandan todas seguidas.
+     */
+    void sigueDespuesDeLosErrores() throws IOException {
+        salida.write("PINTAR\nALTA,9876XYZ,Seat,Ibiza,Rojo\nBUSCAR\nBAJA,9876XYZ\n");
+        salida.flush();
+        comprobar(entrada.readLine().startsWith("ERROR,"), "no hay error");
+        comprobar(entrada.readLine().equals("REALIZADO"), "no se ha dado de alta");
+        comprobar(entrada.readLine().startsWith("ERROR,"), "no hay error");
+        comprobar(entrada.readLine().equals("REALIZADO"), "no se ha dado de baja");
+    }
+
+    /* ------------------------------ */
+ /* METODOS AUXILIARES DE LA CLASE */
+ /* ------------------------------ */
+    private void conectar(int puerto) throws IOException {
+        conexion = new Socket("127.0.0.1", puerto);
+        conexion.setSoTimeout(10_000);
+        entrada = new BufferedReader(new InputStreamReader(
+                conexion.getInputStream(), StandardCharsets.UTF_8));
+        salida = new OutputStreamWriter(conexion.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Manda una orden y comprueba que la respuesta es una sola línea.
+     */
+    private void comprobarRespuesta(String orden, String esperada) throws IOException {
+        salida.write(orden + "\n");
+        salida.flush();
+        String respuesta = entrada.readLine();
+        comprobar(esperada.equals(respuesta),
+                "a \"" + orden + "\" se responde \"" + respuesta + "\" y no \"" + esperada + "\"");
+    }
+
+    private static void comprobar(boolean condicion, String mensaje) {
+        if (!condicion) {
+            throw new AssertionError(mensaje);
+        }
+    }
+}